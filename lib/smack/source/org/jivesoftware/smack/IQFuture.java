@@ -0,0 +1,278 @@
+/**
+ * $RCSfile$
+ * $Revision: 7071 $
+ * $Date: 2007-02-11 16:59:05 -0800 (Sun, 11 Feb 2007) $
+ *
+ * Copyright 2003-2007 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.XMPPError;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The pending response to an IQ request. The future is completed by the packet reader
+ * when a result or error IQ with the ID of the request is received, or with an error
+ * when no response arrives within the reply timeout, so no thread has to wait for the
+ * response unless it chooses to. Any number of requests can be outstanding on one
+ * connection at once.<p>
+ *
+ * The response can be waited for with {@link #getResult()}, or with the methods of
+ * {@link Future}, or a {@link IQResponseListener} can be told when it arrives.
+ *
+ * @see XMPPConnection#sendIqAsync(IQ)
+ */
+public class IQFuture implements Future<IQ> {
+
+    private final PacketReader packetReader;
+    private final String packetID;
+    private final Executor executor;
+    private final List<IQResponseListener> listeners = new ArrayList<IQResponseListener>();
+    private ScheduledFuture<?> timeoutTask;
+    private boolean done = false;
+    private boolean cancelled = false;
+    private IQ response;
+    private XMPPException exception;
+
+    /**
+     * Creates a new future for the response to a request.
+     *
+     * @param packetReader the packet reader the future is registered with.
+     * @param packetID the ID of the request.
+     * @param executor the executor response listeners are notified on.
+     */
+    IQFuture(PacketReader packetReader, String packetID, Executor executor) {
+        this.packetReader = packetReader;
+        this.packetID = packetID;
+        this.executor = executor;
+    }
+
+    /**
+     * Returns the ID of the request, which the response will have.
+     *
+     * @return the packet ID.
+     */
+    public String getPacketID() {
+        return packetID;
+    }
+
+    synchronized void setTimeoutTask(ScheduledFuture<?> timeoutTask) {
+        if (done) {
+            timeoutTask.cancel(false);
+        }
+        else {
+            this.timeoutTask = timeoutTask;
+        }
+    }
+
+    /**
+     * Adds a listener to be notified when the request completes. If it has already
+     * completed the listener is notified straight away.
+     *
+     * @param listener the listener.
+     */
+    public void addResponseListener(IQResponseListener listener) {
+        synchronized (this) {
+            if (!done) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        notifyListener(listener);
+    }
+
+    /**
+     * Completes the future with the response to the request.
+     *
+     * @param response the result or error IQ.
+     */
+    void complete(IQ response) {
+        if (response.getType() == IQ.Type.ERROR) {
+            complete(response, new XMPPException(response.getError()));
+        }
+        else {
+            complete(response, null);
+        }
+    }
+
+    /**
+     * Completes the future with an error, because no response will be received.
+     *
+     * @param exception the error.
+     */
+    void fail(XMPPException exception) {
+        complete(null, exception);
+    }
+
+    /**
+     * Completes the future because no response was received within the reply timeout.
+     */
+    void timeout() {
+        String message = "No response from server.";
+        fail(new XMPPException(message,
+                new XMPPError(XMPPError.Condition.request_timeout, message)));
+    }
+
+    private void complete(IQ response, XMPPException exception) {
+        List<IQResponseListener> toNotify;
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+            done = true;
+            this.response = response;
+            this.exception = exception;
+            if (timeoutTask != null) {
+                timeoutTask.cancel(false);
+            }
+            notifyAll();
+            toNotify = new ArrayList<IQResponseListener>(listeners);
+            listeners.clear();
+        }
+        for (IQResponseListener listener : toNotify) {
+            notifyListener(listener);
+        }
+    }
+
+    private void notifyListener(final IQResponseListener listener) {
+        Runnable notification = new Runnable() {
+            public void run() {
+                try {
+                    listener.processResponse(IQFuture.this);
+                }
+                catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        try {
+            executor.execute(notification);
+        }
+        catch (RejectedExecutionException e) {
+            // The connection has been shut down, so there is no thread to use.
+            notification.run();
+        }
+    }
+
+    /**
+     * Stops waiting for the response. Listeners are not notified of a cancelled request.
+     *
+     * @param mayInterruptIfRunning ignored, as there is no task to interrupt.
+     * @return true if the future was cancelled, false if it had already completed.
+     */
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            done = true;
+            cancelled = true;
+            listeners.clear();
+            if (timeoutTask != null) {
+                timeoutTask.cancel(false);
+            }
+            notifyAll();
+        }
+        packetReader.cancelIQFuture(this);
+        return true;
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Returns the response, waiting for it to be received if necessary. This is the
+     * blocking equivalent of collecting the response with a {@link PacketCollector}.
+     *
+     * @return the result IQ.
+     * @throws XMPPException if an error IQ was received, no response was received within
+     *      the reply timeout, or the request was cancelled.
+     */
+    public synchronized IQ getResult() throws XMPPException {
+        while (!done) {
+            try {
+                wait();
+            }
+            catch (InterruptedException ie) {
+                // Ignore.
+            }
+        }
+        if (cancelled) {
+            throw new XMPPException("Request cancelled.");
+        }
+        if (exception != null) {
+            throw exception;
+        }
+        return response;
+    }
+
+    /**
+     * Returns the response, waiting for it to be received if necessary. Unlike
+     * {@link #getResult()} an error IQ is returned rather than thrown.
+     *
+     * @return the response.
+     * @throws InterruptedException if the thread was interrupted while waiting.
+     * @throws ExecutionException if no response was received within the reply timeout.
+     */
+    public synchronized IQ get() throws InterruptedException, ExecutionException {
+        while (!done) {
+            wait();
+        }
+        return getResponse();
+    }
+
+    public synchronized IQ get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long waitTime = unit.toMillis(timeout);
+        long start = System.currentTimeMillis();
+        while (!done) {
+            if (waitTime <= 0) {
+                throw new TimeoutException();
+            }
+            wait(waitTime);
+            long now = System.currentTimeMillis();
+            waitTime -= (now - start);
+            start = now;
+        }
+        return getResponse();
+    }
+
+    private IQ getResponse() throws ExecutionException {
+        if (cancelled) {
+            throw new CancellationException();
+        }
+        if (response == null) {
+            throw new ExecutionException(exception);
+        }
+        return response;
+    }
+}
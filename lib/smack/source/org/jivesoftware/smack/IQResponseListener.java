@@ -0,0 +1,43 @@
+/**
+ * $RCSfile$
+ * $Revision: 7071 $
+ * $Date: 2007-02-11 16:59:05 -0800 (Sun, 11 Feb 2007) $
+ *
+ * Copyright 2003-2007 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+/**
+ * Provides a mechanism to be told when the response to an IQ request sent with
+ * {@link XMPPConnection#sendIqAsync(org.jivesoftware.smack.packet.IQ)} is received,
+ * or when the request times out, without a thread having to wait for it.
+ *
+ * @see IQFuture#addResponseListener(IQResponseListener)
+ */
+public interface IQResponseListener {
+
+    /**
+     * Called once the request has completed. {@link IQFuture#getResult()} can then be
+     * called on the future without blocking, to get the response or the error.<p>
+     *
+     * Responses are delivered by the same threads as packets to packet listeners, so
+     * implementations of this method should not block for any extended period of time.
+     *
+     * @param future the completed request.
+     */
+    public void processResponse(IQFuture future);
+
+}
@@ -20,10 +20,14 @@
 
 package org.jivesoftware.smack;
 
+import org.jivesoftware.smack.filter.AndFilter;
 import org.jivesoftware.smack.filter.PacketFilter;
+import org.jivesoftware.smack.filter.PacketIDFilter;
 import org.jivesoftware.smack.packet.Packet;
 
-import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Provides a mechanism to collect packets into a result queue that pass a
@@ -33,7 +37,13 @@ import java.util.LinkedList;
  * result.<p>
  *
  * Each packet collector will queue up to 2^16 packets for processing before
- * older packets are automatically dropped.
+ * older packets are automatically dropped.<p>
+ *
+ * Packets are queued without locking. The collector's monitor is only taken
+ * when a thread is blocked waiting for a result and has to be woken up. A collector
+ * whose filter is a {@link PacketIDFilter}, or an {@link AndFilter} containing one,
+ * is registered with the packet reader by its packet ID, so that it is only offered
+ * packets with that ID.
  *
  * @see XMPPConnection#createPacketCollector(PacketFilter)
  * @author Matt Tucker
@@ -48,9 +58,12 @@ public class PacketCollector {
     private static final int MAX_PACKETS = 65536;
 
     private PacketFilter packetFilter;
-    private LinkedList<Packet> resultQueue;
+    private String packetID;
+    private Queue<Packet> resultQueue;
+    private AtomicInteger size = new AtomicInteger();
+    private AtomicInteger waiters = new AtomicInteger();
     private PacketReader packetReader;
-    private boolean cancelled = false;
+    private volatile boolean cancelled = false;
 
     /**
      * Creates a new packet collector. If the packet filter is <tt>null</tt>, then
@@ -62,7 +75,30 @@ public class PacketCollector {
     protected PacketCollector(PacketReader packetReader, PacketFilter packetFilter) {
         this.packetReader = packetReader;
         this.packetFilter = packetFilter;
-        this.resultQueue = new LinkedList<Packet>();
+        this.packetID = findPacketID(packetFilter);
+        this.resultQueue = new ConcurrentLinkedQueue<Packet>();
+    }
+
+    /**
+     * Returns the packet ID which every packet accepted by the filter must have, or
+     * <tt>null</tt> if the filter does not require a packet ID.
+     *
+     * @param filter the filter.
+     * @return the packet ID.
+     */
+    private static String findPacketID(PacketFilter filter) {
+        if (filter instanceof PacketIDFilter) {
+            return ((PacketIDFilter) filter).getPacketID();
+        }
+        if (filter instanceof AndFilter) {
+            for (PacketFilter f : ((AndFilter) filter).getFilters()) {
+                String id = findPacketID(f);
+                if (id != null) {
+                    return id;
+                }
+            }
+        }
+        return null;
     }
 
     /**
@@ -88,6 +124,16 @@ public class PacketCollector {
         return packetFilter;
     }
 
+    /**
+     * Returns the packet ID the collector is registered by, or <tt>null</tt> if its
+     * filter does not require a packet ID.
+     *
+     * @return the packet ID.
+     */
+    String getPacketID() {
+        return packetID;
+    }
+
     /**
      * Polls to see if a packet is currently available and returns it, or
      * immediately returns <tt>null</tt> if no packets are currently in the
@@ -96,13 +142,12 @@ public class PacketCollector {
      * @return the next packet result, or <tt>null</tt> if there are no more
      *      results.
      */
-    public synchronized Packet pollResult() {
-        if (resultQueue.isEmpty()) {
-            return null;
-        }
-        else {
-            return resultQueue.removeLast();
+    public Packet pollResult() {
+        Packet packet = resultQueue.poll();
+        if (packet != null) {
+            size.decrementAndGet();
         }
+        return packet;
     }
 
     /**
@@ -111,17 +156,31 @@ public class PacketCollector {
      *
      * @return the next available packet.
      */
-    public synchronized Packet nextResult() {
-        // Wait indefinitely until there is a result to return.
-        while (resultQueue.isEmpty()) {
+    public Packet nextResult() {
+        Packet packet = pollResult();
+        if (packet != null) {
+            return packet;
+        }
+        synchronized (this) {
+            // Announce the waiter before checking again, so that a packet queued
+            // after the check is sure to wake it up.
+            waiters.incrementAndGet();
             try {
-                wait();
+                // Wait indefinitely until there is a result to return.
+                while ((packet = pollResult()) == null) {
+                    try {
+                        wait();
+                    }
+                    catch (InterruptedException ie) {
+                        // Ignore.
+                    }
+                }
             }
-            catch (InterruptedException ie) {
-                // Ignore.
+            finally {
+                waiters.decrementAndGet();
             }
         }
-        return resultQueue.removeLast();
+        return packet;
     }
 
     /**
@@ -132,15 +191,20 @@ public class PacketCollector {
      * @param timeout the amount of time to wait for the next packet (in milleseconds).
      * @return the next available packet.
      */
-    public synchronized Packet nextResult(long timeout) {
-        // Wait up to the specified amount of time for a result.
-        if (resultQueue.isEmpty()) {
-            long waitTime = timeout;
-            long start = System.currentTimeMillis();
+    public Packet nextResult(long timeout) {
+        Packet packet = pollResult();
+        // There's already a packet waiting, so return it.
+        if (packet != null) {
+            return packet;
+        }
+        synchronized (this) {
+            waiters.incrementAndGet();
             try {
+                long waitTime = timeout;
+                long start = System.currentTimeMillis();
                 // Keep waiting until the specified amount of time has elapsed, or
                 // a packet is available to return.
-                while (resultQueue.isEmpty()) {
+                while ((packet = pollResult()) == null) {
                     if (waitTime <= 0) {
                         break;
                     }
@@ -153,19 +217,12 @@ public class PacketCollector {
             catch (InterruptedException ie) {
                 // Ignore.
             }
-            // Still haven't found a result, so return null.
-            if (resultQueue.isEmpty()) {
-                return null;
-            }
-            // Return the packet that was found.
-            else {
-                return resultQueue.removeLast();
+            finally {
+                waiters.decrementAndGet();
             }
         }
-        // There's already a packet waiting, so return it.
-        else {
-            return resultQueue.removeLast();
-        }
+        // Returns null if no packet was found in time.
+        return packet;
     }
 
     /**
@@ -174,19 +231,23 @@ public class PacketCollector {
      *
      * @param packet the packet to process.
      */
-    protected synchronized void processPacket(Packet packet) {
+    protected void processPacket(Packet packet) {
         if (packet == null) {
             return;
         }
         if (packetFilter == null || packetFilter.accept(packet)) {
             // If the max number of packets has been reached, remove the oldest one.
-            if (resultQueue.size() == MAX_PACKETS) {
-                resultQueue.removeLast();
+            if (size.incrementAndGet() > MAX_PACKETS && resultQueue.poll() != null) {
+                size.decrementAndGet();
             }
             // Add the new packet.
-            resultQueue.addFirst(packet);
+            resultQueue.offer(packet);
             // Notify waiting threads a result is available.
-            notifyAll();
+            if (waiters.get() > 0) {
+                synchronized (this) {
+                    notifyAll();
+                }
+            }
         }
     }
 }
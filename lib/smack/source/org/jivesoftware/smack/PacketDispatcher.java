@@ -0,0 +1,347 @@
+/**
+ * $RCSfile$
+ * $Revision$
+ * $Date$
+ *
+ * Copyright 2003-2007 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+import org.jivesoftware.smack.filter.AndFilter;
+import org.jivesoftware.smack.filter.FromMatchesFilter;
+import org.jivesoftware.smack.filter.PacketExtensionFilter;
+import org.jivesoftware.smack.filter.PacketFilter;
+import org.jivesoftware.smack.filter.PacketTypeFilter;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.packet.PacketExtension;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Delivers incoming packets to packet listeners. Listeners are indexed by their filter
+ * when they are registered, so that for each packet only the filters of listeners which
+ * could accept it are evaluated. A filter is indexed by the first of the following it
+ * contains, looking inside {@link AndFilter}s:
+ * <ul>
+ *      <li>a {@link FromMatchesFilter}, indexed by the part of the address up to the '@'
+ *      <li>a {@link PacketExtensionFilter}, indexed by the namespace of the extension
+ *      <li>a {@link PacketTypeFilter}, indexed by the packet class
+ * </ul>
+ * Other filters are evaluated for every packet.<p>
+ *
+ * Listeners are run on a single thread by default, so every packet reaches listeners
+ * in the order it was received and no listener is called by two threads at once. More
+ * threads can be configured. Packets from the same bare JID are then always delivered
+ * by the same thread, so they still arrive in order, and a slow listener only holds up
+ * packets from the JIDs which share its thread. However a listener can then be called
+ * by several threads at once, and packets from different JIDs, including packets from
+ * the server which have no sender, can reach it in a different order than they were
+ * received. More than one thread should only be configured when every listener
+ * registered on the connection allows for this.
+ *
+ * @see SmackConfiguration#getPacketListenerThreads()
+ */
+class PacketDispatcher {
+
+    private final Map<PacketListener, Registration> registrations =
+            new ConcurrentHashMap<PacketListener, Registration>();
+    private final Collection<Registration> unindexed = new CopyOnWriteArrayList<Registration>();
+    private final Map<Object, Collection<Registration>> index =
+            new ConcurrentHashMap<Object, Collection<Registration>>();
+    private final ExecutorService[] executors;
+
+    /**
+     * Creates a new dispatcher with its delivery threads.
+     *
+     * @param connection the connection the packets are received on.
+     */
+    public PacketDispatcher(final XMPPConnection connection) {
+        executors = new ExecutorService[SmackConfiguration.getPacketListenerThreads()];
+        for (int i = 0; i < executors.length; i++) {
+            final int number = i;
+            executors[i] = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+                public Thread newThread(Runnable runnable) {
+                    String name = executors.length == 1 ?
+                            String.valueOf(connection.connectionCounterValue) :
+                            connection.connectionCounterValue + "-" + number;
+                    Thread thread = new Thread(runnable,
+                            "Smack Listener Processor (" + name + ")");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    /**
+     * Registers a packet listener, replacing any previous registration of the listener.
+     *
+     * @param packetListener the packet listener to notify of new packets.
+     * @param packetFilter the packet filter to use.
+     */
+    public synchronized void addPacketListener(PacketListener packetListener,
+            PacketFilter packetFilter) {
+        removePacketListener(packetListener);
+
+        Registration registration = new Registration(packetListener, packetFilter);
+        Object key = packetFilter == null ? null : getIndexKey(packetFilter);
+        if (key == null) {
+            unindexed.add(registration);
+        }
+        else {
+            Collection<Registration> bucket = index.get(key);
+            if (bucket == null) {
+                bucket = new CopyOnWriteArrayList<Registration>();
+                index.put(key, bucket);
+            }
+            bucket.add(registration);
+            registration.key = key;
+        }
+        registrations.put(packetListener, registration);
+    }
+
+    /**
+     * Removes a packet listener.
+     *
+     * @param packetListener the packet listener to remove.
+     */
+    public synchronized void removePacketListener(PacketListener packetListener) {
+        Registration registration = registrations.remove(packetListener);
+        if (registration == null) {
+            return;
+        }
+        if (registration.key == null) {
+            unindexed.remove(registration);
+        }
+        else {
+            Collection<Registration> bucket = index.get(registration.key);
+            bucket.remove(registration);
+            if (bucket.isEmpty()) {
+                index.remove(registration.key);
+            }
+        }
+    }
+
+    /**
+     * Removes every packet listener.
+     */
+    public synchronized void clear() {
+        registrations.clear();
+        unindexed.clear();
+        index.clear();
+    }
+
+    /**
+     * Queues the packet for delivery to the listeners whose filters accept it.
+     *
+     * @param packet the packet to deliver.
+     */
+    public void dispatch(final Packet packet) {
+        getExecutor(packet.getFrom()).execute(new Runnable() {
+            public void run() {
+                notifyListeners(packet);
+            }
+        });
+    }
+
+    /**
+     * Returns the delivery thread used for packets from an address.
+     *
+     * @param from the address, or <tt>null</tt> for packets from the server.
+     * @return the executor for the delivery thread.
+     */
+    public Executor getExecutor(String from) {
+        int stripe = 0;
+        if (from != null) {
+            int slash = from.indexOf('/');
+            String bareJID = (slash < 0 ? from : from.substring(0, slash)).toLowerCase();
+            stripe = (bareJID.hashCode() & Integer.MAX_VALUE) % executors.length;
+        }
+        return executors[stripe];
+    }
+
+    /**
+     * Stops the delivery threads. Packets which have already been queued are still
+     * delivered.
+     */
+    public void shutdown() {
+        for (ExecutorService executor : executors) {
+            executor.shutdown();
+        }
+    }
+
+    private void notifyListeners(Packet packet) {
+        for (Registration registration : unindexed) {
+            registration.notifyListener(packet);
+        }
+        if (index.isEmpty()) {
+            return;
+        }
+
+        // Packets are looked up by each of the keys a filter can be indexed by
+        for (Class type = packet.getClass(); type != null; type = type.getSuperclass()) {
+            notifyListeners(type, packet);
+        }
+        Collection<PacketExtension> extensions = packet.getExtensions();
+        if (!extensions.isEmpty()) {
+            // A listener must only be notified once, even if there are several
+            // extensions in its namespace
+            Set<String> namespaces = new HashSet<String>();
+            for (PacketExtension extension : extensions) {
+                if (extension.getNamespace() != null && namespaces.add(extension.getNamespace())) {
+                    notifyListeners(new NamespaceKey(extension.getNamespace()), packet);
+                }
+            }
+        }
+        String from = packet.getFrom();
+        if (from != null && from.indexOf('@') >= 0) {
+            notifyListeners(new FromKey(from.toLowerCase()), packet);
+        }
+    }
+
+    private void notifyListeners(Object key, Packet packet) {
+        Collection<Registration> bucket = index.get(key);
+        if (bucket != null) {
+            for (Registration registration : bucket) {
+                registration.notifyListener(packet);
+            }
+        }
+    }
+
+    /**
+     * Returns the key a filter is indexed by, or <tt>null</tt> if the filter can not be
+     * indexed and must be evaluated for every packet.
+     *
+     * @param filter the filter.
+     * @return the index key.
+     */
+    private static Object getIndexKey(PacketFilter filter) {
+        List<PacketFilter> filters = new ArrayList<PacketFilter>();
+        flatten(filter, filters);
+
+        for (PacketFilter f : filters) {
+            if (f instanceof FromMatchesFilter) {
+                String address = ((FromMatchesFilter) f).getAddress();
+                // Any address which matches must share everything up to the '@'
+                if (address.indexOf('@') >= 0) {
+                    return new FromKey(address);
+                }
+            }
+        }
+        for (PacketFilter f : filters) {
+            if (f instanceof PacketExtensionFilter) {
+                String namespace = ((PacketExtensionFilter) f).getNamespace();
+                if (namespace != null) {
+                    return new NamespaceKey(namespace);
+                }
+            }
+        }
+        for (PacketFilter f : filters) {
+            if (f instanceof PacketTypeFilter) {
+                Class type = ((PacketTypeFilter) f).getPacketType();
+                if (!type.isInterface()) {
+                    return type;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static void flatten(PacketFilter filter, List<PacketFilter> filters) {
+        if (filter instanceof AndFilter) {
+            for (PacketFilter f : ((AndFilter) filter).getFilters()) {
+                flatten(f, filters);
+            }
+        }
+        else {
+            filters.add(filter);
+        }
+    }
+
+    /**
+     * Index key for packets from addresses with the same part up to the '@'.
+     */
+    private static class FromKey {
+
+        private final String node;
+
+        public FromKey(String address) {
+            this.node = address.substring(0, address.indexOf('@') + 1);
+        }
+
+        public boolean equals(Object object) {
+            return object instanceof FromKey && ((FromKey) object).node.equals(node);
+        }
+
+        public int hashCode() {
+            return node.hashCode();
+        }
+    }
+
+    /**
+     * Index key for packets with an extension in a namespace.
+     */
+    private static class NamespaceKey {
+
+        private final String namespace;
+
+        public NamespaceKey(String namespace) {
+            this.namespace = namespace;
+        }
+
+        public boolean equals(Object object) {
+            return object instanceof NamespaceKey &&
+                    ((NamespaceKey) object).namespace.equals(namespace);
+        }
+
+        public int hashCode() {
+            return namespace.hashCode();
+        }
+    }
+
+    /**
+     * A listener together with its filter and the key it is indexed by.
+     */
+    private static class Registration {
+
+        private final PacketListener packetListener;
+        private final PacketFilter packetFilter;
+        private Object key;
+
+        public Registration(PacketListener packetListener, PacketFilter packetFilter) {
+            this.packetListener = packetListener;
+            this.packetFilter = packetFilter;
+        }
+
+        public void notifyListener(Packet packet) {
+            if (packetFilter == null || packetFilter.accept(packet)) {
+                packetListener.processPacket(packet);
+            }
+        }
+    }
+}
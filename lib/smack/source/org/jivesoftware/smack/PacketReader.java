@@ -24,6 +24,7 @@ import org.jivesoftware.smack.filter.PacketFilter;
 import org.jivesoftware.smack.packet.*;
 import org.jivesoftware.smack.provider.IQProvider;
 import org.jivesoftware.smack.provider.ProviderManager;
+import org.jivesoftware.smack.util.CachingXmlPullParser;
 import org.jivesoftware.smack.util.PacketParserUtils;
 import org.xmlpull.mxp1.MXParser;
 import org.xmlpull.v1.XmlPullParser;
@@ -43,15 +44,48 @@ import java.util.concurrent.*;
  */
 class PacketReader {
 
+    /**
+     * Stands in for a <tt>null</tt> filter, which accepts every packet.
+     */
+    private static final PacketFilter ACCEPT_ALL = new PacketFilter() {
+        public boolean accept(Packet packet) {
+            return true;
+        }
+    };
+
+    /**
+     * Times out requests which have been waiting too long for their response. One
+     * thread is shared by every connection.
+     */
+    private static final ScheduledExecutorService timeouts =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "Smack IQ Timeout");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
     private Thread readerThread;
-    private ExecutorService listenerExecutor;
+    private PacketDispatcher dispatcher;
 
     private XMPPConnection connection;
     private XmlPullParser parser;
     private boolean done;
     private Collection<PacketCollector> collectors = new ConcurrentLinkedQueue<PacketCollector>();
-    protected final Map<PacketListener, ListenerWrapper> listeners =
-            new ConcurrentHashMap<PacketListener, ListenerWrapper>();
+    /**
+     * Collectors which only accept packets with a particular ID, keyed by that ID,
+     * so that the response to a request is matched without trying every collector.
+     */
+    private final Map<String, Collection<PacketCollector>> idCollectors =
+            new ConcurrentHashMap<String, Collection<PacketCollector>>();
+    /**
+     * Requests sent with {@link XMPPConnection#sendIqAsync(IQ)} which are waiting for
+     * their response, keyed by packet ID.
+     */
+    private final Map<String, IQFuture> pendingRequests = new ConcurrentHashMap<String, IQFuture>();
+    private final Map<PacketListener, PacketFilter> listeners =
+            new ConcurrentHashMap<PacketListener, PacketFilter>();
     protected final Collection<ConnectionListener> connectionListeners =
             new CopyOnWriteArrayList<ConnectionListener>();
 
@@ -79,17 +113,12 @@ class PacketReader {
         readerThread.setName("Smack Packet Reader (" + connection.connectionCounterValue + ")");
         readerThread.setDaemon(true);
 
-        // Create an executor to deliver incoming packets to listeners. We'll use a single
-        // thread with an unbounded queue.
-        listenerExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
-
-            public Thread newThread(Runnable runnable) {
-                Thread thread = new Thread(runnable,
-                        "Smack Listener Processor (" + connection.connectionCounterValue + ")");
-                thread.setDaemon(true);
-                return thread;
-            }
-        });
+        // Create a dispatcher to deliver incoming packets to listeners, and register
+        // any listeners which were added before a reconnection.
+        dispatcher = new PacketDispatcher(connection);
+        for (Map.Entry<PacketListener, PacketFilter> entry : listeners.entrySet()) {
+            dispatcher.addPacketListener(entry.getKey(), entry.getValue());
+        }
 
         resetParser();
     }
@@ -103,13 +132,82 @@ class PacketReader {
      */
     public PacketCollector createPacketCollector(PacketFilter packetFilter) {
         PacketCollector collector = new PacketCollector(this, packetFilter);
-        collectors.add(collector);
+        String packetID = collector.getPacketID();
         // Add the collector to the list of active collector.
+        if (packetID == null) {
+            collectors.add(collector);
+        }
+        else {
+            synchronized (idCollectors) {
+                Collection<PacketCollector> bucket = idCollectors.get(packetID);
+                if (bucket == null) {
+                    bucket = new CopyOnWriteArrayList<PacketCollector>();
+                    idCollectors.put(packetID, bucket);
+                }
+                bucket.add(collector);
+            }
+        }
         return collector;
     }
 
     protected void cancelPacketCollector(PacketCollector packetCollector) {
-        collectors.remove(packetCollector);
+        String packetID = packetCollector.getPacketID();
+        if (packetID == null) {
+            collectors.remove(packetCollector);
+        }
+        else {
+            synchronized (idCollectors) {
+                Collection<PacketCollector> bucket = idCollectors.get(packetID);
+                if (bucket != null) {
+                    bucket.remove(packetCollector);
+                    if (bucket.isEmpty()) {
+                        idCollectors.remove(packetID);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates a future for the response to an IQ request which is about to be sent.
+     * The future is completed when a result or error IQ with the same packet ID is
+     * received, or fails if none is received within the timeout.
+     *
+     * @param request the request.
+     * @param timeout the time to wait for the response, in milliseconds.
+     * @return the future for the response.
+     */
+    public IQFuture createIQFuture(IQ request, long timeout) {
+        final IQFuture future = new IQFuture(this, request.getPacketID(),
+                dispatcher.getExecutor(request.getTo()));
+        pendingRequests.put(future.getPacketID(), future);
+        future.setTimeoutTask(timeouts.schedule(new Runnable() {
+            public void run() {
+                if (pendingRequests.remove(future.getPacketID()) == future) {
+                    future.timeout();
+                }
+            }
+        }, timeout, TimeUnit.MILLISECONDS));
+        return future;
+    }
+
+    void cancelIQFuture(IQFuture future) {
+        if (pendingRequests.get(future.getPacketID()) == future) {
+            pendingRequests.remove(future.getPacketID());
+        }
+    }
+
+    /**
+     * Fails every request which is waiting for a response, as none will now be received.
+     *
+     * @param message the reason.
+     */
+    private void failPendingRequests(String message) {
+        for (Iterator<IQFuture> it = pendingRequests.values().iterator(); it.hasNext();) {
+            IQFuture future = it.next();
+            it.remove();
+            future.fail(new XMPPException(message));
+        }
     }
 
     /**
@@ -120,8 +218,9 @@ class PacketReader {
      * @param packetFilter the packet filter to use.
      */
     public void addPacketListener(PacketListener packetListener, PacketFilter packetFilter) {
-        ListenerWrapper wrapper = new ListenerWrapper(packetListener, packetFilter);
-        listeners.put(packetListener, wrapper);
+        // A null filter accepts every packet, but can not be stored in the map
+        listeners.put(packetListener, packetFilter == null ? ACCEPT_ALL : packetFilter);
+        dispatcher.addPacketListener(packetListener, packetFilter);
     }
 
     /**
@@ -131,6 +230,7 @@ class PacketReader {
      */
     public void removePacketListener(PacketListener packetListener) {
         listeners.remove(packetListener);
+        dispatcher.removePacketListener(packetListener);
     }
 
     /**
@@ -187,8 +287,10 @@ class PacketReader {
         }
         done = true;
 
-        // Shut down the listener executor.
-        listenerExecutor.shutdown();
+        failPendingRequests("Connection closed.");
+
+        // Shut down the listener threads.
+        dispatcher.shutdown();
     }
 
     /**
@@ -197,7 +299,9 @@ class PacketReader {
     void cleanup() {
         connectionListeners.clear();
         listeners.clear();
+        dispatcher.clear();
         collectors.clear();
+        idCollectors.clear();
     }
 
     /**
@@ -249,7 +353,8 @@ class PacketReader {
      */
     private void resetParser() {
         try {
-            parser = new MXParser();
+            parser = SmackConfiguration.isPacketParserFastPath() ?
+                    new CachingXmlPullParser() : new MXParser();
             parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
             parser.setInput(connection.reader);
         }
@@ -402,13 +507,33 @@ class PacketReader {
             return;
         }
 
-        // Loop through all collectors and notify the appropriate ones.
+        // Complete the request this is the response to.
+        if (packet instanceof IQ && packet.getPacketID() != null) {
+            IQ iq = (IQ) packet;
+            if (iq.getType() == IQ.Type.RESULT || iq.getType() == IQ.Type.ERROR) {
+                IQFuture future = pendingRequests.remove(packet.getPacketID());
+                if (future != null) {
+                    future.complete(iq);
+                }
+            }
+        }
+
+        // Notify the collectors waiting for this packet ID, then loop through
+        // all other collectors and notify the appropriate ones.
+        if (packet.getPacketID() != null) {
+            Collection<PacketCollector> bucket = idCollectors.get(packet.getPacketID());
+            if (bucket != null) {
+                for (PacketCollector collector: bucket) {
+                    collector.processPacket(packet);
+                }
+            }
+        }
         for (PacketCollector collector: collectors) {
             collector.processPacket(packet);
         }
 
         // Deliver the incoming packet to listeners.
-        listenerExecutor.submit(new ListenerNotification(packet));
+        dispatcher.dispatch(packet);
     }
 
     private StreamError parseStreamError(XmlPullParser parser) throws IOException,
@@ -782,42 +907,4 @@ class PacketReader {
 
         return bind;
     }
-
-    /**
-     * A runnable to notify all listeners of a packet.
-     */
-    private class ListenerNotification implements Runnable {
-
-        private Packet packet;
-
-        public ListenerNotification(Packet packet) {
-            this.packet = packet;
-        }
-
-        public void run() {
-            for (ListenerWrapper listenerWrapper : listeners.values()) {
-                listenerWrapper.notifyListener(packet);
-            }
-        }
-    }
-
-    /**
-     * A wrapper class to associate a packet filter with a listener.
-     */
-    private static class ListenerWrapper {
-
-        private PacketListener packetListener;
-        private PacketFilter packetFilter;
-
-        public ListenerWrapper(PacketListener packetListener, PacketFilter packetFilter) {
-            this.packetListener = packetListener;
-            this.packetFilter = packetFilter;
-        }
-       
-        public void notifyListener(Packet packet) {
-            if (packetFilter == null || packetFilter.accept(packet)) {
-                packetListener.processPacket(packet);
-            }
-        }
-    }
-}
\ No newline at end of file
+}
@@ -25,15 +25,26 @@ import org.jivesoftware.smack.packet.Packet;
 
 import java.io.IOException;
 import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Writes packets to a XMPP server. Packets are sent using a dedicated thread. Packet
  * interceptors can be registered to dynamically modify packets before they're actually
- * sent. Packet listeners can be registered to listen for all outgoing packets.
+ * sent. Packet listeners can be registered to listen for all outgoing packets.<p>
+ *
+ * By default the writer thread writes every packet waiting in the queue and flushes
+ * the socket once for the whole batch, rather than once per packet. See
+ * {@link SmackConfiguration#isPacketWriterBatching()}. Packets are written with
+ * {@link Packet#writeTo(Appendable)} into a buffer which is reused for every packet,
+ * and then copied to the writer, so their XML is not built as a String first. A
+ * packet which fails while it is being written is dropped without leaving part of
+ * it on the stream.
  *
  * @author Matt Tucker
  */
@@ -43,8 +54,26 @@ class PacketWriter {
     private Thread keepAliveThread;
     private Writer writer;
     private XMPPConnection connection;
-    private final BlockingQueue<Packet> queue;
+    private final BlockingQueue<QueuedPacket> queue;
     private boolean done;
+
+    /**
+     * The most characters written to the socket before it is flushed, so a long burst
+     * of packets is still sent in reasonably sized pieces.
+     */
+    private static final int MAX_BATCH_SIZE = 64 * 1024;
+
+    /**
+     * The most characters kept in the reused packet buffer between packets. The buffer
+     * is replaced after a larger packet, so one large packet does not hold on to memory.
+     */
+    private static final int MAX_PACKET_BUFFER_SIZE = 256 * 1024;
+
+    private final CountingWriter output = new CountingWriter();
+    private StringBuilder packetBuffer = new StringBuilder(1024);
+    private final char[] copyBuffer = new char[8192];
+    private final List<QueuedPacket> batchPackets = new ArrayList<QueuedPacket>();
+    private final PacketWriterStatistics statistics = new PacketWriterStatistics();
     
     private final Map<PacketListener, ListenerWrapper> listeners =
             new ConcurrentHashMap<PacketListener, ListenerWrapper>();
@@ -69,7 +98,7 @@ class PacketWriter {
      * @param connection the connection.
      */
     protected PacketWriter(XMPPConnection connection) {
-        this.queue = new ArrayBlockingQueue<Packet>(500, true);
+        this.queue = new ArrayBlockingQueue<QueuedPacket>(500, true);
         this.connection = connection;
         init();
     }
@@ -103,7 +132,7 @@ class PacketWriter {
             processInterceptors(packet);
 
             try {
-                queue.put(packet);
+                queue.put(new QueuedPacket(packet));
             }
             catch (InterruptedException ie) {
                 ie.printStackTrace();
@@ -119,6 +148,15 @@ class PacketWriter {
         }
     }
 
+    /**
+     * Returns the throughput and latency statistics for the packets written.
+     *
+     * @return the statistics.
+     */
+    public PacketWriterStatistics getStatistics() {
+        return statistics;
+    }
+
     /**
      * Registers a packet listener with this writer. The listener will be
      * notified immediately after every packet this writer sends. A packet filter
@@ -230,8 +268,8 @@ class PacketWriter {
      *
      * @return the next packet for writing.
      */
-    private Packet nextPacket() {
-        Packet packet = null;
+    private QueuedPacket nextPacket() {
+        QueuedPacket packet = null;
         // Wait until there's a packet or we're done.
         while (!done && (packet = queue.poll()) == null) {
             try {
@@ -252,13 +290,21 @@ class PacketWriter {
             openStream();
             // Write out packets from the queue.
             while (!done && (writerThread == thisThread)) {
-                Packet packet = nextPacket();
+                QueuedPacket packet = nextPacket();
                 if (packet != null) {
-                    synchronized (writer) {
-                        writer.write(packet.toXML());
-                        writer.flush();
-                        // Keep track of the last time a stanza was sent to the server
-                        lastActive = System.currentTimeMillis();
+                    if (SmackConfiguration.isPacketWriterBatching()) {
+                        writeBatch(packet);
+                    }
+                    else {
+                        synchronized (writer) {
+                            output.reset(writer);
+                            writePacket(packet.packet, output);
+                            writer.flush();
+                            // Keep track of the last time a stanza was sent to the server
+                            lastActive = System.currentTimeMillis();
+                        }
+                        statistics.recordFlush(1, output.count);
+                        statistics.recordLatency(System.nanoTime() - packet.queued);
                     }
                 }
             }
@@ -268,8 +314,8 @@ class PacketWriter {
             try {
                 synchronized (writer) {
                    while (!queue.isEmpty()) {
-                       Packet packet = queue.remove();
-                        writer.write(packet.toXML());
+                       QueuedPacket packet = queue.remove();
+                        writePacket(packet.packet, writer);
                     }
                     writer.flush();
                 }
@@ -306,6 +352,87 @@ class PacketWriter {
         }
     }
 
+    /**
+     * Writes the given packet along with every other packet waiting in the queue, and
+     * then flushes the socket once. If a coalesce time is configured then the writer
+     * waits up to that long for more packets once the queue is empty, so packets sent
+     * in quick succession share a flush.
+     *
+     * @param first the first packet of the batch.
+     * @throws IOException if the packets could not be written.
+     */
+    private void writeBatch(QueuedPacket first) throws IOException {
+        long coalesceTime = SmackConfiguration.getPacketWriterCoalesceTime();
+        QueuedPacket packet = first;
+
+        batchPackets.clear();
+        output.reset(writer);
+        while (packet != null) {
+            synchronized (writer) {
+                writePacket(packet.packet, output);
+            }
+            batchPackets.add(packet);
+            if (output.count >= MAX_BATCH_SIZE) {
+                break;
+            }
+            packet = queue.poll();
+            if (packet == null && coalesceTime > 0 && !done) {
+                // Wait without holding the writer, so the keep-alive thread is not
+                // blocked while the batch is open
+                try {
+                    packet = queue.poll(coalesceTime, TimeUnit.MICROSECONDS);
+                }
+                catch (InterruptedException ie) {
+                    // Write what we have
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        synchronized (writer) {
+            writer.flush();
+            // Keep track of the last time a stanza was sent to the server
+            lastActive = System.currentTimeMillis();
+        }
+
+        long now = System.nanoTime();
+        statistics.recordFlush(batchPackets.size(), output.count);
+        for (QueuedPacket written : batchPackets) {
+            statistics.recordLatency(now - written.queued);
+        }
+        batchPackets.clear();
+    }
+
+    /**
+     * Writes a packet to the given writer. The XML is rendered into the packet buffer
+     * first, so if the packet or one of its extensions throws an exception part way
+     * through, nothing is written and the stream is left intact. The packet is dropped.
+     *
+     * @param packet the packet to write.
+     * @param out the writer to write to.
+     * @throws IOException if the packet could not be written to the writer.
+     */
+    private void writePacket(Packet packet, Writer out) throws IOException {
+        if (packetBuffer.capacity() > MAX_PACKET_BUFFER_SIZE) {
+            packetBuffer = new StringBuilder(1024);
+        }
+        packetBuffer.setLength(0);
+        try {
+            packet.writeTo(packetBuffer);
+        }
+        catch (Exception e) {
+            // Appending to a StringBuilder never fails, so the packet itself failed
+            e.printStackTrace();
+            return;
+        }
+
+        int length = packetBuffer.length();
+        for (int start = 0; start < length; start += copyBuffer.length) {
+            int end = Math.min(length, start + copyBuffer.length);
+            packetBuffer.getChars(start, end, copyBuffer, 0);
+            out.write(copyBuffer, 0, end - start);
+        }
+    }
+
     /**
      * Process listeners.
      *
@@ -352,6 +479,58 @@ class PacketWriter {
         writer.flush();
     }
 
+    /**
+     * Passes the XML of the packets being written straight on to the writer, counting
+     * the characters written. Being a writer itself, extensions which write from a char
+     * array can do so without the characters being copied into a String.
+     */
+    private static class CountingWriter extends Writer {
+
+        private Writer out;
+        private int count;
+
+        public void reset(Writer out) {
+            this.out = out;
+            this.count = 0;
+        }
+
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            out.write(cbuf, off, len);
+            count += len;
+        }
+
+        public void write(String str, int off, int len) throws IOException {
+            out.write(str, off, len);
+            count += len;
+        }
+
+        public void write(int c) throws IOException {
+            out.write(c);
+            count++;
+        }
+
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * A packet waiting in the queue, along with the time it was queued.
+     */
+    private static class QueuedPacket {
+
+        private final Packet packet;
+        private final long queued = System.nanoTime();
+
+        public QueuedPacket(Packet packet) {
+            this.packet = packet;
+        }
+    }
+
     /**
      * A wrapper class to associate a packet filter with a listener.
      */
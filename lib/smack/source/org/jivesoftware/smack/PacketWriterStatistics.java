@@ -0,0 +1,176 @@
+/**
+ * $RCSfile$
+ * $Revision$
+ * $Date$
+ *
+ * Copyright 2003-2007 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Throughput and latency statistics for the packets written by a connection. Two
+ * histograms are kept, both with power of two buckets: the number of packets written
+ * by each flush of the socket, and the time each packet spent queued before it was
+ * flushed. Bucket <tt>i</tt> counts the values from 2<sup>i</sup> up to but not
+ * including 2<sup>i+1</sup>, with bucket 0 also counting values below 1.<p>
+ *
+ * The statistics are updated by the packet writer thread and can be read from any
+ * thread.
+ *
+ * @see XMPPConnection#getPacketWriterStatistics()
+ */
+public class PacketWriterStatistics {
+
+    /**
+     * The number of buckets in each histogram.
+     */
+    public static final int BUCKETS = 32;
+
+    private final long started = System.currentTimeMillis();
+    private final AtomicLong packets = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong characters = new AtomicLong();
+    private final AtomicLongArray batchSizes = new AtomicLongArray(BUCKETS);
+    private final AtomicLongArray latencies = new AtomicLongArray(BUCKETS);
+
+    PacketWriterStatistics() {
+    }
+
+    /**
+     * Records a flush of the socket.
+     *
+     * @param packetCount the number of packets written since the last flush.
+     * @param characterCount the number of characters written since the last flush.
+     */
+    void recordFlush(int packetCount, int characterCount) {
+        packets.addAndGet(packetCount);
+        characters.addAndGet(characterCount);
+        flushes.incrementAndGet();
+        batchSizes.incrementAndGet(bucket(packetCount));
+    }
+
+    /**
+     * Records the time a packet spent between being queued and being flushed.
+     *
+     * @param nanos the latency in nanoseconds.
+     */
+    void recordLatency(long nanos) {
+        latencies.incrementAndGet(bucket(nanos / 1000));
+    }
+
+    private static int bucket(long value) {
+        if (value < 1) {
+            return 0;
+        }
+        return Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(value));
+    }
+
+    /**
+     * Returns the number of packets written.
+     *
+     * @return the number of packets written.
+     */
+    public long getPacketsWritten() {
+        return packets.get();
+    }
+
+    /**
+     * Returns the number of times the socket has been flushed.
+     *
+     * @return the number of flushes.
+     */
+    public long getFlushes() {
+        return flushes.get();
+    }
+
+    /**
+     * Returns the number of characters of XML written.
+     *
+     * @return the number of characters written.
+     */
+    public long getCharactersWritten() {
+        return characters.get();
+    }
+
+    /**
+     * Returns the average number of packets written per second since the statistics
+     * were created.
+     *
+     * @return the packets written per second.
+     */
+    public double getPacketsPerSecond() {
+        long elapsed = Math.max(1, System.currentTimeMillis() - started);
+        return packets.get() * 1000.0 / elapsed;
+    }
+
+    /**
+     * Returns the histogram of the number of packets written by each flush.
+     *
+     * @return the count of flushes in each bucket.
+     */
+    public long[] getBatchSizeHistogram() {
+        return toArray(batchSizes);
+    }
+
+    /**
+     * Returns the histogram of the time in microseconds each packet was queued for
+     * before it was flushed.
+     *
+     * @return the count of packets in each bucket.
+     */
+    public long[] getLatencyHistogram() {
+        return toArray(latencies);
+    }
+
+    private static long[] toArray(AtomicLongArray histogram) {
+        long[] values = new long[histogram.length()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = histogram.get(i);
+        }
+        return values;
+    }
+
+    public String toString() {
+        StringBuilder buf = new StringBuilder();
+        buf.append("packets=").append(getPacketsWritten());
+        buf.append(", flushes=").append(getFlushes());
+        buf.append(", characters=").append(getCharactersWritten());
+        buf.append(", packets/s=").append(Math.round(getPacketsPerSecond()));
+        buf.append(", batch sizes=");
+        appendHistogram(buf, getBatchSizeHistogram());
+        buf.append(", latency (us)=");
+        appendHistogram(buf, getLatencyHistogram());
+        return buf.toString();
+    }
+
+    private static void appendHistogram(StringBuilder buf, long[] histogram) {
+        buf.append("{");
+        boolean first = true;
+        for (int i = 0; i < histogram.length; i++) {
+            if (histogram[i] > 0) {
+                if (!first) {
+                    buf.append(", ");
+                }
+                buf.append("<").append(1L << (i + 1)).append(": ").append(histogram[i]);
+                first = false;
+            }
+        }
+        buf.append("}");
+    }
+}
@@ -50,6 +50,10 @@ public final class SmackConfiguration {
 
     private static int packetReplyTimeout = 5000;
     private static int keepAliveInterval = 30000;
+    private static boolean packetWriterBatching = true;
+    private static int packetWriterCoalesceTime = 0;
+    private static int packetListenerThreads = 1;
+    private static boolean packetParserFastPath = true;
 
     private SmackConfiguration() {
     }
@@ -89,6 +93,20 @@ public final class SmackConfiguration {
                                 else if (parser.getName().equals("keepAliveInterval")) {
                                     keepAliveInterval = parseIntProperty(parser, keepAliveInterval);
                                 }
+                                else if (parser.getName().equals("packetWriterBatching")) {
+                                    packetWriterBatching = Boolean.valueOf(parser.nextText());
+                                }
+                                else if (parser.getName().equals("packetListenerThreads")) {
+                                    packetListenerThreads =
+                                            parseIntProperty(parser, packetListenerThreads);
+                                }
+                                else if (parser.getName().equals("packetWriterCoalesceTime")) {
+                                    packetWriterCoalesceTime =
+                                            parseIntProperty(parser, packetWriterCoalesceTime);
+                                }
+                                else if (parser.getName().equals("packetParserFastPath")) {
+                                    packetParserFastPath = Boolean.valueOf(parser.nextText());
+                                }
                             }
                             eventType = parser.next();
                         }
@@ -173,6 +191,106 @@ public final class SmackConfiguration {
         keepAliveInterval = interval;
     }
 
+    /**
+     * Returns true if the packet writer sends every packet waiting in its queue with a
+     * single flush of the socket, or false if the socket is flushed after every packet.
+     * The default value is true.
+     *
+     * @return true if packets are written in batches.
+     */
+    public static boolean isPacketWriterBatching() {
+        return packetWriterBatching;
+    }
+
+    /**
+     * Sets whether the packet writer sends every packet waiting in its queue with a
+     * single flush of the socket, or flushes the socket after every packet.
+     *
+     * @param batching true if packets should be written in batches.
+     */
+    public static void setPacketWriterBatching(boolean batching) {
+        packetWriterBatching = batching;
+    }
+
+    /**
+     * Returns the number of microseconds the packet writer waits for more packets
+     * once its queue is empty, so that packets sent in quick succession are flushed
+     * together. The default value is 0, which means the writer never waits. Only used
+     * when batching is enabled.
+     *
+     * @return the microseconds to wait for more packets.
+     */
+    public static int getPacketWriterCoalesceTime() {
+        return packetWriterCoalesceTime;
+    }
+
+    /**
+     * Sets the number of microseconds the packet writer waits for more packets once
+     * its queue is empty. Every packet written is delayed by up to this long, so the
+     * value should be kept small.
+     *
+     * @param time the microseconds to wait for more packets, or 0 to never wait.
+     */
+    public static void setPacketWriterCoalesceTime(int time) {
+        if (time < 0) {
+            throw new IllegalArgumentException();
+        }
+        packetWriterCoalesceTime = time;
+    }
+
+    /**
+     * Returns the number of threads each connection uses to deliver incoming packets
+     * to packet listeners. The default value is 1, which delivers every packet in the
+     * order it was received.
+     *
+     * @return the number of listener threads.
+     */
+    public static int getPacketListenerThreads() {
+        // There must be at least one thread otherwise we will answer the default value
+        if (packetListenerThreads <= 0) {
+            packetListenerThreads = 1;
+        }
+        return packetListenerThreads;
+    }
+
+    /**
+     * Sets the number of threads each connection uses to deliver incoming packets to
+     * packet listeners. This takes effect for connections made afterwards. A value of
+     * 1 delivers every packet in the order it was received. With more threads, packets
+     * from the same JID are still delivered in order by the same thread, but listeners
+     * can be called by several threads at once and packets from different JIDs can
+     * reach them out of order, so every listener must be written to allow for that.
+     *
+     * @param threads the number of listener threads.
+     */
+    public static void setPacketListenerThreads(int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException();
+        }
+        packetListenerThreads = threads;
+    }
+
+    /**
+     * Returns true if connections parse incoming XML with a parser which reuses the
+     * strings it has already seen for element names, namespaces and attribute names,
+     * rather than allocating new ones for every packet. The default value is true.
+     *
+     * @return true if the fast path parser is used.
+     */
+    public static boolean isPacketParserFastPath() {
+        return packetParserFastPath;
+    }
+
+    /**
+     * Sets whether connections parse incoming XML with a parser which reuses the
+     * strings it has already seen. Takes effect the next time a connection opens a stream.
+     *
+     * @param fastPath true if the fast path parser should be used.
+     */
+    public static void setPacketParserFastPath(boolean fastPath) {
+        packetParserFastPath = fastPath;
+    }
+
     private static void parseClassToLoad(XmlPullParser parser) throws Exception {
         String className = parser.nextText();
         // Attempt to load the class so that the class can get initialized
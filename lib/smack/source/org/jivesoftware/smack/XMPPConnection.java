@@ -22,6 +22,7 @@ package org.jivesoftware.smack;
 
 import org.jivesoftware.smack.debugger.SmackDebugger;
 import org.jivesoftware.smack.filter.PacketFilter;
+import org.jivesoftware.smack.packet.IQ;
 import org.jivesoftware.smack.packet.Packet;
 import org.jivesoftware.smack.packet.Presence;
 import org.jivesoftware.smack.packet.XMPPError;
@@ -670,6 +671,41 @@ public class XMPPConnection {
         packetWriter.sendPacket(packet);
     }
 
+    /**
+     * Sends an IQ request to the server without waiting for the response. The returned
+     * future is completed when the response is received, or fails if no response is
+     * received within the {@link SmackConfiguration#getPacketReplyTimeout() reply timeout}.
+     * No thread is held while the request is outstanding, so any number of requests
+     * can be pipelined over the connection.
+     *
+     * @param request the IQ request to send.
+     * @return the future for the response.
+     */
+    public IQFuture sendIqAsync(IQ request) {
+        return sendIqAsync(request, SmackConfiguration.getPacketReplyTimeout());
+    }
+
+    /**
+     * Sends an IQ request to the server without waiting for the response. The returned
+     * future is completed when the response is received, or fails if no response is
+     * received within the timeout.
+     *
+     * @param request the IQ request to send.
+     * @param timeout the time to wait for the response, in milliseconds.
+     * @return the future for the response.
+     */
+    public IQFuture sendIqAsync(IQ request, long timeout) {
+        if (!isConnected()) {
+            throw new IllegalStateException("Not connected to server.");
+        }
+        if (request == null) {
+            throw new NullPointerException("Packet is null.");
+        }
+        IQFuture future = packetReader.createIQFuture(request, timeout);
+        packetWriter.sendPacket(request);
+        return future;
+    }
+
     /**
      * Registers a packet listener with this connection. A packet filter determines
      * which packets will be delivered to the listener. If the same packet listener
@@ -747,6 +783,18 @@ public class XMPPConnection {
         packetWriter.removePacketInterceptor(packetInterceptor);
     }
 
+    /**
+     * Returns the throughput and latency statistics for the packets this connection
+     * has written.
+     *
+     * @return the statistics, or <tt>null</tt> if the connection has not been
+     *      initialized.
+     */
+    public PacketWriterStatistics getPacketWriterStatistics() {
+        PacketWriter packetWriter = this.packetWriter;
+        return packetWriter == null ? null : packetWriter.getStatistics();
+    }
+
     /**
      * Creates a new packet collector for this connection. A packet filter determines
      * which packets will be accumulated by the collector.
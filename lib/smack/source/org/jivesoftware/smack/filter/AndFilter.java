@@ -24,6 +24,7 @@ import org.jivesoftware.smack.packet.Packet;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Collections;
 
 /**
  * Implements the logical AND operation over two or more packet filters.
@@ -76,6 +77,15 @@ public class AndFilter implements PacketFilter {
         filters.add(filter);
     }
 
+    /**
+     * Returns the filters which must all accept a packet for it to pass this filter.
+     *
+     * @return an unmodifiable list of the filters.
+     */
+    public List<PacketFilter> getFilters() {
+        return Collections.unmodifiableList(filters);
+    }
+
     public boolean accept(Packet packet) {
         for (PacketFilter filter : filters) {
             if (!filter.accept(packet)) {
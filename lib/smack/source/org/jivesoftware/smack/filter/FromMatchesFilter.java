@@ -55,6 +55,15 @@ public class FromMatchesFilter implements PacketFilter {
         matchBareJID = "".equals(StringUtils.parseResource(address));
     }
 
+    /**
+     * Returns the address the sender of the packet must match, in lower case.
+     *
+     * @return the full or bare JID the sender must match.
+     */
+    public String getAddress() {
+        return address;
+    }
+
     public boolean accept(Packet packet) {
         if (packet.getFrom() == null) {
             return false;
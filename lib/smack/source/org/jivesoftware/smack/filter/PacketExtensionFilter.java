@@ -55,6 +55,25 @@ public class PacketExtensionFilter implements PacketFilter {
         this(null, namespace);
     }
 
+    /**
+     * Returns the XML element name of the packet extension, or <tt>null</tt> if any
+     * element name is accepted.
+     *
+     * @return the XML element name of the packet extension.
+     */
+    public String getElementName() {
+        return elementName;
+    }
+
+    /**
+     * Returns the XML namespace of the packet extension.
+     *
+     * @return the XML namespace of the packet extension.
+     */
+    public String getNamespace() {
+        return namespace;
+    }
+
     public boolean accept(Packet packet) {
         return packet.getExtension(elementName, namespace) != null;
     }
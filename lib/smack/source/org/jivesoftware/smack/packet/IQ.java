@@ -22,6 +22,8 @@ package org.jivesoftware.smack.packet;
 
 import org.jivesoftware.smack.util.StringUtils;
 
+import java.io.IOException;
+
 /**
  * The base IQ (Info/Query) packet. IQ packets are used to get and set information
  * on the server, including authentication, roster operations, and creating
@@ -67,10 +69,13 @@ public abstract class IQ extends Packet {
     }
 
     public String toXML() {
-        StringBuilder buf = new StringBuilder();
+        return writeToString();
+    }
+
+    public void writeTo(Appendable buf) throws IOException {
         buf.append("<iq ");
         if (getPacketID() != null) {
-            buf.append("id=\"" + getPacketID() + "\" ");
+            buf.append("id=\"").append(getPacketID()).append("\" ");
         }
         if (getTo() != null) {
             buf.append("to=\"").append(StringUtils.escapeForXML(getTo())).append("\" ");
@@ -82,20 +87,16 @@ public abstract class IQ extends Packet {
             buf.append("type=\"get\">");
         }
         else {
-            buf.append("type=\"").append(getType()).append("\">");
+            buf.append("type=\"").append(getType().toString()).append("\">");
         }
         // Add the query section if there is one.
-        String queryXML = getChildElementXML();
-        if (queryXML != null) {
-            buf.append(queryXML);
-        }
+        writeChildElementTo(buf);
         // Add the error sub-packet, if there is one.
         XMPPError error = getError();
         if (error != null) {
             buf.append(error.toXML());
         }
         buf.append("</iq>");
-        return buf.toString();
     }
 
     /**
@@ -108,6 +109,22 @@ public abstract class IQ extends Packet {
      */
     public abstract String getChildElementXML();
 
+    /**
+     * Writes the sub-element XML section of the IQ packet to the given stream. By
+     * default the String returned by {@link #getChildElementXML()} is written, if
+     * there is one. Extensions of this class with large child elements should
+     * override this to write straight to the stream.
+     *
+     * @param buf the stream to write to.
+     * @throws IOException if the XML could not be written.
+     */
+    protected void writeChildElementTo(Appendable buf) throws IOException {
+        String queryXML = getChildElementXML();
+        if (queryXML != null) {
+            buf.append(queryXML);
+        }
+    }
+
     /**
      * A class to represent the type of the IQ packet. The types are:
      *
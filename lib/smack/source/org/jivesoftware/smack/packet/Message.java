@@ -22,6 +22,7 @@ package org.jivesoftware.smack.packet;
 
 import org.jivesoftware.smack.util.StringUtils;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
@@ -285,7 +286,10 @@ public class Message extends Packet {
     }
 
     public String toXML() {
-        StringBuilder buf = new StringBuilder();
+        return writeToString();
+    }
+
+    public void writeTo(Appendable buf) throws IOException {
         buf.append("<message");
         if (getXmlns() != null) {
             buf.append(" xmlns=\"").append(getXmlns()).append("\"");
@@ -303,7 +307,7 @@ public class Message extends Packet {
             buf.append(" from=\"").append(StringUtils.escapeForXML(getFrom())).append("\"");
         }
         if (type != Type.normal) {
-            buf.append(" type=\"").append(type).append("\"");
+            buf.append(" type=\"").append(type.toString()).append("\"");
         }
         buf.append(">");
         if (subject != null) {
@@ -334,9 +338,8 @@ public class Message extends Packet {
             }
         }
         // Add packet extensions, if any are defined.
-        buf.append(getExtensionsXML());
+        writeExtensionsTo(buf);
         buf.append("</message>");
-        return buf.toString();
     }
 
 
@@ -23,6 +23,7 @@ package org.jivesoftware.smack.packet;
 import org.jivesoftware.smack.util.StringUtils;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.*;
@@ -327,6 +328,37 @@ public abstract class Packet {
      */
     public abstract String toXML();
 
+    /**
+     * Writes the packet as XML to the given stream. Sub-classes which write large
+     * amounts of XML should override this to write straight to the stream, and
+     * implement {@link #toXML()} using {@link #writeToString()}. By default the
+     * String returned by {@link #toXML()} is written.
+     *
+     * @param out the stream to write to.
+     * @throws IOException if the XML could not be written.
+     */
+    public void writeTo(Appendable out) throws IOException {
+        out.append(toXML());
+    }
+
+    /**
+     * Returns the XML written by {@link #writeTo(Appendable)} as a String. This can
+     * be used to implement {@link #toXML()} in sub-classes which override
+     * {@link #writeTo(Appendable)}.
+     *
+     * @return the XML format of the packet as a String.
+     */
+    protected String writeToString() {
+        StringBuilder buf = new StringBuilder();
+        try {
+            writeTo(buf);
+        }
+        catch (IOException ioe) {
+            // Appending to a StringBuilder never fails
+        }
+        return buf.toString();
+    }
+
     /**
      * Returns the extension sub-packets (including properties data) as an XML
      * String, or the Empty String if there are no packet extensions.
@@ -336,9 +368,32 @@ public abstract class Packet {
      */
     protected synchronized String getExtensionsXML() {
         StringBuilder buf = new StringBuilder();
+        try {
+            writeExtensionsTo(buf);
+        }
+        catch (IOException ioe) {
+            // Appending to a StringBuilder never fails
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Writes the extension sub-packets (including properties data) as XML to the
+     * given stream. Extensions which implement {@link StreamablePacketExtension} are
+     * written straight to the stream.
+     *
+     * @param buf the stream to write to.
+     * @throws IOException if the XML could not be written.
+     */
+    protected synchronized void writeExtensionsTo(Appendable buf) throws IOException {
         // Add in all standard extension sub-packets.
         for (PacketExtension extension : getExtensions()) {
-            buf.append(extension.toXML());
+            if (extension instanceof StreamablePacketExtension) {
+                ((StreamablePacketExtension) extension).writeTo(buf);
+            }
+            else {
+                buf.append(extension.toXML());
+            }
         }
         // Add in packet properties.
         if (properties != null && !properties.isEmpty()) {
@@ -350,19 +405,19 @@ public abstract class Packet {
                 buf.append("<name>").append(StringUtils.escapeForXML(name)).append("</name>");
                 buf.append("<value type=\"");
                 if (value instanceof Integer) {
-                    buf.append("integer\">").append(value).append("</value>");
+                    buf.append("integer\">").append(value.toString()).append("</value>");
                 }
                 else if (value instanceof Long) {
-                    buf.append("long\">").append(value).append("</value>");
+                    buf.append("long\">").append(value.toString()).append("</value>");
                 }
                 else if (value instanceof Float) {
-                    buf.append("float\">").append(value).append("</value>");
+                    buf.append("float\">").append(value.toString()).append("</value>");
                 }
                 else if (value instanceof Double) {
-                    buf.append("double\">").append(value).append("</value>");
+                    buf.append("double\">").append(value.toString()).append("</value>");
                 }
                 else if (value instanceof Boolean) {
-                    buf.append("boolean\">").append(value).append("</value>");
+                    buf.append("boolean\">").append(value.toString()).append("</value>");
                 }
                 else if (value instanceof String) {
                     buf.append("string\">");
@@ -409,7 +464,6 @@ public abstract class Packet {
             }
             buf.append("</properties>");
         }
-        return buf.toString();
     }
 
     public String getXmlns() {
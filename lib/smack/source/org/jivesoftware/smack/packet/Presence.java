@@ -22,6 +22,8 @@ package org.jivesoftware.smack.packet;
 
 import org.jivesoftware.smack.util.StringUtils;
 
+import java.io.IOException;
+
 /**
  * Represents XMPP presence packets. Every presence packet has a type, which is one of
  * the following values:
@@ -221,7 +223,10 @@ public class Presence extends Packet {
     }
 
     public String toXML() {
-        StringBuilder buf = new StringBuilder();
+        return writeToString();
+    }
+
+    public void writeTo(Appendable buf) throws IOException {
         buf.append("<presence");
         if(getXmlns() != null) {
             buf.append(" xmlns=\"").append(getXmlns()).append("\"");
@@ -239,20 +244,20 @@ public class Presence extends Packet {
             buf.append(" from=\"").append(StringUtils.escapeForXML(getFrom())).append("\"");
         }
         if (type != Type.available) {
-            buf.append(" type=\"").append(type).append("\"");
+            buf.append(" type=\"").append(type.toString()).append("\"");
         }
         buf.append(">");
         if (status != null) {
             buf.append("<status>").append(StringUtils.escapeForXML(status)).append("</status>");
         }
         if (priority != Integer.MIN_VALUE) {
-            buf.append("<priority>").append(priority).append("</priority>");
+            buf.append("<priority>").append(Integer.toString(priority)).append("</priority>");
         }
         if (mode != null && mode != Mode.available) {
-            buf.append("<show>").append(mode).append("</show>");
+            buf.append("<show>").append(mode.toString()).append("</show>");
         }
 
-        buf.append(this.getExtensionsXML());
+        writeExtensionsTo(buf);
 
         // Add the error sub-packet, if there is one.
         XMPPError error = getError();
@@ -261,8 +266,6 @@ public class Presence extends Packet {
         }
 
         buf.append("</presence>");
-        
-        return buf.toString();
     }
 
     public String toString() {
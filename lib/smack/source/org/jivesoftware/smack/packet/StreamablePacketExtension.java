@@ -0,0 +1,43 @@
+/**
+ * $RCSfile$
+ * $Revision$
+ * $Date$
+ *
+ * Copyright 2003-2007 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.packet;
+
+import java.io.IOException;
+
+/**
+ * A packet extension which can write its XML straight to a stream, rather than
+ * building it as a String first. Large extensions should implement this so that
+ * they are not copied in memory when the packet is sent. Extensions which only
+ * implement {@link PacketExtension} are still written using {@link #toXML()}.
+ *
+ * @see Packet#writeTo(Appendable)
+ */
+public interface StreamablePacketExtension extends PacketExtension {
+
+    /**
+     * Writes the XML representation of the extension, which must be the same as
+     * the String returned by {@link #toXML()}.
+     *
+     * @param out the stream to write to.
+     * @throws IOException if the XML could not be written.
+     */
+    public void writeTo(Appendable out) throws IOException;
+}
@@ -119,9 +119,36 @@ public class ProviderManager {
 
     private static ProviderManager instance;
 
+    /**
+     * Stands in for a missing provider in the lookup caches.
+     */
+    private static final Object NO_PROVIDER = new Object();
+
+    /**
+     * The most namespaces kept in each lookup cache. Namespaces come from the packets
+     * received, so the caches are emptied rather than allowed to grow without limit.
+     */
+    private static final int MAX_CACHED_NAMESPACES = 256;
+
+    /**
+     * The most element names kept for each namespace in a lookup cache. Element names
+     * also come from the packets received, so a peer could otherwise fill a namespace
+     * with misses for names it makes up.
+     */
+    private static final int MAX_CACHED_ELEMENTS = 64;
+
     private Map<String, Object> extensionProviders = new ConcurrentHashMap<String, Object>();
     private Map<String, Object> iqProviders = new ConcurrentHashMap<String, Object>();
 
+    /**
+     * Providers already looked up, by namespace and then element name, so that finding
+     * the provider for a packet does not have to build a key.
+     */
+    private final Map<String, Map<String, Object>> extensionProviderCache =
+            new ConcurrentHashMap<String, Map<String, Object>>();
+    private final Map<String, Map<String, Object>> iqProviderCache =
+            new ConcurrentHashMap<String, Map<String, Object>>();
+
     /**
      * Returns the only ProviderManager valid instance.  Use {@link #setInstance(ProviderManager)}
      * to configure your own provider manager. If non was provided then an instance of this
@@ -281,8 +308,7 @@ public class ProviderManager {
      * @return the IQ provider.
      */
     public Object getIQProvider(String elementName, String namespace) {
-        String key = getProviderKey(elementName, namespace);
-        return iqProviders.get(key);
+        return getProvider(iqProviders, iqProviderCache, elementName, namespace);
     }
 
     /**
@@ -316,6 +342,7 @@ public class ProviderManager {
         }
         String key = getProviderKey(elementName, namespace);
         iqProviders.put(key, provider);
+        iqProviderCache.clear();
     }
 
     /**
@@ -329,6 +356,7 @@ public class ProviderManager {
     public void removeIQProvider(String elementName, String namespace) {
         String key = getProviderKey(elementName, namespace);
         iqProviders.remove(key);
+        iqProviderCache.clear();
     }
 
     /**
@@ -351,8 +379,7 @@ public class ProviderManager {
      * @return the extenion provider.
      */
     public Object getExtensionProvider(String elementName, String namespace) {
-        String key = getProviderKey(elementName, namespace);
-        return extensionProviders.get(key);
+        return getProvider(extensionProviders, extensionProviderCache, elementName, namespace);
     }
 
     /**
@@ -373,6 +400,7 @@ public class ProviderManager {
         }
         String key = getProviderKey(elementName, namespace);
         extensionProviders.put(key, provider);
+        extensionProviderCache.clear();
     }
 
     /**
@@ -386,6 +414,7 @@ public class ProviderManager {
     public void removeExtensionProvider(String elementName, String namespace) {
         String key = getProviderKey(elementName, namespace);
         extensionProviders.remove(key);
+        extensionProviderCache.clear();
     }
 
     /**
@@ -399,6 +428,41 @@ public class ProviderManager {
         return Collections.unmodifiableCollection(extensionProviders.values());
     }
 
+    /**
+     * Returns the provider for an element name and namespace, from the cache if it has
+     * been looked up before.
+     *
+     * @param providers the providers by key.
+     * @param cache the providers already looked up.
+     * @param elementName the element name.
+     * @param namespace the namespace.
+     * @return the provider, or <tt>null</tt> if there is none.
+     */
+    private Object getProvider(Map<String, Object> providers,
+            Map<String, Map<String, Object>> cache, String elementName, String namespace)
+    {
+        if (elementName == null || namespace == null) {
+            return providers.get(getProviderKey(elementName, namespace));
+        }
+        Map<String, Object> elements = cache.get(namespace);
+        if (elements == null) {
+            if (cache.size() >= MAX_CACHED_NAMESPACES) {
+                cache.clear();
+            }
+            elements = new ConcurrentHashMap<String, Object>();
+            cache.put(namespace, elements);
+        }
+        Object provider = elements.get(elementName);
+        if (provider == null) {
+            if (elements.size() >= MAX_CACHED_ELEMENTS) {
+                elements.clear();
+            }
+            provider = providers.get(getProviderKey(elementName, namespace));
+            elements.put(elementName, provider == null ? NO_PROVIDER : provider);
+        }
+        return provider == NO_PROVIDER ? null : provider;
+    }
+
     /**
      * Returns a String key for a given element name and namespace.
      *
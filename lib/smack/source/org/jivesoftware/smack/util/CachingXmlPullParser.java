@@ -0,0 +1,77 @@
+/**
+ * $RCSfile$
+ * $Revision: 7071 $
+ * $Date: 2007-02-11 16:59:05 -0800 (Sun, 11 Feb 2007) $
+ *
+ * Copyright 2003-2007 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.util;
+
+import org.xmlpull.mxp1.MXParser;
+
+/**
+ * An XML pull parser which reuses the strings it has already created for element names,
+ * namespaces, prefixes and attribute names. The same few names appear in almost every
+ * packet, so rather than allocating new strings for each packet they are looked up in a
+ * small table by the characters in the parser's buffer. Element text and attribute values
+ * are not affected.<p>
+ *
+ * Each parser has its own table, so no locking is needed, and a string is only kept
+ * until another string which hashes to the same slot replaces it.
+ *
+ * @see org.jivesoftware.smack.SmackConfiguration#isPacketParserFastPath()
+ */
+public class CachingXmlPullParser extends MXParser {
+
+    /**
+     * Strings longer than this are not cached, as they are unlikely to be repeated.
+     */
+    private static final int MAX_LENGTH = 64;
+    private static final int TABLE_SIZE = 1024;
+
+    private final String[] table = new String[TABLE_SIZE];
+
+    protected String newString(char[] cbuf, int off, int len) {
+        if (len > MAX_LENGTH) {
+            return new String(cbuf, off, len);
+        }
+        int hash = 0;
+        for (int i = off; i < off + len; i++) {
+            hash = 31 * hash + cbuf[i];
+        }
+        int slot = (hash ^ (hash >>> 16)) & (TABLE_SIZE - 1);
+        String cached = table[slot];
+        if (cached != null && matches(cached, cbuf, off, len)) {
+            return cached;
+        }
+        // Replace whatever was in the slot, so the table only holds recent strings
+        String string = new String(cbuf, off, len);
+        table[slot] = string;
+        return string;
+    }
+
+    private static boolean matches(String string, char[] cbuf, int off, int len) {
+        if (string.length() != len) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (string.charAt(i) != cbuf[off + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -28,10 +28,12 @@ import org.xmlpull.v1.XmlPullParser;
 import java.beans.PropertyDescriptor;
 import java.io.ByteArrayInputStream;
 import java.io.ObjectInputStream;
+import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Utility class that helps to parse packets. Any parsing packets method that must be shared
@@ -47,6 +49,13 @@ public class PacketParserUtils {
     private static final String PROPERTIES_NAMESPACE =
             "http://www.jivesoftware.com/xmlns/xmpp/properties";
 
+    /**
+     * The write methods of the bean properties set by introspection, by class and then
+     * property name.
+     */
+    private static final Map<Class, Map<String, Method>> writeMethods =
+            new ConcurrentHashMap<Class, Map<String, Method>>();
+
     /**
      * Parses a message packet.
      *
@@ -433,14 +442,14 @@ public class PacketParserUtils {
             if (eventType == XmlPullParser.START_TAG) {
                 String name = parser.getName();
                 String stringValue = parser.nextText();
-                PropertyDescriptor descriptor = new PropertyDescriptor(name, objectClass);
+                Method writeMethod = getWriteMethod(objectClass, name);
                 // Load the class type of the property.
-                Class propertyType = descriptor.getPropertyType();
+                Class propertyType = writeMethod.getParameterTypes()[0];
                 // Get the value of the property by converting it from a
                 // String to the correct object type.
                 Object value = decode(propertyType, stringValue);
                 // Set the value of the bean.
-                descriptor.getWriteMethod().invoke(object, value);
+                writeMethod.invoke(object, value);
             }
             else if (eventType == XmlPullParser.END_TAG) {
                 if (parser.getName().equals(elementName)) {
@@ -451,6 +460,30 @@ public class PacketParserUtils {
         return object;
     }
 
+    /**
+     * Returns the method which sets a property of a bean. Looking up a property with a
+     * {@link PropertyDescriptor} searches the methods of the class, so the methods
+     * found are kept.
+     *
+     * @param objectClass the class of the bean.
+     * @param name the name of the property.
+     * @return the write method of the property.
+     * @throws Exception if the class does not have the property.
+     */
+    private static Method getWriteMethod(Class objectClass, String name) throws Exception {
+        Map<String, Method> methods = writeMethods.get(objectClass);
+        if (methods == null) {
+            methods = new ConcurrentHashMap<String, Method>();
+            writeMethods.put(objectClass, methods);
+        }
+        Method method = methods.get(name);
+        if (method == null) {
+            method = new PropertyDescriptor(name, objectClass).getWriteMethod();
+            methods.put(name, method);
+        }
+        return method;
+    }
+
     /**
      * Decodes a String into an object of the specified type. If the object
      * type is not supported, null will be returned.
@@ -461,25 +494,25 @@ public class PacketParserUtils {
      * @throws Exception If decoding failed due to an error.
      */
     private static Object decode(Class type, String value) throws Exception {
-        if (type.getName().equals("java.lang.String")) {
+        if (type == String.class) {
             return value;
         }
-        if (type.getName().equals("boolean")) {
+        if (type == boolean.class) {
             return Boolean.valueOf(value);
         }
-        if (type.getName().equals("int")) {
+        if (type == int.class) {
             return Integer.valueOf(value);
         }
-        if (type.getName().equals("long")) {
+        if (type == long.class) {
             return Long.valueOf(value);
         }
-        if (type.getName().equals("float")) {
+        if (type == float.class) {
             return Float.valueOf(value);
         }
-        if (type.getName().equals("double")) {
+        if (type == double.class) {
             return Double.valueOf(value);
         }
-        if (type.getName().equals("java.lang.Class")) {
+        if (type == Class.class) {
             return Class.forName(value);
         }
         return null;
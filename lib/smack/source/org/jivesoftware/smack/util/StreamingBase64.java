@@ -0,0 +1,175 @@
+/**
+ * $RCSfile$
+ * $Revision: 7071 $
+ * $Date: 2007-02-11 16:59:05 -0800 (Sun, 11 Feb 2007) $
+ *
+ * Copyright 2003-2007 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+
+/**
+ * Base64 encoding and decoding without the intermediate Strings and arrays of
+ * {@link StringUtils#encodeBase64(byte[])} and {@link StringUtils#decodeBase64(String)}.
+ * Data is encoded straight to a stream through a char buffer which each thread reuses,
+ * and decoded straight into an array supplied by the caller. The encoding never contains
+ * line breaks, and whitespace is skipped when decoding.
+ */
+public class StreamingBase64 {
+
+    private static final int CHUNK_CHARS = 4096;
+
+    private static final char[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    private static final byte[] DECODABET = new byte[128];
+
+    static {
+        for (int i = 0; i < DECODABET.length; i++) {
+            DECODABET[i] = -1;
+        }
+        for (int i = 0; i < ALPHABET.length; i++) {
+            DECODABET[ALPHABET[i]] = (byte) i;
+        }
+    }
+
+    /**
+     * The char buffer each thread encodes into before writing to the stream.
+     */
+    private static final ThreadLocal<char[]> chunks = new ThreadLocal<char[]>() {
+        protected char[] initialValue() {
+            return new char[CHUNK_CHARS];
+        }
+    };
+
+    private StreamingBase64() {
+    }
+
+    /**
+     * Returns the number of characters the encoding of the given number of bytes has.
+     *
+     * @param len the number of bytes.
+     * @return the number of characters.
+     */
+    public static int encodedLength(int len) {
+        return (len + 2) / 3 * 4;
+    }
+
+    /**
+     * Returns the most bytes the given base64 text can decode to.
+     *
+     * @param data the base64 text.
+     * @return the largest possible number of decoded bytes.
+     */
+    public static int maxDecodedLength(CharSequence data) {
+        return data.length() / 4 * 3 + 3;
+    }
+
+    /**
+     * Encodes bytes as base64, writing the characters to a stream. If the stream is a
+     * {@link Writer} the characters are written from the buffer without being copied.
+     *
+     * @param data the bytes to encode.
+     * @param offset the offset of the first byte.
+     * @param len the number of bytes.
+     * @param out the stream to write to.
+     * @throws IOException if the characters could not be written.
+     */
+    public static void encode(byte[] data, int offset, int len, Appendable out)
+            throws IOException
+    {
+        char[] chunk = chunks.get();
+        int count = 0;
+        int end = offset + len;
+        for (int i = offset; i < end; i += 3) {
+            int b0 = data[i] & 0xff;
+            int b1 = i + 1 < end ? data[i + 1] & 0xff : 0;
+            int b2 = i + 2 < end ? data[i + 2] & 0xff : 0;
+            chunk[count++] = ALPHABET[b0 >>> 2];
+            chunk[count++] = ALPHABET[((b0 & 0x03) << 4) | (b1 >>> 4)];
+            chunk[count++] = i + 1 < end ? ALPHABET[((b1 & 0x0f) << 2) | (b2 >>> 6)] : '=';
+            chunk[count++] = i + 2 < end ? ALPHABET[b2 & 0x3f] : '=';
+            if (count == chunk.length) {
+                write(chunk, count, out);
+                count = 0;
+            }
+        }
+        if (count > 0) {
+            write(chunk, count, out);
+        }
+    }
+
+    private static void write(char[] chunk, int count, Appendable out) throws IOException {
+        if (out instanceof Writer) {
+            ((Writer) out).write(chunk, 0, count);
+        }
+        else {
+            out.append(CharBuffer.wrap(chunk, 0, count));
+        }
+    }
+
+    /**
+     * Decodes base64 text into an array. The array must have room for at least
+     * {@link #maxDecodedLength(CharSequence)} bytes after the offset.
+     *
+     * @param data the base64 text.
+     * @param out the array to decode into.
+     * @param offset the offset in the array of the first decoded byte.
+     * @return the number of bytes decoded.
+     * @throws IllegalArgumentException if the text is not valid base64.
+     */
+    public static int decode(CharSequence data, byte[] out, int offset) {
+        int position = offset;
+        int bits = 0;
+        int count = 0;
+        for (int i = 0; i < data.length(); i++) {
+            char c = data.charAt(i);
+            if (c == '=') {
+                break;
+            }
+            if (Character.isWhitespace(c)) {
+                continue;
+            }
+            if (c >= DECODABET.length || DECODABET[c] < 0) {
+                throw new IllegalArgumentException("Invalid base64 character: " + c);
+            }
+            bits = (bits << 6) | DECODABET[c];
+            count++;
+            if (count == 4) {
+                out[position++] = (byte) (bits >> 16);
+                out[position++] = (byte) (bits >> 8);
+                out[position++] = (byte) bits;
+                bits = 0;
+                count = 0;
+            }
+        }
+        // Any characters left over encode the final one or two bytes.
+        if (count == 2) {
+            out[position++] = (byte) (bits >> 4);
+        }
+        else if (count == 3) {
+            out[position++] = (byte) (bits >> 10);
+            out[position++] = (byte) (bits >> 2);
+        }
+        else if (count == 1) {
+            throw new IllegalArgumentException("Truncated base64 data");
+        }
+        return position - offset;
+    }
+}
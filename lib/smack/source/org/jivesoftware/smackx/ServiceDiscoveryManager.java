@@ -22,7 +22,6 @@ package org.jivesoftware.smackx;
 
 import org.jivesoftware.smack.*;
 import org.jivesoftware.smack.filter.PacketFilter;
-import org.jivesoftware.smack.filter.PacketIDFilter;
 import org.jivesoftware.smack.filter.PacketTypeFilter;
 import org.jivesoftware.smack.packet.IQ;
 import org.jivesoftware.smack.packet.Packet;
@@ -390,29 +389,27 @@ public class ServiceDiscoveryManager {
      * @throws XMPPException if the operation failed for some reason.
      */
     public DiscoverInfo discoverInfo(String entityID, String node) throws XMPPException {
+        // Wait for the result, up to the packet reply timeout.
+        return (DiscoverInfo) discoverInfoAsync(entityID, node).getResult();
+    }
+
+    /**
+     * Sends a request for the discovered info of a given XMPP entity addressed by
+     * its JID and note attribute, without waiting for the response. The response is a
+     * {@link DiscoverInfo}.
+     *
+     * @param entityID the address of the XMPP entity.
+     * @param node the attribute that supplements the 'jid' attribute.
+     * @return the future for the response.
+     */
+    public IQFuture discoverInfoAsync(String entityID, String node) {
         // Discover the entity's info
         DiscoverInfo disco = new DiscoverInfo();
         disco.setType(IQ.Type.GET);
         disco.setTo(entityID);
         disco.setNode(node);
 
-        // Create a packet collector to listen for a response.
-        PacketCollector collector =
-            connection.createPacketCollector(new PacketIDFilter(disco.getPacketID()));
-
-        connection.sendPacket(disco);
-
-        // Wait up to 5 seconds for a result.
-        IQ result = (IQ) collector.nextResult(SmackConfiguration.getPacketReplyTimeout());
-        // Stop queuing results
-        collector.cancel();
-        if (result == null) {
-            throw new XMPPException("No response from the server.");
-        }
-        if (result.getType() == IQ.Type.ERROR) {
-            throw new XMPPException(result.getError());
-        }
-        return (DiscoverInfo) result;
+        return connection.sendIqAsync(disco);
     }
 
     /**
@@ -437,29 +434,27 @@ public class ServiceDiscoveryManager {
      * @throws XMPPException if the operation failed for some reason.
      */
     public DiscoverItems discoverItems(String entityID, String node) throws XMPPException {
+        // Wait for the result, up to the packet reply timeout.
+        return (DiscoverItems) discoverItemsAsync(entityID, node).getResult();
+    }
+
+    /**
+     * Sends a request for the discovered items of a given XMPP entity addressed by
+     * its JID and note attribute, without waiting for the response. The response is a
+     * {@link DiscoverItems}.
+     *
+     * @param entityID the address of the XMPP entity.
+     * @param node the attribute that supplements the 'jid' attribute.
+     * @return the future for the response.
+     */
+    public IQFuture discoverItemsAsync(String entityID, String node) {
         // Discover the entity's items
         DiscoverItems disco = new DiscoverItems();
         disco.setType(IQ.Type.GET);
         disco.setTo(entityID);
         disco.setNode(node);
 
-        // Create a packet collector to listen for a response.
-        PacketCollector collector =
-            connection.createPacketCollector(new PacketIDFilter(disco.getPacketID()));
-
-        connection.sendPacket(disco);
-
-        // Wait up to 5 seconds for a result.
-        IQ result = (IQ) collector.nextResult(SmackConfiguration.getPacketReplyTimeout());
-        // Stop queuing results
-        collector.cancel();
-        if (result == null) {
-            throw new XMPPException("No response from the server.");
-        }
-        if (result.getType() == IQ.Type.ERROR) {
-            throw new XMPPException(result.getError());
-        }
-        return (DiscoverItems) result;
+        return connection.sendIqAsync(disco);
     }
 
     /**
@@ -509,21 +504,7 @@ public class ServiceDiscoveryManager {
         discoverItems.setTo(entityID);
         discoverItems.setNode(node);
 
-        // Create a packet collector to listen for a response.
-        PacketCollector collector =
-            connection.createPacketCollector(new PacketIDFilter(discoverItems.getPacketID()));
-
-        connection.sendPacket(discoverItems);
-
-        // Wait up to 5 seconds for a result.
-        IQ result = (IQ) collector.nextResult(SmackConfiguration.getPacketReplyTimeout());
-        // Stop queuing results
-        collector.cancel();
-        if (result == null) {
-            throw new XMPPException("No response from the server.");
-        }
-        if (result.getType() == IQ.Type.ERROR) {
-            throw new XMPPException(result.getError());
-        }
+        // Wait for the result, up to the packet reply timeout.
+        connection.sendIqAsync(discoverItems).getResult();
     }
 }
\ No newline at end of file
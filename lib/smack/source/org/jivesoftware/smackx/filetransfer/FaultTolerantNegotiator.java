@@ -56,11 +56,14 @@ public class FaultTolerantNegotiator extends StreamNegotiator {
     }
 
     public PacketFilter getInitiationPacketFilter(String from, String streamID) {
+        PacketFilter primary = primaryNegotiator.getInitiationPacketFilter(from, streamID);
+        PacketFilter secondary = secondaryNegotiator.getInitiationPacketFilter(from, streamID);
+        // the filters of the first stream decide which negotiator handles its initiation
         if (primaryFilter == null || secondaryFilter == null) {
-            primaryFilter = primaryNegotiator.getInitiationPacketFilter(from, streamID);
-            secondaryFilter = secondaryNegotiator.getInitiationPacketFilter(from, streamID);
+            primaryFilter = primary;
+            secondaryFilter = secondary;
         }
-        return new OrFilter(primaryFilter, secondaryFilter);
+        return new OrFilter(primary, secondary);
     }
 
     InputStream negotiateIncomingStream(Packet streamInitiation) throws XMPPException {
@@ -68,6 +71,32 @@ public class FaultTolerantNegotiator extends StreamNegotiator {
                 "stream method.");
     }
 
+    InputStream negotiateIncomingStream(PacketCollector collector, String from,
+            String streamID) throws XMPPException {
+        PacketFilter primary = primaryNegotiator.getInitiationPacketFilter(from, streamID);
+        XMPPException exception = null;
+        // when the primary method fails the initiator falls back to the secondary method
+        for (int i = 0; i < 2; i++) {
+            Packet streamInitiation = collector.nextResult(
+                    SmackConfiguration.getPacketReplyTimeout() * 2);
+            if (streamInitiation == null) {
+                break;
+            }
+            StreamNegotiator negotiator = primary.accept(streamInitiation) ?
+                    primaryNegotiator : secondaryNegotiator;
+            try {
+                return negotiator.negotiateIncomingStream(streamInitiation);
+            }
+            catch (XMPPException e) {
+                exception = e;
+            }
+        }
+        if (exception != null) {
+            throw exception;
+        }
+        throw new XMPPException("No response from remote client");
+    }
+
     final Packet initiateIncomingStream(XMPPConnection connection, StreamInitiation initiation) {
         throw new UnsupportedOperationException("Initiation handled by createIncomingStream " +
                 "method");
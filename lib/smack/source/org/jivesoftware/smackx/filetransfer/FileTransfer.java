@@ -19,11 +19,22 @@
  */
 package org.jivesoftware.smackx.filetransfer;
 
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 import org.jivesoftware.smack.XMPPException;
+import org.jivesoftware.smack.util.StringUtils;
 
 /**
  * Contains the generic file information and progress related to a particular
@@ -50,7 +61,9 @@ public abstract class FileTransfer {
 
 	protected String streamID;
 
-	protected long amountWritten = -1;
+	protected volatile long amountWritten = -1;
+
+	private long startOffset;
 
 	private Error error;
 
@@ -61,6 +74,12 @@ public abstract class FileTransfer {
      */
     private static final int BUFFER_SIZE = 8192;
 
+    /**
+     * The most bytes copied between a file and a connection at once, so that the
+     * progress is updated and cancellation is noticed during the transfer
+     */
+    private static final int TRANSFER_SIZE = 64 * 1024;
+
     protected FileTransfer(String peer, String streamID,
 			FileTransferNegotiator negotiator) {
 		this.peer = peer;
@@ -203,9 +222,33 @@ public abstract class FileTransfer {
 	protected void writeToStream(final InputStream in, final OutputStream out)
 			throws XMPPException
     {
+        // files are copied straight to and from bytestream connections by the file
+        // channel, without passing through the heap buffer
+        if (in instanceof FileInputStream && out instanceof SocketChannelOutputStream) {
+            try {
+                transferFromFile(((FileInputStream) in).getChannel(),
+                        ((SocketChannelOutputStream) out).getChannel());
+            }
+            catch (IOException e) {
+                throw new XMPPException("error writing to output stream", e);
+            }
+            checkAmountWritten();
+            return;
+        }
+        if (in instanceof ReadableByteChannel && out instanceof FileOutputStream) {
+            try {
+                transferToFile((ReadableByteChannel) in, ((FileOutputStream) out).getChannel());
+            }
+            catch (IOException e) {
+                throw new XMPPException("error reading from input stream", e);
+            }
+            checkAmountWritten();
+            return;
+        }
+
 		final byte[] b = new byte[BUFFER_SIZE];
 		int count = 0;
-		amountWritten = 0;
+		amountWritten = startOffset;
 
         do {
 			// write to the output stream
@@ -216,6 +259,7 @@ public abstract class FileTransfer {
 			}
 
 			amountWritten += count;
+			transferProgressed();
 
 			// read more bytes from the input stream
 			try {
@@ -225,6 +269,275 @@ public abstract class FileTransfer {
 			}
 		} while (count != -1 && !getStatus().equals(Status.cancelled));
 
+        checkAmountWritten();
+	}
+
+    private void transferFromFile(FileChannel in, WritableByteChannel out) throws IOException {
+        long position = in.position();
+        long size = in.size();
+        amountWritten = startOffset;
+
+        while (position < size && !getStatus().equals(Status.cancelled)) {
+            long count = in.transferTo(position, Math.min(TRANSFER_SIZE, size - position), out);
+            if (count <= 0) {
+                break;
+            }
+            position += count;
+            amountWritten += count;
+            transferProgressed();
+        }
+    }
+
+    private void transferToFile(ReadableByteChannel in, FileChannel out) throws IOException {
+        long position = out.position();
+        long count;
+        amountWritten = startOffset;
+
+        // a blocking channel only transfers nothing at the end of the stream
+        do {
+            count = out.transferFrom(in, position, TRANSFER_SIZE);
+            position += count;
+            amountWritten += count;
+            transferProgressed();
+        } while (count > 0 && !getStatus().equals(Status.cancelled));
+    }
+
+    /**
+     * Sets the position in the file a transfer starts from, when it resumes an
+     * earlier transfer. The data before it is counted as already transferred.
+     *
+     * @param offset the position the transfer starts from.
+     */
+    protected void setStartOffset(long offset) {
+        this.startOffset = offset;
+    }
+
+    /**
+     * Called each time more of the file has been transferred by
+     * {@link #writeToStream(InputStream, OutputStream)}, after
+     * {@link #amountWritten} has been updated.
+     */
+    protected void transferProgressed() {
+    }
+
+    /**
+     * Returns the offset in the file of one of the ranges a file is split into when it
+     * is sent over several streams. Range <tt>i</tt> runs from the offset of range
+     * <tt>i</tt> up to the offset of range <tt>i + 1</tt>.
+     *
+     * @param fileSize the size of the file.
+     * @param rangeCount the number of ranges.
+     * @param index the index of the range, up to and including the number of ranges.
+     * @return the offset of the range.
+     */
+    static long getRangeOffset(long fileSize, int rangeCount, int index) {
+        return fileSize * index / rangeCount;
+    }
+
+    /**
+     * Sends a range of a file over a stream. The file is only read from at the given
+     * positions, so several ranges can be sent from the same file at once.
+     *
+     * @param in the file.
+     * @param position the offset of the range in the file.
+     * @param length the length of the range.
+     * @param out the stream to send the range over.
+     * @throws IOException if the file could not be read or the stream written to.
+     */
+    protected void writeRange(FileChannel in, long position, long length, OutputStream out)
+            throws IOException {
+        long end = position + length;
+        if (out instanceof SocketChannelOutputStream) {
+            WritableByteChannel channel = ((SocketChannelOutputStream) out).getChannel();
+            while (position < end && !getStatus().equals(Status.cancelled)) {
+                long count = in.transferTo(position, Math.min(TRANSFER_SIZE, end - position),
+                        channel);
+                if (count <= 0) {
+                    break;
+                }
+                position += count;
+                addAmountWritten(count);
+            }
+            return;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        while (position < end && !getStatus().equals(Status.cancelled)) {
+            buffer.clear();
+            buffer.limit((int) Math.min(BUFFER_SIZE, end - position));
+            int count = in.read(buffer, position);
+            if (count < 0) {
+                break;
+            }
+            out.write(buffer.array(), 0, count);
+            position += count;
+            addAmountWritten(count);
+        }
+        out.flush();
+    }
+
+    /**
+     * Receives a range of a file from a stream. The file is only written to at the
+     * given positions, so several ranges can be received into the same file at once.
+     *
+     * @param in the stream the range is received from.
+     * @param out the file.
+     * @param position the offset of the range in the file.
+     * @param length the length of the range.
+     * @throws IOException if the stream could not be read or the file written to.
+     */
+    protected void readRange(InputStream in, FileChannel out, long position, long length)
+            throws IOException {
+        long end = position + length;
+        if (in instanceof ReadableByteChannel) {
+            while (position < end && !getStatus().equals(Status.cancelled)) {
+                long count = out.transferFrom((ReadableByteChannel) in, position,
+                        Math.min(TRANSFER_SIZE, end - position));
+                if (count <= 0) {
+                    break;
+                }
+                position += count;
+                addAmountWritten(count);
+            }
+            return;
+        }
+
+        byte[] b = new byte[BUFFER_SIZE];
+        while (position < end && !getStatus().equals(Status.cancelled)) {
+            int count = in.read(b, 0, (int) Math.min(BUFFER_SIZE, end - position));
+            if (count < 0) {
+                break;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(b, 0, count);
+            while (buffer.hasRemaining()) {
+                position += out.write(buffer, position);
+            }
+            addAmountWritten(count);
+        }
+    }
+
+    /**
+     * Copies each range of a file to or from its own stream at the same time, with a
+     * thread for each stream. The ranges are sent when the streams are output
+     * streams, and received when they are input streams. If any range fails the file
+     * can not be completed, so every stream is closed and the other threads are
+     * interrupted, rather than waiting for them on a peer which may have stalled.
+     *
+     * @param file the file.
+     * @param size the size of the file.
+     * @param streams the streams, in the order of the ranges.
+     * @throws IOException if any of the ranges could not be copied.
+     */
+    protected void copyRanges(final FileChannel file, final long size, final Closeable[] streams)
+            throws IOException {
+        final IOException[] error = new IOException[1];
+        final Thread[] threads = new Thread[streams.length];
+        amountWritten = 0;
+
+        for (int i = 0; i < streams.length; i++) {
+            final int index = i;
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    long offset = getRangeOffset(size, streams.length, index);
+                    long length = getRangeOffset(size, streams.length, index + 1) - offset;
+                    try {
+                        if (streams[index] instanceof InputStream) {
+                            readRange((InputStream) streams[index], file, offset, length);
+                        }
+                        else {
+                            writeRange(file, offset, length, (OutputStream) streams[index]);
+                        }
+                    }
+                    catch (IOException e) {
+                        stopRanges(e, error, streams, threads);
+                    }
+                }
+            }, "File Transfer " + FileTransferNegotiator.getStreamID(streamID, i));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            }
+            catch (InterruptedException e) {
+                stopRanges(new IOException("Interrupted while copying the file"), error,
+                        streams, threads);
+                break;
+            }
+        }
+        synchronized (error) {
+            if (error[0] != null) {
+                throw error[0];
+            }
+        }
+    }
+
+    /**
+     * Stops copying every range after the first failure. Only the first error is
+     * kept, as the others are caused by the streams being closed.
+     */
+    private void stopRanges(IOException e, IOException[] error, Closeable[] streams,
+            Thread[] threads) {
+        synchronized (error) {
+            if (error[0] != null) {
+                return;
+            }
+            error[0] = e;
+        }
+        for (Closeable stream : streams) {
+            try {
+                stream.close();
+            }
+            catch (IOException ex) {
+                /* Do Nothing */
+            }
+        }
+        for (Thread thread : threads) {
+            if (thread != Thread.currentThread()) {
+                thread.interrupt();
+            }
+        }
+    }
+
+    private synchronized void addAmountWritten(long count) {
+        amountWritten += count;
+    }
+
+    /**
+     * Returns the MD5 sum of a file, as sent in the hash of a file transfer offer.
+     *
+     * @param file the file.
+     * @return the MD5 sum as a hex string.
+     * @throws IOException if the file could not be read.
+     */
+    static String hashFile(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IOException("MD5 is not available");
+        }
+
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(TRANSFER_SIZE);
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        finally {
+            in.close();
+        }
+        return StringUtils.encodeHex(digest.digest());
+    }
+
+    protected void checkAmountWritten() {
 		// the connection was likely terminated abrubtly if these are not equal
 		if (!getStatus().equals(Status.cancelled) && getError() == Error.none
 				&& amountWritten != fileSize) {
@@ -351,7 +664,12 @@ public abstract class FileTransfer {
 		/**
 		 * An error occured while sending or recieving the file
 		 */
-		stream("An error occured while sending or recieving the file.");
+		stream("An error occured while sending or recieving the file."),
+
+		/**
+		 * The file recieved does not match the checksum sent by the peer
+		 */
+		checksum("The file recieved does not match the checksum sent by the peer.");
 
 		private final String msg;
 
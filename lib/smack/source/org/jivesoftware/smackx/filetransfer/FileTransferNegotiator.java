@@ -33,6 +33,7 @@ import org.jivesoftware.smackx.ServiceDiscoveryManager;
 import org.jivesoftware.smackx.packet.DataForm;
 import org.jivesoftware.smackx.packet.StreamInitiation;
 
+import java.io.InputStream;
 import java.net.URLConnection;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
@@ -72,6 +73,13 @@ public class FileTransferNegotiator {
 
     protected static final String STREAM_DATA_FIELD_NAME = "stream-method";
 
+    /**
+     * The feature negotiation field offering to send a file over several streams at
+     * once. The offer holds the most streams the initiator will open, and the
+     * acceptance holds the number the target will read from.
+     */
+    protected static final String STREAM_COUNT_FIELD_NAME = "stream-count";
+
     private static final Random randomGenerator = new Random();
 
     /**
@@ -375,15 +383,55 @@ public class FileTransferNegotiator {
     public StreamNegotiator negotiateOutgoingTransfer(final String userID,
             final String streamID, final String fileName, final long size,
             final String desc, int responseTimeout) throws XMPPException {
+        StreamInitiation response = offerTransfer(userID, streamID, fileName, size,
+                desc, null, null, 1, false, responseTimeout);
+        return response != null ? getOutgoingNegotiator(response) : null;
+    }
+
+    /**
+     * Sends a request to another user to send them a file, and waits for their
+     * response.
+     *
+     * @param userID          The userID of the user to whom the file will be sent.
+     * @param streamID        The unique identifier for this file transfer.
+     * @param fileName        The name of this file.
+     * @param size            The size, in bytes, of the file.
+     * @param desc            A description of the file.
+     * @param hash            The MD5 sum of the file, or null if it is not known.
+     * @param date            The date the file was last modified, or null if it is not
+     *                        known. Either this or the hash must be given for a ranged
+     *                        transfer to be resumed.
+     * @param streamCount     The most streams the file may be sent over at once.
+     * @param ranged          True if the remote user may ask for only part of the file,
+     *                        to resume an earlier transfer.
+     * @param responseTimeout The amount of time, in milliseconds, to wait for the remote
+     *                        user to respond.
+     * @return The acceptance of the remote user, or null if they did not respond.
+     * @throws XMPPException Thrown if the remote user refused the file transfer.
+     */
+    StreamInitiation offerTransfer(final String userID, final String streamID,
+            final String fileName, final long size, final String desc, final String hash,
+            final Date date, int streamCount, boolean ranged, int responseTimeout)
+            throws XMPPException {
         StreamInitiation si = new StreamInitiation();
         si.setSesssionID(streamID);
         si.setMimeType(URLConnection.guessContentTypeFromName(fileName));
 
         StreamInitiation.File siFile = new StreamInitiation.File(fileName, size);
         siFile.setDesc(desc);
+        siFile.setHash(hash);
+        siFile.setDate(date);
+        siFile.setRanged(ranged);
         si.setFile(siFile);
 
-        si.setFeatureNegotiationForm(createDefaultInitiationForm());
+        DataForm form = createDefaultInitiationForm();
+        if (streamCount > 1) {
+            FormField field = new FormField(STREAM_COUNT_FIELD_NAME);
+            field.setType(FormField.TYPE_TEXT_SINGLE);
+            field.addValue(String.valueOf(streamCount));
+            form.addField(field);
+        }
+        si.setFeatureNegotiationForm(form);
 
         si.setFrom(connection.getUser());
         si.setTo(userID);
@@ -398,10 +446,7 @@ public class FileTransferNegotiator {
         if (siResponse instanceof IQ) {
             IQ iqResponse = (IQ) siResponse;
             if (iqResponse.getType().equals(IQ.Type.RESULT)) {
-                StreamInitiation response = (StreamInitiation) siResponse;
-                return getOutgoingNegotiator(getStreamMethodField(response
-                        .getFeatureNegotiationForm()));
-
+                return (StreamInitiation) siResponse;
             }
             else if (iqResponse.getType().equals(IQ.Type.ERROR)) {
                 throw new XMPPException(iqResponse.getError());
@@ -415,6 +460,84 @@ public class FileTransferNegotiator {
         }
     }
 
+    /**
+     * Returns the stream negotiator chosen by the remote user when they accepted a file
+     * transfer.
+     *
+     * @param response The acceptance of the remote user.
+     * @return The stream negotiator selected by the remote user.
+     * @throws XMPPException Thrown if none of the offered stream methods was chosen.
+     */
+    StreamNegotiator getOutgoingNegotiator(StreamInitiation response)
+            throws XMPPException {
+        FormField field = getStreamMethodField(response.getFeatureNegotiationForm());
+        if (field == null) {
+            throw new XMPPException("Remote user did not choose a stream method");
+        }
+        return getOutgoingNegotiator(field);
+    }
+
+    /**
+     * Returns the number of streams in the stream count field of a file transfer offer
+     * or acceptance. Peers which do not know the field leave it out, and the file is
+     * then sent over a single stream.
+     *
+     * @param si The offer or acceptance.
+     * @return The number of streams, which is at least 1.
+     */
+    static int getStreamCount(StreamInitiation si) {
+        DataForm form = si.getFeatureNegotiationForm();
+        if (form == null) {
+            return 1;
+        }
+        for (Iterator<FormField> it = form.getFields(); it.hasNext();) {
+            FormField field = it.next();
+            if (STREAM_COUNT_FIELD_NAME.equals(field.getVariable())) {
+                Iterator<String> values = field.getValues();
+                if (values.hasNext()) {
+                    try {
+                        return Math.max(1, Integer.parseInt(values.next()));
+                    }
+                    catch (NumberFormatException e) {
+                        return 1;
+                    }
+                }
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * Returns the ID of one of the streams a file is sent over. The first stream has
+     * the ID of the file transfer itself.
+     *
+     * @param streamID The unique identifier of the file transfer.
+     * @param index    The index of the stream.
+     * @return The ID of the stream.
+     */
+    static String getStreamID(String streamID, int index) {
+        return index == 0 ? streamID : streamID + "-" + index;
+    }
+
+    /**
+     * Accepts a file transfer offer for a number of streams, starting from an offset
+     * in the file, and waits for the remote user to open each of them.
+     *
+     * @param streamNegotiator The stream negotiator selected for the file transfer.
+     * @param initiation       The file transfer offer.
+     * @param streamCount      The number of streams to accept.
+     * @param rangeOffset      The position in the file to start sending from, which
+     *                         must be 0 unless the offer allows ranges.
+     * @return The streams, in order.
+     * @throws XMPPException If any of the streams could not be negotiated.
+     */
+    InputStream[] createIncomingStreams(StreamNegotiator streamNegotiator,
+            StreamInitiation initiation, int streamCount, long rangeOffset)
+            throws XMPPException {
+        return streamNegotiator.createIncomingStreams(connection, initiation, streamCount,
+                rangeOffset);
+    }
+
     private StreamNegotiator getOutgoingNegotiator(final FormField field)
             throws XMPPException {
         String variable;
@@ -20,8 +20,8 @@
 package org.jivesoftware.smackx.filetransfer;
 
 import org.jivesoftware.smack.*;
-import org.jivesoftware.smack.util.StringUtils;
 import org.jivesoftware.smack.filter.*;
+import org.jivesoftware.smack.provider.ProviderManager;
 import org.jivesoftware.smack.packet.IQ;
 import org.jivesoftware.smack.packet.Message;
 import org.jivesoftware.smack.packet.Packet;
@@ -29,10 +29,14 @@ import org.jivesoftware.smack.packet.XMPPError;
 import org.jivesoftware.smackx.packet.IBBExtensions;
 import org.jivesoftware.smackx.packet.IBBExtensions.Open;
 import org.jivesoftware.smackx.packet.StreamInitiation;
+import org.jivesoftware.smackx.provider.IBBProviders;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
 
 /**
  * The in-band bytestream file transfer method, or IBB for short, transfers the
@@ -49,6 +53,35 @@ public class IBBTransferNegotiator extends StreamNegotiator {
 
     public static final int DEFAULT_BLOCK_SIZE = 4096;
 
+    /**
+     * The largest block size allowed by the protocol.
+     */
+    public static final int MAX_BLOCK_SIZE = 65535;
+
+    /**
+     * The default window size, which sends the data in messages. Receivers which
+     * only accept data in messages answer data sent in IQ packets with an error, so
+     * IQ packets are only used when the window size is set to more than 0.
+     */
+    public static final int DEFAULT_WINDOW_SIZE = 0;
+
+    /**
+     * The time in milliseconds to wait for a block sent in an IQ packet to be
+     * acknowledged. Blocks are acknowledged as they arrive, but may wait behind
+     * everything else queued to be sent on either connection, so this is longer than
+     * the packet reply timeout.
+     */
+    public static final int ACK_TIMEOUT = 60000;
+
+    private static int blockSize = DEFAULT_BLOCK_SIZE;
+
+    private static int windowSize = DEFAULT_WINDOW_SIZE;
+
+    static {
+        ProviderManager.getInstance().addIQProvider(IBBExtensions.Data.ELEMENT_NAME, NAMESPACE,
+                new IBBProviders.DataIQ());
+    }
+
     private XMPPConnection connection;
 
     /**
@@ -60,6 +93,56 @@ public class IBBTransferNegotiator extends StreamNegotiator {
         this.connection = connection;
     }
 
+    /**
+     * Returns the number of bytes sent in each data packet of outgoing streams. The
+     * default value is {@link #DEFAULT_BLOCK_SIZE}.
+     *
+     * @return the block size.
+     */
+    public static int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Sets the number of bytes sent in each data packet of outgoing streams. Larger
+     * blocks mean fewer packets, but the receiver may refuse blocks it thinks are too
+     * large.
+     *
+     * @param size the block size, from 1 to {@link #MAX_BLOCK_SIZE}.
+     */
+    public static void setBlockSize(int size) {
+        if (size <= 0 || size > MAX_BLOCK_SIZE) {
+            throw new IllegalArgumentException();
+        }
+        blockSize = size;
+    }
+
+    /**
+     * Returns the number of data packets an outgoing stream may have sent without
+     * the receiver acknowledging them. The default value is {@link #DEFAULT_WINDOW_SIZE}.
+     * When the value is 0, the data is sent in messages, which are not acknowledged.
+     * They are then only held back by the connection's queue of packets to be written.
+     *
+     * @return the window size.
+     */
+    public static int getWindowSize() {
+        return windowSize;
+    }
+
+    /**
+     * Sets the number of data packets an outgoing stream may have sent without the
+     * receiver acknowledging them. A value greater than 0 sends the data in IQ packets,
+     * which the receiver acknowledges, and a value of 0 sends the data in messages.
+     *
+     * @param size the window size, or 0 to send the data in messages.
+     */
+    public static void setWindowSize(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException();
+        }
+        windowSize = size;
+    }
+
     public PacketFilter getInitiationPacketFilter(String from, String streamID) {
         return new AndFilter(new FromContainsFilter(
                 from), new IBBOpenSidFilter(streamID));
@@ -79,7 +162,7 @@ public class IBBTransferNegotiator extends StreamNegotiator {
                 .getFrom()));
 
         InputStream stream = new IBBInputStream(openRequest.getSessionID(),
-                dataFilter, closeFilter);
+                openRequest.getBlockSize(), dataFilter, closeFilter);
 
         initInBandTransfer(openRequest);
 
@@ -104,7 +187,9 @@ public class IBBTransferNegotiator extends StreamNegotiator {
 
     public OutputStream createOutgoingStream(String streamID, String initiator,
             String target) throws XMPPException {
-        Open openIQ = new Open(streamID, DEFAULT_BLOCK_SIZE);
+        int blockSize = IBBTransferNegotiator.blockSize;
+        int windowSize = IBBTransferNegotiator.windowSize;
+        Open openIQ = new Open(streamID, blockSize, windowSize > 0 ? "iq" : "message");
         openIQ.setTo(target);
         openIQ.setType(IQ.Type.SET);
 
@@ -131,7 +216,7 @@ public class IBBTransferNegotiator extends StreamNegotiator {
             }
         }
 
-        return new IBBOutputStream(target, streamID, DEFAULT_BLOCK_SIZE);
+        return new IBBOutputStream(target, streamID, blockSize, windowSize);
     }
 
     public String[] getNamespaces() {
@@ -156,12 +241,29 @@ public class IBBTransferNegotiator extends StreamNegotiator {
         private String messageID;
         private String sid;
 
-        IBBOutputStream(String userID, String sid, int blockSize) {
+        /**
+         * The number of blocks which may be sent without being acknowledged, or 0 if
+         * the blocks are sent in messages.
+         */
+        private final int windowSize;
+
+        private final Semaphore window;
+
+        /**
+         * The arrays of blocks which have been acknowledged, ready to be reused.
+         */
+        private final Queue<byte[]> freeBlocks = new ConcurrentLinkedQueue<byte[]>();
+
+        private volatile XMPPException error;
+
+        IBBOutputStream(String userID, String sid, int blockSize, int windowSize) {
             if (blockSize <= 0) {
                 throw new IllegalArgumentException("Buffer size <= 0");
             }
             buffer = new byte[blockSize];
             this.userID = userID;
+            this.windowSize = windowSize;
+            this.window = new Semaphore(windowSize);
 
             Message template = new Message(userID);
             messageID = template.getPacketID();
@@ -176,7 +278,7 @@ public class IBBTransferNegotiator extends StreamNegotiator {
             return packet;
         }
 
-        public void write(int b) throws IOException {
+        public synchronized void write(int b) throws IOException {
             if (count >= buffer.length) {
                 flushBuffer();
             }
@@ -186,58 +288,107 @@ public class IBBTransferNegotiator extends StreamNegotiator {
 
         public synchronized void write(byte b[], int off, int len)
                 throws IOException {
-            if (len >= buffer.length) {
-                // "byte" off the first chunck to write out
-                writeOut(b, off, buffer.length);
-                // recursivly call this method again with the lesser amount subtracted.
-                write(b, off + buffer.length, len - buffer.length);
-            } else {
-                writeOut(b, off, len);
+            while (len > 0) {
+                if (count >= buffer.length) {
+                    flushBuffer();
+                }
+                // fill the block as far as possible before it is sent
+                int n = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+                off += n;
+                len -= n;
             }
         }
 
-        private void writeOut(byte b[], int off, int len) {
-            if (len > buffer.length - count) {
-                flushBuffer();
+        private void flushBuffer() throws IOException {
+            if (count > 0) {
+                writeToXML(buffer, 0, count);
             }
-            System.arraycopy(b, off, buffer, count, len);
-            count += len;
+
+            count = 0;
         }
 
-        private void flushBuffer() {
-            writeToXML(buffer, 0, count);
+        private synchronized void writeToXML(byte[] buffer, int offset, int len)
+                throws IOException {
+            checkError();
 
-            count = 0;
+            if (windowSize > 0) {
+                sendBlock(buffer, offset, len);
+            }
+            else {
+                // the data is only encoded when the packet is written, so it needs a copy
+                byte[] block = new byte[len];
+                System.arraycopy(buffer, offset, block, 0, len);
+
+                Message template = createTemplate(messageID + "_" + seq);
+                template.addExtension(new IBBExtensions.Data(sid, seq, block, 0, len));
+                connection.sendPacket(template);
+            }
+
+            seq = (seq + 1 == 65535 ? 0 : seq + 1);
         }
 
-        private synchronized void writeToXML(byte[] buffer, int offset, int len) {
-            Message template = createTemplate(messageID + "_" + seq);
-            IBBExtensions.Data ext = new IBBExtensions.Data(sid);
-            template.addExtension(ext);
+        /**
+         * Sends a block in an IQ packet once fewer than the window size of blocks are
+         * waiting to be acknowledged. The array the block is copied into is reused once
+         * the block has been acknowledged, by which time it has been written.
+         */
+        private void sendBlock(byte[] buffer, int offset, int len) throws IOException {
+            try {
+                window.acquire();
+            }
+            catch (InterruptedException e) {
+                throw new IOException("Interrupted while waiting to send");
+            }
 
-            String enc = StringUtils.encodeBase64(buffer, offset, len, false);
+            byte[] block = freeBlocks.poll();
+            if (block == null) {
+                block = new byte[this.buffer.length];
+            }
+            System.arraycopy(buffer, offset, block, 0, len);
+            final byte[] sent = block;
 
-            ext.setData(enc);
-            ext.setSeq(seq);
-            synchronized (this) {
+            IQ packet = new IBBExtensions.DataIQ(new IBBExtensions.Data(sid, seq, block, 0, len));
+            packet.setTo(userID);
+            packet.setType(IQ.Type.SET);
+            connection.sendIqAsync(packet, ACK_TIMEOUT).addResponseListener(new IQResponseListener() {
+                public void processResponse(IQFuture future) {
+                    try {
+                        future.getResult();
+                    }
+                    catch (XMPPException e) {
+                        error = e;
+                    }
+                    freeBlocks.offer(sent);
+                    window.release();
+                }
+            });
+        }
+
+        private void checkError() throws IOException {
+            if (error != null) {
+                throw new IOException("Data was not received: " + error.getMessage());
+            }
+        }
+
+        public synchronized void close() throws IOException {
+            flushBuffer();
+            if (windowSize > 0) {
+                // wait until every block has been acknowledged, or has timed out
                 try {
-                    this.wait(100);
+                    window.acquire(windowSize);
+                    window.release(windowSize);
                 }
                 catch (InterruptedException e) {
-                    /* Do Nothing */
+                    throw new IOException("Interrupted while waiting for the receiver");
                 }
             }
-
-            connection.sendPacket(template);
-
-            seq = (seq + 1 == 65535 ? 0 : seq + 1);
-        }
-
-        public void close() throws IOException {
             connection.sendPacket(closePacket);
+            checkError();
         }
 
-        public void flush() throws IOException {
+        public synchronized void flush() throws IOException {
             flushBuffer();
         }
 
@@ -258,8 +409,13 @@ public class IBBTransferNegotiator extends StreamNegotiator {
 
         private PacketCollector dataCollector;
 
+        /**
+         * The decoded block, which is reused for each block that fits in it.
+         */
         private byte[] buffer;
 
+        private int bufferLength;
+
         private int bufferPointer;
 
         private int seq = -1;
@@ -272,13 +428,30 @@ public class IBBTransferNegotiator extends StreamNegotiator {
 
         private IQ closeConfirmation;
 
-        private Message lastMess;
+        private Packet lastMess;
+
+        /**
+         * Acknowledges each block sent in an IQ packet as soon as it arrives, so the
+         * sender's window is not held up by the application reading slowly. Blocks
+         * which have not been read wait in the data collector.
+         */
+        private final PacketListener ackListener = new PacketListener() {
+            public void processPacket(Packet packet) {
+                if (packet instanceof IQ) {
+                    connection.sendPacket(FileTransferNegotiator.createIQ(
+                            packet.getPacketID(), packet.getFrom(), packet.getTo(),
+                            IQ.Type.RESULT));
+                }
+            }
+        };
 
-        private IBBInputStream(String streamID, PacketFilter dataFilter,
+        private IBBInputStream(String streamID, int blockSize, PacketFilter dataFilter,
                 PacketFilter closeFilter) {
             this.streamID = streamID;
             this.dataCollector = connection.createPacketCollector(dataFilter);
+            connection.addPacketListener(ackListener, dataFilter);
             connection.addPacketListener(this, closeFilter);
+            this.buffer = new byte[blockSize > 0 ? blockSize : DEFAULT_BLOCK_SIZE];
             this.bufferPointer = -1;
         }
 
@@ -286,11 +459,14 @@ public class IBBTransferNegotiator extends StreamNegotiator {
             if (isEOF || isClosed) {
                 return -1;
             }
-            if (bufferPointer == -1 || bufferPointer >= buffer.length) {
-                loadBufferWait();
+            if (bufferPointer == -1 || bufferPointer >= bufferLength) {
+                if (!loadBufferWait()) {
+                    isEOF = true;
+                    return -1;
+                }
             }
 
-            return (int) buffer[bufferPointer++];
+            return buffer[bufferPointer++] & 0xff;
         }
 
         public synchronized int read(byte[] b) throws IOException {
@@ -302,15 +478,15 @@ public class IBBTransferNegotiator extends StreamNegotiator {
             if (isEOF || isClosed) {
                 return -1;
             }
-            if (bufferPointer == -1 || bufferPointer >= buffer.length) {
+            if (bufferPointer == -1 || bufferPointer >= bufferLength) {
                 if (!loadBufferWait()) {
                     isEOF = true;
                     return -1;
                 }
             }
 
-            if (len - off > buffer.length - bufferPointer) {
-                len = buffer.length - bufferPointer;
+            if (len > bufferLength - bufferPointer) {
+                len = bufferLength - bufferPointer;
             }
 
             System.arraycopy(buffer, bufferPointer, b, off, len);
@@ -321,30 +497,45 @@ public class IBBTransferNegotiator extends StreamNegotiator {
         private boolean loadBufferWait() throws IOException {
             IBBExtensions.Data data;
 
-            Message mess = null;
+            Packet mess = null;
             while (mess == null) {
                 if (isDone) {
-                    mess = (Message) dataCollector.pollResult();
+                    mess = dataCollector.pollResult();
                     if (mess == null) {
                         return false;
                     }
                 }
                 else {
-                    mess = (Message) dataCollector.nextResult(1000);
+                    mess = dataCollector.nextResult(1000);
                 }
             }
             lastMess = mess;
-            data = (IBBExtensions.Data) mess.getExtension(
-                    IBBExtensions.Data.ELEMENT_NAME,
-                    IBBExtensions.NAMESPACE);
+            if (mess instanceof IBBExtensions.DataIQ) {
+                data = ((IBBExtensions.DataIQ) mess).getData();
+            }
+            else {
+                data = (IBBExtensions.Data) mess.getExtension(
+                        IBBExtensions.Data.ELEMENT_NAME,
+                        IBBExtensions.NAMESPACE);
+            }
 
             checkSequence(mess, (int) data.getSeq());
-            buffer = StringUtils.decodeBase64(data.getData());
+            int maxLength = data.getMaxDecodedLength();
+            if (maxLength > buffer.length) {
+                buffer = new byte[maxLength];
+            }
+            try {
+                bufferLength = data.decodeData(buffer, 0);
+            }
+            catch (IllegalArgumentException e) {
+                cancelTransfer(mess);
+                throw new IOException("Invalid data: " + e.getMessage());
+            }
             bufferPointer = 0;
             return true;
         }
 
-        private void checkSequence(Message mess, int seq) throws IOException {
+        private void checkSequence(Packet mess, int seq) throws IOException {
             if (this.seq == 65535) {
                 this.seq = -1;
             }
@@ -357,7 +548,7 @@ public class IBBTransferNegotiator extends StreamNegotiator {
             }
         }
 
-        private void cancelTransfer(Message mess) {
+        private void cancelTransfer(Packet mess) {
             cleanup();
 
             sendCancelMessage(mess);
@@ -365,10 +556,11 @@ public class IBBTransferNegotiator extends StreamNegotiator {
 
         private void cleanup() {
             dataCollector.cancel();
+            connection.removePacketListener(ackListener);
             connection.removePacketListener(this);
         }
 
-        private void sendCancelMessage(Message message) {
+        private void sendCancelMessage(Packet message) {
             IQ error = FileTransferNegotiator.createIQ(message.getPacketID(), message.getFrom(), message.getTo(),
                     IQ.Type.ERROR);
             error.setError(new XMPPError(XMPPError.Condition.remote_server_timeout, "Cancel Message Transfer"));
@@ -442,15 +634,24 @@ public class IBBTransferNegotiator extends StreamNegotiator {
         }
 
         public boolean accept(Packet packet) {
-            if (!(packet instanceof Message)) {
+            IBBExtensions.Data data;
+            if (packet instanceof IBBExtensions.DataIQ) {
+                if (((IQ) packet).getType() != IQ.Type.SET) {
+                    return false;
+                }
+                data = ((IBBExtensions.DataIQ) packet).getData();
+            }
+            else if (packet instanceof Message) {
+                data = (IBBExtensions.Data) packet.
+                        getExtension(IBBExtensions.Data.ELEMENT_NAME, IBBExtensions.NAMESPACE);
+            }
+            else {
                 return false;
             }
-            if (!packet.getFrom().equalsIgnoreCase(from)) {
+            if (packet.getFrom() == null || !packet.getFrom().equalsIgnoreCase(from)) {
                 return false;
             }
 
-            IBBExtensions.Data data = (IBBExtensions.Data) packet.
-                    getExtension(IBBExtensions.Data.ELEMENT_NAME, IBBExtensions.NAMESPACE);
             return data != null && data.getSessionID() != null
                     && data.getSessionID().equalsIgnoreCase(sessionID);
         }
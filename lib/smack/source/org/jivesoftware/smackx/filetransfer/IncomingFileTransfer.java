@@ -20,8 +20,10 @@
 package org.jivesoftware.smackx.filetransfer;
 
 import org.jivesoftware.smack.XMPPException;
+import org.jivesoftware.smackx.packet.StreamInitiation;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
 import java.util.concurrent.*;
 
 /**
@@ -46,10 +48,40 @@ import java.util.concurrent.*;
  */
 public class IncomingFileTransfer extends FileTransfer {
 
+    private static int maxStreamCount = 4;
+
+    /**
+     * Returns the most streams a file will be received over at once, when the sender
+     * offers to send it over several streams.
+     *
+     * @return the most streams a file will be received over.
+     */
+    public static int getMaxStreamCount() {
+        return maxStreamCount;
+    }
+
+    /**
+     * Sets the most streams a file will be received over at once, when the sender
+     * offers to send it over several streams. A value of 1 always receives files
+     * over a single stream.
+     *
+     * @param count the most streams a file will be received over.
+     */
+    public static void setMaxStreamCount(int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("Stream count must be at least 1");
+        }
+        maxStreamCount = count;
+    }
+
     private FileTransferRequest recieveRequest;
 
     private InputStream inputStream;
 
+    private TransferJournal journal;
+
+    private FileChannel journalChannel;
+
     protected IncomingFileTransfer(FileTransferRequest request,
             FileTransferNegotiator transferNegotiator) {
         super(request.getRequestor(), request.getStreamID(), transferNegotiator);
@@ -85,6 +117,16 @@ public class IncomingFileTransfer extends FileTransfer {
      * negotiated stream. The transfered file will be saved at the provided
      * location.
      * <p/>
+     * If the sender offers to send the file over several streams at once, with the
+     * checksum of the file, up to {@link #getMaxStreamCount()} streams are accepted.
+     * Each stream writes its own range of the file, and the whole file is checked
+     * against the checksum once it has been received.
+     * <p/>
+     * When the file is received over a single stream, the progress is recorded in a
+     * journal next to the file. If the transfer fails and the same file is later
+     * offered again by the same user, and the sender allows it, only the rest of the
+     * file is asked for and received.
+     * <p/>
      * This method will return immedialtly, file transfer progress can be
      * monitored through several methods:
      * <p/>
@@ -118,19 +160,50 @@ public class IncomingFileTransfer extends FileTransfer {
             throw new IllegalArgumentException("File cannot be null");
         }
 
+        StreamInitiation initiation = recieveRequest.getStreamInitiation();
+        final String hash = initiation.getFile() != null ? initiation.getFile().getHash() : null;
+        final long offset;
+        if (initiation.getFile() != null) {
+            journal = TransferJournal.open(file, getPeer(), initiation.getFile());
+            offset = initiation.getFile().isRanged() ? journal.getReceived() : 0;
+        }
+        else {
+            offset = 0;
+        }
+        // a transfer which is resumed is always received over a single stream
+        final int streamCount = offset > 0 ? 1 : Math.min(maxStreamCount,
+                FileTransferNegotiator.getStreamCount(initiation));
+
         Thread transferThread = new Thread(new Runnable() {
             public void run() {
+                if (streamCount > 1 && hash != null) {
+                    recieveRanges(file, streamCount, hash);
+                    return;
+                }
+
                 try {
-                    inputStream = negotiateStream();
+                    inputStream = offset > 0 ? negotiateStream(offset) : negotiateStream();
                 }
                 catch (XMPPException e) {
                     handleXMPPException(e);
                     return;
                 }
 
-                OutputStream outputStream = null;
+                FileOutputStream outputStream = null;
                 try {
-                    outputStream = new FileOutputStream(file);
+                    if (offset > 0) {
+                        // drop anything written after the journal was last updated
+                        RandomAccessFile partial = new RandomAccessFile(file, "rw");
+                        try {
+                            partial.setLength(offset);
+                        }
+                        finally {
+                            partial.close();
+                        }
+                    }
+                    outputStream = new FileOutputStream(file, offset > 0);
+                    journalChannel = outputStream.getChannel();
+                    setStartOffset(offset);
                     setStatus(Status.in_progress);
                     writeToStream(inputStream, outputStream);
                 }
@@ -139,7 +212,7 @@ public class IncomingFileTransfer extends FileTransfer {
                     setError(Error.stream);
                     setException(e);
                 }
-                catch (FileNotFoundException e) {
+                catch (IOException e) {
                     setStatus(Status.error);
                     setError(Error.bad_file);
                     setException(e);
@@ -148,6 +221,7 @@ public class IncomingFileTransfer extends FileTransfer {
                 if (getStatus().equals(Status.in_progress)) {
                     setStatus(Status.complete);
                 }
+                finishJournal();
                 if (inputStream != null) {
                     try {
                         inputStream.close();
@@ -169,6 +243,99 @@ public class IncomingFileTransfer extends FileTransfer {
         transferThread.start();
     }
 
+    private void recieveRanges(File file, int streamCount, String hash) {
+        InputStream[] streams;
+        try {
+            setStatus(Status.negotiating_transfer);
+            StreamNegotiator streamNegotiator = negotiator.selectStreamNegotiator(recieveRequest);
+            setStatus(Status.negotiating_stream);
+            streams = negotiator.createIncomingStreams(streamNegotiator,
+                    recieveRequest.getStreamInitiation(), streamCount, 0);
+            setStatus(Status.negotiated);
+        }
+        catch (XMPPException e) {
+            handleXMPPException(e);
+            return;
+        }
+        inputStream = streams[0];
+
+        RandomAccessFile out = null;
+        try {
+            out = new RandomAccessFile(file, "rw");
+            out.setLength(getFileSize());
+            setStatus(Status.in_progress);
+            copyRanges(out.getChannel(), getFileSize(), streams);
+            checkAmountWritten();
+            out.close();
+            out = null;
+
+            if (getStatus().equals(Status.in_progress) && !hash.equalsIgnoreCase(hashFile(file))) {
+                setStatus(Status.error);
+                setError(Error.checksum);
+            }
+        }
+        catch (FileNotFoundException e) {
+            setStatus(Status.error);
+            setError(Error.bad_file);
+            setException(e);
+        }
+        catch (IOException e) {
+            setStatus(Status.error);
+            setError(Error.stream);
+            setException(e);
+        }
+        finally {
+            for (InputStream stream : streams) {
+                try {
+                    stream.close();
+                }
+                catch (Throwable io) {
+                    /* Ignore */
+                }
+            }
+            if (out != null) {
+                try {
+                    out.close();
+                }
+                catch (Throwable io) {
+                    /* Ignore */
+                }
+            }
+        }
+
+        if (getStatus().equals(Status.in_progress)) {
+            setStatus(Status.complete);
+        }
+    }
+
+    protected void transferProgressed() {
+        if (journal != null && journalChannel != null) {
+            journal.update(journalChannel, amountWritten);
+        }
+    }
+
+    /**
+     * Deletes the journal once the file has been received, or otherwise records how
+     * much of the file was received so the transfer can be resumed.
+     */
+    private void finishJournal() {
+        if (journal == null) {
+            return;
+        }
+        if (getStatus().equals(Status.complete)) {
+            journal.delete();
+        }
+        else if (journalChannel != null && amountWritten > 0) {
+            try {
+                journalChannel.force(false);
+                journal.write(amountWritten);
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
     private void handleXMPPException(XMPPException e) {
         setStatus(FileTransfer.Status.error);
         setException(e);
@@ -208,6 +375,20 @@ public class IncomingFileTransfer extends FileTransfer {
         return inputStream;
     }
 
+    /**
+     * Negotiates a stream which resumes an earlier transfer of the file, asking the
+     * sender to start from the given offset.
+     */
+    private InputStream negotiateStream(long offset) throws XMPPException {
+        setStatus(Status.negotiating_transfer);
+        StreamNegotiator streamNegotiator = negotiator.selectStreamNegotiator(recieveRequest);
+        setStatus(Status.negotiating_stream);
+        InputStream inputStream = negotiator.createIncomingStreams(streamNegotiator,
+                recieveRequest.getStreamInitiation(), 1, offset)[0];
+        setStatus(Status.negotiated);
+        return inputStream;
+    }
+
     public void cancel() {
         setStatus(Status.cancelled);
     }
@@ -21,8 +21,18 @@ package org.jivesoftware.smackx.filetransfer;
 
 import org.jivesoftware.smack.XMPPException;
 import org.jivesoftware.smack.packet.XMPPError;
+import org.jivesoftware.smackx.packet.StreamInitiation;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Handles the sending of a file to another user. File transfer's in jabber have
@@ -66,6 +76,8 @@ public class OutgoingFileTransfer extends FileTransfer {
 
 	private Thread transferThread;
 
+	private long rangeOffset;
+
 	protected OutgoingFileTransfer(String initiator, String target,
 			String streamID, FileTransferNegotiator transferNegotiator) {
 		super(target, streamID, transferNegotiator);
@@ -212,7 +224,7 @@ public class OutgoingFileTransfer extends FileTransfer {
 			public void run() {
 				try {
 					outputStream = negotiateStream(file.getName(), file
-							.length(), description);
+							.length(), description, new Date(file.lastModified()), true);
 				} catch (XMPPException e) {
 					handleXMPPException(e);
 					return;
@@ -225,14 +237,23 @@ public class OutgoingFileTransfer extends FileTransfer {
 					return;
 				}
 
-				InputStream inputStream = null;
+				FileInputStream inputStream = null;
 				try {
 					inputStream = new FileInputStream(file);
+					if (rangeOffset > 0) {
+						// the remote user already has the start of the file
+						inputStream.getChannel().position(rangeOffset);
+						setStartOffset(rangeOffset);
+					}
 					writeToStream(inputStream, outputStream);
 				} catch (FileNotFoundException e) {
 					setStatus(FileTransfer.Status.error);
 					setError(Error.bad_file);
 					setException(e);
+				} catch (IOException e) {
+					setStatus(FileTransfer.Status.error);
+					setError(Error.bad_file);
+					setException(e);
 				} catch (XMPPException e) {
 					setStatus(FileTransfer.Status.error);
 					setException(e);
@@ -255,6 +276,105 @@ public class OutgoingFileTransfer extends FileTransfer {
 		transferThread.start();
 	}
 
+	/**
+	 * Sends a file over several streams at once, which makes better use of links
+	 * with a high latency than a single stream. The file is split into one range
+	 * for each stream, and its MD5 sum is sent with the offer so that the remote
+	 * user can check the file once it has been put back together. If the remote
+	 * user does not support this, or accepts fewer streams, the file is sent
+	 * over as many streams as they accept.
+	 * <p>
+	 * Like {@link #sendFile(File, String)} this method returns immediately, and
+	 * the progress of the file transfer can be monitored in the same way.
+	 *
+	 * @param file the file to transfer to the remote entity.
+	 * @param description a description for the file to transfer.
+	 * @param streamCount the most streams to send the file over.
+	 * @throws XMPPException
+	 *             If there is an error during the negotiation process or the
+	 *             sending of the file.
+	 */
+	public synchronized void sendFile(final File file, final String description,
+			final int streamCount) throws XMPPException {
+		if (streamCount <= 1) {
+			sendFile(file, description);
+			return;
+		}
+		checkTransferThread();
+		if (file == null || !file.exists() || !file.canRead()) {
+			throw new IllegalArgumentException("Could not read file");
+		} else {
+			setFileInfo(file.getAbsolutePath(), file.getName(), file.length());
+		}
+
+		transferThread = new Thread(new Runnable() {
+			public void run() {
+				String hash;
+				try {
+					hash = hashFile(file);
+				} catch (IOException e) {
+					setStatus(FileTransfer.Status.error);
+					setError(Error.bad_file);
+					setException(e);
+					return;
+				}
+
+				OutputStream[] streams;
+				try {
+					streams = negotiateStreams(file.getName(), file.length(),
+							description, hash, streamCount);
+				} catch (XMPPException e) {
+					handleXMPPException(e);
+					return;
+				}
+				if (streams == null) {
+					return;
+				}
+
+				try {
+					if (updateStatus(Status.negotiated, Status.in_progress)) {
+						writeRanges(file, streams);
+					}
+				} catch (FileNotFoundException e) {
+					setStatus(FileTransfer.Status.error);
+					setError(Error.bad_file);
+					setException(e);
+				} catch (IOException e) {
+					setStatus(FileTransfer.Status.error);
+					setError(Error.stream);
+					setException(e);
+				} finally {
+					closeStreams(streams);
+				}
+				updateStatus(Status.in_progress, FileTransfer.Status.complete);
+			}
+		}, "File Transfer " + streamID);
+		transferThread.start();
+	}
+
+	private void writeRanges(File file, OutputStream[] streams) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			copyRanges(channel, channel.size(), streams);
+		} finally {
+			in.close();
+		}
+		checkAmountWritten();
+	}
+
+	private void closeStreams(OutputStream[] streams) {
+		for (OutputStream stream : streams) {
+			if (stream != null) {
+				try {
+					stream.close();
+				} catch (IOException e) {
+					/* Do Nothing */
+				}
+			}
+		}
+	}
+
 	private void handleXMPPException(XMPPException e) {
 		XMPPError error = e.getXMPPError();
 		if (error != null) {
@@ -292,20 +412,37 @@ public class OutgoingFileTransfer extends FileTransfer {
 
 	private OutputStream negotiateStream(String fileName, long fileSize,
 			String description) throws XMPPException {
+		return negotiateStream(fileName, fileSize, description, null, false);
+	}
+
+	/**
+	 * Negotiates the file transfer and its stream. When the transfer is ranged
+	 * the remote user may resume an earlier transfer of the file, and the
+	 * position they asked to start from is kept in {@link #rangeOffset}. The
+	 * date the file was last modified must then be given, so an earlier
+	 * transfer of a different file with the same name and size is not resumed.
+	 */
+	private OutputStream negotiateStream(String fileName, long fileSize,
+			String description, Date date, boolean ranged) throws XMPPException {
 		// Negotiate the file transfer profile
 
         if (!updateStatus(Status.initial, Status.negotiating_transfer)) {
             throw new XMPPException("Illegal state change");
         }
-		StreamNegotiator streamNegotiator = negotiator.negotiateOutgoingTransfer(
-				getPeer(), streamID, fileName, fileSize, description,
+		StreamInitiation response = negotiator.offerTransfer(getPeer(), streamID,
+				fileName, fileSize, description, null, date, 1, ranged,
 				RESPONSE_TIMEOUT);
 
-		if (streamNegotiator == null) {
+		if (response == null) {
 			setStatus(Status.error);
 			setError(Error.no_response);
 			return null;
 		}
+		StreamNegotiator streamNegotiator = negotiator.getOutgoingNegotiator(response);
+		if (ranged && response.getFile() != null) {
+			long offset = response.getFile().getRangeOffset();
+			rangeOffset = offset > 0 && offset <= fileSize ? offset : 0;
+		}
 
         // Negotiate the stream
         if (!updateStatus(Status.negotiating_transfer, Status.negotiating_stream)) {
@@ -320,6 +457,74 @@ public class OutgoingFileTransfer extends FileTransfer {
 		return outputStream;
 	}
 
+	private OutputStream[] negotiateStreams(String fileName, long fileSize,
+			String description, String hash, int streamCount) throws XMPPException {
+		// Negotiate the file transfer profile
+
+		if (!updateStatus(Status.initial, Status.negotiating_transfer)) {
+			throw new XMPPException("Illegal state change");
+		}
+		StreamInitiation response = negotiator.offerTransfer(getPeer(), streamID,
+				fileName, fileSize, description, hash, null, streamCount, false,
+				RESPONSE_TIMEOUT);
+
+		if (response == null) {
+			setStatus(Status.error);
+			setError(Error.no_response);
+			return null;
+		}
+		final StreamNegotiator streamNegotiator = negotiator.getOutgoingNegotiator(response);
+		int count = Math.min(streamCount, FileTransferNegotiator.getStreamCount(response));
+
+		// Negotiate each of the streams. The remote user starts waiting for all of
+		// them as soon as it accepts, so they are opened at the same time rather
+		// than one after another.
+		if (!updateStatus(Status.negotiating_transfer, Status.negotiating_stream)) {
+			throw new XMPPException("Illegal state change");
+		}
+		OutputStream[] streams = new OutputStream[count];
+		ExecutorService executor = Executors.newFixedThreadPool(count);
+		List<Future<OutputStream>> futures = new ArrayList<Future<OutputStream>>(count);
+		try {
+			for (int i = 0; i < count; i++) {
+				final String id = FileTransferNegotiator.getStreamID(streamID, i);
+				futures.add(executor.submit(new Callable<OutputStream>() {
+					public OutputStream call() throws Exception {
+						return streamNegotiator.createOutgoingStream(id, initiator,
+								getPeer());
+					}
+				}));
+			}
+
+			XMPPException exception = null;
+			for (int i = 0; i < count; i++) {
+				try {
+					streams[i] = futures.get(i).get();
+					if (streams[i] == null) {
+						exception = new XMPPException("Could not establish stream " + i);
+					}
+				} catch (InterruptedException e) {
+					exception = new XMPPException("Interruption while executing", e);
+				} catch (ExecutionException e) {
+					exception = e.getCause() instanceof XMPPException ?
+							(XMPPException) e.getCause() : new XMPPException(e.getCause());
+				}
+			}
+			if (exception != null) {
+				closeStreams(streams);
+				throw exception;
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		outputStream = streams[0];
+
+		if (!updateStatus(Status.negotiating_stream, Status.negotiated)) {
+			throw new XMPPException("Illegal state change");
+		}
+		return streams;
+	}
+
 	public void cancel() {
 		setStatus(Status.cancelled);
 	}
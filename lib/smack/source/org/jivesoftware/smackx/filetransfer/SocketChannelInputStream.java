@@ -0,0 +1,101 @@
+/**
+ * $RCSfile$
+ * $Revision: 7071 $
+ * $Date: 2007-02-11 16:59:05 -0800 (Sun, 11 Feb 2007) $
+ *
+ * Copyright 2003-2007 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smackx.filetransfer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * An input stream which reads from a bytestream connection. The stream is also a
+ * channel, so a transfer can read straight into a file with
+ * {@link java.nio.channels.FileChannel#transferFrom(ReadableByteChannel, long, long)}.
+ */
+class SocketChannelInputStream extends InputStream implements ReadableByteChannel {
+
+    private final SocketChannel channel;
+
+    /**
+     * The first byte of the stream, once it has been read by {@link #awaitData()}.
+     */
+    private int first = -1;
+
+    /**
+     * Creates a stream which reads from a connection in blocking mode.
+     *
+     * @param channel the connection.
+     */
+    SocketChannelInputStream(SocketChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Blocks until the peer starts sending data. The byte read is still returned
+     * by the next read.
+     *
+     * @throws IOException if the stream ends before any data is sent.
+     */
+    void awaitData() throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(1);
+        while (b.hasRemaining()) {
+            if (channel.read(b) < 0) {
+                throw new IOException("Stream closed before any data was sent");
+            }
+        }
+        first = b.get(0) & 0xff;
+    }
+
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int count;
+        do {
+            count = read(b, 0, 1);
+        }
+        while (count == 0);
+        return count < 0 ? -1 : b[0] & 0xff;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        return read(ByteBuffer.wrap(b, off, len));
+    }
+
+    public int read(ByteBuffer dst) throws IOException {
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+        if (first >= 0) {
+            dst.put((byte) first);
+            first = -1;
+            return 1;
+        }
+        return channel.read(dst);
+    }
+
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+}
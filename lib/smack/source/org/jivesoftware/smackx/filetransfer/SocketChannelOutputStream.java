@@ -0,0 +1,58 @@
+/**
+ * $RCSfile$
+ * $Revision: 7071 $
+ * $Date: 2007-02-11 16:59:05 -0800 (Sun, 11 Feb 2007) $
+ *
+ * Copyright 2003-2007 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smackx.filetransfer;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A buffered output stream which writes to a bytestream connection. A transfer
+ * from a file can bypass the stream and send straight from the file to the
+ * connection with
+ * {@link java.nio.channels.FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}.
+ */
+class SocketChannelOutputStream extends BufferedOutputStream {
+
+    private final SocketChannel channel;
+
+    /**
+     * Creates a stream which writes to a connection in blocking mode.
+     *
+     * @param channel the connection.
+     */
+    SocketChannelOutputStream(SocketChannel channel) {
+        super(Channels.newOutputStream(channel));
+        this.channel = channel;
+    }
+
+    /**
+     * Flushes the stream and returns the connection it writes to.
+     *
+     * @return the connection.
+     * @throws IOException if the stream could not be flushed.
+     */
+    SocketChannel getChannel() throws IOException {
+        flush();
+        return channel;
+    }
+}
@@ -0,0 +1,263 @@
+/**
+ * $RCSfile$
+ * $Revision: 7071 $
+ * $Date: 2007-02-11 16:59:05 -0800 (Sun, 11 Feb 2007) $
+ *
+ * Copyright 2003-2007 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smackx.filetransfer;
+
+import org.jivesoftware.smackx.packet.Bytestream.StreamHost;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Connects to SOCKS5 stream hosts and carries out the SOCKS5 handshake with them,
+ * without blocking. Every host is connected to at the same time from a single
+ * selector, and the first host to complete its handshake is used. The connections
+ * to the other hosts are then closed.
+ */
+class Socks5Connector {
+
+    private static final int CONNECTING = 0;
+    private static final int GREETING = 1;
+    private static final int METHOD = 2;
+    private static final int REQUEST = 3;
+    private static final int REPLY = 4;
+    private static final int ADDRESS = 5;
+
+    private final byte[] request;
+
+    private final List<String> failedAddresses = new ArrayList<String>();
+
+    private StreamHost connectedHost;
+
+    /**
+     * Creates a connector which asks the stream hosts to connect it to the
+     * stream identified by a digest.
+     *
+     * @param digest the digest of the session ID and the JIDs of the two parties.
+     */
+    Socks5Connector(String digest) {
+        this.request = Socks5TransferNegotiator.createOutgoingSocks5Message(1, digest);
+    }
+
+    /**
+     * Connects to the stream hosts, returning the connection to the first one which
+     * accepts the connect request. The returned channel is in blocking mode.
+     *
+     * @param hosts the stream hosts to connect to.
+     * @param timeout the time in milliseconds to wait for a host to accept.
+     * @return the connection to the stream host.
+     * @throws IOException if no host accepted the connect request in time.
+     */
+    public SocketChannel connect(Collection<StreamHost> hosts, long timeout) throws IOException {
+        Selector selector = Selector.open();
+        List<Attempt> attempts = new ArrayList<Attempt>();
+        try {
+            for (StreamHost host : hosts) {
+                Attempt attempt = new Attempt(host);
+                try {
+                    attempt.start(selector);
+                    attempts.add(attempt);
+                }
+                catch (IOException e) {
+                    attempt.close();
+                    failedAddresses.add(host.getAddress());
+                }
+            }
+
+            long deadline = System.currentTimeMillis() + timeout;
+            int pending = attempts.size();
+            while (pending > 0) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+                selector.select(remaining);
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    Attempt attempt = (Attempt) key.attachment();
+                    try {
+                        if (attempt.process(key)) {
+                            key.cancel();
+                            selector.selectNow();
+                            attempt.channel.configureBlocking(true);
+                            connectedHost = attempt.host;
+                            attempts.remove(attempt);
+                            return attempt.channel;
+                        }
+                    }
+                    catch (IOException e) {
+                        attempt.close();
+                        attempts.remove(attempt);
+                        failedAddresses.add(attempt.host.getAddress());
+                        pending--;
+                    }
+                }
+            }
+
+            // the hosts which have not answered in time count as failures
+            for (Attempt attempt : attempts) {
+                failedAddresses.add(attempt.host.getAddress());
+            }
+            throw new SocketTimeoutException("No stream host accepted the connection");
+        }
+        finally {
+            for (Attempt attempt : attempts) {
+                attempt.close();
+            }
+            selector.close();
+        }
+    }
+
+    /**
+     * Returns the stream host which was connected to.
+     *
+     * @return the stream host, or <tt>null</tt> if no host has been connected to.
+     */
+    public StreamHost getConnectedHost() {
+        return connectedHost;
+    }
+
+    /**
+     * Returns the addresses of the stream hosts which could not be connected to.
+     *
+     * @return the addresses of the failed stream hosts.
+     */
+    public List<String> getFailedAddresses() {
+        return failedAddresses;
+    }
+
+    /**
+     * The connection to one stream host and the state of its handshake.
+     */
+    private class Attempt {
+
+        private final StreamHost host;
+
+        private SocketChannel channel;
+
+        private int state = CONNECTING;
+
+        private ByteBuffer buffer;
+
+        Attempt(StreamHost host) {
+            this.host = host;
+        }
+
+        void start(Selector selector) throws IOException {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            InetSocketAddress address = new InetSocketAddress(host.getAddress(), host.getPort());
+            if (address.isUnresolved()) {
+                throw new IOException("Unknown host " + host.getAddress());
+            }
+            if (channel.connect(address)) {
+                greet();
+                channel.register(selector, SelectionKey.OP_WRITE, this);
+            }
+            else {
+                channel.register(selector, SelectionKey.OP_CONNECT, this);
+            }
+        }
+
+        /**
+         * Carries the handshake on as far as it can go without blocking.
+         *
+         * @param key the selection key of the connection.
+         * @return true if the stream host has accepted the connect request.
+         * @throws IOException if the connection failed or the stream host refused
+         * the request.
+         */
+        boolean process(SelectionKey key) throws IOException {
+            if (state == CONNECTING) {
+                if (!channel.finishConnect()) {
+                    return false;
+                }
+                greet();
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+            if (state == GREETING || state == REQUEST) {
+                channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    return false;
+                }
+                // version and chosen method, or the reply header up to the address length
+                buffer = ByteBuffer.allocate(state == GREETING ? 2 : 5);
+                state++;
+                key.interestOps(SelectionKey.OP_READ);
+                return false;
+            }
+
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Connection closed by stream host");
+            }
+            if (buffer.hasRemaining()) {
+                return false;
+            }
+            if (state == METHOD) {
+                if (buffer.get(0) != 5 || buffer.get(1) != 0) {
+                    throw new IOException("Stream host requires authentication");
+                }
+                buffer = ByteBuffer.wrap(request);
+                state = REQUEST;
+                key.interestOps(SelectionKey.OP_WRITE);
+                return false;
+            }
+            if (state == REPLY) {
+                if (buffer.get(0) != 5 || buffer.get(1) != 0) {
+                    throw new IOException("Stream host refused the connection");
+                }
+                // the rest of the bound address and the port
+                buffer = ByteBuffer.allocate((buffer.get(4) & 0xff) + 2);
+                state = ADDRESS;
+                return false;
+            }
+            return true;
+        }
+
+        private void greet() {
+            // version 5, one authentication method, no authentication
+            buffer = ByteBuffer.wrap(new byte[]{5, 1, 0});
+            state = GREETING;
+        }
+
+        void close() {
+            if (channel != null) {
+                try {
+                    channel.close();
+                }
+                catch (IOException e) {
+                    /* Do Nothing */
+                }
+            }
+        }
+    }
+}
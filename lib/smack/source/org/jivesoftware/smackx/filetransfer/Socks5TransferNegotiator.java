@@ -40,8 +40,12 @@ import java.io.*;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 
 /**
  * A SOCKS5 bytestream is negotiated partly over the XMPP XML stream and partly
@@ -77,6 +81,11 @@ public class Socks5TransferNegotiator extends StreamNegotiator {
      */
     private static final int CONNECT_FAILURE_THRESHOLD = 2;
 
+    /**
+     * The time in milliseconds to wait for a streamhost to accept a connection.
+     */
+    private static final int CONNECT_TIMEOUT = 10000;
+
     public static boolean isAllowLocalProxyHost = true;
 
     private final XMPPConnection connection;
@@ -130,10 +139,9 @@ public class Socks5TransferNegotiator extends StreamNegotiator {
         connection.sendPacket(streamResponse);
 
         try {
-            PushbackInputStream stream = new PushbackInputStream(
-                    selectedHost.establishedSocket.getInputStream());
-            int firstByte = stream.read();
-            stream.unread(firstByte);
+            SocketChannelInputStream stream = new SocketChannelInputStream(
+                    selectedHost.establishedSocket.getChannel());
+            stream.awaitData();
             return stream;
         }
         catch (IOException e) {
@@ -179,41 +187,39 @@ public class Socks5TransferNegotiator extends StreamNegotiator {
      */
     private SelectedHostInfo selectHost(Bytestream streamHostsInfo)
             throws XMPPException {
+        List<StreamHost> hosts = new ArrayList<StreamHost>();
         Iterator it = streamHostsInfo.getStreamHosts().iterator();
-        StreamHost selectedHost = null;
-        Socket socket = null;
         while (it.hasNext()) {
-            selectedHost = (StreamHost) it.next();
-            String address = selectedHost.getAddress();
+            StreamHost host = (StreamHost) it.next();
 
             // Check to see if this address has been blacklisted
-            int failures = getConnectionFailures(address);
-            if (failures >= CONNECT_FAILURE_THRESHOLD) {
-                continue;
-            }
-            // establish socket
-            try {
-                socket = new Socket(address, selectedHost
-                        .getPort());
-                establishSOCKS5ConnectionToProxy(socket, createDigest(
-                        streamHostsInfo.getSessionID(), streamHostsInfo
-                        .getFrom(), streamHostsInfo.getTo()));
-                break;
-            }
-            catch (IOException e) {
-                e.printStackTrace();
-                incrementConnectionFailures(address);
-                selectedHost = null;
-                socket = null;
+            int failures = getConnectionFailures(host.getAddress());
+            if (failures < CONNECT_FAILURE_THRESHOLD) {
+                hosts.add(host);
             }
         }
-        if (selectedHost == null || socket == null || !socket.isConnected()) {
+
+        // all of the hosts are tried at once, and the first to accept is used
+        Socks5Connector connector = new Socks5Connector(createDigest(
+                streamHostsInfo.getSessionID(), streamHostsInfo.getFrom(),
+                streamHostsInfo.getTo()));
+        SocketChannel channel = null;
+        try {
+            channel = connector.connect(hosts, CONNECT_TIMEOUT);
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (String address : connector.getFailedAddresses()) {
+            incrementConnectionFailures(address);
+        }
+        if (channel == null) {
             String errorMessage = "Could not establish socket with any provided host";
             throw new XMPPException(errorMessage, new XMPPError(
                     XMPPError.Condition.no_acceptable, errorMessage));
         }
 
-        return new SelectedHostInfo(selectedHost, socket);
+        return new SelectedHostInfo(connector.getConnectedHost(), channel.socket());
     }
 
     private void incrementConnectionFailures(String address) {
@@ -262,6 +268,9 @@ public class Socks5TransferNegotiator extends StreamNegotiator {
 
         if (socket != null) {
             try {
+                if (socket.getChannel() != null) {
+                    return new SocketChannelOutputStream(socket.getChannel());
+                }
                 return new BufferedOutputStream(socket.getOutputStream());
             }
             catch (IOException e) {
@@ -357,9 +366,8 @@ public class Socks5TransferNegotiator extends StreamNegotiator {
             return info;
         }
         else {
-            info.establishedSocket = new Socket(usedHost.getAddress(), usedHost
-                    .getPort());
-            establishSOCKS5ConnectionToProxy(info.establishedSocket, digest);
+            info.establishedSocket = new Socks5Connector(digest).connect(
+                    Collections.singletonList(usedHost), CONNECT_TIMEOUT).socket();
 
             Bytestream activate = createByteStreamActivate(sessionID, response
                     .getTo(), usedHost.getJID(), response.getFrom());
@@ -474,28 +482,6 @@ public class Socks5TransferNegotiator extends StreamNegotiator {
         return new String[]{NAMESPACE};
     }
 
-    private void establishSOCKS5ConnectionToProxy(Socket socket, String digest)
-            throws IOException {
-
-        byte[] cmd = new byte[3];
-
-        cmd[0] = (byte) 0x05;
-        cmd[1] = (byte) 0x01;
-        cmd[2] = (byte) 0x00;
-
-        OutputStream out = new DataOutputStream(socket.getOutputStream());
-        out.write(cmd);
-
-        InputStream in = new DataInputStream(socket.getInputStream());
-        byte[] response = new byte[2];
-
-        in.read(response);
-
-        cmd = createOutgoingSocks5Message(1, digest);
-        out.write(cmd);
-        createIncomingSocks5Message(in);
-    }
-
     static String createIncomingSocks5Message(InputStream in)
             throws IOException {
         byte[] cmd = new byte[5];
@@ -30,10 +30,12 @@ import org.jivesoftware.smackx.packet.DiscoverItems;
 import org.jivesoftware.smackx.packet.Bytestream;
 import org.jivesoftware.smackx.packet.DiscoverInfo;
 
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
 import java.util.*;
 import java.io.*;
 
@@ -87,7 +89,17 @@ public class Socks5TransferNegotiatorManager implements FileTransferNegotiatorMa
     public ProxyProcess addTransfer() throws IOException {
         synchronized (processLock) {
             if (proxyProcess == null) {
-                proxyProcess = new ProxyProcess(new ServerSocket(7777));
+                // the sockets accepted from a channel can be used with the file channel
+                // transfer methods
+                ServerSocketChannel channel = ServerSocketChannel.open();
+                try {
+                    channel.socket().bind(new InetSocketAddress(7777));
+                }
+                catch (IOException e) {
+                    channel.close();
+                    throw e;
+                }
+                proxyProcess = new ProxyProcess(channel.socket());
                 proxyProcess.start();
             }
         }
@@ -32,8 +32,16 @@ import org.jivesoftware.smackx.FormField;
 import org.jivesoftware.smackx.packet.DataForm;
 import org.jivesoftware.smackx.packet.StreamInitiation;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * After the file transfer negotiation process is completed according to
@@ -74,6 +82,35 @@ public abstract class StreamNegotiator {
         return response;
     }
 
+    /**
+     * Creates the initiation acceptance packet for a file which will be sent over
+     * several streams at once, or only from an offset.
+     *
+     * @param streamInitiationOffer The offer from the stream initatior to connect for a stream.
+     * @param namespaces            The namespace that relates to the accepted means of transfer.
+     * @param streamCount           The number of streams accepted.
+     * @param rangeOffset           The position in the file to start sending from.
+     * @return The response to be forwarded to the initator.
+     */
+    StreamInitiation createInitiationAccept(StreamInitiation streamInitiationOffer,
+            String[] namespaces, int streamCount, long rangeOffset)
+    {
+        StreamInitiation response = createInitiationAccept(streamInitiationOffer, namespaces);
+        if (streamCount > 1) {
+            FormField field = new FormField(FileTransferNegotiator.STREAM_COUNT_FIELD_NAME);
+            field.addValue(String.valueOf(streamCount));
+            response.getFeatureNegotiationForm().addField(field);
+        }
+        if (rangeOffset > 0) {
+            StreamInitiation.File offer = streamInitiationOffer.getFile();
+            StreamInitiation.File file = new StreamInitiation.File(offer.getName(),
+                    offer.getSize());
+            file.setRange(rangeOffset, -1);
+            response.setFile(file);
+        }
+        return response;
+    }
+
 
     public IQ createError(String from, String to, String packetID, XMPPError xmppError) {
         IQ iq = FileTransferNegotiator.createIQ(packetID, to, from, IQ.Type.ERROR);
@@ -114,6 +151,104 @@ public abstract class StreamNegotiator {
 
     abstract InputStream negotiateIncomingStream(Packet streamInitiation) throws XMPPException;
 
+    /**
+     * Waits for the initiator to open a stream, and negotiates it.
+     *
+     * @param collector The collector for the initiation packet of the stream.
+     * @param from      The initiator of the file transfer.
+     * @param streamID  The ID of the stream.
+     * @return The negotiated stream.
+     * @throws XMPPException If the initiator did not open the stream, or if it could not
+     *                       be negotiated.
+     */
+    InputStream negotiateIncomingStream(PacketCollector collector, String from,
+            String streamID) throws XMPPException {
+        Packet streamMethodInitiation = collector
+                .nextResult(SmackConfiguration.getPacketReplyTimeout() * 2);
+        if (streamMethodInitiation == null) {
+            throw new XMPPException("No response from file transfer initiator");
+        }
+        return negotiateIncomingStream(streamMethodInitiation);
+    }
+
+    /**
+     * Accepts an offer to send a file over several streams at once, or from an
+     * offset, and negotiates each of the streams. The streams are negotiated at the
+     * same time, as the SOCKS5 negotiation of a stream only completes once data
+     * arrives on it.
+     *
+     * @param connection  The connection the file transfer was offered on.
+     * @param initiation  The offer.
+     * @param streamCount The number of streams to accept.
+     * @param rangeOffset The position in the file to start sending from.
+     * @return The negotiated streams, in order.
+     * @throws XMPPException If any of the streams could not be negotiated.
+     */
+    InputStream[] createIncomingStreams(XMPPConnection connection,
+            StreamInitiation initiation, int streamCount, long rangeOffset)
+            throws XMPPException {
+        final String from = initiation.getFrom();
+        final PacketCollector[] collectors = new PacketCollector[streamCount];
+        // the initiator opens the streams as soon as it is sent the acceptance
+        for (int i = 0; i < streamCount; i++) {
+            collectors[i] = connection.createPacketCollector(getInitiationPacketFilter(from,
+                    FileTransferNegotiator.getStreamID(initiation.getSessionID(), i)));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(streamCount);
+        List<Future<InputStream>> futures = new ArrayList<Future<InputStream>>();
+        try {
+            connection.sendPacket(createInitiationAccept(initiation, getNamespaces(),
+                    streamCount, rangeOffset));
+
+            for (int i = 0; i < streamCount; i++) {
+                final PacketCollector collector = collectors[i];
+                final String streamID =
+                        FileTransferNegotiator.getStreamID(initiation.getSessionID(), i);
+                futures.add(executor.submit(new Callable<InputStream>() {
+                    public InputStream call() throws Exception {
+                        return negotiateIncomingStream(collector, from, streamID);
+                    }
+                }));
+            }
+
+            InputStream[] streams = new InputStream[streamCount];
+            XMPPException exception = null;
+            for (int i = 0; i < streamCount; i++) {
+                try {
+                    streams[i] = futures.get(i).get();
+                }
+                catch (InterruptedException e) {
+                    exception = new XMPPException("Interruption while executing", e);
+                }
+                catch (ExecutionException e) {
+                    exception = e.getCause() instanceof XMPPException ?
+                            (XMPPException) e.getCause() : new XMPPException(e.getCause());
+                }
+            }
+            if (exception != null) {
+                for (InputStream stream : streams) {
+                    if (stream != null) {
+                        try {
+                            stream.close();
+                        }
+                        catch (IOException e) {
+                            /* Do Nothing */
+                        }
+                    }
+                }
+                throw exception;
+            }
+            return streams;
+        }
+        finally {
+            executor.shutdownNow();
+            for (PacketCollector collector : collectors) {
+                collector.cancel();
+            }
+        }
+    }
+
     /**
      * This method handles the file stream download negotiation process. The
      * appropriate stream negotiator's initiate incoming stream is called after
@@ -0,0 +1,195 @@
+/**
+ * $RCSfile$
+ * $Revision: 7071 $
+ * $Date: 2007-02-11 16:59:05 -0800 (Sun, 11 Feb 2007) $
+ *
+ * Copyright 2003-2007 Jive Software.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smackx.filetransfer;
+
+import org.jivesoftware.smack.util.StringUtils;
+import org.jivesoftware.smackx.packet.StreamInitiation;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.Properties;
+
+/**
+ * Records how much of a file has been received, so that a transfer of the same file
+ * which fails can later be resumed from where it stopped. The journal is kept in a
+ * file next to the partial file, with the name of the file followed by
+ * <tt>.journal</tt>, and is deleted once the file has been received.<p>
+ *
+ * A journal only applies to a later offer from the same user of a file with the same
+ * name, size, and checksum and date where they are given. An offer with neither a
+ * checksum nor a date is never resumed, as a changed file with the same name and size
+ * could not be told apart from the one partly received.
+ */
+class TransferJournal {
+
+    /**
+     * The least time in milliseconds between the updates of a journal.
+     */
+    private static final long UPDATE_INTERVAL = 1000;
+
+    private final File journalFile;
+
+    private final Properties properties = new Properties();
+
+    private long received;
+
+    private long lastUpdate;
+
+    private TransferJournal(File file) {
+        this.journalFile = new File(file.getParentFile(), file.getName() + ".journal");
+    }
+
+    /**
+     * Returns the journal for a file being received. If there is a journal from an
+     * earlier transfer of the same file from the same user, it is returned with the
+     * number of bytes that transfer received. Otherwise a new journal is started.
+     *
+     * @param file the file the data is received into.
+     * @param peer the user sending the file.
+     * @param offer the offered file.
+     * @return the journal.
+     */
+    static TransferJournal open(File file, String peer, StreamInitiation.File offer) {
+        TransferJournal journal = new TransferJournal(file);
+        Properties identity = new Properties();
+        identity.setProperty("peer", StringUtils.parseBareAddress(peer));
+        identity.setProperty("name", offer.getName());
+        identity.setProperty("size", String.valueOf(offer.getSize()));
+        if (offer.getHash() != null) {
+            identity.setProperty("hash", offer.getHash());
+        }
+        if (offer.getDate() != null) {
+            identity.setProperty("date", String.valueOf(offer.getDate().getTime()));
+        }
+
+        boolean identified = offer.getHash() != null || offer.getDate() != null;
+
+        if (identified && journal.load() && journal.properties.equals(identity)) {
+            // data past the end of the file was never written
+            journal.received = Math.min(journal.received, file.length());
+        }
+        else {
+            journal.properties.clear();
+            journal.properties.putAll(identity);
+            journal.received = 0;
+        }
+        return journal;
+    }
+
+    private boolean load() {
+        if (!journalFile.exists()) {
+            return false;
+        }
+        try {
+            InputStream in = new FileInputStream(journalFile);
+            try {
+                properties.load(in);
+            }
+            finally {
+                in.close();
+            }
+            received = Long.parseLong((String) properties.remove("received"));
+            return received >= 0;
+        }
+        catch (IOException e) {
+            return false;
+        }
+        catch (RuntimeException e) {
+            // the journal is damaged, so the transfer starts again
+            return false;
+        }
+    }
+
+    /**
+     * Returns the number of bytes at the start of the file which have been received.
+     *
+     * @return the number of bytes received.
+     */
+    public long getReceived() {
+        return received;
+    }
+
+    /**
+     * Records that the start of a file has been received, at most once every
+     * {@link #UPDATE_INTERVAL} milliseconds. The file is forced to disk first, so
+     * the journal never counts data which could still be lost.
+     *
+     * @param file the channel the file is being written through.
+     * @param received the number of bytes at the start of the file which have been
+     * written to the channel.
+     */
+    public void update(FileChannel file, long received) {
+        long now = System.currentTimeMillis();
+        if (now - lastUpdate < UPDATE_INTERVAL) {
+            return;
+        }
+        lastUpdate = now;
+        try {
+            file.force(false);
+            write(received);
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Writes the journal. It is written to a temporary file which then replaces the
+     * journal, so that a failure part way through leaves the previous journal.
+     *
+     * @param received the number of bytes at the start of the file which have been
+     * received.
+     * @throws IOException if the journal could not be written.
+     */
+    public void write(long received) throws IOException {
+        this.received = received;
+        Properties journal = new Properties();
+        journal.putAll(properties);
+        journal.setProperty("received", String.valueOf(received));
+
+        File temp = new File(journalFile.getPath() + ".tmp");
+        OutputStream out = new FileOutputStream(temp);
+        try {
+            journal.store(out, "Smack file transfer journal");
+        }
+        finally {
+            out.close();
+        }
+        if (!temp.renameTo(journalFile)) {
+            journalFile.delete();
+            if (!temp.renameTo(journalFile)) {
+                throw new IOException("Could not write " + journalFile);
+            }
+        }
+    }
+
+    /**
+     * Deletes the journal once the file has been received.
+     */
+    public void delete() {
+        journalFile.delete();
+    }
+}
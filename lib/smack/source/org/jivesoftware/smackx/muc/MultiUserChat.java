@@ -523,23 +523,9 @@ public class MultiUserChat {
         iq.setTo(room);
         iq.setType(IQ.Type.GET);
 
-        // Filter packets looking for an answer from the server.
-        PacketFilter responseFilter = new PacketIDFilter(iq.getPacketID());
-        PacketCollector response = connection.createPacketCollector(responseFilter);
-        // Request the configuration form to the server.
-        connection.sendPacket(iq);
-        // Wait up to a certain number of seconds for a reply.
-        IQ answer = (IQ) response.nextResult(SmackConfiguration.getPacketReplyTimeout());
-        // Stop queuing results
-        response.cancel();
-
-        if (answer == null) {
-            throw new XMPPException("No response from server.");
-        }
-        else if (answer.getError() != null) {
-            throw new XMPPException(answer.getError());
-        }
-        return Form.getFormFrom(answer);
+        // Request the configuration form to the server,
+        // waiting up to a certain number of seconds for a reply.
+        return Form.getFormFrom(connection.sendIqAsync(iq).getResult());
     }
 
     /**
@@ -556,22 +542,9 @@ public class MultiUserChat {
         iq.setType(IQ.Type.SET);
         iq.addExtension(form.getDataFormToSend());
 
-        // Filter packets looking for an answer from the server.
-        PacketFilter responseFilter = new PacketIDFilter(iq.getPacketID());
-        PacketCollector response = connection.createPacketCollector(responseFilter);
-        // Send the completed configuration form to the server.
-        connection.sendPacket(iq);
-        // Wait up to a certain number of seconds for a reply.
-        IQ answer = (IQ) response.nextResult(SmackConfiguration.getPacketReplyTimeout());
-        // Stop queuing results
-        response.cancel();
-
-        if (answer == null) {
-            throw new XMPPException("No response from server.");
-        }
-        else if (answer.getError() != null) {
-            throw new XMPPException(answer.getError());
-        }
+        // Send the completed configuration form to the server,
+        // waiting up to a certain number of seconds for a reply.
+        connection.sendIqAsync(iq).getResult();
     }
 
     /**
@@ -593,19 +566,7 @@ public class MultiUserChat {
         reg.setType(IQ.Type.GET);
         reg.setTo(room);
 
-        PacketFilter filter =
-            new AndFilter(new PacketIDFilter(reg.getPacketID()), new PacketTypeFilter(IQ.class));
-        PacketCollector collector = connection.createPacketCollector(filter);
-        connection.sendPacket(reg);
-        IQ result = (IQ) collector.nextResult(SmackConfiguration.getPacketReplyTimeout());
-        collector.cancel();
-        if (result == null) {
-            throw new XMPPException("No response from server.");
-        }
-        else if (result.getType() == IQ.Type.ERROR) {
-            throw new XMPPException(result.getError());
-        }
-        return Form.getFormFrom(result);
+        return Form.getFormFrom(connection.sendIqAsync(reg).getResult());
     }
 
     /**
@@ -628,18 +589,7 @@ public class MultiUserChat {
         reg.setTo(room);
         reg.addExtension(form.getDataFormToSend());
 
-        PacketFilter filter =
-            new AndFilter(new PacketIDFilter(reg.getPacketID()), new PacketTypeFilter(IQ.class));
-        PacketCollector collector = connection.createPacketCollector(filter);
-        connection.sendPacket(reg);
-        IQ result = (IQ) collector.nextResult(SmackConfiguration.getPacketReplyTimeout());
-        collector.cancel();
-        if (result == null) {
-            throw new XMPPException("No response from server.");
-        }
-        else if (result.getType() == IQ.Type.ERROR) {
-            throw new XMPPException(result.getError());
-        }
+        connection.sendIqAsync(reg).getResult();
     }
 
     /**
@@ -665,22 +615,9 @@ public class MultiUserChat {
         destroy.setJid(alternateJID);
         iq.setDestroy(destroy);
 
-        // Wait for a presence packet back from the server.
-        PacketFilter responseFilter = new PacketIDFilter(iq.getPacketID());
-        PacketCollector response = connection.createPacketCollector(responseFilter);
-        // Send the room destruction request.
-        connection.sendPacket(iq);
-        // Wait up to a certain number of seconds for a reply.
-        IQ answer = (IQ) response.nextResult(SmackConfiguration.getPacketReplyTimeout());
-        // Stop queuing results
-        response.cancel();
-
-        if (answer == null) {
-            throw new XMPPException("No response from server.");
-        }
-        else if (answer.getError() != null) {
-            throw new XMPPException(answer.getError());
-        }
+        // Send the room destruction request,
+        // waiting up to a certain number of seconds for a reply.
+        connection.sendIqAsync(iq).getResult();
         // Reset occupant information.
         occupantsMap.clear();
         nickname = null;
@@ -1345,22 +1282,9 @@ public class MultiUserChat {
         item.setJid(jid);
         iq.addItem(item);
 
-        // Wait for a response packet back from the server.
-        PacketFilter responseFilter = new PacketIDFilter(iq.getPacketID());
-        PacketCollector response = connection.createPacketCollector(responseFilter);
-        // Send the change request to the server.
-        connection.sendPacket(iq);
-        // Wait up to a certain number of seconds for a reply.
-        IQ answer = (IQ) response.nextResult(SmackConfiguration.getPacketReplyTimeout());
-        // Stop queuing results
-        response.cancel();
-
-        if (answer == null) {
-            throw new XMPPException("No response from server.");
-        }
-        else if (answer.getError() != null) {
-            throw new XMPPException(answer.getError());
-        }
+        // Send the change request to the server,
+        // waiting up to a certain number of seconds for a reply.
+        connection.sendIqAsync(iq).getResult();
     }
 
     private void changeAffiliationByOwner(Collection<String> jids, String affiliation)
@@ -1375,22 +1299,9 @@ public class MultiUserChat {
             iq.addItem(item);
         }
 
-        // Wait for a response packet back from the server.
-        PacketFilter responseFilter = new PacketIDFilter(iq.getPacketID());
-        PacketCollector response = connection.createPacketCollector(responseFilter);
-        // Send the change request to the server.
-        connection.sendPacket(iq);
-        // Wait up to a certain number of seconds for a reply.
-        IQ answer = (IQ) response.nextResult(SmackConfiguration.getPacketReplyTimeout());
-        // Stop queuing results
-        response.cancel();
-
-        if (answer == null) {
-            throw new XMPPException("No response from server.");
-        }
-        else if (answer.getError() != null) {
-            throw new XMPPException(answer.getError());
-        }
+        // Send the change request to the server,
+        // waiting up to a certain number of seconds for a reply.
+        connection.sendIqAsync(iq).getResult();
     }
 
     private void changeAffiliationByAdmin(String jid, String affiliation, String reason)
@@ -1404,22 +1315,9 @@ public class MultiUserChat {
         item.setReason(reason);
         iq.addItem(item);
 
-        // Wait for a response packet back from the server.
-        PacketFilter responseFilter = new PacketIDFilter(iq.getPacketID());
-        PacketCollector response = connection.createPacketCollector(responseFilter);
-        // Send the change request to the server.
-        connection.sendPacket(iq);
-        // Wait up to a certain number of seconds for a reply.
-        IQ answer = (IQ) response.nextResult(SmackConfiguration.getPacketReplyTimeout());
-        // Stop queuing results
-        response.cancel();
-
-        if (answer == null) {
-            throw new XMPPException("No response from server.");
-        }
-        else if (answer.getError() != null) {
-            throw new XMPPException(answer.getError());
-        }
+        // Send the change request to the server,
+        // waiting up to a certain number of seconds for a reply.
+        connection.sendIqAsync(iq).getResult();
     }
 
     private void changeAffiliationByAdmin(Collection<String> jids, String affiliation)
@@ -1434,22 +1332,9 @@ public class MultiUserChat {
             iq.addItem(item);
         }
 
-        // Wait for a response packet back from the server.
-        PacketFilter responseFilter = new PacketIDFilter(iq.getPacketID());
-        PacketCollector response = connection.createPacketCollector(responseFilter);
-        // Send the change request to the server.
-        connection.sendPacket(iq);
-        // Wait up to a certain number of seconds for a reply.
-        IQ answer = (IQ) response.nextResult(SmackConfiguration.getPacketReplyTimeout());
-        // Stop queuing results
-        response.cancel();
-
-        if (answer == null) {
-            throw new XMPPException("No response from server.");
-        }
-        else if (answer.getError() != null) {
-            throw new XMPPException(answer.getError());
-        }
+        // Send the change request to the server,
+        // waiting up to a certain number of seconds for a reply.
+        connection.sendIqAsync(iq).getResult();
     }
 
     private void changeRole(String nickname, String role, String reason) throws XMPPException {
@@ -1462,22 +1347,9 @@ public class MultiUserChat {
         item.setReason(reason);
         iq.addItem(item);
 
-        // Wait for a response packet back from the server.
-        PacketFilter responseFilter = new PacketIDFilter(iq.getPacketID());
-        PacketCollector response = connection.createPacketCollector(responseFilter);
-        // Send the change request to the server.
-        connection.sendPacket(iq);
-        // Wait up to a certain number of seconds for a reply.
-        IQ answer = (IQ) response.nextResult(SmackConfiguration.getPacketReplyTimeout());
-        // Stop queuing results
-        response.cancel();
-
-        if (answer == null) {
-            throw new XMPPException("No response from server.");
-        }
-        else if (answer.getError() != null) {
-            throw new XMPPException(answer.getError());
-        }
+        // Send the change request to the server,
+        // waiting up to a certain number of seconds for a reply.
+        connection.sendIqAsync(iq).getResult();
     }
 
     private void changeRole(Collection<String> nicknames, String role) throws XMPPException {
@@ -1491,22 +1363,9 @@ public class MultiUserChat {
             iq.addItem(item);
         }
 
-        // Wait for a response packet back from the server.
-        PacketFilter responseFilter = new PacketIDFilter(iq.getPacketID());
-        PacketCollector response = connection.createPacketCollector(responseFilter);
-        // Send the change request to the server.
-        connection.sendPacket(iq);
-        // Wait up to a certain number of seconds for a reply.
-        IQ answer = (IQ) response.nextResult(SmackConfiguration.getPacketReplyTimeout());
-        // Stop queuing results
-        response.cancel();
-
-        if (answer == null) {
-            throw new XMPPException("No response from server.");
-        }
-        else if (answer.getError() != null) {
-            throw new XMPPException(answer.getError());
-        }
+        // Send the change request to the server,
+        // waiting up to a certain number of seconds for a reply.
+        connection.sendIqAsync(iq).getResult();
     }
 
     /**
@@ -1655,22 +1514,9 @@ public class MultiUserChat {
         MUCOwner.Item item = new MUCOwner.Item(affiliation);
         iq.addItem(item);
 
-        // Wait for a response packet back from the server.
-        PacketFilter responseFilter = new PacketIDFilter(iq.getPacketID());
-        PacketCollector response = connection.createPacketCollector(responseFilter);
-        // Send the request to the server.
-        connection.sendPacket(iq);
-        // Wait up to a certain number of seconds for a reply.
-        MUCOwner answer = (MUCOwner) response.nextResult(SmackConfiguration.getPacketReplyTimeout());
-        // Stop queuing results
-        response.cancel();
-
-        if (answer == null) {
-            throw new XMPPException("No response from server.");
-        }
-        else if (answer.getError() != null) {
-            throw new XMPPException(answer.getError());
-        }
+        // Send the request to the server,
+        // waiting up to a certain number of seconds for a reply.
+        MUCOwner answer = (MUCOwner) connection.sendIqAsync(iq).getResult();
         // Get the list of affiliates from the server's answer
         List<Affiliate> affiliates = new ArrayList<Affiliate>();
         for (Iterator it = answer.getItems(); it.hasNext();) {
@@ -1696,22 +1542,9 @@ public class MultiUserChat {
         MUCAdmin.Item item = new MUCAdmin.Item(affiliation, null);
         iq.addItem(item);
 
-        // Wait for a response packet back from the server.
-        PacketFilter responseFilter = new PacketIDFilter(iq.getPacketID());
-        PacketCollector response = connection.createPacketCollector(responseFilter);
-        // Send the request to the server.
-        connection.sendPacket(iq);
-        // Wait up to a certain number of seconds for a reply.
-        MUCAdmin answer = (MUCAdmin) response.nextResult(SmackConfiguration.getPacketReplyTimeout());
-        // Stop queuing results
-        response.cancel();
-
-        if (answer == null) {
-            throw new XMPPException("No response from server.");
-        }
-        else if (answer.getError() != null) {
-            throw new XMPPException(answer.getError());
-        }
+        // Send the request to the server,
+        // waiting up to a certain number of seconds for a reply.
+        MUCAdmin answer = (MUCAdmin) connection.sendIqAsync(iq).getResult();
         // Get the list of affiliates from the server's answer
         List<Affiliate> affiliates = new ArrayList<Affiliate>();
         for (Iterator it = answer.getItems(); it.hasNext();) {
@@ -1758,22 +1591,9 @@ public class MultiUserChat {
         MUCAdmin.Item item = new MUCAdmin.Item(null, role);
         iq.addItem(item);
 
-        // Wait for a response packet back from the server.
-        PacketFilter responseFilter = new PacketIDFilter(iq.getPacketID());
-        PacketCollector response = connection.createPacketCollector(responseFilter);
-        // Send the request to the server.
-        connection.sendPacket(iq);
-        // Wait up to a certain number of seconds for a reply.
-        MUCAdmin answer = (MUCAdmin) response.nextResult(SmackConfiguration.getPacketReplyTimeout());
-        // Stop queuing results
-        response.cancel();
-
-        if (answer == null) {
-            throw new XMPPException("No response from server.");
-        }
-        else if (answer.getError() != null) {
-            throw new XMPPException(answer.getError());
-        }
+        // Send the request to the server,
+        // waiting up to a certain number of seconds for a reply.
+        MUCAdmin answer = (MUCAdmin) connection.sendIqAsync(iq).getResult();
         // Get the list of participants from the server's answer
         List<Occupant> participants = new ArrayList<Occupant>();
         for (Iterator it = answer.getItems(); it.hasNext();) {
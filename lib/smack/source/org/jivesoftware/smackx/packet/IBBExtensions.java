@@ -20,7 +20,11 @@
 package org.jivesoftware.smackx.packet;
 
 import org.jivesoftware.smack.packet.IQ;
-import org.jivesoftware.smack.packet.PacketExtension;
+import org.jivesoftware.smack.packet.StreamablePacketExtension;
+import org.jivesoftware.smack.util.StreamingBase64;
+import org.jivesoftware.smack.util.StringUtils;
+
+import java.io.IOException;
 
 /**
  * The different extensions used throughtout the negotiation and transfer
@@ -66,6 +70,8 @@ public class IBBExtensions {
 
 		private final int blockSize;
 
+		private final String stanza;
+
 		/**
 		 * Constructs an open packet.
 		 * 
@@ -75,8 +81,24 @@ public class IBBExtensions {
 		 *            The block size of the file transfer.
 		 */
 		public Open(final String sid, final int blockSize) {
+			this(sid, blockSize, null);
+		}
+
+		/**
+		 * Constructs an open packet.
+		 * 
+		 * @param sid
+		 *            The streamID of the file transfer.
+		 * @param blockSize
+		 *            The block size of the file transfer.
+		 * @param stanza
+		 *            The kind of packet the data will be sent in, "iq" or
+		 *            "message", or null if it is not stated.
+		 */
+		public Open(final String sid, final int blockSize, final String stanza) {
 			super(sid);
 			this.blockSize = blockSize;
+			this.stanza = stanza;
 		}
 
 		/**
@@ -88,6 +110,15 @@ public class IBBExtensions {
 			return blockSize;
 		}
 
+		/**
+		 * The kind of packet the data will be sent in.
+		 * 
+		 * @return "iq" or "message", or null if it was not stated.
+		 */
+		public String getStanza() {
+			return stanza;
+		}
+
 		public String getElementName() {
 			return ELEMENT_NAME;
 		}
@@ -97,6 +128,9 @@ public class IBBExtensions {
             buf.append("<").append(getElementName()).append(" xmlns=\"").append(getNamespace()).append("\" ");
             buf.append("sid=\"").append(getSessionID()).append("\" ");
             buf.append("block-size=\"").append(getBlockSize()).append("\"");
+			if (getStanza() != null) {
+				buf.append(" stanza=\"").append(getStanza()).append("\"");
+			}
 			buf.append("/>");
 			return buf.toString();
 		}
@@ -109,12 +143,18 @@ public class IBBExtensions {
 	 * @author Alexander Wenckus
 	 * 
 	 */
-	public static class Data implements PacketExtension {
+	public static class Data implements StreamablePacketExtension {
 
 		private long seq;
 
 		private String data;
 
+		private byte[] bytes;
+
+		private int offset;
+
+		private int length;
+
 		public static final String ELEMENT_NAME = "data";
 
 		final String sid;
@@ -148,6 +188,30 @@ public class IBBExtensions {
 			this.data = data;
 		}
 
+		/**
+		 * Creates a data packet holding unencoded bytes, which are only encoded
+		 * when the packet is written. The bytes must not change until then.
+		 * 
+		 * @param sid
+		 *            The stream ID.
+		 * @param seq
+		 *            The sequence of this packet.
+		 * @param bytes
+		 *            The array holding the data.
+		 * @param offset
+		 *            The offset of the data in the array.
+		 * @param length
+		 *            The number of bytes of data.
+		 */
+		public Data(final String sid, final long seq, final byte[] bytes,
+				final int offset, final int length) {
+			this(sid);
+			this.seq = seq;
+			this.bytes = bytes;
+			this.offset = offset;
+			this.length = length;
+		}
+
 		public String getElementName() {
 			return ELEMENT_NAME;
 		}
@@ -158,9 +222,45 @@ public class IBBExtensions {
 		 * @return Returns the data contained in this packet.
 		 */
 		public String getData() {
+			if (data == null && bytes != null) {
+				data = StringUtils.encodeBase64(bytes, offset, length, false);
+			}
 			return data;
 		}
 
+		/**
+		 * Decodes the data contained in this packet into an array, which must
+		 * have room for at least {@link #getMaxDecodedLength()} bytes after
+		 * the offset.
+		 * 
+		 * @param buffer
+		 *            The array to decode into.
+		 * @param off
+		 *            The offset in the array of the first decoded byte.
+		 * @return The number of bytes decoded.
+		 * @throws IllegalArgumentException
+		 *             If the data is not valid base64.
+		 */
+		public int decodeData(final byte[] buffer, final int off) {
+			if (data == null && bytes != null) {
+				System.arraycopy(bytes, offset, buffer, off, length);
+				return length;
+			}
+			return StreamingBase64.decode(data, buffer, off);
+		}
+
+		/**
+		 * Returns the most bytes {@link #decodeData(byte[], int)} can decode.
+		 * 
+		 * @return The largest possible number of decoded bytes.
+		 */
+		public int getMaxDecodedLength() {
+			if (data == null && bytes != null) {
+				return length;
+			}
+			return StreamingBase64.maxDecodedLength(data);
+		}
+
 		/**
 		 * Sets the data contained in this packet.
 		 * 
@@ -169,6 +269,7 @@ public class IBBExtensions {
 		 */
 		public void setData(final String data) {
 			this.data = data;
+			this.bytes = null;
 		}
 
 		/**
@@ -194,14 +295,66 @@ public class IBBExtensions {
 
 		public String toXML() {
 			StringBuilder buf = new StringBuilder();
+			try {
+				writeTo(buf);
+			}
+			catch (IOException ioe) {
+				// Appending to a StringBuilder never fails
+			}
+			return buf.toString();
+		}
+
+		public void writeTo(Appendable buf) throws IOException {
             buf.append("<").append(getElementName()).append(" xmlns=\"").append(getNamespace())
                     .append("\" ");
             buf.append("sid=\"").append(getSessionID()).append("\" ");
-            buf.append("seq=\"").append(getSeq()).append("\"");
+            buf.append("seq=\"").append(Long.toString(getSeq())).append("\"");
 			buf.append(">");
-			buf.append(getData());
+			if (data == null && bytes != null) {
+				StreamingBase64.encode(bytes, offset, length, buf);
+			}
+			else {
+				buf.append(data);
+			}
             buf.append("</").append(getElementName()).append(">");
-			return buf.toString();
+		}
+	}
+
+	/**
+	 * A data packet sent as an IQ set rather than a message, so that the
+	 * receiver acknowledges each block. This lets the sender keep a window of
+	 * blocks in flight without flooding the connection.
+	 */
+	public static class DataIQ extends IBB {
+
+		private final Data data;
+
+		/**
+		 * The constructor.
+		 * 
+		 * @param data
+		 *            The block of data carried by this packet.
+		 */
+		public DataIQ(final Data data) {
+			super(data.getSessionID());
+			this.data = data;
+		}
+
+		/**
+		 * Returns the block of data carried by this packet.
+		 * 
+		 * @return Returns the block of data carried by this packet.
+		 */
+		public Data getData() {
+			return data;
+		}
+
+		public String getChildElementXML() {
+			return data.toXML();
+		}
+
+		protected void writeChildElementTo(Appendable buf) throws IOException {
+			data.writeTo(buf);
 		}
 	}
 
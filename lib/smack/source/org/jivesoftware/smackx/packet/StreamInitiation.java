@@ -154,6 +154,11 @@ public class StreamInitiation extends IQ {
         }
         else if (this.getType().equals(IQ.Type.RESULT)) {
             buf.append("<si xmlns=\"http://jabber.org/protocol/si\">");
+
+            // The file section of a result only carries the range to send
+            if (file != null) {
+                buf.append(file.toXML());
+            }
         }
         else {
             throw new IllegalArgumentException("IQ Type not understood");
@@ -216,6 +221,10 @@ public class StreamInitiation extends IQ {
 
         private boolean isRanged;
 
+        private long rangeOffset;
+
+        private long rangeLength = -1;
+
         /**
          * Constructor providing the name of the file and its size.
          *
@@ -324,6 +333,39 @@ public class StreamInitiation extends IQ {
             return isRanged;
         }
 
+        /**
+         * Sets the range of the file to send, in a Stream Initiation result. This
+         * is used to resume a file transfer from where an earlier one stopped.
+         *
+         * @param offset The position, in bytes, to start sending the file from.
+         * @param length The number of bytes to send, or -1 to send the rest of the file.
+         */
+        public void setRange(final long offset, final long length) {
+            this.isRanged = true;
+            this.rangeOffset = offset;
+            this.rangeLength = length;
+        }
+
+        /**
+         * Returns the position, in bytes, to start sending the file from. This is 0
+         * unless the receiver asked for a range in the Stream Initiation result.
+         *
+         * @return Returns the position to start sending the file from.
+         */
+        public long getRangeOffset() {
+            return rangeOffset;
+        }
+
+        /**
+         * Returns the number of bytes to send from the range offset.
+         *
+         * @return Returns the number of bytes to send, or -1 to send the rest of
+         *         the file.
+         */
+        public long getRangeLength() {
+            return rangeLength;
+        }
+
         public String getElementName() {
             return "file";
         }
@@ -360,7 +402,14 @@ public class StreamInitiation extends IQ {
                     buffer.append("<desc>").append(StringUtils.escapeForXML(getDesc())).append("</desc>");
                 }
                 if (isRanged()) {
-                    buffer.append("<range/>");
+                    buffer.append("<range");
+                    if (rangeOffset > 0) {
+                        buffer.append(" offset=\"").append(rangeOffset).append("\"");
+                    }
+                    if (rangeLength >= 0) {
+                        buffer.append(" length=\"").append(rangeLength).append("\"");
+                    }
+                    buffer.append("/>");
                 }
                 buffer.append("</").append(getElementName()).append(">");
             }
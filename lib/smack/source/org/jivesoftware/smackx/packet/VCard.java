@@ -20,14 +20,10 @@
 
 package org.jivesoftware.smackx.packet;
 
-import org.jivesoftware.smack.PacketCollector;
-import org.jivesoftware.smack.SmackConfiguration;
+import org.jivesoftware.smack.IQFuture;
 import org.jivesoftware.smack.XMPPConnection;
 import org.jivesoftware.smack.XMPPException;
-import org.jivesoftware.smack.filter.PacketIDFilter;
 import org.jivesoftware.smack.packet.IQ;
-import org.jivesoftware.smack.packet.Packet;
-import org.jivesoftware.smack.packet.XMPPError;
 import org.jivesoftware.smack.util.StringUtils;
 
 import java.io.BufferedInputStream;
@@ -481,19 +477,7 @@ public class VCard extends IQ {
 
         setType(IQ.Type.SET);
         setFrom(connection.getUser());
-        PacketCollector collector = connection.createPacketCollector(new PacketIDFilter(getPacketID()));
-        connection.sendPacket(this);
-
-        Packet response = collector.nextResult(SmackConfiguration.getPacketReplyTimeout());
-
-        // Cancel the collector.
-        collector.cancel();
-        if (response == null) {
-            throw new XMPPException("No response from server on status set.");
-        }
-        if (response.getError() != null) {
-            throw new XMPPException(response.getError());
-        }
+        connection.sendIqAsync(this).getResult();
     }
 
     /**
@@ -519,36 +503,60 @@ public class VCard extends IQ {
 
     private void doLoad(XMPPConnection connection, String user) throws XMPPException {
         setType(Type.GET);
-        PacketCollector collector = connection.createPacketCollector(
-                new PacketIDFilter(getPacketID()));
-        connection.sendPacket(this);
+        copyFieldsFrom(getResult(connection.sendIqAsync(this), user));
+    }
 
-        VCard result = null;
-        try {
-            result = (VCard) collector.nextResult(SmackConfiguration.getPacketReplyTimeout());
+    /**
+     * Load VCard information for a given user without waiting for the response. Once the
+     * future has completed, {@link #getResult(IQFuture, String)} returns the VCard.
+     *
+     * @param connection the XMPPConnection to use.
+     * @param user the user to load the VCard of.
+     * @return the future for the response.
+     */
+    public static IQFuture loadAsync(XMPPConnection connection, String user) {
+        checkAuthenticated(connection, false);
 
-            if (result == null) {
-                String errorMessage = "Timeout getting VCard information";
-                throw new XMPPException(errorMessage, new XMPPError(
-                        XMPPError.Condition.request_timeout, errorMessage));
-            }
-            if (result.getError() != null) {
-                throw new XMPPException(result.getError());
-            }
+        VCard vCard = new VCard();
+        vCard.setTo(user);
+        vCard.setType(Type.GET);
+        return connection.sendIqAsync(vCard);
+    }
+
+    /**
+     * Returns the VCard a request has received, waiting for it if necessary.
+     *
+     * @param future the request.
+     * @param user the user the VCard was requested for.
+     * @return the VCard, or <tt>null</tt> if the user has no VCard.
+     * @throws XMPPException if the request failed or timed out.
+     */
+    public static VCard getResult(IQFuture future, String user) throws XMPPException {
+        try {
+            return (VCard) future.getResult();
         }
         catch (ClassCastException e) {
             System.out.println("No VCard for " + user);
+            return null;
         }
-
-        copyFieldsFrom(result);
     }
 
     public String getChildElementXML() {
         StringBuilder sb = new StringBuilder();
-        new VCardWriter(sb).write();
+        try {
+            new VCardWriter(sb).write();
+        }
+        catch (IOException ioe) {
+            // Appending to a StringBuilder never fails
+        }
         return sb.toString();
     }
 
+    protected void writeChildElementTo(Appendable buf) throws IOException {
+        // Written straight to the stream, as the photo can make the vCard very large
+        new VCardWriter(buf).write();
+    }
+
     private void copyFieldsFrom(VCard result) {
         if (result == null) result = new VCard();
 
@@ -567,7 +575,7 @@ public class VCard extends IQ {
         }
     }
 
-    private void checkAuthenticated(XMPPConnection connection, boolean checkForAnonymous) {
+    private static void checkAuthenticated(XMPPConnection connection, boolean checkForAnonymous) {
         if (connection == null) {
             throw new IllegalArgumentException("No connection was provided");
         }
@@ -674,21 +682,21 @@ public class VCard extends IQ {
 
     private class VCardWriter {
 
-        private final StringBuilder sb;
+        private final Appendable sb;
 
-        VCardWriter(StringBuilder sb) {
+        VCardWriter(Appendable sb) {
             this.sb = sb;
         }
 
-        public void write() {
+        public void write() throws IOException {
             appendTag("vCard", "xmlns", "vcard-temp", hasContent(), new ContentBuilder() {
-                public void addTagContent() {
+                public void addTagContent() throws IOException {
                     buildActualContent();
                 }
             });
         }
 
-        private void buildActualContent() {
+        private void buildActualContent() throws IOException {
             if (hasNameField()) {
                 appendN();
             }
@@ -706,10 +714,10 @@ public class VCard extends IQ {
             appendAddress(homeAddr, "HOME");
         }
 
-        private void appendEmail(final String email, final String type) {
+        private void appendEmail(final String email, final String type) throws IOException {
             if (email != null) {
                 appendTag("EMAIL", true, new ContentBuilder() {
-                    public void addTagContent() {
+                    public void addTagContent() throws IOException {
                         appendEmptyTag(type);
                         appendEmptyTag("INTERNET");
                         appendEmptyTag("PREF");
@@ -719,12 +727,12 @@ public class VCard extends IQ {
             }
         }
 
-        private void appendPhones(Map<String, String> phones, final String code) {
+        private void appendPhones(Map<String, String> phones, final String code) throws IOException {
             Iterator it = phones.entrySet().iterator();
             while (it.hasNext()) {
                 final Map.Entry entry = (Map.Entry) it.next();
                 appendTag("TEL", true, new ContentBuilder() {
-                    public void addTagContent() {
+                    public void addTagContent() throws IOException {
                         appendEmptyTag(entry.getKey());
                         appendEmptyTag(code);
                         appendTag("NUMBER", StringUtils.escapeForXML((String) entry.getValue()));
@@ -733,10 +741,10 @@ public class VCard extends IQ {
             }
         }
 
-        private void appendAddress(final Map<String, String> addr, final String code) {
+        private void appendAddress(final Map<String, String> addr, final String code) throws IOException {
             if (addr.size() > 0) {
                 appendTag("ADR", true, new ContentBuilder() {
-                    public void addTagContent() {
+                    public void addTagContent() throws IOException {
                         appendEmptyTag(code);
 
                         Iterator it = addr.entrySet().iterator();
@@ -749,11 +757,11 @@ public class VCard extends IQ {
             }
         }
 
-        private void appendEmptyTag(Object tag) {
-            sb.append('<').append(tag).append("/>");
+        private void appendEmptyTag(Object tag) throws IOException {
+            sb.append('<').append(tag.toString()).append("/>");
         }
 
-        private void appendGenericFields() {
+        private void appendGenericFields() throws IOException {
             Iterator it = otherSimpleFields.entrySet().iterator();
             while (it.hasNext()) {
                 Map.Entry entry = (Map.Entry) it.next();
@@ -768,10 +776,10 @@ public class VCard extends IQ {
             }
         }
 
-        private void appendOrganization() {
+        private void appendOrganization() throws IOException {
             if (hasOrganizationFields()) {
                 appendTag("ORG", true, new ContentBuilder() {
-                    public void addTagContent() {
+                    public void addTagContent() throws IOException {
                         appendTag("ORGNAME", StringUtils.escapeForXML(organization));
                         appendTag("ORGUNIT", StringUtils.escapeForXML(organizationUnit));
                     }
@@ -779,9 +787,9 @@ public class VCard extends IQ {
             }
         }
 
-        private void appendN() {
+        private void appendN() throws IOException {
             appendTag("N", true, new ContentBuilder() {
-                public void addTagContent() {
+                public void addTagContent() throws IOException {
                     appendTag("FAMILY", StringUtils.escapeForXML(lastName));
                     appendTag("GIVEN", StringUtils.escapeForXML(firstName));
                     appendTag("MIDDLE", StringUtils.escapeForXML(middleName));
@@ -790,7 +798,7 @@ public class VCard extends IQ {
         }
 
         private void appendTag(String tag, String attr, String attrValue, boolean hasContent,
-                ContentBuilder builder) {
+                ContentBuilder builder) throws IOException {
             sb.append('<').append(tag);
             if (attr != null) {
                 sb.append(' ').append(attr).append('=').append('\'').append(attrValue).append('\'');
@@ -806,14 +814,14 @@ public class VCard extends IQ {
             }
         }
 
-        private void appendTag(String tag, boolean hasContent, ContentBuilder builder) {
+        private void appendTag(String tag, boolean hasContent, ContentBuilder builder) throws IOException {
             appendTag(tag, null, null, hasContent, builder);
         }
 
-        private void appendTag(String tag, final String tagText) {
+        private void appendTag(String tag, final String tagText) throws IOException {
             if (tagText == null) return;
             final ContentBuilder contentBuilder = new ContentBuilder() {
-                public void addTagContent() {
+                public void addTagContent() throws IOException {
                     sb.append(tagText.trim());
                 }
             };
@@ -826,7 +834,7 @@ public class VCard extends IQ {
 
     private interface ContentBuilder {
 
-        void addTagContent();
+        void addTagContent() throws IOException;
     }
 
     //==============================================================
@@ -46,7 +46,9 @@ public class IBBProviders {
 			final int blockSize = Integer.parseInt(parser.getAttributeValue("",
 					"block-size"));
 
-			return new IBBExtensions.Open(sid, blockSize);
+			final String stanza = parser.getAttributeValue("", "stanza");
+
+			return new IBBExtensions.Open(sid, blockSize, stanza);
 		}
 	}
 
@@ -68,6 +70,18 @@ public class IBBProviders {
 		}
 	}
 
+	/**
+	 * Parses a data IBB packet sent as an IQ.
+	 */
+	public static class DataIQ implements IQProvider {
+		private final Data dataProvider = new Data();
+
+		public IQ parseIQ(XmlPullParser parser) throws Exception {
+			return new IBBExtensions.DataIQ((IBBExtensions.Data) dataProvider
+					.parseExtension(parser));
+		}
+	}
+
 	/**
 	 * Parses a close IBB packet.
 	 * 
@@ -51,6 +51,8 @@ public class StreamInitiationProvider implements IQProvider {
 		String date = null;
 		String desc = null;
 		boolean isRanged = false;
+		String offset = null;
+		String length = null;
 
 		// feature
 		DataForm form = null;
@@ -73,6 +75,8 @@ public class StreamInitiationProvider implements IQProvider {
 					desc = parser.nextText();
 				} else if (elementName.equals("range")) {
 					isRanged = true;
+					offset = parser.getAttributeValue("", "offset");
+					length = parser.getAttributeValue("", "length");
 				} else if (elementName.equals("x")
 						&& namespace.equals("jabber:x:data")) {
 					form = (DataForm) dataFormProvider.parseExtension(parser);
@@ -90,12 +94,21 @@ public class StreamInitiationProvider implements IQProvider {
                             e.printStackTrace();
                         }
                     }
-                    File file = new File(name, fileSize);
+                    // the file section of a result may only hold a range
+                    File file = new File(name != null ? name : "", fileSize);
 					file.setHash(hash);
 					if (date != null)
 						file.setDate(DelayInformation.UTC_FORMAT.parse(date));
 					file.setDesc(desc);
 					file.setRanged(isRanged);
+					if (offset != null || length != null) {
+						try {
+							file.setRange(offset != null ? Long.parseLong(offset) : 0,
+									length != null ? Long.parseLong(length) : -1);
+						} catch (NumberFormatException e) {
+							e.printStackTrace();
+						}
+					}
 					initiation.setFile(file);
 				}
 			}
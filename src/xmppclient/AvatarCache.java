@@ -0,0 +1,580 @@
+package xmppclient;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.regex.Pattern;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.swing.Icon;
+import javax.swing.ImageIcon;
+import javax.swing.JLabel;
+import javax.swing.SwingUtilities;
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smack.XMPPException;
+import org.jivesoftware.smack.filter.PacketExtensionFilter;
+import org.jivesoftware.smack.packet.DefaultPacketExtension;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.packet.PacketExtension;
+import org.jivesoftware.smack.util.StringUtils;
+import org.jivesoftware.smackx.packet.VCard;
+import xmppclient.images.Icons;
+
+/**
+ * Caches the avatars of the local user and their contacts, so that showing an
+ * avatar never waits for the server. Avatars are looked up in three places:
+ * <ul>
+ * <li>An in-memory cache of icons already scaled to the sizes they are shown at</li>
+ * <li>A directory of avatar images, named by the SHA-1 hash of the image</li>
+ * <li>The user's vCard, which is loaded from the server on a background thread</li>
+ * </ul>
+ * The hash of each user's avatar is remembered between sessions, and is
+ * updated from the photo hash contacts send in their presence, as described
+ * in XEP-0153: vCard-Based Avatars. A contact who changes their avatar is only
+ * loaded from the server again if the new image is not already on disk.
+ * <p>
+ * Changes to the remembered hashes are written to disk on a background thread
+ * a short time after the first change, so the burst of presences received
+ * when signing in is written once, and never while the cache is locked.
+ * <p>
+ * Hashes are used as file names, so a photo hash which is not a lowercase
+ * hex SHA-1 hash is ignored.
+ * @author Lee Boynton (323326)
+ */
+public class AvatarCache
+{
+    /**
+     * The number of scaled icons kept in memory
+     */
+    public static final int MAX_ICONS = 200;
+    /**
+     * The time in milliseconds the index of avatar hashes is written after it
+     * is changed
+     */
+    public static final long INDEX_WRITE_DELAY = 500;
+    private static final String INDEX_FILE = "avatars.properties";
+    private static final String NO_AVATAR = "";
+    private static final Pattern HASH_PATTERN = Pattern.compile("[0-9a-f]{40}");
+    private static final ExecutorService loader = Executors.newFixedThreadPool(2, new ThreadFactory()
+    {
+        @Override
+        public Thread newThread(Runnable r)
+        {
+            Thread thread = new Thread(r, "Avatar loader");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private static final ScheduledExecutorService indexWriter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+    {
+        @Override
+        public Thread newThread(Runnable r)
+        {
+            Thread thread = new Thread(r, "Avatar index writer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private final XMPPConnection connection;
+    private final Object writeLock = new Object();
+    private boolean writeScheduled = false;
+    private final File directory;
+    private final Properties hashes = new Properties();
+    private final Map<String, Icon> icons = new LinkedHashMap<String, Icon>(16, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Icon> eldest)
+        {
+            return size() > MAX_ICONS;
+        }
+    };
+    private final Map<Integer, Icon> placeholders = new HashMap<Integer, Icon>();
+    private final Map<String, List<Request>> loading = new HashMap<String, List<Request>>();
+
+    /**
+     * Creates a new avatar cache, and starts listening for the photo hashes in
+     * contacts' presences
+     * @param connection The XMPP connection to load vCards with
+     * @param directory The directory to store avatar images in
+     */
+    public AvatarCache(XMPPConnection connection, File directory)
+    {
+        this.connection = connection;
+        this.directory = directory;
+        loadIndex();
+        connection.addPacketListener(new PhotoHashListener(), new PacketExtensionFilter("x", "vcard-temp:x:update"));
+    }
+
+    /**
+     * Gets the avatar of the given user without waiting for it to load. If the
+     * avatar is not already in memory it is loaded on a background thread, and
+     * a placeholder is returned in the meantime.
+     * @param JID The user
+     * @param size The max size
+     * @return The resized avatar icon, the placeholder icon, or null if the
+     * user has no avatar
+     */
+    public Icon getAvatar(String JID, int size)
+    {
+        return getAvatar(JID, size, null);
+    }
+
+    /**
+     * Shows the avatar of the given user on a label. If the avatar is not
+     * already in memory the label shows a placeholder, and is updated once
+     * the avatar has loaded. The label is not updated if another avatar has
+     * been shown on it since.
+     * @param label The label to show the avatar on
+     * @param JID The user
+     * @param size The max size
+     */
+    public void setAvatar(JLabel label, String JID, int size)
+    {
+        label.putClientProperty(AvatarCache.class, getKey(JID, size));
+        label.setIcon(getAvatar(JID, size, label));
+    }
+
+    /**
+     * Forgets the avatar of the given user, so it is loaded from their vCard
+     * the next time it is shown. This is used when the local user changes
+     * their own avatar.
+     * @param JID The user
+     */
+    public synchronized void invalidate(String JID)
+    {
+        hashes.remove(StringUtils.parseBareAddress(JID));
+        removeIcons(StringUtils.parseBareAddress(JID));
+        saveIndexLater();
+    }
+
+    private synchronized Icon getAvatar(String JID, int size, JLabel label)
+    {
+        JID = StringUtils.parseBareAddress(JID);
+        String hash = hashes.getProperty(JID);
+
+        if (NO_AVATAR.equals(hash))
+        {
+            return null;
+        }
+        Icon icon = icons.get(getKey(JID, size));
+        if (icon != null)
+        {
+            return icon;
+        }
+
+        List<Request> requests = loading.get(JID);
+        if (requests == null)
+        {
+            requests = new ArrayList<Request>();
+            loading.put(JID, requests);
+            final String user = JID;
+            final String knownHash = hash;
+            loader.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    load(user, knownHash);
+                }
+            });
+        }
+        requests.add(new Request(size, label));
+
+        Icon placeholder = placeholders.get(size);
+        if (placeholder == null)
+        {
+            placeholder = Utils.resizeImage(Icons.user, size);
+            placeholders.put(size, placeholder);
+        }
+        return placeholder;
+    }
+
+    /**
+     * Loads an avatar from disk if the hash is known and the image has been
+     * stored, or otherwise from the user's vCard. The labels waiting for the
+     * avatar are then updated on the event dispatch thread. If a presence has
+     * changed the user's hash while loading, the avatar is loaded again for
+     * the new hash rather than storing the old one.
+     */
+    private void load(String JID, final String knownHash)
+    {
+        String hash = knownHash;
+        byte[] image = hash == null ? null : readImage(hash);
+
+        if (image == null)
+        {
+            try
+            {
+                image = loadVCardAvatar(JID);
+                hash = image == null ? NO_AVATAR : hash(image);
+                if (image != null)
+                {
+                    writeImage(hash, image);
+                }
+            }
+            catch (XMPPException ex)
+            {
+                // the avatar is loaded again the next time it is shown
+                System.err.printf("Error loading avatar for user %s: %s\n", JID, ex.getMessage());
+                hash = null;
+            }
+        }
+
+        final List<Request> requests;
+        final Map<Request, Icon> loaded = new HashMap<Request, Icon>();
+        synchronized (this)
+        {
+            final String currentHash = hashes.getProperty(JID);
+            if (!equals(currentHash, knownHash) && !equals(currentHash, hash))
+            {
+                final String user = JID;
+                loader.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        load(user, currentHash);
+                    }
+                });
+                return;
+            }
+
+            requests = loading.remove(JID);
+            if (hash != null)
+            {
+                hashes.setProperty(JID, hash);
+                saveIndexLater();
+            }
+
+            for (Request request : requests)
+            {
+                Icon icon = null;
+                if (image != null)
+                {
+                    String key = getKey(JID, request.size);
+                    icon = icons.get(key);
+                    if (icon == null)
+                    {
+                        icon = scale(new ImageIcon(image), request.size);
+                        icons.put(key, icon);
+                    }
+                }
+                loaded.put(request, icon);
+            }
+        }
+
+        final String user = JID;
+        SwingUtilities.invokeLater(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                for (Request request : requests)
+                {
+                    JLabel label = request.label;
+                    if (label != null && getKey(user, request.size).equals(label.getClientProperty(AvatarCache.class)))
+                    {
+                        label.setIcon(loaded.get(request));
+                    }
+                }
+            }
+        });
+    }
+
+    private byte[] loadVCardAvatar(String JID) throws XMPPException
+    {
+        VCard vCard = new VCard();
+
+        if (JID.equals(StringUtils.parseBareAddress(connection.getUser())))
+        {
+            vCard.load(connection);
+        }
+        else
+        {
+            vCard.load(connection, JID);
+        }
+
+        return vCard.getAvatar();
+    }
+
+    /**
+     * Scales an image so that it is no higher and no wider than the given size,
+     * drawing it once into a new image rather than scaling it each time it is
+     * painted
+     */
+    private static Icon scale(ImageIcon image, int size)
+    {
+        if (image.getIconWidth() <= size && image.getIconHeight() <= size)
+        {
+            return image;
+        }
+
+        BufferedImage scaled = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = scaled.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(image.getImage(), 0, 0, size, size, null);
+        g.dispose();
+
+        return new ImageIcon(scaled);
+    }
+
+    private void updateHash(String JID, String hash)
+    {
+        synchronized (this)
+        {
+            if (hash.equals(hashes.getProperty(JID)))
+            {
+                return;
+            }
+            hashes.setProperty(JID, hash);
+            removeIcons(JID);
+            saveIndexLater();
+        }
+
+        System.out.printf("Avatar changed for user %s\n", JID);
+    }
+
+    private static boolean equals(String a, String b)
+    {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private void removeIcons(String JID)
+    {
+        String prefix = JID + "/";
+        for (String key : new ArrayList<String>(icons.keySet()))
+        {
+            if (key.startsWith(prefix))
+            {
+                icons.remove(key);
+            }
+        }
+    }
+
+    private static String getKey(String JID, int size)
+    {
+        return StringUtils.parseBareAddress(JID) + "/" + size;
+    }
+
+    private static String hash(byte[] image)
+    {
+        try
+        {
+            return StringUtils.encodeHex(MessageDigest.getInstance("SHA-1").digest(image));
+        }
+        catch (NoSuchAlgorithmException ex)
+        {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private byte[] readImage(String hash)
+    {
+        if (!HASH_PATTERN.matcher(hash).matches())
+        {
+            return null;
+        }
+        File file = new File(directory, hash);
+
+        if (!file.exists())
+        {
+            return null;
+        }
+
+        try
+        {
+            InputStream in = new FileInputStream(file);
+            try
+            {
+                byte[] image = new byte[(int) file.length()];
+                int read = 0;
+                while (read < image.length)
+                {
+                    int count = in.read(image, read, image.length - read);
+                    if (count < 0)
+                    {
+                        return null;
+                    }
+                    read += count;
+                }
+                return image;
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (IOException ex)
+        {
+            Logger.getLogger(AvatarCache.class.getName()).log(Level.SEVERE, null, ex);
+            return null;
+        }
+    }
+
+    private void writeImage(String hash, byte[] image)
+    {
+        if (!HASH_PATTERN.matcher(hash).matches())
+        {
+            return;
+        }
+        try
+        {
+            OutputStream out = new FileOutputStream(new File(directory, hash));
+            try
+            {
+                out.write(image);
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        catch (IOException ex)
+        {
+            Logger.getLogger(AvatarCache.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    private void loadIndex()
+    {
+        try
+        {
+            InputStream in = new FileInputStream(new File(directory, INDEX_FILE));
+            try
+            {
+                hashes.load(in);
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (IOException ex)
+        {
+            // no avatars have been cached yet
+        }
+    }
+
+    /**
+     * Schedules the index to be written, unless a write is already scheduled.
+     * Must be called while holding the lock.
+     */
+    private void saveIndexLater()
+    {
+        if (!writeScheduled)
+        {
+            writeScheduled = true;
+            indexWriter.schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    saveIndex();
+                }
+            }, INDEX_WRITE_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void saveIndex()
+    {
+        Properties snapshot;
+
+        // writes are made one at a time, so an older index never replaces a newer one
+        synchronized (writeLock)
+        {
+            synchronized (this)
+            {
+                writeScheduled = false;
+                snapshot = (Properties) hashes.clone();
+            }
+            writeIndex(snapshot);
+        }
+    }
+
+    private void writeIndex(Properties snapshot)
+    {
+        try
+        {
+            OutputStream out = new FileOutputStream(new File(directory, INDEX_FILE));
+            try
+            {
+                snapshot.store(out, "The SHA-1 hash of each user's avatar");
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        catch (IOException ex)
+        {
+            Logger.getLogger(AvatarCache.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * A label waiting for an avatar to load, and the size it is shown at
+     */
+    private static class Request
+    {
+        private final int size;
+        private final JLabel label;
+
+        private Request(int size, JLabel label)
+        {
+            this.size = size;
+            this.label = label;
+        }
+    }
+
+    /**
+     * Listens for the photo hash contacts send in their presence. An empty
+     * photo element means the contact has no avatar, and a presence without
+     * a photo element means the contact is not ready to advertise one.
+     */
+    private class PhotoHashListener implements PacketListener
+    {
+        @Override
+        public void processPacket(Packet packet)
+        {
+            PacketExtension extension = packet.getExtension("x", "vcard-temp:x:update");
+
+            if (packet.getFrom() == null || !(extension instanceof DefaultPacketExtension))
+            {
+                return;
+            }
+            String hash = ((DefaultPacketExtension) extension).getValue("photo");
+            if (hash == null)
+            {
+                return;
+            }
+            hash = hash.trim().toLowerCase();
+            if (!hash.equals(NO_AVATAR) && !HASH_PATTERN.matcher(hash).matches())
+            {
+                System.err.printf("Ignoring invalid photo hash from %s\n", packet.getFrom());
+                return;
+            }
+
+            updateHash(StringUtils.parseBareAddress(packet.getFrom()), hash);
+        }
+    }
+}
@@ -287,6 +287,7 @@ private void avatarFileChooserActionPerformed(java.awt.event.ActionEvent evt) {/
 
                 // save vcard
                 vCard.save(MainUI.connection);
+                MainUI.avatarCache.invalidate(MainUI.connection.getUser());
 
                 // reset packet reply timeout
                 SmackConfiguration.setPacketReplyTimeout(oldTimeout);
@@ -0,0 +1,1125 @@
+package xmppclient;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The message history of a conversation with one contact or room. Each
+ * message is appended to the log as it is sent or received, so nothing is
+ * lost if the application does not close cleanly.
+ * <p>
+ * The history is kept in up to three files:
+ * <ul>
+ * <li>The log, holding one record per message. Each record starts and ends
+ * with its length, so the log can be read backwards from any record.</li>
+ * <li>A sparse time index, holding the position of every
+ * {@link #INDEX_INTERVAL}th record and the latest time of the records before
+ * it, which is searched to find the messages from a given time. Messages
+ * delivered late keep the time they were sent, so the log is not always in
+ * time order.</li>
+ * <li>An optional inverted word index, listing for the hash of each word the
+ * positions of the records which contain it. Searching reads only the lists
+ * of the words searched for.</li>
+ * </ul>
+ * The word index is made of segments, each listing the word hashes of a run
+ * of messages in order, so the list for a word is found with a binary search.
+ * The words of the latest messages are kept in memory, and written as a new
+ * segment every {@link #SEGMENT_INTERVAL} messages and when the history is
+ * closed. A segment is merged with the one before it once it covers as many
+ * messages, so there are only a few segments however long the history is.
+ * <p>
+ * Only the records asked for are read, so the history can be paged through
+ * without loading the whole log into memory. A record left half written is
+ * removed when the log is next opened, and the words of any messages not in
+ * a complete segment are indexed again from the log.
+ * @author Lee Boynton (323326)
+ */
+public class ChatLog
+{
+    /**
+     * The number of records between entries in the time index
+     */
+    public static final int INDEX_INTERVAL = 32;
+    /**
+     * The number of messages whose words are kept in memory before they are
+     * written to the word index
+     */
+    public static final int SEGMENT_INTERVAL = 256;
+    /**
+     * The most words a search can have
+     */
+    public static final int MAX_QUERY_WORDS = 31;
+    private static final int INDEX_ENTRY_SIZE = 16;
+    // the length, the positions of the first record and the end, and the number of records
+    private static final int SEGMENT_HEADER_SIZE = 24;
+    // the number of words and the length
+    private static final int SEGMENT_TRAILER_SIZE = 8;
+    // the hash, and the offset and number of the positions
+    private static final int WORD_ENTRY_SIZE = 12;
+    private static final int COPY_BUFFER_SIZE = 65536;
+    private static final String CHARSET = "UTF-8";
+    private final RandomAccessFile log;
+    private final RandomAccessFile index;
+    private final RandomAccessFile words;
+    private final File wordsFile;
+    private final List<Segment> segments = new ArrayList<Segment>();
+    private final Map<Integer, List<Long>> postings = new HashMap<Integer, List<Long>>();
+    private long postingsStart;
+    private long postingsEnd;
+    private int postingsRecords;
+    private long end;
+    private long latest;
+    private int sinceIndex;
+
+    /**
+     * Opens the history in the given directory, creating its files if they do
+     * not exist
+     * @param directory The directory to store the history in
+     * @param name The name of the history files, without an extension
+     * @param indexWords Whether to keep a word index for searching
+     * @throws java.io.IOException If the files can not be opened
+     */
+    public ChatLog(File directory, String name, boolean indexWords) throws IOException
+    {
+        log = new RandomAccessFile(new File(directory, name + ".log"), "rw");
+        index = new RandomAccessFile(new File(directory, name + ".idx"), "rw");
+        wordsFile = new File(directory, name + ".words");
+        words = indexWords ? new RandomAccessFile(wordsFile, "rw") : null;
+        recover();
+    }
+
+    /**
+     * Appends a message to the history
+     * @param time The time the message was sent, in milliseconds
+     * @param from The address of the sender
+     * @param body The message text
+     * @throws java.io.IOException If the message can not be written
+     */
+    public synchronized void append(long time, String from, String body) throws IOException
+    {
+        byte[] fromBytes = from.getBytes(CHARSET);
+        byte[] bodyBytes = body.getBytes(CHARSET);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(24 + fromBytes.length + bodyBytes.length);
+        DataOutputStream out = new DataOutputStream(bytes);
+        int length = 10 + fromBytes.length + bodyBytes.length;
+
+        out.writeInt(length);
+        out.writeLong(time);
+        out.writeShort(fromBytes.length);
+        out.write(fromBytes);
+        out.write(bodyBytes);
+        out.writeInt(length);
+
+        long position = end;
+        log.seek(position);
+        log.write(bytes.toByteArray());
+        end += bytes.size();
+
+        // the log is written first, so the indexes never point past its end
+        if (index.length() == 0 || sinceIndex >= INDEX_INTERVAL)
+        {
+            index.seek(index.length());
+            index.writeLong(latest);
+            index.writeLong(position);
+            sinceIndex = 0;
+        }
+        sinceIndex++;
+        latest = Math.max(latest, time);
+
+        if (words != null)
+        {
+            indexWords(position, end, body);
+        }
+    }
+
+    /**
+     * Gets the most recent messages
+     * @param count The maximum number of messages to get
+     * @return The messages, oldest first
+     * @throws java.io.IOException If the log can not be read
+     */
+    public synchronized List<Entry> getLast(int count) throws IOException
+    {
+        return getBefore(end, count);
+    }
+
+    /**
+     * Gets the messages before the given message, for paging back through
+     * the history
+     * @param position The position of the message, as given by
+     * {@link Entry#getPosition()}
+     * @param count The maximum number of messages to get
+     * @return The messages, oldest first
+     * @throws java.io.IOException If the log can not be read
+     */
+    public synchronized List<Entry> getBefore(long position, int count) throws IOException
+    {
+        List<Entry> entries = new ArrayList<Entry>();
+
+        while (position > 0 && entries.size() < count)
+        {
+            log.seek(position - 4);
+            position -= log.readInt() + 8;
+            entries.add(read(position));
+        }
+        Collections.reverse(entries);
+
+        return entries;
+    }
+
+    /**
+     * Gets the messages sent at or after the given time
+     * @param time The time, in milliseconds
+     * @param count The maximum number of messages to get
+     * @return The messages, in the order they were logged
+     * @throws java.io.IOException If the log can not be read
+     */
+    public synchronized List<Entry> getAfter(long time, int count) throws IOException
+    {
+        List<Entry> entries = new ArrayList<Entry>();
+        long position = findIndexEntry(time);
+
+        while (position < end && entries.size() < count)
+        {
+            Entry entry = read(position);
+            if (entry.getTime() >= time)
+            {
+                entries.add(entry);
+            }
+            position = entry.getNextPosition();
+        }
+
+        return entries;
+    }
+
+    /**
+     * Checks whether a message from the given sender with the given text was
+     * logged with a time in the given range. This is used to leave out
+     * messages which are sent again, such as the recent history of a room.
+     * @param from The address of the sender
+     * @param body The message text
+     * @param start The earliest time, in milliseconds
+     * @param finish The latest time, in milliseconds
+     * @return True if the message has been logged
+     * @throws java.io.IOException If the log can not be read
+     */
+    public synchronized boolean contains(String from, String body, long start, long finish) throws IOException
+    {
+        long position = findIndexEntry(start);
+
+        while (position < end)
+        {
+            Entry entry = read(position);
+            if (entry.getTime() >= start && entry.getTime() <= finish &&
+                    entry.getFrom().equals(from) && entry.getBody().equals(body))
+            {
+                return true;
+            }
+            position = entry.getNextPosition();
+        }
+
+        return false;
+    }
+
+    /**
+     * Finds the messages which contain every word of the given text, ignoring
+     * case
+     * @param text The words to search for, at most {@link #MAX_QUERY_WORDS}
+     * @param count The maximum number of messages to get
+     * @return The messages, most recent first
+     * @throws java.io.IOException If the history can not be read
+     * @throws IllegalArgumentException If the text has too many words
+     */
+    public synchronized List<Entry> search(String text, int count) throws IOException
+    {
+        Set<String> query = getWords(text);
+        List<Entry> entries = new ArrayList<Entry>();
+
+        if (query.size() > MAX_QUERY_WORDS)
+        {
+            throw new IllegalArgumentException("A search can have at most " + MAX_QUERY_WORDS + " words");
+        }
+        if (query.isEmpty())
+        {
+            return entries;
+        }
+
+        if (words == null)
+        {
+            long position = end;
+            while (position > 0 && entries.size() < count)
+            {
+                log.seek(position - 4);
+                position -= log.readInt() + 8;
+                Entry entry = read(position);
+                if (getWords(entry.getBody()).containsAll(query))
+                {
+                    entries.add(entry);
+                }
+            }
+            return entries;
+        }
+
+        Set<Integer> hashes = new HashSet<Integer>();
+        for (String word : query)
+        {
+            hashes.add(word.hashCode());
+        }
+
+        // the latest messages are only in memory, and each segment is older
+        // than the one after it
+        addMatches(entries, query, findPostings(hashes), count);
+        for (int i = segments.size() - 1; i >= 0 && entries.size() < count; i--)
+        {
+            addMatches(entries, query, segments.get(i).findPostings(hashes), count);
+        }
+
+        return entries;
+    }
+
+    /**
+     * Closes the history files. The words of the messages still in memory
+     * are written to the word index first.
+     */
+    public synchronized void close()
+    {
+        if (words != null)
+        {
+            try
+            {
+                writePostings();
+            }
+            catch (IOException ex)
+            {
+                // the words are indexed again when the history is next opened
+            }
+            closeQuietly(words);
+        }
+        closeQuietly(log);
+        closeQuietly(index);
+    }
+
+    /**
+     * Adds the records at the given positions which contain every word
+     * searched for, most recent first. A hash may belong to other words, so
+     * each record is checked.
+     */
+    private void addMatches(List<Entry> entries, Set<String> query, long[] positions, int count) throws IOException
+    {
+        for (int i = positions.length - 1; i >= 0 && entries.size() < count; i--)
+        {
+            Entry entry = read(positions[i]);
+            if (getWords(entry.getBody()).containsAll(query))
+            {
+                entries.add(entry);
+            }
+        }
+    }
+
+    /**
+     * Finds the positions of the records in memory which have the hash of
+     * every word searched for
+     */
+    private long[] findPostings(Set<Integer> hashes)
+    {
+        long[] positions = null;
+
+        for (int hash : hashes)
+        {
+            List<Long> list = postings.get(hash);
+            if (list == null)
+            {
+                return new long[0];
+            }
+            long[] next = new long[list.size()];
+            for (int i = 0; i < next.length; i++)
+            {
+                next[i] = list.get(i);
+            }
+            positions = positions == null ? next : intersect(positions, next);
+        }
+
+        return positions;
+    }
+
+    /**
+     * Adds the words of a record to those kept in memory, and writes them to
+     * the word index as a new segment once there are enough records
+     */
+    private void indexWords(long position, long next, String body) throws IOException
+    {
+        Set<Integer> hashes = new HashSet<Integer>();
+        for (String word : getWords(body))
+        {
+            hashes.add(word.hashCode());
+        }
+
+        for (int hash : hashes)
+        {
+            List<Long> positions = postings.get(hash);
+            if (positions == null)
+            {
+                positions = new ArrayList<Long>();
+                postings.put(hash, positions);
+            }
+            positions.add(position);
+        }
+        postingsEnd = next;
+        postingsRecords++;
+
+        if (postingsRecords >= SEGMENT_INTERVAL)
+        {
+            writePostings();
+        }
+    }
+
+    /**
+     * Writes the words kept in memory to the word index as a new segment, and
+     * merges the segments which cover as many messages as the one before them
+     */
+    private void writePostings() throws IOException
+    {
+        if (postingsRecords == 0)
+        {
+            return;
+        }
+
+        List<Integer> hashes = new ArrayList<Integer>(postings.keySet());
+        Collections.sort(hashes);
+        SegmentWriter writer = new SegmentWriter(postingsStart, postingsEnd, postingsRecords);
+        Segment segment;
+        try
+        {
+            for (int hash : hashes)
+            {
+                List<Long> positions = postings.get(hash);
+                writer.startWord(hash, positions.size());
+                for (long position : positions)
+                {
+                    writer.write(position);
+                }
+            }
+            segment = writer.finish();
+        }
+        catch (IOException ex)
+        {
+            writer.abort();
+            throw ex;
+        }
+        segments.add(segment);
+        postings.clear();
+        postingsStart = postingsEnd;
+        postingsRecords = 0;
+
+        while (segments.size() >= 2)
+        {
+            Segment newer = segments.get(segments.size() - 1);
+            Segment older = segments.get(segments.size() - 2);
+            if (newer.records < older.records || (long) older.length + newer.length > Integer.MAX_VALUE / 2)
+            {
+                break;
+            }
+            segments.remove(segments.size() - 1);
+            segments.set(segments.size() - 1, merge(older, newer));
+        }
+    }
+
+    /**
+     * Merges two segments next to each other, writing the merged segment to
+     * the end of the word index and then copying it over the two
+     */
+    private Segment merge(Segment older, Segment newer) throws IOException
+    {
+        SegmentWriter writer = new SegmentWriter(older.logStart, newer.logEnd, older.records + newer.records);
+        SegmentReader first = new SegmentReader(older);
+        SegmentReader second = new SegmentReader(newer);
+        Segment merged;
+        try
+        {
+            while (first.hasNext() || second.hasNext())
+            {
+                int compare = !first.hasNext() ? 1 : !second.hasNext() ? -1 : compare(first.getHash(), second.getHash());
+                int hash = compare <= 0 ? first.getHash() : second.getHash();
+                PostingReader olderPostings = compare <= 0 ? first.next() : null;
+                PostingReader newerPostings = compare >= 0 ? second.next() : null;
+                writer.startWord(hash, (olderPostings == null ? 0 : olderPostings.remaining) +
+                        (newerPostings == null ? 0 : newerPostings.remaining));
+                // every record in the older segment comes before those in the newer one
+                while (olderPostings != null && olderPostings.hasNext())
+                {
+                    writer.write(olderPostings.next());
+                }
+                while (newerPostings != null && newerPostings.hasNext())
+                {
+                    writer.write(newerPostings.next());
+                }
+            }
+            merged = writer.finish();
+        }
+        catch (IOException ex)
+        {
+            writer.abort();
+            throw ex;
+        }
+        finally
+        {
+            first.close();
+            second.close();
+        }
+
+        // the older segment is marked incomplete until the merged segment has
+        // been copied over it, so the words are indexed again from the log if
+        // the copy does not finish
+        words.seek(older.start);
+        words.writeInt(0);
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        for (long copied = 4; copied < merged.length;)
+        {
+            int size = (int) Math.min(buffer.length, merged.length - copied);
+            words.seek(merged.start + copied);
+            words.readFully(buffer, 0, size);
+            words.seek(older.start + copied);
+            words.write(buffer, 0, size);
+            copied += size;
+        }
+        words.setLength(older.start + merged.length);
+        words.seek(older.start);
+        words.writeInt(merged.length);
+
+        return new Segment(older.start, merged.length, merged.logStart, merged.logEnd, merged.records, merged.count);
+    }
+
+    /**
+     * Finds the position of the last record in the time index with no
+     * records before it sent at or after the given time, or the start of the
+     * log if there is none
+     */
+    private long findIndexEntry(long time) throws IOException
+    {
+        long low = 0;
+        long high = index.length() / INDEX_ENTRY_SIZE - 1;
+        long position = 0;
+
+        while (low <= high)
+        {
+            long middle = (low + high) >>> 1;
+            index.seek(middle * INDEX_ENTRY_SIZE);
+            if (index.readLong() < time)
+            {
+                position = index.readLong();
+                low = middle + 1;
+            }
+            else
+            {
+                high = middle - 1;
+            }
+        }
+
+        return position;
+    }
+
+    private Entry read(long position) throws IOException
+    {
+        log.seek(position);
+        int length = log.readInt();
+        long time = log.readLong();
+        byte[] from = new byte[log.readUnsignedShort()];
+        log.readFully(from);
+        byte[] body = new byte[length - 10 - from.length];
+        log.readFully(body);
+
+        return new Entry(position, position + length + 8, time,
+                new String(from, CHARSET), new String(body, CHARSET));
+    }
+
+    /**
+     * Removes any record left half written, and any index entries for records
+     * which are no longer in the log. Only the records after the last time
+     * index entry are read.
+     */
+    private void recover() throws IOException
+    {
+        long length = log.length();
+        long indexLength = index.length() - index.length() % INDEX_ENTRY_SIZE;
+
+        while (indexLength > 0)
+        {
+            index.seek(indexLength - INDEX_ENTRY_SIZE + 8);
+            if (index.readLong() < length)
+            {
+                break;
+            }
+            indexLength -= INDEX_ENTRY_SIZE;
+        }
+        index.setLength(indexLength);
+
+        long position = 0;
+        latest = 0;
+        if (indexLength > 0)
+        {
+            index.seek(indexLength - INDEX_ENTRY_SIZE);
+            latest = index.readLong();
+            position = index.readLong();
+        }
+        sinceIndex = 0;
+        while (position < length)
+        {
+            long next = validate(position, length);
+            if (next < 0)
+            {
+                break;
+            }
+            log.seek(position + 4);
+            latest = Math.max(latest, log.readLong());
+            position = next;
+            sinceIndex++;
+        }
+        end = position;
+        log.setLength(end);
+
+        if (words != null)
+        {
+            recoverWords();
+        }
+    }
+
+    /**
+     * Finds the complete segments of the word index, removing the rest, and
+     * indexes the words of the messages after the last segment again
+     */
+    private void recoverWords() throws IOException
+    {
+        long length = words.length();
+        long position = 0;
+        long logPosition = 0;
+
+        while (position + SEGMENT_HEADER_SIZE + SEGMENT_TRAILER_SIZE <= length)
+        {
+            words.seek(position);
+            int segmentLength = words.readInt();
+            long logStart = words.readLong();
+            long logEnd = words.readLong();
+            int records = words.readInt();
+            if (segmentLength < SEGMENT_HEADER_SIZE + SEGMENT_TRAILER_SIZE || position + segmentLength > length ||
+                    logStart != logPosition || logEnd < logStart || logEnd > end)
+            {
+                break;
+            }
+            words.seek(position + segmentLength - SEGMENT_TRAILER_SIZE);
+            int count = words.readInt();
+            if (words.readInt() != segmentLength || count < 0 ||
+                    (long) count * WORD_ENTRY_SIZE > segmentLength - SEGMENT_HEADER_SIZE - SEGMENT_TRAILER_SIZE)
+            {
+                break;
+            }
+            segments.add(new Segment(position, segmentLength, logStart, logEnd, records, count));
+            position += segmentLength;
+            logPosition = logEnd;
+        }
+        words.setLength(position);
+
+        postingsStart = logPosition;
+        postingsEnd = logPosition;
+        while (logPosition < end)
+        {
+            Entry entry = read(logPosition);
+            indexWords(entry.getPosition(), entry.getNextPosition(), entry.getBody());
+            logPosition = entry.getNextPosition();
+        }
+    }
+
+    /**
+     * Checks the record at the given position was completely written
+     * @return The position of the next record, or -1 if the record is not
+     * complete
+     */
+    private long validate(long position, long length) throws IOException
+    {
+        try
+        {
+            log.seek(position);
+            int recordLength = log.readInt();
+            long next = position + recordLength + 8;
+            if (recordLength < 10 || next > length)
+            {
+                return -1;
+            }
+            log.seek(next - 4);
+            return log.readInt() == recordLength ? next : -1;
+        }
+        catch (EOFException ex)
+        {
+            return -1;
+        }
+    }
+
+    private static Set<String> getWords(String text)
+    {
+        Set<String> words = new HashSet<String>();
+        int start = -1;
+
+        for (int i = 0; i <= text.length(); i++)
+        {
+            boolean letter = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (letter && start < 0)
+            {
+                start = i;
+            }
+            else if (!letter && start >= 0)
+            {
+                words.add(text.substring(start, i).toLowerCase());
+                start = -1;
+            }
+        }
+
+        return words;
+    }
+
+    /**
+     * Gets the positions in both of the given sorted arrays
+     */
+    private static long[] intersect(long[] a, long[] b)
+    {
+        long[] both = new long[Math.min(a.length, b.length)];
+        int count = 0;
+
+        for (int i = 0, j = 0; i < a.length && j < b.length;)
+        {
+            if (a[i] < b[j])
+            {
+                i++;
+            }
+            else if (a[i] > b[j])
+            {
+                j++;
+            }
+            else
+            {
+                both[count++] = a[i];
+                i++;
+                j++;
+            }
+        }
+
+        return Arrays.copyOf(both, count);
+    }
+
+    private static int compare(int a, int b)
+    {
+        return a < b ? -1 : a == b ? 0 : 1;
+    }
+
+    private static void writeVarLong(OutputStream out, long value) throws IOException
+    {
+        while ((value & ~0x7fL) != 0)
+        {
+            out.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static void closeQuietly(RandomAccessFile file)
+    {
+        try
+        {
+            file.close();
+        }
+        catch (IOException ex)
+        {
+            // nothing more can be done with the file
+        }
+    }
+
+    /**
+     * A segment of the word index, covering the records between two positions
+     * in the log. A segment holds the positions of the records containing
+     * each word, stored as the differences between them, followed by a list
+     * of the word hashes in order with the offset and number of their
+     * positions. Its length is written at both ends, and the length at the
+     * start is written last, so a segment left half written is never read.
+     */
+    private class Segment
+    {
+        private final long start;
+        private final int length;
+        private final long logStart;
+        private final long logEnd;
+        private final int records;
+        private final int count;
+
+        private Segment(long start, int length, long logStart, long logEnd, int records, int count)
+        {
+            this.start = start;
+            this.length = length;
+            this.logStart = logStart;
+            this.logEnd = logEnd;
+            this.records = records;
+            this.count = count;
+        }
+
+        /**
+         * Finds the positions of the records which have the hash of every
+         * word searched for. The shortest list is read first, so the others
+         * are only checked against the positions already found.
+         */
+        private long[] findPostings(Set<Integer> hashes) throws IOException
+        {
+            // each word is sorted by its number of positions, then its number
+            long[] found = new long[hashes.size()];
+            int i = 0;
+            for (int hash : hashes)
+            {
+                int word = find(hash);
+                if (word < 0)
+                {
+                    return new long[0];
+                }
+                found[i++] = (long) getCount(word) << 32 | word;
+            }
+            Arrays.sort(found);
+
+            long[] positions = null;
+            for (long word : found)
+            {
+                PostingReader reader = readPostings((int) word);
+                long[] next = new long[reader.remaining];
+                for (int j = 0; reader.hasNext(); j++)
+                {
+                    next[j] = reader.next();
+                }
+                positions = positions == null ? next : intersect(positions, next);
+                if (positions.length == 0)
+                {
+                    break;
+                }
+            }
+
+            return positions;
+        }
+
+        /**
+         * Finds the word with the given hash with a binary search
+         * @return The number of the word, or -1 if no word has the hash
+         */
+        private int find(int hash) throws IOException
+        {
+            int low = 0;
+            int high = count - 1;
+
+            while (low <= high)
+            {
+                int middle = (low + high) >>> 1;
+                int compare = compare(getHash(middle), hash);
+                if (compare < 0)
+                {
+                    low = middle + 1;
+                }
+                else if (compare > 0)
+                {
+                    high = middle - 1;
+                }
+                else
+                {
+                    return middle;
+                }
+            }
+
+            return -1;
+        }
+
+        private int getHash(int word) throws IOException
+        {
+            words.seek(getWordsStart() + (long) word * WORD_ENTRY_SIZE);
+            return words.readInt();
+        }
+
+        private int getCount(int word) throws IOException
+        {
+            words.seek(getWordsStart() + (long) word * WORD_ENTRY_SIZE + 8);
+            return words.readInt();
+        }
+
+        private PostingReader readPostings(int word) throws IOException
+        {
+            words.seek(getWordsStart() + (long) word * WORD_ENTRY_SIZE + 4);
+            int offset = words.readInt();
+            int postings = words.readInt();
+            int next = (int) (getWordsStart() - start);
+            if (word + 1 < count)
+            {
+                words.skipBytes(4);
+                next = words.readInt();
+            }
+
+            byte[] bytes = new byte[next - offset];
+            words.seek(start + offset);
+            words.readFully(bytes);
+
+            return new PostingReader(bytes, postings, logStart);
+        }
+
+        private long getWordsStart()
+        {
+            return start + length - SEGMENT_TRAILER_SIZE - (long) count * WORD_ENTRY_SIZE;
+        }
+    }
+
+    /**
+     * Reads the words of a segment in order, for merging it with another
+     */
+    private class SegmentReader
+    {
+        private final Segment segment;
+        private final int[] entries;
+        private final DataInputStream in;
+        private int word;
+
+        private SegmentReader(Segment segment) throws IOException
+        {
+            this.segment = segment;
+            byte[] bytes = new byte[segment.count * WORD_ENTRY_SIZE];
+            words.seek(segment.getWordsStart());
+            words.readFully(bytes);
+            entries = new int[segment.count * 3];
+            ByteBuffer.wrap(bytes).asIntBuffer().get(entries);
+
+            // the positions of the words are read in the order they were written
+            FileInputStream file = new FileInputStream(wordsFile);
+            file.getChannel().position(segment.start + SEGMENT_HEADER_SIZE);
+            in = new DataInputStream(new BufferedInputStream(file));
+        }
+
+        private boolean hasNext()
+        {
+            return word < segment.count;
+        }
+
+        private int getHash()
+        {
+            return entries[word * 3];
+        }
+
+        private PostingReader next() throws IOException
+        {
+            int offset = entries[word * 3 + 1];
+            int next = word + 1 < segment.count ? entries[word * 3 + 4] : (int) (segment.getWordsStart() - segment.start);
+            byte[] bytes = new byte[next - offset];
+            in.readFully(bytes);
+            PostingReader reader = new PostingReader(bytes, entries[word * 3 + 2], segment.logStart);
+            word++;
+
+            return reader;
+        }
+
+        private void close() throws IOException
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes a new segment to the end of the word index
+     */
+    private class SegmentWriter
+    {
+        private final long start;
+        private final long logStart;
+        private final long logEnd;
+        private final int records;
+        private final DataOutputStream out;
+        private final ByteArrayOutputStream wordBytes = new ByteArrayOutputStream();
+        private final DataOutputStream wordsOut = new DataOutputStream(wordBytes);
+        private int count;
+        private long last;
+
+        private SegmentWriter(long logStart, long logEnd, int records) throws IOException
+        {
+            this.start = words.length();
+            this.logStart = logStart;
+            this.logEnd = logEnd;
+            this.records = records;
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(wordsFile, true)));
+            out.writeInt(0);
+            out.writeLong(logStart);
+            out.writeLong(logEnd);
+            out.writeInt(records);
+        }
+
+        /**
+         * Starts the positions of the next word, in order of their hashes
+         */
+        private void startWord(int hash, int postings) throws IOException
+        {
+            wordsOut.writeInt(hash);
+            wordsOut.writeInt(out.size());
+            wordsOut.writeInt(postings);
+            count++;
+            last = logStart;
+        }
+
+        /**
+         * Writes the next position of the current word, in order
+         */
+        private void write(long position) throws IOException
+        {
+            writeVarLong(out, position - last);
+            last = position;
+        }
+
+        private Segment finish() throws IOException
+        {
+            int length;
+            try
+            {
+                wordBytes.writeTo(out);
+                out.writeInt(count);
+                length = out.size() + 4;
+                out.writeInt(length);
+            }
+            finally
+            {
+                out.close();
+            }
+            words.seek(start);
+            words.writeInt(length);
+
+            return new Segment(start, length, logStart, logEnd, records, count);
+        }
+
+        private void abort() throws IOException
+        {
+            try
+            {
+                out.close();
+            }
+            finally
+            {
+                words.setLength(start);
+            }
+        }
+    }
+
+    /**
+     * Reads the positions of the records containing a word
+     */
+    private static class PostingReader
+    {
+        private final byte[] bytes;
+        private int offset;
+        private int remaining;
+        private long position;
+
+        private PostingReader(byte[] bytes, int remaining, long position)
+        {
+            this.bytes = bytes;
+            this.remaining = remaining;
+            this.position = position;
+        }
+
+        private boolean hasNext()
+        {
+            return remaining > 0;
+        }
+
+        private long next()
+        {
+            long difference = 0;
+            for (int shift = 0;; shift += 7)
+            {
+                byte b = bytes[offset++];
+                difference |= (long) (b & 0x7f) << shift;
+                if (b >= 0)
+                {
+                    break;
+                }
+            }
+            remaining--;
+            position += difference;
+
+            return position;
+        }
+    }
+
+    /**
+     * A message read from the history
+     */
+    public static class Entry
+    {
+        private final long position;
+        private final long nextPosition;
+        private final long time;
+        private final String from;
+        private final String body;
+
+        private Entry(long position, long nextPosition, long time, String from, String body)
+        {
+            this.position = position;
+            this.nextPosition = nextPosition;
+            this.time = time;
+            this.from = from;
+            this.body = body;
+        }
+
+        /**
+         * Gets the position of the message in the log, which can be given to
+         * {@link ChatLog#getBefore(long, int)} to get the messages before it
+         * @return The position
+         */
+        public long getPosition()
+        {
+            return position;
+        }
+
+        private long getNextPosition()
+        {
+            return nextPosition;
+        }
+
+        /**
+         * Gets the time the message was sent
+         * @return The time in milliseconds
+         */
+        public long getTime()
+        {
+            return time;
+        }
+
+        /**
+         * Gets the address of the sender
+         * @return The sender's address
+         */
+        public String getFrom()
+        {
+            return from;
+        }
+
+        /**
+         * Gets the message text
+         * @return The text
+         */
+        public String getBody()
+        {
+            return body;
+        }
+    }
+}
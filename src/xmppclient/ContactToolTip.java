@@ -42,7 +42,7 @@ public class ContactToolTip extends JToolTip
         nameLabel.setText(Utils.getNickname(rosterEntry));
         statusLabel.setText(Utils.getStatus(presence));
         JIDLabel.setText(rosterEntry.getUser());
-        avatarLabel.setIcon(Utils.getAvatar(rosterEntry, 48));
+        MainUI.avatarCache.setAvatar(avatarLabel, rosterEntry.getUser(), 48);
         setVisible(true);
         this.setSize(200, 500);
     }
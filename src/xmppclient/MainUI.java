@@ -34,7 +34,8 @@ import javax.swing.JToolTip;
 import javax.swing.SwingUtilities;
 import javax.swing.ToolTipManager;
 import javax.swing.tree.DefaultMutableTreeNode;
-import javax.swing.tree.DefaultTreeModel;
+import javax.swing.event.TreeModelEvent;
+import javax.swing.event.TreeModelListener;
 import javax.swing.tree.TreePath;
 import org.jivesoftware.smack.PacketListener;
 import org.jivesoftware.smack.PrivacyListManager;
@@ -94,9 +95,10 @@ public class MainUI extends javax.swing.JFrame implements FileTransferListener,
      */
     public static ChatUI chatUI;
     private String accountName;
-    private final int SORT_BY_STATUS = 0;
-    private final int SORT_BY_GROUP = 1;
+    private final int SORT_BY_STATUS = RosterTreeModel.SORT_BY_STATUS;
+    private final int SORT_BY_GROUP = RosterTreeModel.SORT_BY_GROUP;
     private int sortMethod = SORT_BY_STATUS;
+    private RosterTreeModel contactsModel;
     private JingleManager jingleManager;
     private AudioManager audioManager;
     /**
@@ -104,6 +106,10 @@ public class MainUI extends javax.swing.JFrame implements FileTransferListener,
      * with the XMPP connection instance
      */
     public static SettingsManager settingsManager;
+    /**
+     * The cache of avatars for the current connection
+     */
+    public static AvatarCache avatarCache;
 
     /**
      * Creates the main user interface which displays the contacts etc
@@ -122,8 +128,11 @@ public class MainUI extends javax.swing.JFrame implements FileTransferListener,
         }
         jingleManager = new JingleManager(connection);
         settingsManager = new SettingsManager(connection.getUser());
+        avatarCache = new AvatarCache(connection, settingsManager.createDirectory(SettingsManager.AVATARS_DIR));
+        jingleManager.setCacheDirectory(settingsManager.createDirectory(SettingsManager.CACHE_DIR));
         audioManager = new AudioManager(connection, settingsManager.createDirectory(SettingsManager.AUDIO_DIR).getAbsolutePath(), jingleManager);
         chatUI = new ChatUI();
+        initContactsModel();
         initComponents();
         initSystemTray();
         initStatusComboBox();
@@ -255,77 +264,42 @@ public class MainUI extends javax.swing.JFrame implements FileTransferListener,
         }
     }
 
-    private void sortContactsByGroup()
+    /**
+     * Creates the contact list model, and expands the nodes of groups which
+     * are added to it
+     */
+    private void initContactsModel()
     {
-        DefaultMutableTreeNode root = new DefaultMutableTreeNode("Contacts");
-        DefaultTreeModel model = new DefaultTreeModel(root);
-
-        Collection<RosterGroup> groups = connection.getRoster().getGroups();
-        DefaultMutableTreeNode groupNode;
-
-        // get defined groups
-        for (RosterGroup group : groups)
+        contactsModel = new RosterTreeModel(connection.getRoster(), sortMethod);
+        contactsModel.addTreeModelListener(new TreeModelListener()
         {
-            groupNode = new DefaultMutableTreeNode(group.getName());
-            root.add(groupNode);
-
-            for (RosterEntry entry : group.getEntries())
+            @Override
+            public void treeNodesInserted(TreeModelEvent e)
             {
-                groupNode.add(new DefaultMutableTreeNode(entry));
+                if (e.getTreePath().getPathCount() == 1)
+                {
+                    for (Object child : e.getChildren())
+                    {
+                        contactTree.expandPath(e.getTreePath().pathByAddingChild(child));
+                    }
+                }
             }
-        }
 
-        // get unfiled contacts
-        if (connection.getRoster().getUnfiledEntryCount() > 0)
-        {
-            DefaultMutableTreeNode unfiled = new DefaultMutableTreeNode("Unfiled");
-            root.add(unfiled);
-            for (RosterEntry entry : connection.getRoster().getUnfiledEntries())
+            @Override
+            public void treeNodesChanged(TreeModelEvent e)
             {
-                unfiled.add(new DefaultMutableTreeNode(entry));
             }
-        }
-
-        contactTree.setModel(model);
-
-        int row = 0;
-        while (row < contactTree.getRowCount())
-        {
-            contactTree.expandRow(row++);
-        }
-    }
-
-    private void sortContactsByStatus()
-    {
-        DefaultMutableTreeNode root = new DefaultMutableTreeNode("Contacts");
-        DefaultMutableTreeNode online = new DefaultMutableTreeNode("Online");
-        DefaultMutableTreeNode offline = new DefaultMutableTreeNode("Offline");
-
-        DefaultTreeModel model = new DefaultTreeModel(root);
-
-        root.add(online);
-        root.add(offline);
 
-        Collection<RosterEntry> entries = connection.getRoster().getEntries();
-
-        for (RosterEntry entry : entries)
-        {
-            if (connection.getRoster().getPresence(entry.getUser()).getType().equals(Presence.Type.available))
-            {
-                online.add(new DefaultMutableTreeNode(entry));
-            } else
+            @Override
+            public void treeNodesRemoved(TreeModelEvent e)
             {
-                offline.add(new DefaultMutableTreeNode(entry));
             }
-        }
 
-        contactTree.setModel(model);
-
-        int row = 0;
-        while (row < contactTree.getRowCount())
-        {
-            contactTree.expandRow(row++);
-        }
+            @Override
+            public void treeStructureChanged(TreeModelEvent e)
+            {
+            }
+        });
     }
 
     private void toggleWindowVisibility()
@@ -1206,6 +1180,7 @@ private void jMenuItem1ActionPerformed(java.awt.event.ActionEvent evt)//GEN-FIRS
             }
         }
 
+        settingsManager.flush();
         System.exit(0);
     }
 
@@ -1214,7 +1189,7 @@ private void jMenuItem1ActionPerformed(java.awt.event.ActionEvent evt)//GEN-FIRS
      */
     public void setAvatar()
     {
-        avatarLabel.setIcon(Utils.getAvatar(84));
+        avatarCache.setAvatar(avatarLabel, connection.getUser(), 84);
     }
 
     /**
@@ -1227,7 +1202,9 @@ private void jMenuItem1ActionPerformed(java.awt.event.ActionEvent evt)//GEN-FIRS
     }
 
     /**
-     * Updates the list of contacts by calling the appropriate contact sorting method
+     * Updates the list of contacts by rebuilding the contact list model using
+     * the current sort method. Changes to single contacts are applied to the
+     * model as they happen, so this is only needed when the sort method changes.
      */
     public void updateContacts()
     {
@@ -1238,12 +1215,16 @@ private void jMenuItem1ActionPerformed(java.awt.event.ActionEvent evt)//GEN-FIRS
             {
                 try
                 {
-                    if (sortMethod == SORT_BY_STATUS)
+                    contactsModel.setSortMethod(sortMethod);
+                    if (contactTree.getModel() != contactsModel)
                     {
-                        sortContactsByStatus();
-                    } else
+                        contactTree.setModel(contactsModel);
+                    }
+
+                    int row = 0;
+                    while (row < contactTree.getRowCount())
                     {
-                        sortContactsByGroup();
+                        contactTree.expandRow(row++);
                     }
                 } catch (Exception e)
                 {
@@ -1254,6 +1235,8 @@ private void jMenuItem1ActionPerformed(java.awt.event.ActionEvent evt)//GEN-FIRS
 
     private void signOut()
     {
+        settingsManager.flush();
+        audioManager.close();
         connection.disconnect();
         connection = null;
         new XMPPClient().setVisible(true);
@@ -1426,45 +1409,45 @@ private void jMenuItem1ActionPerformed(java.awt.event.ActionEvent evt)//GEN-FIRS
     /**
      * Updates the contact list when an entry is added to the roster
      * @param addresses The addresses which were added
-     * @see #updateContacts()
+     * @see RosterTreeModel#update(Collection)
      */
     @Override
     public void entriesAdded(Collection<String> addresses)
     {
-        updateContacts();
+        contactsModel.update(addresses);
     }
 
     /**
      * Updates the contact list when an entry on the roster is updated
      * @param addresses The addresses which were updated
-     * @see #updateContacts()
+     * @see RosterTreeModel#update(Collection)
      */
     @Override
     public void entriesUpdated(Collection<String> addresses)
     {
-        updateContacts();
+        contactsModel.update(addresses);
     }
 
     /**
      * Updates the contact list when a entry is removed from the roster
      * @param addresses The addresses which were removed
-     * @see #updateContacts()
+     * @see RosterTreeModel#update(Collection)
      */
     @Override
     public void entriesDeleted(Collection<String> addresses)
     {
-        updateContacts();
+        contactsModel.update(addresses);
     }
 
     /**
      * Updates the contact list when a presence packet is received from a user
      * on the roster
      * @param presence The presence packet received
-     * @see #updateContacts()
+     * @see RosterTreeModel#update(String)
      */
     @Override
     public void presenceChanged(Presence presence)
     {
-        updateContacts();
+        contactsModel.update(presence.getFrom());
     }
 }
@@ -0,0 +1,291 @@
+package xmppclient;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.swing.Timer;
+import javax.swing.tree.DefaultMutableTreeNode;
+import javax.swing.tree.DefaultTreeModel;
+import org.jivesoftware.smack.Roster;
+import org.jivesoftware.smack.RosterEntry;
+import org.jivesoftware.smack.RosterGroup;
+import org.jivesoftware.smack.packet.Presence;
+import org.jivesoftware.smack.util.StringUtils;
+
+/**
+ * The tree model for the contact list. Contacts are either sorted into online
+ * and offline nodes, or into a node for each roster group with an "Unfiled"
+ * node for contacts in no group.
+ * <p>
+ * Changes to the roster and presences only move or update the nodes of the
+ * contacts they affect, rather than rebuilding the tree. Changes may be
+ * reported from any thread, and the changes which arrive within one frame
+ * are applied together on the event dispatch thread, so the burst of
+ * presences received when signing in does not flood the contact list with
+ * repaints.
+ * @author Lee Boynton (323326)
+ */
+public class RosterTreeModel extends DefaultTreeModel
+{
+    /**
+     * Sorts contacts into online and offline nodes
+     */
+    public static final int SORT_BY_STATUS = 0;
+    /**
+     * Sorts contacts into a node for each of their groups
+     */
+    public static final int SORT_BY_GROUP = 1;
+    /**
+     * The time in milliseconds changes are collected for before they are
+     * applied to the tree
+     */
+    public static final int FRAME_DELAY = 40;
+    private static final String ONLINE = "Online";
+    private static final String OFFLINE = "Offline";
+    private static final String UNFILED = "Unfiled";
+    private final Roster roster;
+    private int sortMethod;
+    private final Map<String, DefaultMutableTreeNode> groupNodes = new LinkedHashMap<String, DefaultMutableTreeNode>();
+    private final Map<String, List<DefaultMutableTreeNode>> entryNodes = new HashMap<String, List<DefaultMutableTreeNode>>();
+    private final Set<String> pending = new HashSet<String>();
+    private final Timer timer;
+
+    /**
+     * Creates a new contact list model, containing the entries on the roster
+     * @param roster The roster
+     * @param sortMethod Either {@link #SORT_BY_STATUS} or {@link #SORT_BY_GROUP}
+     */
+    public RosterTreeModel(Roster roster, int sortMethod)
+    {
+        super(new DefaultMutableTreeNode("Contacts"));
+        this.roster = roster;
+        this.sortMethod = sortMethod;
+        timer = new Timer(FRAME_DELAY, new ActionListener()
+        {
+            @Override
+            public void actionPerformed(ActionEvent e)
+            {
+                applyPending();
+            }
+        });
+        timer.setRepeats(false);
+        rebuild();
+    }
+
+    /**
+     * Changes how contacts are sorted, and rebuilds the tree. This must be
+     * called on the event dispatch thread.
+     * @param sortMethod Either {@link #SORT_BY_STATUS} or {@link #SORT_BY_GROUP}
+     */
+    public void setSortMethod(int sortMethod)
+    {
+        this.sortMethod = sortMethod;
+        rebuild();
+    }
+
+    /**
+     * Rebuilds the whole tree from the roster. This must be called on the
+     * event dispatch thread.
+     */
+    public void rebuild()
+    {
+        synchronized (pending)
+        {
+            pending.clear();
+        }
+
+        DefaultMutableTreeNode root = new DefaultMutableTreeNode("Contacts");
+        groupNodes.clear();
+        entryNodes.clear();
+
+        if (sortMethod == SORT_BY_STATUS)
+        {
+            groupNodes.put(ONLINE, new DefaultMutableTreeNode(ONLINE));
+            groupNodes.put(OFFLINE, new DefaultMutableTreeNode(OFFLINE));
+        }
+        else
+        {
+            for (RosterGroup group : roster.getGroups())
+            {
+                groupNodes.put(group.getName(), new DefaultMutableTreeNode(group.getName()));
+            }
+        }
+
+        for (RosterEntry entry : roster.getEntries())
+        {
+            for (String group : getGroups(entry))
+            {
+                DefaultMutableTreeNode groupNode = groupNodes.get(group);
+                if (groupNode == null)
+                {
+                    groupNode = new DefaultMutableTreeNode(group);
+                    groupNodes.put(group, groupNode);
+                }
+                DefaultMutableTreeNode node = new DefaultMutableTreeNode(entry);
+                groupNode.add(node);
+                getNodes(entry.getUser()).add(node);
+            }
+        }
+
+        for (DefaultMutableTreeNode groupNode : groupNodes.values())
+        {
+            root.add(groupNode);
+        }
+        setRoot(root);
+    }
+
+    /**
+     * Updates the nodes of the given users once the current frame has passed.
+     * This may be called from any thread.
+     * @param addresses The addresses of the users which have changed
+     */
+    public void update(Collection<String> addresses)
+    {
+        synchronized (pending)
+        {
+            for (String address : addresses)
+            {
+                pending.add(getKey(address));
+            }
+        }
+        timer.start();
+    }
+
+    /**
+     * Updates the nodes of the given user once the current frame has passed.
+     * This may be called from any thread.
+     * @param address The address of the user which has changed
+     */
+    public void update(String address)
+    {
+        synchronized (pending)
+        {
+            pending.add(getKey(address));
+        }
+        timer.start();
+    }
+
+    private void applyPending()
+    {
+        List<String> users;
+        synchronized (pending)
+        {
+            users = new ArrayList<String>(pending);
+            pending.clear();
+        }
+
+        for (String user : users)
+        {
+            updateEntry(user);
+        }
+    }
+
+    /**
+     * Moves the nodes of a user into the groups they now belong to, removing
+     * and inserting only the nodes which have changed group, and notifies the
+     * tree that the rest have changed
+     */
+    private void updateEntry(String user)
+    {
+        RosterEntry entry = roster.getEntry(user);
+        Set<String> groups = entry == null ? new HashSet<String>() : getGroups(entry);
+        List<DefaultMutableTreeNode> nodes = getNodes(user);
+
+        for (DefaultMutableTreeNode node : new ArrayList<DefaultMutableTreeNode>(nodes))
+        {
+            DefaultMutableTreeNode groupNode = (DefaultMutableTreeNode) node.getParent();
+
+            if (groups.remove((String) groupNode.getUserObject()))
+            {
+                // the entry object is replaced when the roster is updated
+                node.setUserObject(entry);
+                nodeChanged(node);
+            }
+            else
+            {
+                nodes.remove(node);
+                removeNodeFromParent(node);
+                if (groupNode.getChildCount() == 0 && sortMethod == SORT_BY_GROUP)
+                {
+                    groupNodes.remove((String) groupNode.getUserObject());
+                    removeNodeFromParent(groupNode);
+                }
+            }
+        }
+
+        for (String group : groups)
+        {
+            DefaultMutableTreeNode node = new DefaultMutableTreeNode(entry);
+            DefaultMutableTreeNode groupNode = groupNodes.get(group);
+            nodes.add(node);
+
+            if (groupNode == null)
+            {
+                // the group node is inserted with its first entry, so it can be expanded
+                groupNode = new DefaultMutableTreeNode(group);
+                groupNode.add(node);
+                groupNodes.put(group, groupNode);
+                insertNodeInto(groupNode, (DefaultMutableTreeNode) getRoot(), getChildCount(getRoot()));
+            }
+            else
+            {
+                insertNodeInto(node, groupNode, groupNode.getChildCount());
+            }
+        }
+
+        if (nodes.isEmpty())
+        {
+            entryNodes.remove(user);
+        }
+    }
+
+    private Set<String> getGroups(RosterEntry entry)
+    {
+        Set<String> groups = new HashSet<String>();
+
+        if (sortMethod == SORT_BY_STATUS)
+        {
+            Presence presence = roster.getPresence(entry.getUser());
+            groups.add(presence.getType() == Presence.Type.available ? ONLINE : OFFLINE);
+        }
+        else
+        {
+            for (RosterGroup group : entry.getGroups())
+            {
+                groups.add(group.getName());
+            }
+            if (groups.isEmpty())
+            {
+                groups.add(UNFILED);
+            }
+        }
+
+        return groups;
+    }
+
+    private List<DefaultMutableTreeNode> getNodes(String user)
+    {
+        String key = getKey(user);
+        List<DefaultMutableTreeNode> nodes = entryNodes.get(key);
+
+        if (nodes == null)
+        {
+            nodes = new ArrayList<DefaultMutableTreeNode>();
+            entryNodes.put(key, nodes);
+        }
+
+        return nodes;
+    }
+
+    private static String getKey(String address)
+    {
+        return StringUtils.parseBareAddress(address).toLowerCase();
+    }
+}
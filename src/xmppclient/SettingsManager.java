@@ -1,23 +1,23 @@
 package xmppclient;
 
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.swing.JTextPane;
-import javax.swing.text.StyledDocument;
 import org.jivesoftware.smack.packet.Presence;
 import org.jivesoftware.smack.util.StringUtils;
 import xmppclient.emoticons.Emoticon;
+import xmppclient.emoticons.EmoticonMatcher;
+import xmppclient.emoticons.Emoticons;
 
 /**
  * The SettingsManager is used for storing information associated with a given
@@ -44,10 +44,29 @@ public class SettingsManager
      * The default directory for storing audio files for the audio library
      */
     public static final String AUDIO_DIR = "audio";
+    /**
+     * The default directory for caching audio streams received from other users
+     */
+    public static final String CACHE_DIR = "cache";
+    /**
+     * The default directory for caching the avatars of contacts
+     */
+    public static final String AVATARS_DIR = "avatars";
+    /**
+     * The time in milliseconds either side of a replayed message's time that
+     * a logged copy of it is looked for. Replayed messages are stamped by the
+     * server to the second, while messages are logged by the local clock.
+     */
+    public static final long REPLAY_WINDOW = 60000;
     
     /** The JID to store account details under */
     private String JID;
     private File accountDir;
+    private final StoredList<Presence> presences = new StoredList<Presence>(this, "presences", Presence.class);
+    private final StoredList<Emoticon> emoticons = new StoredList<Emoticon>(this, "emoticons", Emoticon.class);
+    private EmoticonMatcher emoticonMatcher;
+    private List<Emoticon> matchedEmoticons;
+    private final Map<String, ChatLog> chatLogs = new HashMap<String, ChatLog>();
 
     /**
      * Creates a new settings manager for the given JID. This will create a 
@@ -88,53 +107,126 @@ public class SettingsManager
     }
 
     /**
-     * Writes the contents of the given textpane to text file under the logs
-     * directory of the account associated with this settings manager
-     * @param textPane The textpane to log from
-     * @param contact The contact the conversation was with
+     * Gets the message history of the conversation with the given contact,
+     * stored under the logs directory of the account associated with this
+     * settings manager. The history files are opened the first time they are
+     * used, and stay open until {@link #closeChatLog(String)} is called.
+     * @param contact The contact or room the conversation is with
+     * @return The history, or null if it could not be opened
      */
-    public void logConversation(JTextPane textPane, String contact)
+    public synchronized ChatLog getChatLog(String contact)
     {
-        FileWriter fstream = null;
-        contact = StringUtils.unescapeNode(contact);
+        String name = getLogName(contact);
+        ChatLog log = chatLogs.get(name);
         
-        // remove resource, if present
-        contact = StringUtils.parseBareAddress(contact);
+        if (log == null)
+        {
+            try
+            {
+                log = new ChatLog(createDirectory(LOGS_DIR), name, true);
+                chatLogs.put(name, log);
+            }
+            catch (IOException ex)
+            {
+                Logger.getLogger(SettingsManager.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        
+        return log;
+    }
+    
+    /**
+     * Appends a message to the history of the conversation with the given
+     * contact, as soon as it is sent or received. A replayed message, such as
+     * the recent history sent when joining a room, is not logged if a message
+     * from the same sender with the same text was logged within
+     * {@link #REPLAY_WINDOW} of its time.
+     * @param contact The contact or room the conversation is with
+     * @param from The address of the sender
+     * @param body The message text
+     * @param time The time the message was sent, in milliseconds
+     * @param replayed Whether the message may have been received before
+     */
+    public void logMessage(String contact, String from, String body, long time, boolean replayed)
+    {
+        ChatLog log = getChatLog(contact);
         
+        if (log == null)
+        {
+            return;
+        }
         try
         {
-            File dir = createDirectory(LOGS_DIR);
-            fstream = new FileWriter(dir.getAbsolutePath() + File.separator + contact + ".txt", true);
-            BufferedWriter out = new BufferedWriter(fstream);
-            StyledDocument doc = textPane.getStyledDocument();
-            out.write("----------");
-            out.newLine();
-            out.write(doc.getText(0, doc.getLength()));
-            out.flush();
-            out.close();
-            fstream.close();
+            if (replayed && log.contains(from, body, time - REPLAY_WINDOW, time + REPLAY_WINDOW))
+            {
+                return;
+            }
+            log.append(time, from, body);
         }
-        catch (Exception ex)
+        catch (IOException ex)
         {
             Logger.getLogger(SettingsManager.class.getName()).log(Level.SEVERE, null, ex);
-        }        
+        }
+    }
+    
+    /**
+     * Closes the message history of the conversation with the given contact.
+     * This is called when the conversation is closed.
+     * @param contact The contact or room the conversation is with
+     */
+    public synchronized void closeChatLog(String contact)
+    {
+        ChatLog log = chatLogs.remove(getLogName(contact));
+        
+        if (log != null)
+        {
+            log.close();
+        }
+    }
+    
+    private static String getLogName(String contact)
+    {
+        // remove resource, if present
+        return StringUtils.parseBareAddress(StringUtils.unescapeNode(contact));
     }
     
     /**
-     * 
-     * @param obj
-     * @param name
+     * Saves an object to file under the account directory. The object is
+     * written to a temporary file which then replaces the file, so a failed
+     * write leaves the previous object in place.
+     * @param obj The object to save
+     * @param name The name of the file to save to
      */
     public void saveObject(Object obj, String name)
     {
+        File file = new File(accountDir, name);
+        File temp = new File(accountDir, name + ".tmp");
+
         try
         {
-            ObjectOutputStream fileOut = new ObjectOutputStream(new FileOutputStream(accountDir.getAbsolutePath() + File.separator + name));
-            fileOut.writeObject(obj);
-            fileOut.close();
+            ObjectOutputStream fileOut = new ObjectOutputStream(new FileOutputStream(temp));
+            try
+            {
+                fileOut.writeObject(obj);
+            }
+            finally
+            {
+                fileOut.close();
+            }
+
+            if (!temp.renameTo(file))
+            {
+                // renaming over an existing file fails on some platforms
+                file.delete();
+                if (!temp.renameTo(file))
+                {
+                    throw new IOException("Could not replace " + file);
+                }
+            }
         }
         catch (IOException ex)
         {
+            temp.delete();
             Logger.getLogger(SettingsManager.class.getName()).log(Level.SEVERE, null, ex);
         }
     }
@@ -179,85 +271,92 @@ public class SettingsManager
     /**
      * Gets the custom presences for this XMPP connection
      * @return The list of custom presences, which may have zero length if the
-     * custom presences file does not exist
+     * custom presences file does not exist. The list can not be modified.
      */
     public List<Presence> getPresences()
     {
-        List<Presence> presences = new ArrayList<Presence>();        
-        List storedPresences = (List) loadObject(ArrayList.class, "presences");
-        
-        if(storedPresences == null) return presences;
-        
-        for(Object o:storedPresences)
-        {
-            if(o instanceof Presence)
-            {
-                presences.add((Presence) o);
-            }
-        }
-        
-        return presences;
+        return presences.get();
     }
     
     /**
-     * Adds a custom presence to the list of custom presences, and saves the list
-     * to file
+     * Adds a custom presence to the list of custom presences. The list is
+     * saved to file shortly afterwards.
      * @param presence The presence to add
      */
     public void addPresence(Presence presence)
     {
-        List<Presence> presences = getPresences();
         presences.add(presence);
-        savePresences(presences);
     }
     
     /**
-     * Saves the custom presences list to file, under the account folder for this user
+     * Saves the custom presences list to file, under the account folder for
+     * this user. The list is saved shortly afterwards.
      * @param presences The list of presences to store
      */
     public void savePresences(List<Presence> presences)
     {
-        saveObject(presences, "presences");
+        this.presences.set(presences);
     }
     
     /**
      * Gets the custom emoticons associated with this XMPP account, which are 
      * stored as a file
      * @return The list of custom emoticons, which may be zero length
-     * if the file does not exist
+     * if the file does not exist. The list can not be modified.
      */
     public List<Emoticon> getEmoticons()
     {
-        List<Emoticon> emoticons = new ArrayList<Emoticon>();
-        List storedEmoticons = (List) loadObject(ArrayList.class, "emoticons");
-        
-        if(storedEmoticons == null) return emoticons;
-        
-        for(Object o:storedEmoticons)
-        {
-            if(o instanceof Emoticon)
-            {
-                emoticons.add((Emoticon) o);
-            }
-        }
-        
-        return emoticons;
+        return emoticons.get();
     }
     
     /**
-     * Adds a custom emoticon to the list of custom emoticons, and saves the
-     * updated list to file
+     * Adds a custom emoticon to the list of custom emoticons. The list is
+     * saved to file shortly afterwards.
      * @param emoticon The emoticon to add
      */
     public void addEmoticon(Emoticon emoticon)
     {
-        List<Emoticon> emoticons = getEmoticons();
         emoticons.add(emoticon);
-        saveEmoticons(emoticons);
     }
 
-    private void saveEmoticons(List<Emoticon> emoticons)
+    /**
+     * Gets a matcher for the custom emoticons associated with this XMPP account
+     * and the default emoticons. The matcher is kept until the custom emoticons
+     * change. Where a custom emoticon has the same character sequence as a
+     * default emoticon, the custom emoticon is used.
+     * @return The emoticon matcher
+     */
+    public synchronized EmoticonMatcher getEmoticonMatcher()
+    {
+        List<Emoticon> custom = emoticons.get();
+
+        if (emoticonMatcher == null || matchedEmoticons != custom)
+        {
+            List<Emoticon> all = new ArrayList<Emoticon>(custom);
+            all.addAll(Emoticons.getDefaultEmoticons());
+            emoticonMatcher = new EmoticonMatcher(all);
+            matchedEmoticons = custom;
+        }
+
+        return emoticonMatcher;
+    }
+
+    /**
+     * Writes any settings which have changed but not yet been saved to file,
+     * and closes the message histories. This should be called before the
+     * application exits.
+     */
+    public void flush()
     {
-        saveObject(emoticons, "emoticons");
+        presences.flush();
+        emoticons.flush();
+        synchronized (this)
+        {
+            for (ChatLog log : chatLogs.values())
+            {
+                log.close();
+            }
+            chatLogs.clear();
+        }
     }
 }
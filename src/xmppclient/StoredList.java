@@ -0,0 +1,160 @@
+package xmppclient;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A list of settings which is kept in memory and stored in a file under the
+ * account directory. The file is only read the first time the list is used.
+ * <p>
+ * Readers are given a snapshot of the list which is never changed, so they
+ * need no locking and no copy. Each change replaces the snapshot, and the
+ * file is written on a background thread a short time after the first
+ * change, so a run of changes is written once.
+ * @param <T> The type of the items in the list
+ * @author Lee Boynton (323326)
+ */
+public class StoredList<T>
+{
+    /**
+     * The time in milliseconds the file is written after it is changed
+     */
+    public static final long WRITE_DELAY = 500;
+    private static final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+    {
+        @Override
+        public Thread newThread(Runnable r)
+        {
+            Thread thread = new Thread(r, "Settings writer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private final SettingsManager settingsManager;
+    private final String name;
+    private final Class<T> type;
+    private final Object writeLock = new Object();
+    private volatile List<T> snapshot;
+    private boolean dirty = false;
+    private boolean writeScheduled = false;
+
+    /**
+     * Creates a new list stored in the given file
+     * @param settingsManager The settings manager for the account
+     * @param name The name of the file under the account directory
+     * @param type The type of the items in the list. Any other objects found in
+     * the file are left out.
+     */
+    public StoredList(SettingsManager settingsManager, String name, Class<T> type)
+    {
+        this.settingsManager = settingsManager;
+        this.name = name;
+        this.type = type;
+    }
+
+    /**
+     * Gets the items in the list, reading them from file the first time
+     * @return A snapshot of the list, which can not be modified
+     */
+    public List<T> get()
+    {
+        List<T> items = snapshot;
+
+        if (items == null)
+        {
+            synchronized (this)
+            {
+                if (snapshot == null)
+                {
+                    snapshot = load();
+                }
+                items = snapshot;
+            }
+        }
+
+        return items;
+    }
+
+    /**
+     * Adds an item to the list
+     * @param item The item to add
+     */
+    public synchronized void add(T item)
+    {
+        List<T> items = new ArrayList<T>(get());
+        items.add(item);
+        set(items);
+    }
+
+    /**
+     * Replaces the items in the list
+     * @param items The new items
+     */
+    public synchronized void set(List<T> items)
+    {
+        snapshot = Collections.unmodifiableList(new ArrayList<T>(items));
+        dirty = true;
+
+        if (!writeScheduled)
+        {
+            writeScheduled = true;
+            writer.schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    flush();
+                }
+            }, WRITE_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Writes the list to file now if it has changed since it was last written
+     */
+    public void flush()
+    {
+        // writes are made one at a time, so an older snapshot never replaces a newer one
+        synchronized (writeLock)
+        {
+            List<T> items;
+
+            synchronized (this)
+            {
+                writeScheduled = false;
+                if (!dirty)
+                {
+                    return;
+                }
+                dirty = false;
+                items = snapshot;
+            }
+
+            settingsManager.saveObject(new ArrayList<T>(items), name);
+        }
+    }
+
+    private List<T> load()
+    {
+        List<T> items = new ArrayList<T>();
+        List stored = (List) settingsManager.loadObject(ArrayList.class, name);
+
+        if (stored != null)
+        {
+            for (Object o : stored)
+            {
+                if (type.isInstance(o))
+                {
+                    items.add(type.cast(o));
+                }
+            }
+        }
+
+        return Collections.unmodifiableList(items);
+    }
+}
@@ -30,9 +30,11 @@ import javax.swing.plaf.basic.BasicSplitPaneDivider;
 import javax.swing.plaf.basic.BasicSplitPaneUI;
 import org.jivesoftware.smack.RosterEntry;
 import org.jivesoftware.smack.RosterGroup;
-import org.jivesoftware.smack.XMPPException;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.packet.PacketExtension;
 import org.jivesoftware.smack.packet.Presence;
 import org.jivesoftware.smack.util.StringUtils;
+import org.jivesoftware.smackx.packet.DelayInformation;
 import org.jivesoftware.smackx.packet.VCard;
 import xmppclient.images.Icons;
 
@@ -259,66 +261,62 @@ public class Utils
     }
 
     /**
-     * Gets the avatar of the specified roster entry and resizes it
+     * Gets the time the given packet was sent. Packets delivered late, such as
+     * offline messages and the history of a room, carry the time they were
+     * sent, and any other packet is taken to have been sent just now.
+     * @param packet The packet
+     * @return The time in milliseconds
+     */
+    public static long getTime(Packet packet)
+    {
+        PacketExtension delay = packet.getExtension("x", "jabber:x:delay");
+
+        if (delay instanceof DelayInformation && ((DelayInformation) delay).getStamp() != null)
+        {
+            return ((DelayInformation) delay).getStamp().getTime();
+        }
+
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Gets the avatar of the specified roster entry and resizes it. This does
+     * not wait for the avatar to load, see {@link AvatarCache#getAvatar(String, int)}
      * @param rosterEntry The user
      * @param size The max size
      * @return The resized avatar icon
      */
     public static Icon getAvatar(RosterEntry rosterEntry, int size)
     {
-        VCard vCard = new VCard();
-
-        try
-        {
-            vCard.load(MainUI.connection, rosterEntry.getUser());
-            return Utils.resizeImage(new ImageIcon(vCard.getAvatar()), size);
-        }
-        catch (XMPPException ex)
-        {
-            System.err.printf("Error loading avatar for user %s: %s", rosterEntry.getUser(), ex.getMessage());
-        }
-        catch (NullPointerException ex)
+        if (rosterEntry == null)
         {
-            // user has no avatar
+            return null;
         }
 
-        return null;
+        return MainUI.avatarCache.getAvatar(rosterEntry.getUser(), size);
     }
 
     /**
-     * Gets the avatar of the local user and resizes it
+     * Gets the avatar of the local user and resizes it. This does not wait for
+     * the avatar to load, see {@link AvatarCache#getAvatar(String, int)}
      * @param size The max size
      * @return The resized avatar icon
      */
     public static Icon getAvatar(int size)
     {
-        VCard vCard = new VCard();
-
-        try
-        {
-            vCard.load(MainUI.connection);
-            return Utils.resizeImage(new ImageIcon(vCard.getAvatar()), size);
-        }
-        catch (XMPPException ex)
-        {
-        }
-        catch (NullPointerException ex)
-        {
-            // user has no avatar
-        }
-
-        return null;
+        return MainUI.avatarCache.getAvatar(MainUI.connection.getUser(), size);
     }
 
     /**
-     * Gets the avatar of the given JID and resizes it
+     * Gets the avatar of the given JID and resizes it. This does not wait for
+     * the avatar to load, see {@link AvatarCache#getAvatar(String, int)}
      * @param JID The JID
      * @param size The max size
      * @return The resized avatar icon
      */
     public static Icon getAvatar(String JID, int size)
     {
-        return getAvatar(MainUI.connection.getRoster().getEntry(StringUtils.parseBareAddress(JID)), size);
+        return MainUI.avatarCache.getAvatar(JID, size);
     }
 
     /**
@@ -159,6 +159,24 @@ public class AudioFile
         this.track = track;
     }
     
+    /**
+     * Compares the tag details of this audio file with another
+     * @param other The audio file to compare with
+     * @return True if the name, artist, album and track are all the same
+     */
+    public boolean hasSameTags(AudioFile other)
+    {
+        return equal(name, other.name) &&
+                equal(artist, other.artist) &&
+                equal(album, other.album) &&
+                equal(track, other.track);
+    }
+
+    private static boolean equal(String a, String b)
+    {
+        return a == null ? b == null : a.equals(b);
+    }
+
     @Override
     public String toString()
     {
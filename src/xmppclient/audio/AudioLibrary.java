@@ -4,7 +4,21 @@ import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.farng.mp3.MP3File;
@@ -14,33 +28,52 @@ import xmppclient.Utils;
 
 /**
  * This class is used for generating the audio file library. It recursively 
- * goes through a directory and adds MP3 files to the library.
+ * goes through a directory and adds MP3 files to the library. Tags which have
+ * already been read are kept in an index file in the library directory, so
+ * only new or changed files are parsed when the listing is regenerated. Tags
+ * can be read by a pool of threads, see {@link #setScanThreads(int)}.
+ * <p>
+ * The directory is scanned without holding the lock used by the methods which
+ * answer library requests, so they are not held up by a rescan. The lock is
+ * only taken to swap the new listing in.
  * @author Lee Boynton (323326)
  */
 public class AudioLibrary
 {
-    private List<AudioFile> audioFiles = new ArrayList<AudioFile>();
+    /**
+     * The name of the index file which is stored in the library directory
+     */
+    public static final String INDEX_FILE = ".library";
+    private volatile List<AudioFile> audioFiles = new ArrayList<AudioFile>();
+    private volatile NavigableMap<Integer, AudioFile> filesById = new TreeMap<Integer, AudioFile>();
     private String path;
+    private AudioLibraryIndex index;
+    private volatile boolean generated = false;
+    private final Object scanLock = new Object();
+    private Timer watcher;
+    private int scanThreads = 1;
+    private final long baseVersion = System.currentTimeMillis();
+    private long version = baseVersion;
+    private Map<Integer, Long> fileVersions = new HashMap<Integer, Long>();
+    private Map<Integer, Long> removedVersions = new HashMap<Integer, Long>();
     
     /**
      * Gets the file with the given ID. The audio library must have been generated
-     * before calling this method.
-     * NOTE: If the audio library has been regenerated and there are new audio
-     * files, this may not return the intended file.
+     * before calling this method. IDs are derived from the file path and stored
+     * in the index, so a file keeps its ID when the library is regenerated.
      * @param id The ID of the file
-     * @return The file with the ID
+     * @return The file with the ID, or null if there is no such file
      */
     public File getFile(int id)
     {
-        for(AudioFile file:audioFiles)
+        AudioFile file = filesById.get(id);
+
+        if (file == null)
         {
-            if(file.getId() == id)
-            {
-                return file.getFile();
-            }
+            return null;
         }
-        
-        return null;
+
+        return file.getFile();
     }
 
     /**
@@ -50,6 +83,7 @@ public class AudioLibrary
     public AudioLibrary(String path)
     {
         this.path = path;
+        index = new AudioLibraryIndex(new File(path, INDEX_FILE));
     }
 
     /**
@@ -64,18 +98,69 @@ public class AudioLibrary
         return audioFiles;
     }
 
-    private void addFile(File file)
+    /**
+     * Used to determine if the listing has been generated at least once
+     * @return True if the listing has been generated, false otherwise
+     */
+    public boolean isGenerated()
+    {
+        return generated;
+    }
+
+    /**
+     * Sets the number of threads used to read tags when the listing is
+     * generated. Reading tags is mostly disk bound, so this should be kept
+     * small on machines with a single hard disk.
+     * @param scanThreads The number of threads, or 1 to read tags one at a
+     * time on the thread generating the listing
+     */
+    public void setScanThreads(int scanThreads)
+    {
+        this.scanThreads = Math.max(1, scanThreads);
+    }
+
+    /**
+     * Gets the number of threads used to read tags when the listing is generated
+     * @return The number of threads
+     */
+    public int getScanThreads()
     {
+        return scanThreads;
+    }
+
+    /**
+     * Reads the tag of the given file, or gets it from the index if the file
+     * has not changed since it was last read
+     * @return The audio file, or null if the tag could not be read
+     */
+    private AudioFile readFile(File file)
+    {
+        AudioFile audioFile = index.get(file);
+
+        if (audioFile != null)
+        {
+            return audioFile;
+        }
+
         try
         {
             ID3v1 tag = new MP3File(file).getID3v1Tag();
 
-            audioFiles.add(new AudioFile(
-                    tag.getSongTitle(),
-                    tag.getArtist(),
-                    tag.getAlbum(),
-                    tag.getTrackNumberOnAlbum(),
-                    file));
+            if (tag == null)
+            {
+                // files with only an ID3v2 tag are listed by their file name
+                audioFile = new AudioFile(getTitle(file), "", "", "", file);
+            }
+            else
+            {
+                audioFile = new AudioFile(
+                        tag.getSongTitle(),
+                        tag.getArtist(),
+                        tag.getAlbum(),
+                        tag.getTrackNumberOnAlbum(),
+                        file);
+            }
+            index.put(audioFile);
         }
         catch (IOException ex)
         {
@@ -86,24 +171,364 @@ public class AudioLibrary
             // could not read tag
             Logger.getLogger(AudioLibrary.class.getName()).log(Level.SEVERE, null, ex);
         }
+        catch (RuntimeException ex)
+        {
+            // one bad file must not fail the whole scan
+            Logger.getLogger(AudioLibrary.class.getName()).log(Level.WARNING, "Could not read " + file, ex);
+        }
+
+        return audioFile;
+    }
+
+    private static String getTitle(File file)
+    {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+
+    private List<AudioFile> readFiles(List<File> files)
+    {
+        List<AudioFile> audioFiles = new ArrayList<AudioFile>(files.size());
+
+        for (File file : files)
+        {
+            AudioFile audioFile = readFile(file);
+            if (audioFile != null)
+            {
+                audioFiles.add(audioFile);
+            }
+        }
+
+        return audioFiles;
+    }
+
+    /**
+     * Reads the tags of the given files using a pool of scan threads. Each
+     * thread returns its result through a future rather than adding to a
+     * shared list, and the results are collected in the original file order.
+     * @return The audio files, or null if the scan was interrupted or failed
+     */
+    private List<AudioFile> readFilesInParallel(List<File> files)
+    {
+        List<AudioFile> audioFiles = new ArrayList<AudioFile>(files.size());
+        List<Future<AudioFile>> results = new ArrayList<Future<AudioFile>>(files.size());
+        ExecutorService executor = Executors.newFixedThreadPool(scanThreads, new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "Audio library scanner");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        try
+        {
+            for (final File file : files)
+            {
+                results.add(executor.submit(new Callable<AudioFile>()
+                {
+                    @Override
+                    public AudioFile call()
+                    {
+                        return readFile(file);
+                    }
+                }));
+            }
+
+            for (Future<AudioFile> result : results)
+            {
+                AudioFile audioFile = result.get();
+                if (audioFile != null)
+                {
+                    audioFiles.add(audioFile);
+                }
+            }
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        catch (ExecutionException ex)
+        {
+            Logger.getLogger(AudioLibrary.class.getName()).log(Level.SEVERE, null, ex);
+            return null;
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        return audioFiles;
     }
     
     /**
      * Generates the audio file listing by adding each file to a list. The path 
-     * must be set before calling.
+     * must be set before calling. The index is loaded the first time this is
+     * called, and saved afterwards if any files were added, changed or removed.
      */
     public void generateListing()
     {
-        File dir = new File(path);
-        generateListing(dir);
+        synchronized (scanLock)
+        {
+            if (!generated)
+            {
+                index.load();
+            }
+
+            generateListing(new File(path));
+            generated = true;
+        }
     }
 
     /**
-     * Recursively retrieves audio files from the directory and adds them to the
-     * audio file list
-     * @param directory
+     * Retrieves audio files from the directory and its subdirectories and
+     * replaces the audio file list with them. Files which are in the index and
+     * have not changed are not parsed again. Only one listing is generated at
+     * a time.
+     * @param directory The directory to generate the listing from
      */
     public void generateListing(File directory)
+    {
+        synchronized (scanLock)
+        {
+            scan(directory);
+        }
+    }
+
+    private void scan(File directory)
+    {
+        List<File> mp3Files = new ArrayList<File>();
+        scanDirectory(directory, mp3Files);
+
+        List<AudioFile> files;
+        if (scanThreads > 1)
+        {
+            files = readFilesInParallel(mp3Files);
+        }
+        else
+        {
+            files = readFiles(mp3Files);
+        }
+
+        if (files == null)
+        {
+            // keep the previous listing rather than treat every file as removed
+            return;
+        }
+
+        Set<String> paths = new HashSet<String>();
+        NavigableMap<Integer, AudioFile> ids = new TreeMap<Integer, AudioFile>();
+        for (AudioFile file : files)
+        {
+            paths.add(file.getFile().getAbsolutePath());
+            ids.put(file.getId(), file);
+        }
+        index.retainAll(paths);
+        index.save();
+
+        synchronized (this)
+        {
+            updateVersion(ids);
+
+            // replace rather than modify, so lookups made during a rescan see
+            // either the old listing or the new one
+            filesById = ids;
+            audioFiles = files;
+        }
+    }
+
+    /**
+     * Compares the new listing against the current one and, if any files were
+     * added, changed or removed, moves the library on to a new version and
+     * records that version against each of those files. Must be called while
+     * holding the lock.
+     */
+    private void updateVersion(Map<Integer, AudioFile> ids)
+    {
+        long newVersion = version + 1;
+        boolean changed = false;
+
+        for (AudioFile file : ids.values())
+        {
+            AudioFile oldFile = filesById.get(file.getId());
+
+            if (oldFile == null || !file.hasSameTags(oldFile))
+            {
+                fileVersions.put(file.getId(), newVersion);
+                removedVersions.remove(file.getId());
+                changed = true;
+            }
+        }
+
+        for (Integer id : filesById.keySet())
+        {
+            if (!ids.containsKey(id))
+            {
+                removedVersions.put(id, newVersion);
+                fileVersions.remove(id);
+                changed = true;
+            }
+        }
+
+        if (changed)
+        {
+            version = newVersion;
+        }
+    }
+
+    /**
+     * Gets the current version of the listing. The version increases every
+     * time the listing is regenerated and files have been added, changed or
+     * removed.
+     * @return The version
+     */
+    public synchronized long getVersion()
+    {
+        return version;
+    }
+
+    /**
+     * Gets the files which have been added or changed since the given version
+     * of the listing, in listing order. If the version is older than the first
+     * listing generated by this library, which includes versions from before
+     * the application was restarted, then every file is returned.
+     * @param since The version the caller already has, or -1 for every file
+     * @return The added or changed files
+     */
+    public synchronized List<AudioFile> getFilesChangedSince(long since)
+    {
+        if (!hasChangesSince(since))
+        {
+            return audioFiles;
+        }
+
+        List<AudioFile> changed = new ArrayList<AudioFile>();
+        for (AudioFile file : audioFiles)
+        {
+            Long fileVersion = fileVersions.get(file.getId());
+            if (fileVersion != null && fileVersion > since)
+            {
+                changed.add(file);
+            }
+        }
+
+        return changed;
+    }
+
+    /**
+     * Gets one page of the files which have been added or changed since the
+     * given version of the listing, in order of ID. Paging by ID rather than by
+     * position means files added or removed between one page and the next do
+     * not move the files in later pages, so none are skipped or sent twice.
+     * @param since The version the caller already has, or -1 for every file
+     * @param after The ID of the last file the caller has received, or null
+     * to start from the first file
+     * @param max The maximum number of files to return
+     * @return The added or changed files, in order of ID
+     */
+    public synchronized List<AudioFile> getFilesChangedSince(long since, Integer after, int max)
+    {
+        Map<Integer, AudioFile> files = after == null ? filesById : filesById.tailMap(after, false);
+        boolean changesOnly = hasChangesSince(since);
+        List<AudioFile> page = new ArrayList<AudioFile>(Math.min(max, files.size()));
+
+        for (AudioFile file : files.values())
+        {
+            if (page.size() >= max)
+            {
+                break;
+            }
+
+            Long fileVersion = fileVersions.get(file.getId());
+            if (!changesOnly || (fileVersion != null && fileVersion > since))
+            {
+                page.add(file);
+            }
+        }
+
+        return page;
+    }
+
+    /**
+     * Gets the IDs of the files which have been removed since the given version
+     * of the listing
+     * @param since The version the caller already has
+     * @return The IDs of the removed files, which is empty if the version is
+     * older than the first listing generated by this library
+     */
+    public synchronized List<Integer> getFilesRemovedSince(long since)
+    {
+        List<Integer> removed = new ArrayList<Integer>();
+
+        if (!hasChangesSince(since))
+        {
+            return removed;
+        }
+
+        for (Map.Entry<Integer, Long> entry : removedVersions.entrySet())
+        {
+            if (entry.getValue() > since)
+            {
+                removed.add(entry.getKey());
+            }
+        }
+
+        return removed;
+    }
+
+    /**
+     * Used to determine if changes since the given version can be worked out,
+     * or if the whole listing is needed instead
+     * @param since The version the caller already has
+     * @return True if the version was generated by this library
+     */
+    public boolean hasChangesSince(long since)
+    {
+        return since >= baseVersion;
+    }
+
+    /**
+     * Starts watching the library directory for changes. The listing is
+     * regenerated straight away, and then at the given interval, so that
+     * requests for the library can be answered without scanning it again.
+     * @param interval The time between each scan in milliseconds
+     */
+    public synchronized void startWatching(long interval)
+    {
+        if (watcher != null)
+        {
+            return;
+        }
+
+        watcher = new Timer("Audio library watcher", true);
+        watcher.schedule(new TimerTask()
+        {
+            @Override
+            public void run()
+            {
+                generateListing();
+            }
+        }, 0, interval);
+    }
+
+    /**
+     * Stops watching the library directory for changes
+     */
+    public synchronized void stopWatching()
+    {
+        if (watcher != null)
+        {
+            watcher.cancel();
+            watcher = null;
+        }
+    }
+
+    private void scanDirectory(File directory, List<File> mp3Files)
     {
         File[] files = directory.listFiles(new FileFilter()
         {
@@ -114,7 +539,7 @@ public class AudioLibrary
                 {
                     return true;
                 }
-                if (Utils.getExtension(pathname).equals("mp3"))
+                if ("mp3".equals(Utils.getExtension(pathname)))
                 {
                     return true;
                 }
@@ -122,15 +547,21 @@ public class AudioLibrary
             }
         });
 
+        if (files == null)
+        {
+            // not a directory, or it could not be read
+            return;
+        }
+
         for (File file : files)
         {
             if(file.isDirectory())
             {
-                generateListing(file);
+                scanDirectory(file, mp3Files);
             }
             else
             {
-                addFile(file);
+                mp3Files.add(file);
             }
         }
     }
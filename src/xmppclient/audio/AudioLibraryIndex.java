@@ -0,0 +1,237 @@
+package xmppclient.audio;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A persistent index of the tags read from the files in an audio library. Each
+ * entry is keyed by the absolute path of the file and remembers the size and
+ * modification time the tag was read at, so a file only needs to be parsed
+ * again if it has changed since it was last indexed. The index also assigns
+ * each file its ID, which is derived from the path and stays the same for as
+ * long as the file is in the library.
+ * @author Lee Boynton (323326)
+ */
+public class AudioLibraryIndex
+{
+    private File indexFile;
+    private Map<String, Entry> entries = new HashMap<String, Entry>();
+    private Set<Integer> ids = new HashSet<Integer>();
+    private boolean modified = false;
+
+    /**
+     * Creates a new, empty index which is stored in the given file
+     * @param indexFile The file the index is loaded from and saved to
+     */
+    public AudioLibraryIndex(File indexFile)
+    {
+        this.indexFile = indexFile;
+    }
+
+    /**
+     * Loads the index from file. If the file does not exist or cannot be read
+     * the index is left empty, and every file will be parsed on the next scan.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized void load()
+    {
+        try
+        {
+            ObjectInputStream fileIn = new ObjectInputStream(new FileInputStream(indexFile));
+
+            try
+            {
+                Object foundObject = fileIn.readObject();
+                if (foundObject instanceof HashMap)
+                {
+                    entries = (Map<String, Entry>) foundObject;
+                }
+            }
+            finally
+            {
+                fileIn.close();
+            }
+        }
+        catch (FileNotFoundException ex)
+        {
+            // index has not been created yet
+        }
+        catch (ClassNotFoundException ex)
+        {
+            Logger.getLogger(AudioLibraryIndex.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        catch (IOException ex)
+        {
+            // the index is corrupt or from an older version, so start again
+            Logger.getLogger(AudioLibraryIndex.class.getName()).log(Level.WARNING, null, ex);
+        }
+
+        ids.clear();
+        for (Entry entry : entries.values())
+        {
+            ids.add(entry.id);
+        }
+
+        modified = false;
+    }
+
+    /**
+     * Saves the index to file if it has changed since it was loaded or last
+     * saved. The index is written to a temporary file first and then renamed,
+     * so an interrupted save does not leave a corrupt index behind.
+     */
+    public synchronized void save()
+    {
+        if (!modified)
+        {
+            return;
+        }
+
+        File tempFile = new File(indexFile.getAbsolutePath() + ".tmp");
+
+        try
+        {
+            ObjectOutputStream fileOut = new ObjectOutputStream(new FileOutputStream(tempFile));
+
+            try
+            {
+                fileOut.writeObject(entries);
+            }
+            finally
+            {
+                fileOut.close();
+            }
+
+            // rename will not replace an existing file on all platforms
+            if (!tempFile.renameTo(indexFile))
+            {
+                indexFile.delete();
+                tempFile.renameTo(indexFile);
+            }
+
+            modified = false;
+        }
+        catch (IOException ex)
+        {
+            Logger.getLogger(AudioLibraryIndex.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * Gets the audio file for the given file from the index, if the file has
+     * not changed since it was indexed
+     * @param file The file to look up
+     * @return The indexed audio file, or null if the file is not in the index
+     * or its size or modification time have changed
+     */
+    public synchronized AudioFile get(File file)
+    {
+        Entry entry = entries.get(file.getAbsolutePath());
+
+        if (entry == null || entry.size != file.length() || entry.lastModified != file.lastModified())
+        {
+            return null;
+        }
+
+        AudioFile audioFile = new AudioFile(entry.name, entry.artist, entry.album, entry.track, file);
+        audioFile.setId(entry.id);
+        return audioFile;
+    }
+
+    /**
+     * Adds or replaces the index entry for the given audio file, using the
+     * current size and modification time of the file. The ID of the audio file
+     * is set to the ID of the existing entry for the path, or a new ID derived
+     * from the path if the file has not been indexed before.
+     * @param audioFile The audio file to add
+     */
+    public synchronized void put(AudioFile audioFile)
+    {
+        File file = audioFile.getFile();
+        String path = file.getAbsolutePath();
+        Entry entry = entries.get(path);
+
+        if (entry == null)
+        {
+            entry = new Entry();
+            entry.id = createId(path);
+        }
+
+        audioFile.setId(entry.id);
+        entry.size = file.length();
+        entry.lastModified = file.lastModified();
+        entry.name = audioFile.getName();
+        entry.artist = audioFile.getArtist();
+        entry.album = audioFile.getAlbum();
+        entry.track = audioFile.getTrack();
+        entries.put(path, entry);
+        modified = true;
+    }
+
+    /**
+     * Creates an ID from the hash of the path. If the hash is already used by
+     * another file then the next free value is taken instead, and as IDs are
+     * stored in the index the file keeps that ID when the library is rescanned.
+     */
+    private int createId(String path)
+    {
+        int id = path.hashCode();
+
+        while (!ids.add(id))
+        {
+            id++;
+        }
+
+        return id;
+    }
+
+    /**
+     * Removes every entry whose path is not in the given set, so files which
+     * have been deleted from the library are dropped from the index
+     * @param paths The absolute paths of the files which should be kept
+     */
+    public synchronized void retainAll(Set<String> paths)
+    {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+
+        while (it.hasNext())
+        {
+            Map.Entry<String, Entry> entry = it.next();
+
+            if (!paths.contains(entry.getKey()))
+            {
+                ids.remove(entry.getValue().id);
+                it.remove();
+                modified = true;
+            }
+        }
+    }
+
+    /**
+     * The tag details and file attributes stored for each indexed file
+     */
+    private static class Entry implements Serializable
+    {
+        private static final long serialVersionUID = 2L;
+        private int id;
+        private long size;
+        private long lastModified;
+        private String name;
+        private String artist;
+        private String album;
+        private String track;
+    }
+}
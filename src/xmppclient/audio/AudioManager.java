@@ -25,10 +25,27 @@ import xmppclient.jingle.JingleManager;
  */
 public class AudioManager
 {
+    /**
+     * The time in milliseconds between each scan of the audio library for
+     * new, changed or removed files
+     */
+    public static final long LIBRARY_SCAN_INTERVAL = 60000;
+    /**
+     * The maximum number of threads used to read tags when scanning the audio
+     * library. This bounds the number of files being read from disk at once.
+     */
+    public static final int MAX_SCAN_THREADS = 4;
+    /**
+     * The number of files requested in each page of an audio library. Larger
+     * libraries are sent in several responses so that no single stanza is too
+     * big for the server.
+     */
+    public static final int PAGE_SIZE = 250;
     private XMPPConnection connection;
     private AudioLibrary library;
     private List<AudioRequestListener> audioRequestListeners;
     private List<AudioResponseListener> audioResponseListeners;
+    private boolean broadcastEnabled = true;
     
     static
     {
@@ -57,6 +74,8 @@ public class AudioManager
     {
         this.connection = connection;
         library = new AudioLibrary(libraryPath);
+        library.setScanThreads(Math.min(MAX_SCAN_THREADS, Runtime.getRuntime().availableProcessors()));
+        library.startWatching(LIBRARY_SCAN_INTERVAL);
         this.addRequestListener(new AudioRequestListener()
         {
             @Override
@@ -68,8 +87,13 @@ public class AudioManager
                 {
                     System.out.println("Audio library requested");
 
-                    library.generateListing();
-                    Audio audio = new Audio(library.getAudioFiles());
+                    // the library watcher keeps the listing up to date, so it
+                    // only needs generating here if the first scan hasn't run
+                    if (!library.isGenerated())
+                    {
+                        library.generateListing();
+                    }
+                    Audio audio = createLibraryResponse(request.getAudio());
                     audio.setFrom(connection.getUser());
                     audio.setTo(request.getFrom());
                     connection.sendPacket(audio);
@@ -89,7 +113,14 @@ public class AudioManager
                     
                     try
                     {
-                        jingleManager.createOutgoingSession(request.getAudio().getFrom(), file.getAbsolutePath());
+                        if (broadcastEnabled)
+                        {
+                            jingleManager.createBroadcastSession(request.getAudio().getFrom(), file.getAbsolutePath());
+                        }
+                        else
+                        {
+                            jingleManager.createOutgoingSession(request.getAudio().getFrom(), file.getAbsolutePath());
+                        }
                     }
                     catch (XMPPException ex)
                     {
@@ -104,6 +135,86 @@ public class AudioManager
         });
     }
 
+    /**
+     * Creates a response to a library request. If the request includes the
+     * version the requester already has then only the changes since that
+     * version are sent, and if it includes a page size then only one page of
+     * files is sent, following the last file the requester received.
+     * <p>
+     * Pages are sent in order of file ID, so a rescan between two pages does
+     * not shift the later ones. Each page carries the version it was created
+     * from, and the requester keeps the version of the first page. Anything
+     * added, changed or removed after that is then sent again with the next
+     * request for changes, even if it was already passed over by this one.
+     * @param request The library request
+     * @return The library response
+     */
+    private Audio createLibraryResponse(Audio request)
+    {
+        long since = request.getSince();
+        boolean changesOnly = since != Audio.NOT_SET && library.hasChangesSince(since);
+
+        // get the version first, so any files changed while the response is
+        // being created are sent again next time rather than missed
+        long version = library.getVersion();
+        Audio response;
+
+        if (request.getMax() == Audio.NOT_SET)
+        {
+            response = new Audio(new ArrayList<AudioFile>(library.getFilesChangedSince(since)));
+        }
+        else
+        {
+            int max = Math.max(request.getMax(), 1);
+
+            // ask for one more file than is wanted, to find out if there is
+            // another page after this one
+            List<AudioFile> files = library.getFilesChangedSince(since, request.getAfter(), max + 1);
+            boolean more = files.size() > max;
+
+            response = new Audio(new ArrayList<AudioFile>(files.subList(0, Math.min(max, files.size()))));
+            response.setAfter(request.getAfter());
+            response.setMore(more);
+        }
+        response.setVersion(version);
+
+        if (changesOnly)
+        {
+            response.setSince(since);
+
+            // removed IDs are small, so they are all sent with the first page
+            if (request.getAfter() == null)
+            {
+                for (Integer id : library.getFilesRemovedSince(since))
+                {
+                    response.addRemovedId(id);
+                }
+            }
+        }
+
+        return response;
+    }
+
+    /**
+     * Sets whether requests for the same file from several users should share
+     * a single read of the file. This is enabled by default.
+     * @param broadcastEnabled True to share reads, false to read the file
+     * separately for each request
+     */
+    public void setBroadcastEnabled(boolean broadcastEnabled)
+    {
+        this.broadcastEnabled = broadcastEnabled;
+    }
+
+    /**
+     * Stops watching the audio library for changes. This should be called when
+     * the connection associated with the manager is closed.
+     */
+    public void close()
+    {
+        library.stopWatching();
+    }
+
     /**
      * Used to enable or disable the audio library feature for the given XMPP connection
      * @param connection The XMPP connection
@@ -142,11 +253,28 @@ public class AudioManager
      * @param JID The JID the request should be sent to
      */
     public void sendRequest(String JID)
+    {
+        sendRequest(JID, Audio.NOT_SET, null);
+    }
+
+    /**
+     * Sends a request for one page of the given JID's audio library. Responses
+     * say if there are more files, so the next page can be requested, after
+     * the last file received, when it is needed.
+     * @param JID The JID the request should be sent to
+     * @param since The version of the library already received, to get only
+     * the changes since then, or {@link Audio#NOT_SET} for the whole library
+     * @param after The ID of the last file received, or null for the first page
+     */
+    public void sendRequest(String JID, long since, Integer after)
     {
         Audio request = new Audio();
         request.setTo(JID);
         request.setFrom(connection.getUser());
         request.setAudioType(Audio.AudioType.LIBRARY);
+        request.setSince(since);
+        request.setAfter(after);
+        request.setMax(PAGE_SIZE);
         connection.sendPacket(request);
     }
 
@@ -5,6 +5,7 @@
 package xmppclient.audio.packet;
 
 import xmppclient.audio.*;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import org.jivesoftware.smack.packet.IQ;
@@ -26,9 +27,19 @@ public class Audio extends IQ
      * The element name of the XML tag
      */
     public static final String ELEMENTNAME = "audio";
+    /**
+     * The value of the paging and version attributes when they are not set
+     */
+    public static final int NOT_SET = -1;
     private List<AudioFile> audioFiles;
+    private List<Integer> removedIds = new ArrayList<Integer>();
     private String AId;
     private AudioType audioType;
+    private Integer after;
+    private int max = NOT_SET;
+    private boolean more = false;
+    private long version = NOT_SET;
+    private long since = NOT_SET;
 
     /**
      * Creates a new audio packet with an empty list of audio files
@@ -107,6 +118,120 @@ public class Audio extends IQ
         return audioFiles;
     }
     
+    /**
+     * Adds the ID of a file which has been removed from the library. Only used
+     * in library responses to requests for changes since a version.
+     * @param id The ID of the removed file
+     */
+    public void addRemovedId(int id)
+    {
+        removedIds.add(id);
+    }
+
+    /**
+     * Gets the IDs of the files which have been removed from the library
+     * @return The list of IDs, which may be empty
+     */
+    public List<Integer> getRemovedIds()
+    {
+        return removedIds;
+    }
+
+    /**
+     * Gets the ID of the last file before this page of the library. Pages are
+     * sent in order of file ID, so in requests this is the ID of the last file
+     * the requester has received.
+     * @return The ID, or null for the first page
+     */
+    public Integer getAfter()
+    {
+        return after;
+    }
+
+    /**
+     * Sets the ID of the last file before this page of the library
+     * @param after The ID, or null for the first page
+     */
+    public void setAfter(Integer after)
+    {
+        this.after = after;
+    }
+
+    /**
+     * Gets the maximum number of files the requester wants in each page
+     * @return The page size, or {@link #NOT_SET} to get the whole library at once
+     */
+    public int getMax()
+    {
+        return max;
+    }
+
+    /**
+     * Sets the maximum number of files the requester wants in each page
+     * @param max The page size
+     */
+    public void setMax(int max)
+    {
+        this.max = max;
+    }
+
+    /**
+     * Used to determine if there are more files after this page of the library
+     * @return True if the next page should be requested, false if this is the
+     * last page or the library is not paged
+     */
+    public boolean hasMore()
+    {
+        return more;
+    }
+
+    /**
+     * Sets whether there are more files after this page of the library
+     * @param more True if there are more files, false otherwise
+     */
+    public void setMore(boolean more)
+    {
+        this.more = more;
+    }
+
+    /**
+     * Gets the version of the library this response was created from
+     * @return The version, or {@link #NOT_SET} if not known
+     */
+    public long getVersion()
+    {
+        return version;
+    }
+
+    /**
+     * Sets the version of the library this response was created from
+     * @param version The version
+     */
+    public void setVersion(long version)
+    {
+        this.version = version;
+    }
+
+    /**
+     * Gets the version of the library the requester already has. If this is
+     * set in a response then the response only contains the changes since
+     * that version, rather than the whole library.
+     * @return The version, or {@link #NOT_SET} for the whole library
+     */
+    public long getSince()
+    {
+        return since;
+    }
+
+    /**
+     * Sets the version of the library the requester already has
+     * @param since The version
+     */
+    public void setSince(long since)
+    {
+        this.since = since;
+    }
+
     /**
      * Gets the first audio file in this packet. Useful for file requests when
      * there is only one file.
@@ -121,16 +246,58 @@ public class Audio extends IQ
     public String getChildElementXML()
     {
         StringBuilder buf = new StringBuilder();
+
+        try
+        {
+            writeChildElementTo(buf);
+        }
+        catch (IOException ex)
+        {
+            // appending to a StringBuilder never fails
+        }
+
+        return buf.toString();
+    }
+
+    /**
+     * Writes the audio element straight to the stream, so a large library
+     * listing is not built as a String before it is sent. This is used by the
+     * packet writer instead of {@link #getChildElementXML()}.
+     * @param buf The stream to write to
+     * @throws java.io.IOException If the XML could not be written
+     */
+    public void writeChildElementTo(Appendable buf) throws IOException
+    {
         buf.append("<audio");
         buf.append(" xmlns=\"").append(NAMESPACE).append("\"");
         if(audioType != null)
         {
-            buf.append(" type=\"").append(audioType).append("\"");
+            buf.append(" type=\"").append(audioType.toString()).append("\"");
         }
         if (AId != null)
         {
             buf.append(" aid=\"").append(AId).append("\"");
         }
+        if (after != null)
+        {
+            buf.append(" after=\"").append(String.valueOf(after)).append("\"");
+        }
+        if (max != NOT_SET)
+        {
+            buf.append(" max=\"").append(String.valueOf(max)).append("\"");
+        }
+        if (more)
+        {
+            buf.append(" more=\"true\"");
+        }
+        if (version != NOT_SET)
+        {
+            buf.append(" version=\"").append(String.valueOf(version)).append("\"");
+        }
+        if (since != NOT_SET)
+        {
+            buf.append(" since=\"").append(String.valueOf(since)).append("\"");
+        }
 
         buf.append(">");
         if (getType() == IQ.Type.SET && audioType == AudioType.LIBRARY)
@@ -138,23 +305,26 @@ public class Audio extends IQ
             for (AudioFile file : audioFiles)
             {
                 buf.append("<file");
-                buf.append(" id=\"").append(file.getId()).append("\"");
+                buf.append(" id=\"").append(String.valueOf(file.getId())).append("\"");
                 buf.append(" artist=\"").append(StringUtils.escapeForXML(file.getArtist())).append("\"");
                 buf.append(" album=\"").append(StringUtils.escapeForXML(file.getAlbum())).append("\"");
                 buf.append(" track=\"").append(StringUtils.escapeForXML(file.getTrack())).append("\">");
                 buf.append(StringUtils.escapeForXML(file.getName()));
                 buf.append("</file>");
             }
+            for (Integer id : removedIds)
+            {
+                buf.append("<removed id=\"").append(String.valueOf(id)).append("\"/>");
+            }
         }
         if (audioType == AudioType.FILE)
         {
             for (AudioFile file : audioFiles)
             {
-                buf.append("<file id=\"").append(file.getId()).append("\"/>");
+                buf.append("<file id=\"").append(String.valueOf(file.getId())).append("\"/>");
             }
         }
         buf.append("</audio>");
-        return buf.toString();
     }
 
     /**
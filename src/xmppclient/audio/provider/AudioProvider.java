@@ -36,6 +36,12 @@ public class AudioProvider implements IQProvider
         
         audio.setAId(parser.getAttributeValue("", "aid"));
         audio.setAudioType(AudioType.getAudioType(parser.getAttributeValue("", "type")));
+        String after = parser.getAttributeValue("", "after");
+        audio.setAfter(after == null ? null : Integer.valueOf(after));
+        audio.setMax(parseInt(parser.getAttributeValue("", "max")));
+        audio.setMore("true".equals(parser.getAttributeValue("", "more")));
+        audio.setVersion(parseLong(parser.getAttributeValue("", "version")));
+        audio.setSince(parseLong(parser.getAttributeValue("", "since")));
 
         while(true)
         {
@@ -54,6 +60,10 @@ public class AudioProvider implements IQProvider
                     file.setName(parser.nextText());
                     audio.addFile(file);
                 }
+                else if (elementName.equals("removed"))
+                {
+                    audio.addRemovedId(Integer.parseInt(parser.getAttributeValue("", "id")));
+                }
             }
             else if (eventType == XmlPullParser.END_TAG)
             {
@@ -66,6 +76,16 @@ public class AudioProvider implements IQProvider
         
         return audio;
     }
+
+    private int parseInt(String value)
+    {
+        return value == null ? Audio.NOT_SET : Integer.parseInt(value);
+    }
+
+    private long parseLong(String value)
+    {
+        return value == null ? Audio.NOT_SET : Long.parseLong(value);
+    }
     
     /**
      * Used for testing the parser
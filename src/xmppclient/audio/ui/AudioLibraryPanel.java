@@ -6,7 +6,15 @@
 package xmppclient.audio.ui;
 
 import java.awt.Component;
+import java.awt.event.AdjustmentEvent;
+import java.awt.event.AdjustmentListener;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.swing.DefaultListCellRenderer;
@@ -17,10 +25,13 @@ import xmppclient.audio.packet.Audio;
 import javax.swing.DefaultListModel;
 import javax.swing.JLabel;
 import javax.swing.JList;
+import javax.swing.JScrollBar;
+import javax.swing.SwingUtilities;
 import javazoom.jlgui.basicplayer.BasicPlayer;
 import javazoom.jlgui.basicplayer.BasicPlayerException;
 import javazoom.jlgui.basicplayer.BasicPlayerListener;
 import org.jivesoftware.smack.RosterEntry;
+import org.jivesoftware.smack.util.StringUtils;
 import xmppclient.MainUI;
 import xmppclient.audio.AudioManager;
 import xmppclient.images.tango.TangoIcons;
@@ -28,6 +39,7 @@ import xmppclient.jingle.IncomingSession;
 import xmppclient.jingle.JingleManager;
 import xmppclient.jingle.JingleSessionRequest;
 import xmppclient.jingle.JingleSessionRequestListener;
+import xmppclient.jingle.packet.Description;
 
 /**
  * The audio library JPanel allows users to view other user's audio libraries
@@ -39,11 +51,23 @@ public class AudioLibraryPanel extends javax.swing.JPanel implements AudioRespon
 
     private RosterEntry entry;
     private AudioManager audioManager;
-    private AudioMessage response;
+    private Map<Integer, AudioFile> library = new LinkedHashMap<Integer, AudioFile>();
+    private long version = Audio.NOT_SET;
+    private long receivingVersion = Audio.NOT_SET;
     private JingleManager jingleManager;
     private String show;
     private boolean connected = false;
     private IncomingSession session;
+    private DefaultListModel model = new DefaultListModel();
+    private Set<String> shown = new HashSet<String>();
+    private String nextFrom;
+    private long nextSince;
+    private Integer nextAfter;
+    private boolean requestingPage = false;
+    private Map<String, Long> resumePositions = new HashMap<String, Long>();
+    private String resumeKey;
+    private long resumeSize;
+    private boolean stopping = false;
 
     /** 
      * Initialises the panel, and adds listeners for audio library responses
@@ -59,6 +83,14 @@ public class AudioLibraryPanel extends javax.swing.JPanel implements AudioRespon
         this.entry = entry;
         this.jingleManager = jingleManager;
         initComponents();
+        jScrollPane1.getVerticalScrollBar().addAdjustmentListener(new AdjustmentListener()
+        {
+            @Override
+            public void adjustmentValueChanged(AdjustmentEvent e)
+            {
+                requestPageIfNeeded();
+            }
+        });
         audioManager.addResponseListener(this);
         jingleManager.addSessionRequestListener(new JingleSessionRequestListener()
         {
@@ -66,7 +98,11 @@ public class AudioLibraryPanel extends javax.swing.JPanel implements AudioRespon
             @Override
             public void sessionRequested(JingleSessionRequest request)
             {
-                session = request.accept();
+                // a stream which was cut off resumes from where it stopped
+                resumeKey = getResumeKey(request);
+                Long position = resumePositions.remove(resumeKey);
+                stopping = false;
+                session = position == null ? request.accept() : request.accept(position);
                 connected = true;
                 session.getPlayer().addBasicPlayerListener(AudioLibraryPanel.this);
                 stopButton.setEnabled(true);
@@ -83,11 +119,14 @@ public class AudioLibraryPanel extends javax.swing.JPanel implements AudioRespon
     }
 
     /**
-     * Sends a library request to the remote user
+     * Sends a library request to the remote user. If the library has already
+     * been received then only the changes since then are requested.
      */
     public void refresh()
     {
-        audioManager.sendRequest(MainUI.connection.getRoster().getPresence(entry.getUser()).getFrom());
+        nextAfter = null;
+        requestingPage = true;
+        audioManager.sendRequest(MainUI.connection.getRoster().getPresence(entry.getUser()).getFrom(), version, null);
     }
 
     /** This method is called from within the constructor to
@@ -276,6 +315,7 @@ public class AudioLibraryPanel extends javax.swing.JPanel implements AudioRespon
 
     private void stopButtonActionPerformed(java.awt.event.ActionEvent evt)
     {
+        stopping = true;
         try
         {
             session.getControl().stop();
@@ -312,52 +352,160 @@ public class AudioLibraryPanel extends javax.swing.JPanel implements AudioRespon
     private javax.swing.JButton stopButton;
     private javax.swing.JSlider volumeSlider;
     // End of variables declaration                                 
+    /**
+     * Adds the files in the response to the library. The list is updated as
+     * each page arrives, so the first files can be browsed before the rest of
+     * the library is received.
+     * @param response The library response
+     */
     @Override
     public void audioResponse(final AudioMessage response)
     {
+        final Audio audio = response.getAudio();
+
+        // responses for other users' libraries go to every panel
+        if (!StringUtils.parseBareAddress(audio.getFrom()).equals(entry.getUser()))
+        {
+            return;
+        }
+
         System.out.println("Audio library response received");
-        this.response = response;
-        showAll();
+
+        SwingUtilities.invokeLater(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                addPage(audio);
+            }
+        });
     }
 
-    private void showAlbum(String album)
+    /**
+     * Adds one page of the library. Pages of the whole library only add their
+     * own rows to the list, so it keeps its selection and scroll position, and
+     * the next page is not requested until the list is scrolled near its end.
+     */
+    private void addPage(Audio audio)
     {
-        albumButton.setText(album);
-        artistButton.setVisible(true);
-        albumButton.setVisible(true);
-        show = "album";
+        List<AudioFile> files = audio.getAudioFiles();
+        boolean firstPage = audio.getAfter() == null;
 
-        DefaultListModel model = new DefaultListModel();
-        Audio audio = response.getAudio();
-
-        for (AudioFile file : audio.getAudioFiles())
+        synchronized (library)
         {
-            if (file.getAlbum().equals(album))
+            if (firstPage)
+            {
+                // later pages may come from newer versions of the library, but
+                // anything changed since the first one is sent again next time
+                receivingVersion = audio.getVersion();
+
+                // not a list of changes, so replace the whole library
+                if (audio.getSince() == Audio.NOT_SET)
+                {
+                    library.clear();
+                }
+            }
+
+            for (Integer id : audio.getRemovedIds())
+            {
+                library.remove(id);
+            }
+
+            for (AudioFile file : files)
             {
-                model.addElement(file);
+                library.put(file.getId(), file);
+            }
+
+            if (!audio.hasMore())
+            {
+                version = receivingVersion;
             }
         }
 
-        audioList.setModel(model);
+        requestingPage = false;
+        if (audio.hasMore() && !files.isEmpty())
+        {
+            nextFrom = audio.getFrom();
+            nextSince = audio.getSince();
+            nextAfter = files.get(files.size() - 1).getId();
+        }
+        else
+        {
+            nextAfter = null;
+        }
+
+        if (firstPage || audio.getSince() != Audio.NOT_SET)
+        {
+            // changes can replace or remove rows, so show the list again
+            showCurrent();
+        }
+        else
+        {
+            addToList(files);
+        }
+
+        requestPageIfNeeded();
     }
 
-    private void showAll()
+    /**
+     * Requests the next page of the library if there is one and less than a
+     * screen of the list is left below the part being shown
+     */
+    private void requestPageIfNeeded()
     {
-        show = "all";
-        artistButton.setVisible(false);
-        albumButton.setVisible(false);
-        DefaultListModel model = new DefaultListModel();
-        Audio audio = response.getAudio();
+        if (nextAfter == null || requestingPage || !audioList.isShowing())
+        {
+            return;
+        }
+
+        JScrollBar scrollBar = jScrollPane1.getVerticalScrollBar();
 
-        for (AudioFile file : audio.getAudioFiles())
+        if (scrollBar.getValue() + 2 * scrollBar.getVisibleAmount() >= scrollBar.getMaximum())
         {
-            if (!model.contains(file.getArtist()))
-            {
-                model.addElement(file.getArtist());
-            }
+            requestingPage = true;
+            audioManager.sendRequest(nextFrom, nextSince, nextAfter);
         }
+    }
 
-        audioList.setModel(model);
+    private List<AudioFile> getFiles()
+    {
+        synchronized (library)
+        {
+            return new ArrayList<AudioFile>(library.values());
+        }
+    }
+
+    private void showCurrent()
+    {
+        if ("album".equals(show))
+        {
+            showAlbum(albumButton.getText());
+        }
+        else if ("artist".equals(show))
+        {
+            showArtist(artistButton.getText());
+        }
+        else
+        {
+            showAll();
+        }
+    }
+
+    private void showAlbum(String album)
+    {
+        albumButton.setText(album);
+        artistButton.setVisible(true);
+        albumButton.setVisible(true);
+        show = "album";
+        showFiles();
+    }
+
+    private void showAll()
+    {
+        show = "all";
+        artistButton.setVisible(false);
+        albumButton.setVisible(false);
+        showFiles();
     }
 
     private void showArtist(String artist)
@@ -366,19 +514,103 @@ public class AudioLibraryPanel extends javax.swing.JPanel implements AudioRespon
         albumButton.setVisible(false);
         artistButton.setText(artist);
         show = "artist";
+        showFiles();
+    }
 
-        DefaultListModel model = new DefaultListModel();
-        Audio audio = response.getAudio();
+    private void showFiles()
+    {
+        model = new DefaultListModel();
+        shown.clear();
+        addToList(getFiles());
+        audioList.setModel(model);
+    }
 
-        for (AudioFile file : audio.getAudioFiles())
+    /**
+     * Adds the rows for the given files to the list being shown. Artists and
+     * albums are added the first time one of their files is seen, so duplicates
+     * are found by hash rather than by searching the model.
+     */
+    private void addToList(List<AudioFile> files)
+    {
+        for (AudioFile file : files)
         {
-            if (file.getArtist().equals(artist) && !model.contains(file.getAlbum()))
+            if ("album".equals(show))
             {
-                model.addElement(file.getAlbum());
+                if (file.getAlbum().equals(albumButton.getText()))
+                {
+                    addSorted(file);
+                }
+            }
+            else if ("artist".equals(show))
+            {
+                if (file.getArtist().equals(artistButton.getText()) && shown.add(file.getAlbum()))
+                {
+                    addSorted(file.getAlbum());
+                }
+            }
+            else if (shown.add(file.getArtist()))
+            {
+                addSorted(file.getArtist());
             }
         }
+    }
 
-        audioList.setModel(model);
+    /**
+     * Inserts a row in order. Pages arrive in order of file ID, so rows are
+     * sorted as they are added rather than shown in the order they arrive.
+     */
+    private void addSorted(Object row)
+    {
+        int low = 0;
+        int high = model.size();
+
+        while (low < high)
+        {
+            int middle = (low + high) >>> 1;
+
+            if (compareRows(model.get(middle), row) <= 0)
+            {
+                low = middle + 1;
+            }
+            else
+            {
+                high = middle;
+            }
+        }
+
+        model.add(low, row);
+    }
+
+    private static int compareRows(Object a, Object b)
+    {
+        if (a instanceof AudioFile && b instanceof AudioFile)
+        {
+            AudioFile fileA = (AudioFile) a;
+            AudioFile fileB = (AudioFile) b;
+            int result = getTrackNumber(fileA) - getTrackNumber(fileB);
+
+            return result != 0 ? result : fileA.getName().compareToIgnoreCase(fileB.getName());
+        }
+
+        return a.toString().compareToIgnoreCase(b.toString());
+    }
+
+    private static int getTrackNumber(AudioFile file)
+    {
+        if (file.getTrack() == null)
+        {
+            return 0;
+        }
+
+        try
+        {
+            return Integer.parseInt(file.getTrack().trim());
+        }
+        catch (NumberFormatException ex)
+        {
+            // tracks without a number go first
+            return 0;
+        }
     }
 
     private void sendFileRequest()
@@ -450,6 +682,7 @@ public class AudioLibraryPanel extends javax.swing.JPanel implements AudioRespon
         }
         if (event.getCode() == BasicPlayerEvent.STOPPED)
         {
+            rememberPosition();
             session.terminate();
             session.getPlayer().removeBasicPlayerListener(this);
             connected = false;
@@ -462,4 +695,47 @@ public class AudioLibraryPanel extends javax.swing.JPanel implements AudioRespon
     public void setController(BasicController controller)
     {
     }
+
+    /**
+     * Remembers where playback had reached if the stream was cut off before
+     * the end of the file, rather than stopped by the user, so that playing
+     * the file again only receives the rest of it
+     */
+    private void rememberPosition()
+    {
+        long position = session.getPosition();
+
+        if (!stopping && resumeKey != null && position > 0 && position < resumeSize)
+        {
+            resumePositions.put(resumeKey, position);
+        }
+        stopping = false;
+    }
+
+    /**
+     * Gets the key the position of a stream is remembered by, which is the
+     * sender and the file, and sets the size of the file
+     * @return The key, or null if the file's size is not known
+     */
+    private String getResumeKey(JingleSessionRequest request)
+    {
+        Description description = request.getJingle().getDescription();
+
+        if (description == null || !(description.getType() instanceof xmppclient.jingle.packet.File))
+        {
+            return null;
+        }
+        xmppclient.jingle.packet.File file = (xmppclient.jingle.packet.File) description.getType();
+        try
+        {
+            resumeSize = Long.parseLong(file.getSize());
+        }
+        catch (NumberFormatException ex)
+        {
+            return null;
+        }
+
+        return StringUtils.parseBareAddress(request.getFrom()) + "/" + file.getName() + "/" +
+                file.getSize() + "/" + file.getHash();
+    }
 }
\ No newline at end of file
@@ -8,17 +8,20 @@ package xmppclient.chat;
 import java.util.Collection;
 import java.awt.Cursor;
 import java.awt.Point;
+import java.awt.event.AdjustmentEvent;
+import java.awt.event.AdjustmentListener;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
-import javax.swing.text.BadLocationException;
+import java.util.Map;
 import xmppclient.formatter.FormatterUI;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.swing.Icon;
 import javax.swing.JFrame;
+import javax.swing.JScrollBar;
 import javax.swing.JToolTip;
 import javax.swing.SwingUtilities;
-import javax.swing.text.SimpleAttributeSet;
 import javax.swing.text.Style;
 import javax.swing.text.StyleConstants;
 import org.jivesoftware.smack.Chat;
@@ -29,6 +32,7 @@ import org.jivesoftware.smack.packet.Message;
 import org.jivesoftware.smack.packet.Presence;
 import org.jivesoftware.smack.util.StringUtils;
 import org.jivesoftware.smackx.packet.VCard;
+import xmppclient.ChatLog;
 import xmppclient.MainUI;
 import xmppclient.ContactToolTip;
 import xmppclient.EmoticonsUI;
@@ -36,6 +40,7 @@ import xmppclient.FileTransferChooser;
 import xmppclient.SettingsManager;
 import xmppclient.Utils;
 import xmppclient.emoticons.Emoticon;
+import xmppclient.emoticons.EmoticonMatcher;
 import xmppclient.emoticons.Emoticons;
 import xmppclient.formatter.Format;
 
@@ -46,10 +51,18 @@ import xmppclient.formatter.Format;
  */
 public class ChatPanel extends javax.swing.JPanel implements RosterListener
 {
+    /**
+     * The number of messages from the history shown at a time
+     */
+    public static final int HISTORY_PAGE = 20;
     private Chat chat;
     private JFrame parent;
     private Format format = new Format();
     private Presence presence;
+    private final Map<String, String> historyNames = new HashMap<String, String>();
+    // the position in the history of the earliest message shown, or -1 if none are shown
+    private long historyPosition = -1;
+    private int scrollValue;
 
     /**
      * Creates a new JPanel for conducting the chat
@@ -63,7 +76,9 @@ public class ChatPanel extends javax.swing.JPanel implements RosterListener
         this.chat = chat;
         MainUI.connection.getRoster().addRosterListener(this);
         initComponents();
+        MainUI.avatarCache.setAvatar(contactLabel, chat.getParticipant(), 20);
         initTextPane();
+        initHistory();
         if (!MainUI.connection.getRoster().getPresence(chat.getParticipant()).isAvailable())
         {
             sendFileButton.setEnabled(false);
@@ -122,97 +137,172 @@ public class ChatPanel extends javax.swing.JPanel implements RosterListener
         messageTextPane.setCursor(Cursor.getPredefinedCursor(Cursor.TEXT_CURSOR));
     }
 
+    /**
+     * Shows the latest messages from the history, and shows earlier messages
+     * each time the messages are scrolled to the top
+     */
+    private void initHistory()
+    {
+        showHistory();
+        messageScrollPane.getVerticalScrollBar().addAdjustmentListener(new AdjustmentListener()
+        {
+            @Override
+            public void adjustmentValueChanged(AdjustmentEvent e)
+            {
+                // only scrolling up to the top shows more, not the text pane
+                // being laid out, and a drag only once it ends
+                if (e.getValueIsAdjusting())
+                {
+                    return;
+                }
+                int previous = scrollValue;
+                scrollValue = e.getValue();
+                if (scrollValue == 0 && previous > 0)
+                {
+                    showHistory();
+                }
+            }
+        });
+    }
+
+    /**
+     * Shows the page of messages from the history before those already shown
+     * above them, keeping the messages in view where they are
+     */
+    private void showHistory()
+    {
+        ChatLog log = MainUI.settingsManager.getChatLog(chat.getParticipant());
+
+        if (log == null || historyPosition == 0)
+        {
+            return;
+        }
+
+        List<ChatLog.Entry> entries;
+        try
+        {
+            entries = historyPosition < 0 ? log.getLast(HISTORY_PAGE) : log.getBefore(historyPosition, HISTORY_PAGE);
+        }
+        catch (IOException ex)
+        {
+            Logger.getLogger(ChatPanel.class.getName()).log(Level.SEVERE, null, ex);
+            return;
+        }
+        if (entries.isEmpty())
+        {
+            historyPosition = 0;
+            return;
+        }
+        historyPosition = entries.get(0).getPosition();
+
+        final JScrollBar scrollBar = messageScrollPane.getVerticalScrollBar();
+        final int fromBottom = scrollBar.getMaximum() - scrollBar.getValue();
+        ChatTextPaneStyledDocument doc = (ChatTextPaneStyledDocument) messageTextPane.getStyledDocument();
+        int offset = 0;
+        for (ChatLog.Entry entry : entries)
+        {
+            offset = doc.insertHistory(offset, getHistoryName(entry.getFrom()), entry.getTime(), entry.getBody());
+        }
+        SwingUtilities.invokeLater(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                scrollBar.setValue(scrollBar.getMaximum() - fromBottom);
+            }
+        });
+    }
+
+    /**
+     * Gets the name to show for the sender of a message in the history, as
+     * shown for the messages sent and received since
+     */
+    private String getHistoryName(String from)
+    {
+        String name = historyNames.get(from);
+
+        if (name == null)
+        {
+            if (from.equals(StringUtils.parseBareAddress(MainUI.connection.getUser())))
+            {
+                name = Utils.getNickname();
+            }
+            else
+            {
+                name = Utils.getNickname(from);
+            }
+            if (name == null)
+            {
+                name = from;
+            }
+            historyNames.put(from, name);
+        }
+
+        return name;
+    }
+
     /**
      * Adds a message to the messages text pane. Where available is uses the formatting
      * specified in the message.
-     * @param avatar The avatar of the user
      * @param name The name of the user who sent the message
      * @param message The message sent
      */
-    public void addMessage(Icon avatar, String name, Message message)
+    public void addMessage(String name, Message message)
     {
         if(message.getBody() == null || message.getBody().equals("")) return;
-        
-        try
-        {
-            ChatTextPaneStyledDocument doc = (ChatTextPaneStyledDocument) messageTextPane.getStyledDocument();
 
-            // get the formatted text
-            Format newFormat = (Format) message.getProperty("format");
+        // messages sent by the local user have no sender set
+        String from = message.getFrom() == null ? MainUI.connection.getUser() : message.getFrom();
+        long time = Utils.getTime(message);
+        MainUI.settingsManager.logMessage(chat.getParticipant(), StringUtils.parseBareAddress(from), message.getBody(), time, false);
 
-            // create a new style for the formatted text
-            Style newStyle = doc.addStyle("newStyle", null);
+        ChatTextPaneStyledDocument doc = (ChatTextPaneStyledDocument) messageTextPane.getStyledDocument();
 
-            // the format property will only be set by this client
-            if (newFormat != null)
-            {
-                StyleConstants.setFontFamily(newStyle, newFormat.getFont().getFamily());
-                StyleConstants.setFontSize(newStyle, newFormat.getFont().getSize());
-                StyleConstants.setForeground(newStyle, newFormat.getColour());
-                StyleConstants.setItalic(newStyle, newFormat.getFont().isItalic());
-                StyleConstants.setBold(newStyle, newFormat.getFont().isBold());
-            }
+        // get the formatted text
+        Format newFormat = (Format) message.getProperty("format");
 
-            doc.insertUser(name);
-            int start = doc.getLength();
-            doc.insertString(doc.getLength(), message.getBody(), doc.getStyle("newStyle"));
+        // create a new style for the formatted text
+        Style newStyle = doc.addStyle("newStyle", null);
 
-            List<Emoticon> emoticons = MainUI.settingsManager.getEmoticons();
-            emoticons.addAll(Emoticons.getDefaultEmoticons());
+        // the format property will only be set by this client
+        if (newFormat != null)
+        {
+            StyleConstants.setFontFamily(newStyle, newFormat.getFont().getFamily());
+            StyleConstants.setFontSize(newStyle, newFormat.getFont().getSize());
+            StyleConstants.setForeground(newStyle, newFormat.getColour());
+            StyleConstants.setItalic(newStyle, newFormat.getFont().isItalic());
+            StyleConstants.setBold(newStyle, newFormat.getFont().isBold());
+        }
 
-            if (message.getProperty("emoticons") != null &&
-                    message.getProperty("emoticons") instanceof List)
-            {       
-                List tempList = (List) message.getProperty("emoticons");
-                for(Object o:tempList)
-                {
-                    if(o instanceof Emoticon) emoticons.add((Emoticon) o);
-                }
-            }
-            SimpleAttributeSet smi;
+        doc.insertUser(name, time);
 
-            for (int i = start; i < doc.getLength(); i++)
+        EmoticonMatcher matcher = MainUI.settingsManager.getEmoticonMatcher();
+        if (message.getProperty("emoticons") != null &&
+                message.getProperty("emoticons") instanceof List)
+        {       
+            List<Emoticon> messageEmoticons = new ArrayList<Emoticon>();
+            List tempList = (List) message.getProperty("emoticons");
+            for(Object o:tempList)
             {
-                for (Emoticon e : emoticons)
-                {
-                    if ((i + e.getSequence().length()) > doc.getLength())
-                    {
-                        continue;
-                    }
-                    String newString = doc.getText(i, e.getSequence().length());
-
-                    if (newString.equals(e.getSequence()))
-                    {
-                        doc.remove(i, e.getSequence().length());
-                        smi = new SimpleAttributeSet();
-                        StyleConstants.setIcon(smi, e.getIcon());
-                        doc.insertString(i, e.getSequence(), smi);
-
-                        i += e.getSequence().length() - 1;
-                        break;
-                    }
-                }
+                if(o instanceof Emoticon) messageEmoticons.add((Emoticon) o);
             }
+            matcher = matcher.with(messageEmoticons);
+        }
 
-            doc.insertString(doc.getLength(), "\n", doc.getStyle("default"));
+        doc.insertMessage(message.getBody(), newStyle, matcher);
 
-            messageTextPane.setCaretPosition(doc.getLength());
-        }
-        catch (BadLocationException ex)
-        {
-            Logger.getLogger(ChatPanel.class.getName()).log(Level.SEVERE, null, ex);
-        }
+        messageTextPane.setCaretPosition(doc.getLength());
     }
 
     /**
-     * This method is called when the JFrame is closing, and calls the log conversation
-     * method in the {@link SettingsManager} and supplies the text pane and the 
-     * JID of the participant in the chat as parameters
+     * This method is called when the JFrame is closing, and closes the message
+     * history of the chat in the {@link SettingsManager}. The messages have
+     * already been logged as they were added.
      * @see SettingsManager
      */
     public void saveChat()
     {
-        MainUI.settingsManager.logConversation(messageTextPane, chat.getParticipant());
+        MainUI.settingsManager.closeChatLog(chat.getParticipant());
     }
 
     /**
@@ -257,7 +347,6 @@ public class ChatPanel extends javax.swing.JPanel implements RosterListener
     sendTextArea = new javax.swing.JTextArea();
 
     contactLabel.setFont(new java.awt.Font("Tahoma", 1, 12));
-    contactLabel.setIcon(Utils.getAvatar(chat.getParticipant(), 20));
     contactLabel.setText(Utils.getNickname(chat.getParticipant()));
     contactLabel.setToolTipText(StringUtils.unescapeNode(chat.getParticipant()));
 
@@ -377,7 +466,7 @@ public class ChatPanel extends javax.swing.JPanel implements RosterListener
             message.setProperty("format", format);
             message.setProperty("emoticons", getCustomEmoticons());
             chat.sendMessage(message);
-            addMessage(Utils.getAvatar(50), Utils.getNickname(), message);
+            addMessage(Utils.getNickname(), message);
             sendTextArea.setText("");
         }
         catch (XMPPException ex)
@@ -389,33 +478,16 @@ public class ChatPanel extends javax.swing.JPanel implements RosterListener
     private List<Emoticon> getCustomEmoticons()
     {
         List<Emoticon> emoticons = new ArrayList<Emoticon>();
+        List<Emoticon> defaults = Emoticons.getDefaultEmoticons();
 
-        try
+        for (EmoticonMatcher.Match match : MainUI.settingsManager.getEmoticonMatcher().match(sendTextArea.getText()))
         {
-            for (int i = 0; i < sendTextArea.getText().length(); i++)
+            Emoticon e = match.getEmoticon();
+            if (!defaults.contains(e) && !emoticons.contains(e))
             {
-                for (Emoticon e : MainUI.settingsManager.getEmoticons())
-                {
-                    if ((i + e.getSequence().length()) > sendTextArea.getText().length())
-                    {
-                        continue;
-                    }
-                    String newString = sendTextArea.getText(i, e.getSequence().length());
-
-                    if (newString.equals(e.getSequence()))
-                    {
-                        if (!emoticons.contains(e))
-                        {
-                            emoticons.add(e);
-                        }
-                    }
-                }
+                emoticons.add(e);
             }
         }
-        catch (BadLocationException ex)
-        {
-            ex.printStackTrace();
-        }
 
         return emoticons;
     }
@@ -501,7 +573,7 @@ private void sendTextAreaKeyReleased(java.awt.event.KeyEvent evt) {//GEN-FIRST:e
             if(this.presence.isAvailable()) sendFileButton.setEnabled(true);
             else sendFileButton.setEnabled(false);
             contactLabel.setText(Utils.getNickname(chat.getParticipant()));
-            contactLabel.setIcon(Utils.getAvatar(chat.getParticipant(), 20));
+            MainUI.avatarCache.setAvatar(contactLabel, chat.getParticipant(), 20);
         }
     }
 }
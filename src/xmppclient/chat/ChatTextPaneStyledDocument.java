@@ -5,18 +5,19 @@
 package xmppclient.chat;
 
 import java.text.SimpleDateFormat;
-import java.util.Calendar;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.swing.text.AttributeSet;
 import javax.swing.text.BadLocationException;
 import javax.swing.text.DefaultStyledDocument;
 import javax.swing.text.SimpleAttributeSet;
 import javax.swing.text.Style;
 import javax.swing.text.StyleConstants;
 import xmppclient.MainUI;
-import xmppclient.emoticons.Emoticon;
-import xmppclient.emoticons.Emoticons;
+import xmppclient.emoticons.EmoticonMatcher;
 import xmppclient.formatter.Format;
 
 /**
@@ -51,15 +52,19 @@ public class ChatTextPaneStyledDocument extends DefaultStyledDocument
      */
     public void insertTime(String style)
     {
-        Calendar cal = Calendar.getInstance();
-        SimpleDateFormat sdf = new SimpleDateFormat("dd/MM/yy HH:mm:ss");
-
-        String time = sdf.format(cal.getTime());
+        insertTime(style, System.currentTimeMillis());
+    }
 
+    /**
+     * Inserts the given day and time into the document using the specified style
+     * @param style The style to use
+     * @param time The time in milliseconds
+     */
+    public void insertTime(String style, long time)
+    {
         try
         {
-
-            super.insertString(super.getLength(), "(" + time + ") ", super.getStyle(style));
+            super.insertString(super.getLength(), "(" + formatTime(time) + ") ", super.getStyle(style));
         }
         catch (BadLocationException ex)
         {
@@ -72,6 +77,17 @@ public class ChatTextPaneStyledDocument extends DefaultStyledDocument
      * @param nickname The nickname
      */
     public void insertUser(String nickname)
+    {
+        insertUser(nickname, System.currentTimeMillis());
+    }
+
+    /**
+     * Inserts the nickname using the nickname style, after the time the
+     * message was sent
+     * @param nickname The nickname
+     * @param time The time the message was sent, in milliseconds
+     */
+    public void insertUser(String nickname, long time)
     {
         if (lastUser.equals(nickname))
         {
@@ -79,7 +95,7 @@ public class ChatTextPaneStyledDocument extends DefaultStyledDocument
         }
         try
         {
-            insertTime("default");
+            insertTime("default", time);
             super.insertString(super.getLength(), nickname + ": ", super.getStyle("nickname"));
             lastUser = nickname;
         }
@@ -126,13 +142,23 @@ public class ChatTextPaneStyledDocument extends DefaultStyledDocument
      * @param style
      */
     public void insertMessage(String message, Style style)
+    {
+        insertMessage(message, style, MainUI.settingsManager.getEmoticonMatcher());
+    }
+
+    /**
+     * Inserts a chat message into the document using the specified style,
+     * showing the emoticons found by the given matcher as icons. The message
+     * will be followed by a linebreak.
+     * @param message The message to insert
+     * @param style The style to use
+     * @param matcher The matcher for the emoticons to show
+     */
+    public void insertMessage(String message, AttributeSet style, EmoticonMatcher matcher)
     {
         try
         {
-            int start = super.getLength();
-            super.insertString(super.getLength(), message + "\n", style);
-            int end = super.getLength();
-            showEmoticons(start, end);
+            insertWithEmoticons(message + "\n", style, matcher);
         }
         catch (BadLocationException ex)
         {
@@ -158,46 +184,114 @@ public class ChatTextPaneStyledDocument extends DefaultStyledDocument
     }
 
     /**
-     * Recursively goes through the document from the start location to the end
-     * location given and converts any emoticon character sequences into the
-     * appropriate emoticon icon
-     * @param start The start location
-     * @param end The end location
+     * Inserts a message from the history at the given position, using the
+     * info style. This is used to show earlier messages above those already
+     * shown.
+     * @param offset The position to insert the message at
+     * @param nickname The nickname of the sender
+     * @param time The time the message was sent, in milliseconds
+     * @param message The message text
+     * @return The position after the message
      */
-    private void showEmoticons(int start, int end)
+    public int insertHistory(int offset, String nickname, long time, String message)
+    {
+        String text = "(" + formatTime(time) + ") " + nickname + ": " + message + "\n";
+
+        try
+        {
+            super.insertString(offset, text, super.getStyle("info"));
+        }
+        catch (BadLocationException ex)
+        {
+            Logger.getLogger(ChatTextPaneStyledDocument.class.getName()).log(Level.SEVERE, null, ex);
+        }
+
+        return offset + text.length();
+    }
+
+    private static String formatTime(long time)
+    {
+        return new SimpleDateFormat("dd/MM/yy HH:mm:ss").format(new Date(time));
+    }
+
+    /**
+     * Inserts text at the end of the document, with any emoticon character
+     * sequences shown as the emoticon icon. The whole text is inserted as one
+     * edit, so the document and the text pane are only updated once.
+     * @param text The text to insert
+     * @param style The style to use
+     * @param matcher The matcher for the emoticons to show
+     * @throws javax.swing.text.BadLocationException If the text could not be inserted
+     */
+    private void insertWithEmoticons(String text, AttributeSet style, EmoticonMatcher matcher) throws BadLocationException
+    {
+        List<ElementSpec> specs = new ArrayList<ElementSpec>();
+        int offset = getLength();
+        AttributeSet paragraph = getParagraphElement(offset).getAttributes();
+        char[] chars = text.toCharArray();
+        int position = 0;
+        style = style.copyAttributes();
+
+        // text inserted after a linebreak would join the paragraph before it,
+        // so that paragraph is ended first, as insertString does
+        boolean afterLinebreak = offset > 0 && getText(offset - 1, 1).charAt(0) == '\n';
+        if (afterLinebreak)
+        {
+            specs.add(new ElementSpec(paragraph, ElementSpec.EndTagType));
+            specs.add(new ElementSpec(paragraph, ElementSpec.StartTagType));
+        }
+
+        for (EmoticonMatcher.Match match : matcher.match(text))
+        {
+            addText(specs, chars, position, match.getStart(), style, paragraph);
+            SimpleAttributeSet icon = new SimpleAttributeSet(style);
+            StyleConstants.setIcon(icon, match.getEmoticon().getIcon());
+            specs.add(new ElementSpec(icon, ElementSpec.ContentType, chars, match.getStart(), match.getLength()));
+            position = match.getEnd();
+        }
+        addText(specs, chars, position, chars.length, style, paragraph);
+
+        // the text joins the run before it if it has the same attributes
+        ElementSpec first = specs.get(0);
+        if (!afterLinebreak && offset > 0 && first.getType() == ElementSpec.ContentType &&
+                getCharacterElement(offset - 1).getAttributes().isEqual(first.getAttributes()))
+        {
+            first.setDirection(ElementSpec.JoinPreviousDirection);
+        }
+
+        // the last paragraph started joins the rest of the paragraph inserted
+        // into, or the empty paragraph at the end of the document
+        for (int i = specs.size() - 1; i >= 0; i--)
+        {
+            if (specs.get(i).getType() == ElementSpec.StartTagType)
+            {
+                specs.get(i).setDirection(afterLinebreak ? ElementSpec.JoinNextDirection : ElementSpec.JoinFractureDirection);
+                break;
+            }
+        }
+        insert(offset, specs.toArray(new ElementSpec[specs.size()]));
+    }
+
+    /**
+     * Adds the specs for a run of text, ending the paragraph and starting a new
+     * one after each linebreak
+     */
+    private static void addText(List<ElementSpec> specs, char[] chars, int start, int end,
+            AttributeSet style, AttributeSet paragraph)
     {
-        List<Emoticon> emoticons = Emoticons.getDefaultEmoticons();
-        emoticons.addAll(MainUI.settingsManager.getEmoticons());
-        
         for (int i = start; i < end; i++)
         {
-            for (Emoticon e : emoticons)
+            if (chars[i] == '\n')
             {
-                try
-                {
-                    if ((i + e.getSequence().length()) > end)
-                    {
-                        continue;
-                    }
-
-                    String newString = super.getText(i, e.getSequence().length());
-
-                    if (newString.equals(e.getSequence()))
-                    {
-                        super.remove(i, e.getSequence().length());
-                        SimpleAttributeSet smi = new SimpleAttributeSet();
-                        StyleConstants.setIcon(smi, e.getIcon());
-                        super.insertString(i, e.getSequence(), smi);
-
-                        i += e.getSequence().length() - 1;
-                        break;
-                    }
-                }
-                catch (BadLocationException ex)
-                {
-                    Logger.getLogger(ChatTextPaneStyledDocument.class.getName()).log(Level.SEVERE, null, ex);
-                }
+                specs.add(new ElementSpec(style, ElementSpec.ContentType, chars, start, i + 1 - start));
+                specs.add(new ElementSpec(null, ElementSpec.EndTagType));
+                specs.add(new ElementSpec(paragraph, ElementSpec.StartTagType));
+                start = i + 1;
             }
         }
+        if (start < end)
+        {
+            specs.add(new ElementSpec(style, ElementSpec.ContentType, chars, start, end - start));
+        }
     }
 }
@@ -553,7 +553,7 @@ private void formWindowClosing(java.awt.event.WindowEvent evt) {//GEN-FIRST:even
 
     if (option == JOptionPane.YES_OPTION)
     {
-        MainUI.settingsManager.logConversation(messageTextPane, muc.getRoom());
+        MainUI.settingsManager.closeChatLog(muc.getRoom());
         muc.leave();
         dispose();
     }
@@ -658,7 +658,14 @@ private void kickButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FI
     public void processPacket(Packet packet)
     {
         Message message = (Message) packet;
-        doc.insertUser(StringUtils.parseResource(message.getFrom()));
+        long time = Utils.getTime(message);
+        if (message.getBody() != null)
+        {
+            // the recent history of the room is sent again on joining
+            boolean replayed = message.getExtension("x", "jabber:x:delay") != null;
+            MainUI.settingsManager.logMessage(muc.getRoom(), message.getFrom(), message.getBody(), time, replayed);
+        }
+        doc.insertUser(StringUtils.parseResource(message.getFrom()), time);
         // see if the message has a formatting property
         if (message.getProperty("format") != null)
         {
@@ -0,0 +1,236 @@
+package xmppclient.emoticons;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds the emoticon character sequences in a piece of text. The sequences are
+ * compiled into an Aho-Corasick automaton when the matcher is created, so the
+ * text is read only once however many emoticons there are.
+ * <p>
+ * Matches never overlap. Where several sequences could match, the one which
+ * starts first is used, and of those the longest. If two emoticons have the
+ * same sequence, the one given first is used.
+ * @author Lee Boynton (323326)
+ */
+public class EmoticonMatcher
+{
+    private final List<Emoticon> emoticons = new ArrayList<Emoticon>();
+    private final Node root = new Node(0);
+
+    /**
+     * Creates a matcher for the given emoticons
+     * @param emoticons The emoticons to match
+     */
+    public EmoticonMatcher(Collection<Emoticon> emoticons)
+    {
+        for (Emoticon emoticon : emoticons)
+        {
+            add(emoticon);
+        }
+        link();
+    }
+
+    /**
+     * Creates a matcher for the emoticons of this matcher and the given
+     * emoticons, such as the custom emoticons sent with a message
+     * @param extra The emoticons to add
+     * @return The new matcher
+     */
+    public EmoticonMatcher with(Collection<Emoticon> extra)
+    {
+        List<Emoticon> all = new ArrayList<Emoticon>(emoticons);
+        all.addAll(extra);
+        return new EmoticonMatcher(all);
+    }
+
+    /**
+     * Gets the emoticons this matcher finds
+     * @return The emoticons
+     */
+    public List<Emoticon> getEmoticons()
+    {
+        return emoticons;
+    }
+
+    private void add(Emoticon emoticon)
+    {
+        String sequence = emoticon.getSequence();
+        if (sequence == null || sequence.length() == 0)
+        {
+            return;
+        }
+
+        Node node = root;
+        for (int i = 0; i < sequence.length(); i++)
+        {
+            Node next = node.children.get(sequence.charAt(i));
+            if (next == null)
+            {
+                next = new Node(i + 1);
+                node.children.put(sequence.charAt(i), next);
+            }
+            node = next;
+        }
+
+        if (node.emoticon == null)
+        {
+            node.emoticon = emoticon;
+        }
+        emoticons.add(emoticon);
+    }
+
+    /**
+     * Sets the failure link of every node to the node for the longest proper
+     * suffix of its sequence, and the output link to the nearest node along
+     * the failure links which ends an emoticon
+     */
+    private void link()
+    {
+        LinkedList<Node> queue = new LinkedList<Node>();
+
+        for (Node child : root.children.values())
+        {
+            child.failure = root;
+            queue.add(child);
+        }
+        while (!queue.isEmpty())
+        {
+            Node node = queue.removeFirst();
+
+            for (Map.Entry<Character, Node> entry : node.children.entrySet())
+            {
+                Node child = entry.getValue();
+                Node failure = node.failure;
+                while (failure != root && !failure.children.containsKey(entry.getKey()))
+                {
+                    failure = failure.failure;
+                }
+                Node target = failure.children.get(entry.getKey());
+                child.failure = target != null && target != child ? target : root;
+                child.output = child.failure.emoticon != null ? child.failure : child.failure.output;
+                queue.add(child);
+            }
+        }
+    }
+
+    /**
+     * Finds the emoticons in the given text
+     * @param text The text to search
+     * @return The matches, in the order they appear in the text
+     */
+    public List<Match> match(String text)
+    {
+        List<Match> matches = new ArrayList<Match>();
+        // the best match found so far which has not yet been added
+        Match candidate = null;
+        Node node = root;
+
+        for (int i = 0; i < text.length(); i++)
+        {
+            char c = text.charAt(i);
+            while (node != root && !node.children.containsKey(c))
+            {
+                node = node.failure;
+            }
+            Node next = node.children.get(c);
+            node = next == null ? root : next;
+
+            for (Node found = node.emoticon != null ? node : node.output; found != null; found = found.output)
+            {
+                Match match = new Match(i + 1 - found.depth, found.emoticon);
+                if (candidate == null || match.start < candidate.start ||
+                        (match.start == candidate.start && match.getLength() > candidate.getLength()))
+                {
+                    candidate = match;
+                }
+            }
+
+            // once the sequence being followed starts after the candidate, no
+            // later match can start before it or be a longer match from there
+            if (candidate != null && i + 1 - node.depth > candidate.start)
+            {
+                matches.add(candidate);
+                // carry on from the end of the match, so matches do not overlap
+                i = candidate.getEnd() - 1;
+                node = root;
+                candidate = null;
+            }
+        }
+        if (candidate != null)
+        {
+            matches.add(candidate);
+        }
+
+        return matches;
+    }
+
+    /**
+     * An emoticon found in a piece of text
+     */
+    public static class Match
+    {
+        private final int start;
+        private final Emoticon emoticon;
+
+        private Match(int start, Emoticon emoticon)
+        {
+            this.start = start;
+            this.emoticon = emoticon;
+        }
+
+        /**
+         * Gets the position of the first character of the emoticon sequence
+         * @return The start position
+         */
+        public int getStart()
+        {
+            return start;
+        }
+
+        /**
+         * Gets the position after the last character of the emoticon sequence
+         * @return The end position
+         */
+        public int getEnd()
+        {
+            return start + getLength();
+        }
+
+        /**
+         * Gets the length of the emoticon sequence
+         * @return The length
+         */
+        public int getLength()
+        {
+            return emoticon.getSequence().length();
+        }
+
+        /**
+         * Gets the emoticon which was found
+         * @return The emoticon
+         */
+        public Emoticon getEmoticon()
+        {
+            return emoticon;
+        }
+    }
+
+    private static class Node
+    {
+        private final int depth;
+        private final Map<Character, Node> children = new HashMap<Character, Node>();
+        private Node failure;
+        private Node output;
+        private Emoticon emoticon;
+
+        private Node(int depth)
+        {
+            this.depth = depth;
+        }
+    }
+}
@@ -49,4 +49,8 @@ public class Icons
      * A delete icon
      */
     public static final ImageIcon delete = new javax.swing.ImageIcon(Icons.class.getResource("delete.png"), "Delete icon");
+    /**
+     * A user icon, shown while an avatar is loading
+     */
+    public static final ImageIcon user = new javax.swing.ImageIcon(Icons.class.getResource("user.png"), "User icon");
 }
@@ -0,0 +1,400 @@
+package xmppclient.jingle;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads a file once and shares it between several outgoing sessions. A single
+ * reader thread fills a ring buffer, and each session reads from the buffer
+ * through its own {@link Consumer} at its own pace. The reader can only get as
+ * far ahead as the slowest consumer allows. A consumer which holds the reader
+ * up for longer than {@link #EVICTION_TIMEOUT} while another consumer is
+ * waiting for more of the file is evicted so it does not stall the others. A
+ * consumer which is only holding up the reader, such as a single listener who
+ * has paused, is never evicted.
+ * <p>
+ * A consumer joins when its session is offered, but only starts reading once
+ * the receiver has connected. The file is not read until the first consumer
+ * starts, and a consumer which has not started is given
+ * {@link #START_TIMEOUT} to connect before it can be evicted.
+ * <p>
+ * New consumers can only join while the start of the file is still in the
+ * buffer. After that a new broadcast has to be started for the file.
+ * @author Lee Boynton (323326)
+ */
+public class BroadcastStream implements Runnable
+{
+    /**
+     * The size of the ring buffer shared by the consumers
+     */
+    public static final int BUFFER_SIZE = 1024 * 1024;
+    /**
+     * The time in milliseconds the reader will wait for the slowest consumer
+     * before evicting it
+     */
+    public static final long EVICTION_TIMEOUT = 10000;
+    /**
+     * The time in milliseconds a consumer which has joined but not started
+     * reading can hold the reader up before it is evicted
+     */
+    public static final long START_TIMEOUT = 60000;
+    private final File file;
+    private final List<Consumer> consumers = new ArrayList<Consumer>();
+    private byte[] buffer;
+    private long written = 0;
+    private boolean finished = false;
+    private boolean closed = false;
+    private boolean wrapped = false;
+    private Thread reader;
+
+    /**
+     * Creates a new broadcast for the given file. The file is not read until
+     * the first consumer starts.
+     * @param file The file to broadcast
+     */
+    public BroadcastStream(File file)
+    {
+        this.file = file;
+    }
+
+    /**
+     * Gets the file being broadcast
+     * @return The file
+     */
+    public File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * Adds a new consumer to the broadcast, which will read the file from the
+     * start. The reader does not overwrite the start of the file until every
+     * consumer has read past it, so consumers can join until then.
+     * @return The consumer, or null if the start of the file is no longer in
+     * the buffer or the broadcast has been closed
+     */
+    public synchronized Consumer join()
+    {
+        if (closed || wrapped)
+        {
+            return null;
+        }
+
+        Consumer consumer = new Consumer();
+        consumers.add(consumer);
+
+        return consumer;
+    }
+
+    private synchronized void startReader()
+    {
+        if (reader == null && !closed)
+        {
+            buffer = new byte[BUFFER_SIZE];
+            reader = new Thread(this, "Broadcast reader: " + file.getName());
+            reader.setDaemon(true);
+            reader.start();
+        }
+    }
+
+    /**
+     * Used to determine if the broadcast has been closed, either because all
+     * the consumers have read to the end or left, or the file could not be read
+     * @return True if closed, false otherwise
+     */
+    public synchronized boolean isClosed()
+    {
+        return closed;
+    }
+
+    /**
+     * Reads the file into the ring buffer until the end of the file is reached
+     * or every consumer has left
+     */
+    @Override
+    public void run()
+    {
+        InputStream in = null;
+
+        try
+        {
+            in = new FileInputStream(file);
+
+            while (true)
+            {
+                byte[] data;
+                int offset;
+                int length;
+
+                synchronized (this)
+                {
+                    if (!waitForSpace())
+                    {
+                        return;
+                    }
+
+                    data = buffer;
+                    offset = (int) (written % BUFFER_SIZE);
+                    wrapped = written >= BUFFER_SIZE;
+                    length = (int) Math.min(BUFFER_SIZE - offset, BUFFER_SIZE - (written - getSlowestPosition()));
+                }
+
+                // the free part of the buffer is not read by any consumer, so
+                // it can be filled without holding the lock
+                int read = in.read(data, offset, length);
+
+                synchronized (this)
+                {
+                    if (read < 0)
+                    {
+                        finished = true;
+                        notifyAll();
+                        return;
+                    }
+
+                    written += read;
+                    notifyAll();
+                }
+            }
+        }
+        catch (IOException ex)
+        {
+            Logger.getLogger(BroadcastStream.class.getName()).log(Level.SEVERE, null, ex);
+            close();
+        }
+        finally
+        {
+            try
+            {
+                if (in != null)
+                {
+                    in.close();
+                }
+            }
+            catch (IOException ex)
+            {
+                Logger.getLogger(BroadcastStream.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    /**
+     * Waits until there is free space in the buffer, evicting the slowest
+     * consumers if they do not read anything for too long while another
+     * consumer is waiting for them. Must be called while holding the lock.
+     * @return True if there is space, false if the broadcast has been closed
+     */
+    private boolean waitForSpace()
+    {
+        long slowest = getSlowestPosition();
+        long waitStarted = System.currentTimeMillis();
+
+        while (!closed && written - slowest >= BUFFER_SIZE)
+        {
+            long waited = System.currentTimeMillis() - waitStarted;
+
+            if (waited >= EVICTION_TIMEOUT)
+            {
+                if (isHeldUp(slowest))
+                {
+                    evictConsumersAt(slowest);
+                }
+                waitStarted = System.currentTimeMillis();
+            }
+            else
+            {
+                try
+                {
+                    wait(EVICTION_TIMEOUT - waited);
+                }
+                catch (InterruptedException ex)
+                {
+                    close();
+                }
+            }
+
+            long position = getSlowestPosition();
+            if (position != slowest)
+            {
+                // the slowest consumer has read something, so start timing again
+                slowest = position;
+                waitStarted = System.currentTimeMillis();
+            }
+        }
+
+        return !closed;
+    }
+
+    private long getSlowestPosition()
+    {
+        long slowest = written;
+
+        for (Consumer consumer : consumers)
+        {
+            slowest = Math.min(slowest, consumer.position);
+        }
+
+        return slowest;
+    }
+
+    /**
+     * Used to determine if a started consumer other than those at the given
+     * position has read everything in the buffer, so is waiting for them.
+     * Must be called while holding the lock.
+     */
+    private boolean isHeldUp(long position)
+    {
+        for (Consumer consumer : consumers)
+        {
+            if (consumer.started && consumer.position != position && consumer.position == written)
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private void evictConsumersAt(long position)
+    {
+        long now = System.currentTimeMillis();
+
+        for (Consumer consumer : new ArrayList<Consumer>(consumers))
+        {
+            // a consumer whose receiver is still connecting is given longer
+            boolean stalled = consumer.started || now - consumer.joined >= START_TIMEOUT;
+
+            if (consumer.position == position && stalled)
+            {
+                System.out.println("Evicting slow broadcast consumer");
+                consumer.evicted = true;
+                removeConsumer(consumer);
+            }
+        }
+    }
+
+    private synchronized void removeConsumer(Consumer consumer)
+    {
+        consumers.remove(consumer);
+
+        if (consumers.isEmpty())
+        {
+            close();
+        }
+
+        notifyAll();
+    }
+
+    private synchronized void close()
+    {
+        closed = true;
+        buffer = null;
+        notifyAll();
+    }
+
+    /**
+     * Reads the broadcast for one session. Each consumer keeps its own
+     * position in the file.
+     */
+    public class Consumer
+    {
+        private long position = 0;
+        private final long joined = System.currentTimeMillis();
+        private boolean started = false;
+        private boolean evicted = false;
+        private boolean done = false;
+
+        /**
+         * Starts reading the broadcast. This is called once the receiver has
+         * connected, and starts the reader if no other consumer has.
+         */
+        public void start()
+        {
+            synchronized (BroadcastStream.this)
+            {
+                started = true;
+                startReader();
+            }
+        }
+
+        /**
+         * Reads the next part of the file into the given buffer, waiting until
+         * the reader has read it from disk if necessary
+         * @param dst The buffer to read into
+         * @return The number of bytes read, or -1 at the end of the file
+         * @throws java.io.IOException If the consumer was evicted or the
+         * broadcast was closed
+         */
+        public int read(ByteBuffer dst) throws IOException
+        {
+            synchronized (BroadcastStream.this)
+            {
+                if (!started)
+                {
+                    start();
+                }
+                while (position == written && !finished && !closed && !evicted)
+                {
+                    try
+                    {
+                        BroadcastStream.this.wait();
+                    }
+                    catch (InterruptedException ex)
+                    {
+                        throw new IOException("Interrupted while waiting for broadcast");
+                    }
+                }
+
+                if (evicted)
+                {
+                    throw new IOException("Too slow to keep up with the broadcast");
+                }
+                if (position == written && finished)
+                {
+                    // leave the broadcast, so it is closed and its buffer
+                    // freed once every consumer has reached the end
+                    if (!done)
+                    {
+                        done = true;
+                        removeConsumer(this);
+                    }
+                    return -1;
+                }
+                if (closed || done)
+                {
+                    throw new IOException("Broadcast closed");
+                }
+
+                int offset = (int) (position % BUFFER_SIZE);
+                int length = (int) Math.min(Math.min(written - position, BUFFER_SIZE - offset), dst.remaining());
+                dst.put(buffer, offset, length);
+                position += length;
+                BroadcastStream.this.notifyAll();
+                return length;
+            }
+        }
+
+        /**
+         * Leaves the broadcast. The broadcast is closed when the last consumer
+         * leaves.
+         */
+        public void close()
+        {
+            synchronized (BroadcastStream.this)
+            {
+                if (!done)
+                {
+                    done = true;
+                    removeConsumer(this);
+                }
+            }
+        }
+    }
+}
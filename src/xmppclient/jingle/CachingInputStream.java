@@ -0,0 +1,113 @@
+package xmppclient.jingle;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An input stream for playing a streamed file which reads the parts already in
+ * the {@link StreamCache} from disk, and the rest from the socket. The sender
+ * sends everything from the first missing byte to the end of the file, and
+ * any of it which is already cached is skipped. Bytes received from the
+ * socket are written to the cache as they are read.
+ * @author Lee Boynton (323326)
+ */
+public class CachingInputStream extends InputStream
+{
+    private final InputStream socketIn;
+    private final StreamCache cache;
+    private long position;
+    private long socketPosition;
+    private final long socketEnd;
+
+    /**
+     * Creates a new caching input stream
+     * @param socketIn The stream of bytes received from the sender
+     * @param cache The cache for the file
+     * @param position The position in the file to start playing from
+     * @param rangeOffset The offset of the first byte the sender will send
+     * @param rangeLength The number of bytes the sender will send, or -1 if
+     * it will send to the end of the file
+     */
+    public CachingInputStream(InputStream socketIn, StreamCache cache, long position, long rangeOffset, long rangeLength)
+    {
+        this.socketIn = socketIn;
+        this.cache = cache;
+        this.position = position;
+        this.socketPosition = rangeOffset;
+        this.socketEnd = rangeLength < 0 ? cache.getSize() : rangeOffset + rangeLength;
+    }
+
+    /**
+     * Gets the position in the file of the next byte to be read. This can be
+     * used to resume playback from the same place in a new session.
+     * @return The position
+     */
+    public long getPosition()
+    {
+        return position;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        byte[] b = new byte[1];
+        int read = read(b, 0, 1);
+        return read < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        if (len == 0)
+        {
+            return 0;
+        }
+        if (position >= cache.getSize())
+        {
+            return -1;
+        }
+
+        int read = cache.read(position, b, off, len);
+
+        if (read > 0)
+        {
+            position += read;
+            return read;
+        }
+
+        // the sender does not send anything before the first missing byte
+        if (position < socketPosition || position >= socketEnd)
+        {
+            return -1;
+        }
+
+        // skip the bytes which were played from the cache
+        while (socketPosition < position)
+        {
+            int skipped = socketIn.read(b, off, (int) Math.min(len, position - socketPosition));
+            if (skipped < 0)
+            {
+                return -1;
+            }
+            socketPosition += skipped;
+        }
+
+        read = socketIn.read(b, off, (int) Math.min(len, socketEnd - socketPosition));
+
+        if (read < 0)
+        {
+            return -1;
+        }
+
+        cache.write(socketPosition, b, off, read);
+        socketPosition += read;
+        position += read;
+        return read;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        socketIn.close();
+    }
+}
@@ -2,8 +2,21 @@ package xmppclient.jingle;
 
 import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.io.DataInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javazoom.jlgui.basicplayer.BasicController;
@@ -21,14 +34,53 @@ import org.jivesoftware.smackx.packet.Bytestream;
  */
 public class IncomingSession extends Session
 {
-
+    /**
+     * The number of times connecting to the sender is attempted
+     */
+    public static final int MAX_ATTEMPTS = 5;
+    /**
+     * The time in milliseconds to wait before the first retry. This is doubled
+     * after each failed attempt, up to {@link #MAX_BACKOFF}.
+     */
+    public static final long INITIAL_BACKOFF = 500;
+    /**
+     * The most time in milliseconds to wait between attempts
+     */
+    public static final long MAX_BACKOFF = 8000;
+    /**
+     * The time in milliseconds to wait for each connection attempt, and for
+     * each reply from the stream host during the SOCKS5 handshake
+     */
+    public static final long CONNECT_TIMEOUT = 10000;
+    private static final ScheduledExecutorService connector = Executors.newScheduledThreadPool(2, new ThreadFactory()
+    {
+        @Override
+        public Thread newThread(Runnable r)
+        {
+            Thread thread = new Thread(r, "Session connector");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
     private Socket socket;
+    private volatile SocketChannel channel;
+    private volatile Selector connecting;
+    private Future<?> connectTask;
+    private int attempts = 0;
+    private volatile boolean cancelled = false;
     private BufferedInputStream bis;
     private String host;
+    private String requester;
     private int received = 0;
     private BasicPlayer player;
     private BasicController control;
     private BytestreamListener listener;
+    private StreamCache cache;
+    private volatile CachingInputStream cachingStream;
+    private volatile PrefetchInputStream prefetchStream;
+    private long startPosition;
+    private long rangeOffset;
+    private long rangeLength;
 
     /**
      * Return the control for the audio player. This can play, pause, stop, etc the
@@ -67,55 +119,294 @@ public class IncomingSession extends Session
     }
 
     /**
-     * Attempts to connect to the remtoe user using the host address and port
-     * received in the bytestream packet.
+     * Creates a new incoming Jingle file transfer session which plays from the
+     * given position, reading anything already received from the cache and
+     * only the given range from the sender.
+     * @param connection The XMPP connection to use
+     * @param responder The user who will be sending
+     * @param sid The ID identifying this session
+     * @param cache The cache for the file being streamed
+     * @param startPosition The position in the file to start playing from
+     * @param rangeOffset The offset of the first byte the sender will send
+     * @param rangeLength The number of bytes the sender will send, or -1 if
+     * it will send to the end of the file
+     */
+    public IncomingSession(XMPPConnection connection, String responder, String sid,
+            StreamCache cache, long startPosition, long rangeOffset, long rangeLength)
+    {
+        this(connection, responder, sid);
+        this.cache = cache;
+        this.startPosition = startPosition;
+        this.rangeOffset = rangeOffset;
+        this.rangeLength = rangeLength;
+    }
+
+    /**
+     * Gets the position in the file which playback has reached, not counting
+     * the audio still waiting in the prefetch buffer. A new session for the
+     * same file can be accepted from this position to resume playback without
+     * receiving the whole file again.
+     * @return The position, or 0 if the session does not use a cache
+     * @see JingleSessionRequest#accept(long)
+     */
+    public long getPosition()
+    {
+        CachingInputStream caching = cachingStream;
+        PrefetchInputStream prefetch = prefetchStream;
+
+        if (caching == null)
+        {
+            return 0;
+        }
+
+        return Math.max(startPosition, caching.getPosition() - (prefetch == null ? 0 : prefetch.getBufferedBytes()));
+    }
+
+    /**
+     * Gets the number of times playback has run out of buffered audio and had
+     * to wait for more to arrive
+     * @return The number of underruns
+     */
+    public int getUnderruns()
+    {
+        return prefetchStream == null ? 0 : prefetchStream.getUnderruns();
+    }
+
+    /**
+     * Gets the number of bytes received but not yet played
+     * @return The number of bytes
+     */
+    public int getBufferedBytes()
+    {
+        return prefetchStream == null ? 0 : prefetchStream.getBufferedBytes();
+    }
+
+    /**
+     * Starts connecting to the remote user using the host address and port
+     * received in the bytestream packet. The connection is made on a separate
+     * thread, so this returns straight away and never holds up the thread
+     * which delivers packets. Failed attempts are retried with an exponential
+     * backoff, and the attempts can be cancelled with {@link #terminate()}.
+     * Once connected, the player is started on a thread of its own, so working
+     * out the format of the stream does not hold up other sessions' attempts.
      */
     @Override
     public void start()
     {
-        int retries = 5;
-
         super.status = "Connecting...";
-
         System.out.printf("Attempting to connect to %s:%s\n", host, super.port);
+        schedule(0);
+    }
+
+    private synchronized void schedule(long delay)
+    {
+        if (cancelled)
+        {
+            return;
+        }
 
-        int i = 1;
-        while (i <= retries)
+        connectTask = connector.schedule(new Runnable()
         {
-            try
+            @Override
+            public void run()
+            {
+                connect();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Makes one attempt to connect, and schedules the next attempt if it fails
+     */
+    private void connect()
+    {
+        attempts++;
+
+        try
+        {
+            openChannel();
+            InputStream stream = negotiate();
+            super.status = "Connected";
+            super.connected = true;
+            bis = new BufferedInputStream(stream);
+            InputStream in = bis;
+            if (cache != null)
+            {
+                cachingStream = new CachingInputStream(bis, cache, startPosition, rangeOffset, rangeLength);
+                in = cachingStream;
+            }
+            prefetchStream = new PrefetchInputStream(in);
+            startPlayer();
+        }
+        catch (IOException ex)
+        {
+            closeChannel();
+
+            if (cancelled)
             {
-                socket = new Socket();
-                socket.connect(new InetSocketAddress(host, super.port), 0);
-                super.status = "Connected";
-                super.connected = true;
-                bis = new BufferedInputStream(socket.getInputStream());
-                control.open(bis);
-                control.play();
-                break;
+                return;
             }
-            catch (java.net.ConnectException ex)
+            if (attempts >= MAX_ATTEMPTS)
             {
-                System.out.printf("Could not connect (try %d of %d)", i, retries);
+                System.out.printf("Could not connect after %d tries\n", attempts);
+                super.status = "Could not connect";
+                return;
             }
-            catch (Exception ex)
+
+            long backoff = Math.min(MAX_BACKOFF, INITIAL_BACKOFF << (attempts - 1));
+            System.out.printf("Could not connect (try %d of %d), retrying in %d ms\n", attempts, MAX_ATTEMPTS, backoff);
+            super.status = "Retrying...";
+            schedule(backoff);
+        }
+    }
+
+    /**
+     * Opens the player on the stream and starts playback. The player reads
+     * the start of the stream to work out its format, which can take as long
+     * as the sender takes to send it, so this is done on a new thread rather
+     * than one shared by every session.
+     */
+    private void startPlayer()
+    {
+        Thread thread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
             {
-                ex.printStackTrace();
-                break;
+                try
+                {
+                    // the player needs to mark and reset the stream to work out its format
+                    control.open(new BufferedInputStream(prefetchStream));
+                    control.play();
+                }
+                catch (Exception ex)
+                {
+                    Logger.getLogger(IncomingSession.class.getName()).log(Level.SEVERE, null, ex);
+                    if (!cancelled)
+                    {
+                        IncomingSession.super.status = "Could not play";
+                        IncomingSession.super.connected = false;
+                    }
+                    closeChannel();
+                }
             }
-            
-            try
+        }, "Session player: " + getSid());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Connects the socket channel without blocking, waiting on a selector for
+     * the connection to complete so the attempt can time out or be woken up by
+     * {@link #terminate()}. The channel is made blocking once it is connected.
+     */
+    private void openChannel() throws IOException
+    {
+        channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        Selector selector = Selector.open();
+        connecting = selector;
+
+        try
+        {
+            if (!channel.connect(new InetSocketAddress(host, super.port)))
             {
-                Thread.sleep(2000);
+                channel.register(selector, SelectionKey.OP_CONNECT);
+
+                if (cancelled)
+                {
+                    throw new IOException("Session terminated");
+                }
+                if (selector.select(CONNECT_TIMEOUT) == 0)
+                {
+                    throw new SocketTimeoutException("Timed out connecting to " + host);
+                }
+
+                channel.finishConnect();
             }
-            catch (InterruptedException ex)
+        }
+        finally
+        {
+            connecting = null;
+            selector.close();
+        }
+
+        channel.configureBlocking(true);
+        socket = channel.socket();
+    }
+
+    private void closeChannel()
+    {
+        try
+        {
+            if (channel != null)
             {
-                Logger.getLogger(IncomingSession.class.getName()).log(Level.SEVERE, null, ex);
+                channel.close();
             }
-            
-            i++;
+        }
+        catch (IOException ex)
+        {
+            Logger.getLogger(IncomingSession.class.getName()).log(Level.SEVERE, null, ex);
         }
     }
 
+    /**
+     * Carries out the SOCKS5 handshake with the stream host, asking for the
+     * connection for this session. The stream host uses the hash in the connect
+     * request to find the outgoing session the connection belongs to.
+     * <p>
+     * Older versions of the client send the file as soon as the connection is
+     * made, without a handshake. If the reply to the greeting is not SOCKS5 it
+     * is taken to be the start of the file, and is read again from the stream
+     * returned.
+     * @return The stream to read the file from
+     * @throws java.io.IOException If the stream host refused the connection or
+     * did not reply within {@link #CONNECT_TIMEOUT}
+     */
+    private InputStream negotiate() throws IOException
+    {
+        // a stream host which never replies must not hold up the connector
+        socket.setSoTimeout((int) CONNECT_TIMEOUT);
+        byte[] hash = StreamHostListener.createHash(getSid(), requester, connection.getUser()).getBytes("US-ASCII");
+        OutputStream out = socket.getOutputStream();
+        PushbackInputStream stream = new PushbackInputStream(socket.getInputStream(), 2);
+        DataInputStream in = new DataInputStream(stream);
+
+        // version 5, one authentication method, no authentication
+        out.write(new byte[]{5, 1, 0});
+        out.flush();
+        byte[] method = new byte[2];
+        in.readFully(method);
+        if (method[0] != 5 || method[1] != 0)
+        {
+            System.out.println("Incoming session: stream host sent the file without a handshake");
+            stream.unread(method);
+            socket.setSoTimeout(0);
+            return stream;
+        }
+
+        // connect to the hash as a domain name, on port 0
+        byte[] request = new byte[7 + hash.length];
+        request[0] = 5;
+        request[1] = 1;
+        request[3] = 3;
+        request[4] = (byte) hash.length;
+        System.arraycopy(hash, 0, request, 5, hash.length);
+        out.write(request);
+        out.flush();
+
+        byte[] reply = new byte[4];
+        in.readFully(reply);
+        if (reply[1] != 0)
+        {
+            throw new IOException("Stream host refused the connection");
+        }
+        in.readFully(new byte[(in.readByte() & 0xff) + 2]);
+        socket.setSoTimeout(0);
+
+        return stream;
+    }
+
     /**
      * Listens for bytestream packets, which inform the receiver of the address
      * and port to connect to. When receiving a bytestream packet this will call
@@ -128,7 +419,14 @@ public class IncomingSession extends Session
         public void processPacket(Packet packet)
         {
             Bytestream bytestream = (Bytestream) packet;
+
+            if (bytestream.getSessionID() != null && !bytestream.getSessionID().equals(getSid()))
+            {
+                return;
+            }
+
             System.out.println("Incoming session: Bytestream packet received");
+            requester = bytestream.getFrom();
             host = bytestream.getStreamHost(bytestream.getFrom()).getAddress();
             IncomingSession.super.port = bytestream.getStreamHost(bytestream.getFrom()).getPort();
             start();
@@ -136,8 +434,9 @@ public class IncomingSession extends Session
     }
 
     /**
-     * Removes the bytestream listener and closes the socket connection and
-     * input stream
+     * Removes the bytestream listener, cancels any connection attempt which is
+     * in progress or waiting to be retried, and closes the socket connection
+     * and input stream
      */
     @Override
     public void terminate()
@@ -146,14 +445,41 @@ public class IncomingSession extends Session
         
         super.connection.removePacketListener(listener);
 
+        cancelled = true;
+        synchronized (this)
+        {
+            if (connectTask != null)
+            {
+                connectTask.cancel(false);
+            }
+        }
+        Selector selector = connecting;
+        if (selector != null)
+        {
+            selector.wakeup();
+        }
+
         try
         {
-            bis.close();
-            socket.close();
+            if (prefetchStream != null)
+            {
+                prefetchStream.close();
+            }
+            if (bis != null)
+            {
+                bis.close();
+            }
         }
         catch (IOException ex)
         {
             Logger.getLogger(IncomingSession.class.getName()).log(Level.SEVERE, null, ex);
         }
+
+        closeChannel();
+
+        if (cache != null)
+        {
+            cache.close();
+        }
     }
 }
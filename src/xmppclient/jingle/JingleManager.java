@@ -1,8 +1,14 @@
 package xmppclient.jingle;
 
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import org.jivesoftware.smack.ConnectionCreationListener;
 import org.jivesoftware.smack.PacketListener;
 import org.jivesoftware.smack.XMPPConnection;
@@ -32,8 +38,15 @@ import xmppclient.jingle.provider.FileProvider;
  */
 public class JingleManager
 {
+    /**
+     * The default maximum size in bytes of the stream cache directory
+     */
+    public static final long DEFAULT_CACHE_SIZE = 256L * 1024 * 1024;
     private XMPPConnection connection;
     private List<JingleSessionRequestListener> sessionRequestListeners;
+    private final Map<String, BroadcastStream> broadcasts = new HashMap<String, BroadcastStream>();
+    private java.io.File cacheDirectory;
+    private long cacheSize = DEFAULT_CACHE_SIZE;
 
     /**
      * 
@@ -86,6 +99,27 @@ public class JingleManager
         }
     }
 
+    /**
+     * Sets the directory used to cache received streams. If this is not set
+     * then received streams are not cached.
+     * @param cacheDirectory The cache directory
+     */
+    public void setCacheDirectory(java.io.File cacheDirectory)
+    {
+        this.cacheDirectory = cacheDirectory;
+    }
+
+    /**
+     * Sets the maximum size of the cache directory. When a new stream is
+     * cached, the least recently used streams are removed until the cached
+     * streams fit in this size.
+     * @param cacheSize The maximum size in bytes
+     */
+    public void setCacheSize(long cacheSize)
+    {
+        this.cacheSize = cacheSize;
+    }
+
     /**
      * Gets the XMPP connection associated with the manager
      * @return The XMPP connection
@@ -199,18 +233,82 @@ public class JingleManager
      * @return The incoming session
      */
     public IncomingSession createIncomingSession(JingleSessionRequest request)
+    {
+        return createIncomingSession(request, 0);
+    }
+
+    /**
+     * Creates a new incoming session by sending a session acceptance to the
+     * remote user who sent the request. If a cache directory has been set then
+     * the acceptance asks for the file from the first byte at or after the
+     * given position which has not already been received. Any later parts
+     * which are already cached are skipped as they arrive.
+     * @param request The request from the remote user
+     * @param position The position in the file to start playing from
+     * @return The incoming session
+     */
+    public IncomingSession createIncomingSession(JingleSessionRequest request, long position)
     {
         triggerSessionCreated(request);
 
-        // send acceptance to contact
         Jingle ack = request.getJingle();
+        StreamCache cache = openCache(request);
+        long rangeOffset = 0;
+        long rangeLength = 0;
+
+        if (cache != null)
+        {
+            rangeOffset = cache.getMissingOffset(position);
+            rangeLength = rangeOffset < cache.getSize() ? -1 : 0;
+            // without a range the sender can share a broadcast of the file
+            if (rangeOffset > 0)
+            {
+                ((File) ack.getDescription().getType()).setRange(rangeOffset, rangeLength);
+            }
+        }
+
+        // send acceptance to contact
         ack.setTo(request.getFrom());
         ack.setFrom(connection.getUser());
         ack.setAction(Jingle.Action.SESSIONACCEPT);
         connection.sendPacket(ack);
 
         // create incoming session
-        return new IncomingSession(connection, request.getFrom(), request.getSid());
+        if (cache == null)
+        {
+            return new IncomingSession(connection, request.getFrom(), request.getSid());
+        }
+
+        return new IncomingSession(connection, request.getFrom(), request.getSid(),
+                cache, position, rangeOffset, rangeLength);
+    }
+
+    private StreamCache openCache(JingleSessionRequest request)
+    {
+        Description description = request.getJingle().getDescription();
+
+        if (cacheDirectory == null || description == null || !(description.getType() instanceof File))
+        {
+            return null;
+        }
+
+        File file = (File) description.getType();
+
+        try
+        {
+            StreamCache.trim(cacheDirectory, cacheSize);
+            return new StreamCache(cacheDirectory, request.getFrom(), file);
+        }
+        catch (IOException ex)
+        {
+            Logger.getLogger(JingleManager.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        catch (NumberFormatException ex)
+        {
+            // the file size was missing, so the stream can not be cached
+        }
+
+        return null;
     }
 
     /**
@@ -251,4 +349,57 @@ public class JingleManager
 
         return new OutgoingSession(connection, responder, file);
     }
+
+    /**
+     * Creates an outgoing Jingle file transfer session which shares a single
+     * read of the file with any other sessions sending the same file. If a
+     * broadcast of the file has already started but the start of the file is
+     * no longer buffered, a new broadcast is started.
+     * @param responder The receiver of the session
+     * @param filePath The file to send
+     * @return The outgoing session
+     * @throws org.jivesoftware.smack.XMPPException If the JID was not fully qualified
+     * @throws java.io.FileNotFoundException If the file to be sent cannot be found
+     * @see BroadcastStream
+     */
+    public OutgoingSession createBroadcastSession(String responder, String filePath) throws XMPPException, FileNotFoundException
+    {
+        if (StringUtils.parseResource(responder).equals(""))
+        {
+            throw new XMPPException("Responder JID was not fully qualified");
+        }
+
+        java.io.File file = new java.io.File(filePath);
+
+        if(!file.exists())
+        {
+            throw new FileNotFoundException("The audio file could not be found at the specified location");
+        }
+
+        BroadcastStream.Consumer consumer;
+
+        synchronized (broadcasts)
+        {
+            BroadcastStream broadcast = broadcasts.get(file.getAbsolutePath());
+            consumer = broadcast == null ? null : broadcast.join();
+
+            if (consumer == null)
+            {
+                broadcast = new BroadcastStream(file);
+                broadcasts.put(file.getAbsolutePath(), broadcast);
+                consumer = broadcast.join();
+            }
+
+            // forget broadcasts which have finished
+            for (Iterator<BroadcastStream> it = broadcasts.values().iterator(); it.hasNext();)
+            {
+                if (it.next().isClosed())
+                {
+                    it.remove();
+                }
+            }
+        }
+
+        return new OutgoingSession(connection, responder, file, consumer);
+    }
 }
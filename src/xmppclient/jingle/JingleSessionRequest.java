@@ -68,6 +68,17 @@ public class JingleSessionRequest
     {
         return manager.createIncomingSession(this);
     }
+
+    /**
+     * Accepts the session request, playing from the given position. Only the
+     * part of the file which has not already been received is requested.
+     * @param position The position in the file to start playing from
+     * @return An incoming file transfer session
+     */
+    public IncomingSession accept(long position)
+    {
+        return manager.createIncomingSession(this, position);
+    }
     
     /**
      * Not implemented yet
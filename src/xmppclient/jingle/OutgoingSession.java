@@ -1,15 +1,11 @@
 package xmppclient.jingle;
 
-import java.io.BufferedInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.jivesoftware.smack.PacketListener;
@@ -29,12 +25,19 @@ import org.jivesoftware.smack.filter.PacketTypeFilter;
  */
 public class OutgoingSession extends Session implements PacketListener
 {
+    /**
+     * The maximum number of bytes sent in each transfer from the file to the
+     * socket. The transfer accounting is updated after each chunk.
+     */
+    public static final int CHUNK_SIZE = 64 * 1024;
     private File file;
-    private InputStream in;
-    private DataOutputStream out;
-    private Socket socket;
-    private ServerSocket serverSocket;
-    private byte[] buffer;
+    private FileChannel in;
+    private SocketChannel socket;
+    private String hash;
+    private ByteBuffer buffer;
+    private BroadcastStream.Consumer broadcast;
+    private long rangeOffset = 0;
+    private long rangeLength = -1;
 
     /**
      * Creates a new outgoing file transfer session
@@ -44,14 +47,29 @@ public class OutgoingSession extends Session implements PacketListener
      */
     public OutgoingSession(XMPPConnection connection, String responder, java.io.File file)
     {
-        super(connection, responder);
+        this(connection, responder, file, null);
+    }
+
+    /**
+     * Creates a new outgoing file transfer session which sends the file from
+     * a broadcast, rather than reading the file itself
+     * @param connection The XMPP connection to use to send control information
+     * @param responder The remote user who should receive the file
+     * @param file The file to be sent
+     * @param broadcast The broadcast consumer to read the file from, or null
+     * to read the file directly
+     */
+    public OutgoingSession(XMPPConnection connection, String responder, java.io.File file, BroadcastStream.Consumer broadcast)
+    {
+        super(connection, responder, StringUtils.randomString(5));
         this.file = file;
+        this.broadcast = broadcast;
         Jingle jingle = new Jingle();
         jingle.setFrom(connection.getUser());
         jingle.setTo(responder);
         jingle.setInitiator(connection.getUser());
         jingle.setResponder(responder);
-        jingle.setSid(StringUtils.randomString(5));
+        jingle.setSid(getSid());
         jingle.setAction(Jingle.Action.SESSIONINITIATE);
         jingle.setContent(Jingle.Content.FILEOFFER);
         jingle.setDescription(new Description(
@@ -63,49 +81,151 @@ public class OutgoingSession extends Session implements PacketListener
     }
 
     /**
-     * Opens a server socket on a free port. Waits for the remtoe user to connect,
-     * and starts sending the file byte stream. If the remote user closes the
-     * connection then it will also close the connection.
+     * Called by the stream host once the remote user has connected and
+     * completed the SOCKS5 handshake for this session. Starts streaming the
+     * file to them on the calling thread.
+     * @param socket The connection to the remote user
+     */
+    void accepted(SocketChannel socket)
+    {
+        this.socket = socket;
+        start();
+    }
+
+    /**
+     * Streams the file to the remote user once they have connected to the
+     * stream host. The file is sent straight from the file channel to the
+     * socket channel, so it is never read into the heap. If the remote user
+     * closes the connection then it will also close the connection.
      */
     @Override
     public void start()
     {
+        if (socket == null)
+        {
+            return;
+        }
+
         System.out.println("Starting");
-        InetSocketAddress addr = new InetSocketAddress(getHostAddress(), port);
 
         try
         {
-            buffer = new byte[new Long(file.length()).intValue()];
-            serverSocket = new ServerSocket();
-            serverSocket.bind(addr);
-            System.out.printf("Listening for connections on: %s:%s\n",
-                    serverSocket.getInetAddress().getHostAddress(),
-                    serverSocket.getLocalPort());
-            socket = serverSocket.accept();
-            out = new DataOutputStream(socket.getOutputStream());
-            in = new BufferedInputStream(new FileInputStream(file));
-            System.out.println("Reading in file");
-            in.read(buffer);
+            super.connected = true;
+            super.status = "Sending";
             System.out.println("Writing out file");
-            out.write(buffer);
+            if (broadcast != null && (rangeOffset > 0 || rangeLength >= 0))
+            {
+                // the broadcast always starts from the beginning of the file
+                broadcast.close();
+                broadcast = null;
+            }
+            if (broadcast != null)
+            {
+                sendBroadcast();
+            }
+            else
+            {
+                in = new FileInputStream(file).getChannel();
+                send();
+            }
+            super.status = "Finished";
+            super.complete = true;
             System.out.println("Finished");
-            //out.flush();
         }
-        catch(SocketException ex)
+        catch (IOException ex)
         {
             System.out.println("Peer closed socket");
             terminate();
         }
-        catch (Exception ex)
+    }
+
+    /**
+     * Sends the file in chunks using {@link FileChannel#transferTo}, which lets
+     * the operating system copy the file without it passing through the heap.
+     * If the platform cannot transfer directly to the socket then a single
+     * direct buffer is used to copy each chunk instead. Only the range asked
+     * for by the receiver is sent.
+     */
+    private void send() throws IOException
+    {
+        long size = in.size();
+        long position = Math.min(rangeOffset, size);
+        long end = rangeLength < 0 ? size : Math.min(size, position + rangeLength);
+        startTransfer(end - position);
+
+        while (position < end)
         {
-            Logger.getLogger(OutgoingSession.class.getName()).log(Level.SEVERE, null, ex);
+            long count = Math.min(CHUNK_SIZE, end - position);
+            long sent = in.transferTo(position, count, socket);
+
+            if (sent <= 0)
+            {
+                sent = copy(position, count);
+            }
+
+            position += sent;
+            addBytesTransferred(sent);
         }
     }
 
+    /**
+     * Sends the file as it is read from the broadcast, through a single
+     * direct buffer
+     */
+    private void sendBroadcast() throws IOException
+    {
+        buffer = ByteBuffer.allocateDirect(CHUNK_SIZE);
+        startTransfer(file.length());
+        broadcast.start();
+
+        while (true)
+        {
+            buffer.clear();
+            int read = broadcast.read(buffer);
+
+            if (read < 0)
+            {
+                break;
+            }
+
+            buffer.flip();
+            while (buffer.hasRemaining())
+            {
+                socket.write(buffer);
+            }
+            addBytesTransferred(read);
+        }
+    }
+
+    private long copy(long position, long count) throws IOException
+    {
+        if (buffer == null)
+        {
+            buffer = ByteBuffer.allocateDirect(CHUNK_SIZE);
+        }
+
+        buffer.clear();
+        buffer.limit((int) count);
+        int read = in.read(buffer, position);
+
+        if (read < 0)
+        {
+            throw new IOException("Unexpected end of file");
+        }
+
+        buffer.flip();
+        while (buffer.hasRemaining())
+        {
+            socket.write(buffer);
+        }
+
+        return read;
+    }
+
     /**
      * Terminates the outgoing file transfer by removing the Jingle session accept
-     * listener, and closing the file input stream, the file output stream and 
-     * finally the socket.
+     * listener, no longer waiting for a connection on the stream host, and
+     * closing the file channel and the socket.
      */
     @Override
     public void terminate()
@@ -113,15 +233,35 @@ public class OutgoingSession extends Session implements PacketListener
         System.out.println("Closing outgoing session");
         
         super.connection.removePacketListener(this);
+
+        if (hash != null)
+        {
+            try
+            {
+                StreamHostListener.getInstance().removeSession(hash);
+            }
+            catch (IOException ex)
+            {
+                Logger.getLogger(OutgoingSession.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
         
         try
         {
-            System.out.println("Closing input stream");
-            in.close();
-            System.out.println("Closing output stream");
-            out.close();
+            System.out.println("Closing file channel");
+            if (in != null)
+            {
+                in.close();
+            }
+            if (broadcast != null)
+            {
+                broadcast.close();
+            }
             System.out.println("Closing socket");
-            socket.close();
+            if (socket != null)
+            {
+                socket.close();
+            }
             System.out.println("Connection closed");
         }
         catch (IOException ex)
@@ -136,17 +276,37 @@ public class OutgoingSession extends Session implements PacketListener
         Jingle jingle = (Jingle) packet;
         System.out.printf("%s: Jingle packet received\n", this.getClass().getName());
 
-        if (jingle.getAction() == Jingle.Action.SESSIONACCEPT)
+        if (jingle.getAction() == Jingle.Action.SESSIONACCEPT && getSid().equals(jingle.getSid()))
         {
-            port = getFreePort();
-            Bytestream bytestream = new Bytestream();
+            if (jingle.getDescription() != null && jingle.getDescription().getType() instanceof xmppclient.jingle.packet.File)
+            {
+                xmppclient.jingle.packet.File offer = (xmppclient.jingle.packet.File) jingle.getDescription().getType();
+                rangeOffset = offer.getRangeOffset();
+                rangeLength = offer.getRangeLength();
+            }
+
+            try
+            {
+                StreamHostListener streamHost = StreamHostListener.getInstance();
+                hash = StreamHostListener.createHash(getSid(), jingle.getTo(), jingle.getFrom());
+                streamHost.addSession(hash, this);
+                port = streamHost.getPort();
+            }
+            catch (IOException ex)
+            {
+                Logger.getLogger(OutgoingSession.class.getName()).log(Level.SEVERE, null, ex);
+                terminate();
+                return;
+            }
+
+            // the session is started by the stream host when the remote user connects
+            Bytestream bytestream = new Bytestream(getSid());
             bytestream.addStreamHost(super.connection.getUser(), getHostAddress(), port);
             bytestream.setTo(jingle.getFrom());
             bytestream.setFrom(jingle.getTo());
             bytestream.setMode(Bytestream.Mode.tcp);
             bytestream.setType(IQ.Type.SET);
             connection.sendPacket(bytestream);
-            start();
         }
     }
 }
@@ -0,0 +1,333 @@
+package xmppclient.jingle;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import javazoom.jl.decoder.Bitstream;
+import javazoom.jl.decoder.BitstreamException;
+import javazoom.jl.decoder.Header;
+
+/**
+ * A jitter buffer which sits between the socket and the audio decoder. A
+ * background thread reads ahead from the socket, and reads by the decoder are
+ * held back until enough audio has been buffered to cover a network stall.
+ * <p>
+ * The amount buffered is worked out from the bitrate of the first MP3 frame and
+ * the measured rate the stream is arriving at. If the stream arrives slower
+ * than it plays, more is buffered, and each time the buffer runs dry during
+ * playback (an underrun) the amount is doubled, up to
+ * {@link #MAX_PREFETCH_SECONDS}.
+ * @author Lee Boynton (323326)
+ */
+public class PrefetchInputStream extends InputStream implements Runnable
+{
+    /**
+     * The bitrate assumed until the first frame has been read, in bits per second
+     */
+    public static final int DEFAULT_BITRATE = 128000;
+    /**
+     * The number of seconds of audio buffered before playback starts
+     */
+    public static final float MIN_PREFETCH_SECONDS = 2;
+    /**
+     * The most seconds of audio that will be buffered
+     */
+    public static final float MAX_PREFETCH_SECONDS = 20;
+    /**
+     * The size of the buffer, which is enough for the maximum prefetch at 320 kbps
+     */
+    public static final int CAPACITY = (int) (MAX_PREFETCH_SECONDS * 320000 / 8);
+    private static final int HEADER_BYTES = 16 * 1024;
+    private static final int READ_SIZE = 8 * 1024;
+    private static final long RATE_INTERVAL = 500;
+    private final InputStream source;
+    private final byte[] buffer = new byte[CAPACITY];
+    private int head = 0;
+    private int count = 0;
+    private boolean eof = false;
+    private boolean closed = false;
+    private IOException error;
+    private boolean buffering = true;
+    private boolean started = false;
+    private int underruns = 0;
+    private float prefetchSeconds = MIN_PREFETCH_SECONDS;
+    private int bitrate = DEFAULT_BITRATE;
+    private boolean bitrateKnown = false;
+    private double arrivalRate = 0;
+    private byte[] header = new byte[HEADER_BYTES];
+    private int headerLength = 0;
+
+    /**
+     * Creates a new prefetch stream and starts reading ahead from the source
+     * @param source The stream to read ahead from
+     */
+    public PrefetchInputStream(InputStream source)
+    {
+        this.source = source;
+        Thread reader = new Thread(this, "Stream prefetch");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Reads from the source into the buffer until the end of the stream, and
+     * measures the rate the stream arrives at
+     */
+    @Override
+    public void run()
+    {
+        byte[] chunk = new byte[READ_SIZE];
+        long intervalStarted = System.currentTimeMillis();
+        long intervalBytes = 0;
+
+        try
+        {
+            while (true)
+            {
+                int read = source.read(chunk);
+
+                if (read < 0)
+                {
+                    break;
+                }
+
+                if (!bitrateKnown)
+                {
+                    readBitrate(chunk, read);
+                }
+
+                long now = System.currentTimeMillis();
+                intervalBytes += read;
+                if (now - intervalStarted >= RATE_INTERVAL)
+                {
+                    updateArrivalRate(intervalBytes * 1000.0 / (now - intervalStarted));
+                    intervalStarted = now;
+                    intervalBytes = 0;
+                }
+
+                if (!put(chunk, read))
+                {
+                    return;
+                }
+            }
+        }
+        catch (IOException ex)
+        {
+            synchronized (this)
+            {
+                error = ex;
+            }
+        }
+
+        synchronized (this)
+        {
+            eof = true;
+            notifyAll();
+        }
+    }
+
+    private synchronized boolean put(byte[] chunk, int length) throws IOException
+    {
+        int offset = 0;
+
+        while (offset < length)
+        {
+            while (count == CAPACITY && !closed)
+            {
+                try
+                {
+                    wait();
+                }
+                catch (InterruptedException ex)
+                {
+                    throw new IOException("Interrupted while prefetching");
+                }
+            }
+
+            if (closed)
+            {
+                return false;
+            }
+
+            int tail = (head + count) % CAPACITY;
+            int n = Math.min(length - offset, Math.min(CAPACITY - count, CAPACITY - tail));
+            System.arraycopy(chunk, offset, buffer, tail, n);
+            count += n;
+            offset += n;
+            notifyAll();
+        }
+
+        return true;
+    }
+
+    /**
+     * Keeps the start of the stream until the first MP3 frame header can be
+     * read from it, and then uses the bitrate of the frame
+     */
+    private void readBitrate(byte[] chunk, int length)
+    {
+        int n = Math.min(length, HEADER_BYTES - headerLength);
+        System.arraycopy(chunk, 0, header, headerLength, n);
+        headerLength += n;
+
+        if (headerLength < HEADER_BYTES)
+        {
+            return;
+        }
+
+        try
+        {
+            Header frame = new Bitstream(new ByteArrayInputStream(header, 0, headerLength)).readFrame();
+            if (frame != null && frame.bitrate() > 0)
+            {
+                synchronized (this)
+                {
+                    bitrate = frame.bitrate();
+                }
+            }
+        }
+        catch (BitstreamException ex)
+        {
+            // not an MP3 stream, so keep the default bitrate
+        }
+
+        bitrateKnown = true;
+        header = null;
+    }
+
+    private synchronized void updateArrivalRate(double rate)
+    {
+        arrivalRate = arrivalRate == 0 ? rate : 0.7 * arrivalRate + 0.3 * rate;
+        notifyAll();
+    }
+
+    /**
+     * Gets the number of bytes which should be buffered before playback starts
+     * or resumes. This is the prefetch time at the bitrate of the stream,
+     * increased in proportion if the stream is arriving slower than it plays.
+     * @return The number of bytes
+     */
+    public synchronized int getTargetBytes()
+    {
+        double bytesPerSecond = bitrate / 8.0;
+        float seconds = prefetchSeconds;
+
+        if (arrivalRate > 0 && arrivalRate < bytesPerSecond)
+        {
+            seconds = (float) Math.min(MAX_PREFETCH_SECONDS, seconds * bytesPerSecond / arrivalRate);
+        }
+
+        return (int) Math.min(CAPACITY, seconds * bytesPerSecond);
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        byte[] b = new byte[1];
+        int read = read(b, 0, 1);
+        return read < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) throws IOException
+    {
+        if (len == 0)
+        {
+            return 0;
+        }
+
+        if (count == 0 && started && !eof && !buffering)
+        {
+            // the buffer ran dry during playback, so buffer more next time
+            underruns++;
+            buffering = true;
+            prefetchSeconds = Math.min(MAX_PREFETCH_SECONDS, prefetchSeconds * 2);
+        }
+
+        while ((buffering ? count < getTargetBytes() : count == 0) && !eof && !closed)
+        {
+            try
+            {
+                wait();
+            }
+            catch (InterruptedException ex)
+            {
+                throw new IOException("Interrupted while buffering");
+            }
+        }
+
+        buffering = false;
+        started = true;
+
+        if (count == 0)
+        {
+            if (error != null)
+            {
+                throw error;
+            }
+            return -1;
+        }
+
+        int n = Math.min(len, Math.min(count, CAPACITY - head));
+        System.arraycopy(buffer, head, b, off, n);
+        head = (head + n) % CAPACITY;
+        count -= n;
+        notifyAll();
+        return n;
+    }
+
+    @Override
+    public synchronized int available()
+    {
+        return buffering ? 0 : count;
+    }
+
+    /**
+     * Gets the number of times the buffer has run dry during playback
+     * @return The number of underruns
+     */
+    public synchronized int getUnderruns()
+    {
+        return underruns;
+    }
+
+    /**
+     * Gets the number of bytes currently buffered
+     * @return The number of bytes
+     */
+    public synchronized int getBufferedBytes()
+    {
+        return count;
+    }
+
+    /**
+     * Gets the bitrate of the stream, read from the first MP3 frame
+     * @return The bitrate in bits per second, or {@link #DEFAULT_BITRATE} if
+     * it is not known yet
+     */
+    public synchronized int getBitrate()
+    {
+        return bitrate;
+    }
+
+    /**
+     * Gets the measured rate the stream is arriving at
+     * @return The rate in bytes per second, or 0 if it has not been measured yet
+     */
+    public synchronized double getArrivalRate()
+    {
+        return arrivalRate;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        synchronized (this)
+        {
+            closed = true;
+            notifyAll();
+        }
+
+        source.close();
+    }
+}
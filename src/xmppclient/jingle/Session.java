@@ -1,8 +1,6 @@
 package xmppclient.jingle;
 
-import java.io.IOException;
 import java.net.InetAddress;
-import java.net.ServerSocket;
 import java.net.UnknownHostException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -27,22 +25,25 @@ public abstract class Session
      * This should be set by subclasses to indicate if the session has completed
      * transmission
      */
-    protected boolean complete = false;
+    protected volatile boolean complete = false;
     /**
      * This should be set by subclasses to indicate if the session is connected
      * to a remote user
      */
-    protected boolean connected = false;
+    protected volatile boolean connected = false;
     /**
      * This should be set by subclasses to indicate the status of the session
      * in textual form
      */
-    protected String status = "Not started";
+    protected volatile String status = "Not started";
     /**
-     * This should be set by the outgoing session subclass. It is the port the
-     * outgoing session listens on.
+     * This should be set by the outgoing session subclass. It is the port of
+     * the stream host the outgoing session is waiting for a connection on.
      */
     protected int port;
+    private volatile long bytesTransferred = 0;
+    private volatile long totalBytes = 0;
+    private volatile long transferStarted = 0;
 
     /**
      * Sets the session parameters
@@ -109,12 +110,79 @@ public abstract class Session
     }
 
     /**
-     * Gets the textual message indicating the status of the file transfer
+     * Gets the textual message indicating the status of the file transfer. Once
+     * the transfer has started this includes the amount transferred and the
+     * average transfer rate.
      * @return The status
      */
     public String getStatus()
     {
-        return status;
+        if (transferStarted == 0)
+        {
+            return status;
+        }
+
+        return String.format("%s (%d of %d KB, %d KB/s)",
+                status,
+                bytesTransferred / 1024,
+                totalBytes / 1024,
+                getBytesPerSecond() / 1024);
+    }
+
+    /**
+     * Should be called by subclasses when the file starts being transferred,
+     * to reset the transfer accounting
+     * @param totalBytes The size of the file being transferred
+     */
+    protected void startTransfer(long totalBytes)
+    {
+        this.totalBytes = totalBytes;
+        this.bytesTransferred = 0;
+        this.transferStarted = System.currentTimeMillis();
+    }
+
+    /**
+     * Should be called by subclasses each time part of the file has been
+     * transferred
+     * @param bytes The number of bytes transferred
+     */
+    protected void addBytesTransferred(long bytes)
+    {
+        bytesTransferred += bytes;
+    }
+
+    /**
+     * Gets the number of bytes transferred so far
+     * @return The number of bytes
+     */
+    public long getBytesTransferred()
+    {
+        return bytesTransferred;
+    }
+
+    /**
+     * Gets the size of the file being transferred
+     * @return The number of bytes, or 0 if the transfer has not started
+     */
+    public long getTotalBytes()
+    {
+        return totalBytes;
+    }
+
+    /**
+     * Gets the average transfer rate since the transfer started
+     * @return The transfer rate in bytes per second, or 0 if the transfer
+     * has not started
+     */
+    public long getBytesPerSecond()
+    {
+        if (transferStarted == 0)
+        {
+            return 0;
+        }
+
+        long elapsed = Math.max(1, System.currentTimeMillis() - transferStarted);
+        return bytesTransferred * 1000 / elapsed;
     }
 
     /**
@@ -144,29 +212,6 @@ public abstract class Session
         return connection;
     }
 
-    /**
-     * Gets a free port by creating a new server socket using any free port, 
-     * getting the port from the socket and closing the socket.
-     * @return The free port
-     */
-    public int getFreePort()
-    {
-        int freePort = 0;
-        
-        try
-        {
-            ServerSocket socket = new ServerSocket(0);
-            freePort = socket.getLocalPort();
-            socket.close();
-        }
-        catch (IOException ex)
-        {
-            Logger.getLogger(JingleManager.class.getName()).log(Level.SEVERE, null, ex);
-        }
-        
-        return freePort;
-    }
-    
     /**
      * Gets the host address of this computer. If this is running on Linux, this
      * may return the localhost address if the /etc/hosts file is not set up correctly.
@@ -0,0 +1,301 @@
+package xmppclient.jingle;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jivesoftware.smack.util.StringUtils;
+
+/**
+ * A local cache of the parts of a streamed file which have already been
+ * received. The data is written to a file at the same offsets as the original,
+ * and the ranges which have been received are kept in a second file, so that a
+ * stream which is interrupted or restarted at a different position only needs
+ * the missing ranges to be sent again.
+ * <p>
+ * The size of the cache directory is limited with {@link #trim(File, long)},
+ * which removes the least recently used streams first.
+ * @author Lee Boynton (323326)
+ */
+public class StreamCache
+{
+    private static final Set<String> openKeys = new HashSet<String>();
+    private final String key;
+    private final File dataFile;
+    private final RandomAccessFile data;
+    private final File rangesFile;
+    private final long size;
+    /** Sorted, non-overlapping ranges of cached bytes, as {start, end} pairs */
+    private final List<long[]> ranges = new ArrayList<long[]>();
+
+    /**
+     * Opens the cache for the given file, creating it if it does not exist
+     * @param directory The directory the cache files are stored in
+     * @param sender The JID of the user sending the file
+     * @param file The description of the file being streamed
+     * @throws java.io.IOException If the cache files could not be opened
+     */
+    public StreamCache(File directory, String sender, xmppclient.jingle.packet.File file) throws IOException
+    {
+        this.key = StringUtils.hash(StringUtils.parseBareAddress(sender) + "/" +
+                file.getName() + "/" + file.getSize() + "/" + file.getHash());
+        this.size = Long.parseLong(file.getSize());
+        this.dataFile = new File(directory, key + ".part");
+        this.rangesFile = new File(directory, key + ".ranges");
+        synchronized (openKeys)
+        {
+            this.data = new RandomAccessFile(dataFile, "rw");
+            openKeys.add(key);
+        }
+        // the modification time records when the stream was last used
+        dataFile.setLastModified(System.currentTimeMillis());
+        loadRanges();
+    }
+
+    /**
+     * Removes the least recently used streams from the cache directory until
+     * the cached streams take up no more than the given size. Streams which
+     * are open are never removed.
+     * @param directory The directory the cache files are stored in
+     * @param maxSize The maximum size in bytes
+     */
+    public static void trim(File directory, long maxSize)
+    {
+        synchronized (openKeys)
+        {
+            File[] files = directory.listFiles();
+            if (files == null)
+            {
+                return;
+            }
+
+            List<File> closed = new ArrayList<File>();
+            long total = 0;
+            for (File file : files)
+            {
+                if (file.getName().endsWith(".part"))
+                {
+                    total += file.length();
+                    if (!openKeys.contains(getKey(file)))
+                    {
+                        closed.add(file);
+                    }
+                }
+            }
+
+            Collections.sort(closed, new Comparator<File>()
+            {
+                @Override
+                public int compare(File a, File b)
+                {
+                    return a.lastModified() < b.lastModified() ? -1 : a.lastModified() == b.lastModified() ? 0 : 1;
+                }
+            });
+
+            for (File file : closed)
+            {
+                if (total <= maxSize)
+                {
+                    break;
+                }
+                total -= file.length();
+                file.delete();
+                new File(directory, getKey(file) + ".ranges").delete();
+            }
+        }
+    }
+
+    private static String getKey(File dataFile)
+    {
+        String name = dataFile.getName();
+        return name.substring(0, name.length() - ".part".length());
+    }
+
+    /**
+     * Gets the size of the complete file
+     * @return The size in bytes
+     */
+    public long getSize()
+    {
+        return size;
+    }
+
+    /**
+     * Gets the number of bytes from the given position which are in the cache
+     * @param position The position in the file
+     * @return The number of cached bytes, which is 0 if the position is not cached
+     */
+    public synchronized long getCachedLength(long position)
+    {
+        for (long[] range : ranges)
+        {
+            if (range[0] <= position && position < range[1])
+            {
+                return range[1] - position;
+            }
+        }
+
+        return 0;
+    }
+
+    /**
+     * Gets the position of the first byte at or after the given position which
+     * is not in the cache
+     * @param position The position to start from
+     * @return The position of the first missing byte, which is the size of the
+     * file if everything from the position onwards is cached
+     */
+    public synchronized long getMissingOffset(long position)
+    {
+        return Math.min(size, position + getCachedLength(position));
+    }
+
+    /**
+     * Reads cached bytes
+     * @param position The position in the file to read from, which must be cached
+     * @param b The buffer to read into
+     * @param off The offset in the buffer
+     * @param len The maximum number of bytes to read
+     * @return The number of bytes read, which is 0 if the position is not cached
+     * @throws java.io.IOException If the cache could not be read
+     */
+    public synchronized int read(long position, byte[] b, int off, int len) throws IOException
+    {
+        int length = (int) Math.min(len, getCachedLength(position));
+
+        if (length == 0)
+        {
+            return 0;
+        }
+
+        data.seek(position);
+        data.readFully(b, off, length);
+        return length;
+    }
+
+    /**
+     * Writes received bytes to the cache
+     * @param position The position in the file the bytes were received from
+     * @param b The buffer containing the bytes
+     * @param off The offset in the buffer
+     * @param len The number of bytes
+     * @throws java.io.IOException If the cache could not be written
+     */
+    public synchronized void write(long position, byte[] b, int off, int len) throws IOException
+    {
+        data.seek(position);
+        data.write(b, off, len);
+        addRange(position, position + len);
+    }
+
+    /**
+     * Saves the cached ranges and closes the cache
+     */
+    public synchronized void close()
+    {
+        try
+        {
+            saveRanges();
+            data.close();
+        }
+        catch (IOException ex)
+        {
+            Logger.getLogger(StreamCache.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        dataFile.setLastModified(System.currentTimeMillis());
+        synchronized (openKeys)
+        {
+            openKeys.remove(key);
+        }
+    }
+
+    private void addRange(long start, long end)
+    {
+        List<long[]> merged = new ArrayList<long[]>(ranges.size() + 1);
+        int i = 0;
+
+        // copy the ranges which end before the new one starts
+        while (i < ranges.size() && ranges.get(i)[1] < start)
+        {
+            merged.add(ranges.get(i++));
+        }
+
+        // merge the ranges which overlap or touch the new one
+        while (i < ranges.size() && ranges.get(i)[0] <= end)
+        {
+            start = Math.min(start, ranges.get(i)[0]);
+            end = Math.max(end, ranges.get(i)[1]);
+            i++;
+        }
+        merged.add(new long[]{start, end});
+
+        while (i < ranges.size())
+        {
+            merged.add(ranges.get(i++));
+        }
+
+        ranges.clear();
+        ranges.addAll(merged);
+    }
+
+    private void loadRanges() throws IOException
+    {
+        if (!rangesFile.exists())
+        {
+            return;
+        }
+
+        BufferedReader in = new BufferedReader(new FileReader(rangesFile));
+
+        try
+        {
+            String line;
+            while ((line = in.readLine()) != null)
+            {
+                String[] values = line.split(" ");
+                if (values.length == 2)
+                {
+                    addRange(Long.parseLong(values[0]), Long.parseLong(values[1]));
+                }
+            }
+        }
+        catch (NumberFormatException ex)
+        {
+            // corrupt ranges file, so treat nothing as cached
+            ranges.clear();
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    private void saveRanges() throws IOException
+    {
+        BufferedWriter out = new BufferedWriter(new FileWriter(rangesFile));
+
+        try
+        {
+            for (long[] range : ranges)
+            {
+                out.write(range[0] + " " + range[1]);
+                out.newLine();
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,441 @@
+package xmppclient.jingle;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jivesoftware.smack.util.StringUtils;
+
+/**
+ * A single stream host shared by every outgoing session. One server socket is
+ * bound when the listener is first used, and one selector thread accepts the
+ * connections from receivers and reads their SOCKS5 handshake without
+ * blocking. The SOCKS5 connect request carries the hash of the session ID and
+ * the two JIDs, as described in XEP-0065: SOCKS5 Bytestreams, and this is used
+ * to hand the connection to the session which is waiting for it.
+ * <p>
+ * Older versions of the client connect and wait for the file without a
+ * handshake. A connection which sends nothing for {@link #LEGACY_TIMEOUT} is
+ * taken to be from one of these, and is given to the waiting session if there
+ * is only one, as there is no hash to tell sessions apart. Otherwise it is
+ * closed.
+ * <p>
+ * Once a connection has been handed over its session sends the file on a
+ * thread from a shared pool, so the selector thread is never blocked.
+ * @author Lee Boynton (323326)
+ */
+public class StreamHostListener implements Runnable
+{
+    /**
+     * The time in milliseconds a connection can send nothing before it is
+     * taken to be from a receiver which does not carry out the handshake
+     */
+    public static final long LEGACY_TIMEOUT = 2000;
+    private static final byte SOCKS_VERSION = 5;
+    private static final byte NO_AUTHENTICATION = 0;
+    private static final byte CONNECT = 1;
+    private static final byte DOMAIN_NAME = 3;
+    private static final byte SUCCEEDED = 0;
+    private static final byte HOST_UNREACHABLE = 4;
+    private static StreamHostListener instance;
+    private final ServerSocketChannel serverSocket;
+    private final Selector selector;
+    private final Map<String, OutgoingSession> sessions = new HashMap<String, OutgoingSession>();
+    private final ExecutorService senders;
+    private final List<SelectionKey> completed = new ArrayList<SelectionKey>();
+
+    private StreamHostListener() throws IOException
+    {
+        selector = Selector.open();
+        serverSocket = ServerSocketChannel.open();
+        serverSocket.socket().bind(new InetSocketAddress(0));
+        serverSocket.configureBlocking(false);
+        serverSocket.register(selector, SelectionKey.OP_ACCEPT);
+        senders = Executors.newCachedThreadPool(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "Stream host sender");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        Thread thread = new Thread(this, "Stream host listener");
+        thread.setDaemon(true);
+        thread.start();
+        System.out.printf("Stream host listening on port %d\n", getPort());
+    }
+
+    /**
+     * Gets the stream host, binding its server socket the first time this is
+     * called
+     * @return The stream host
+     * @throws java.io.IOException If the server socket could not be bound
+     */
+    public static synchronized StreamHostListener getInstance() throws IOException
+    {
+        if (instance == null)
+        {
+            instance = new StreamHostListener();
+        }
+
+        return instance;
+    }
+
+    /**
+     * Creates the hash a receiver sends in its SOCKS5 connect request to
+     * identify the session it wants
+     * @param sid The session ID
+     * @param requester The full JID of the user sending the file
+     * @param target The full JID of the user receiving the file
+     * @return The SHA-1 hash as a hex string
+     */
+    public static String createHash(String sid, String requester, String target)
+    {
+        return StringUtils.hash(sid + requester + target);
+    }
+
+    /**
+     * Gets the port the stream host is listening on
+     * @return The port
+     */
+    public int getPort()
+    {
+        return serverSocket.socket().getLocalPort();
+    }
+
+    /**
+     * Registers a session to be given the connection from the receiver which
+     * sends the given hash
+     * @param hash The hash identifying the session
+     * @param session The session waiting for the connection
+     */
+    public void addSession(String hash, OutgoingSession session)
+    {
+        synchronized (sessions)
+        {
+            sessions.put(hash, session);
+        }
+    }
+
+    /**
+     * Stops waiting for a connection for the session with the given hash
+     * @param hash The hash identifying the session
+     */
+    public void removeSession(String hash)
+    {
+        synchronized (sessions)
+        {
+            sessions.remove(hash);
+        }
+    }
+
+    /**
+     * Accepts connections and reads their handshakes until the selector is
+     * closed
+     */
+    @Override
+    public void run()
+    {
+        while (selector.isOpen())
+        {
+            try
+            {
+                selector.select(LEGACY_TIMEOUT);
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext())
+                {
+                    SelectionKey key = it.next();
+                    it.remove();
+
+                    if (!key.isValid())
+                    {
+                        continue;
+                    }
+                    if (key.isAcceptable())
+                    {
+                        accept();
+                    }
+                    else
+                    {
+                        handle(key);
+                    }
+                }
+
+                checkSilent();
+                handOver();
+            }
+            catch (IOException ex)
+            {
+                Logger.getLogger(StreamHostListener.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    private void accept() throws IOException
+    {
+        SocketChannel socket = serverSocket.accept();
+
+        if (socket != null)
+        {
+            socket.configureBlocking(false);
+            socket.register(selector, SelectionKey.OP_READ, new Handshake());
+        }
+    }
+
+    private void handle(SelectionKey key)
+    {
+        SocketChannel socket = (SocketChannel) key.channel();
+        Handshake handshake = (Handshake) key.attachment();
+
+        try
+        {
+            if (key.isWritable())
+            {
+                socket.write(handshake.out);
+
+                if (handshake.out.hasRemaining())
+                {
+                    return;
+                }
+                if (handshake.session != null)
+                {
+                    key.interestOps(0);
+                    completed.add(key);
+                    return;
+                }
+                if (handshake.failed)
+                {
+                    close(key);
+                    return;
+                }
+                // the connect request may have arrived along with the greeting
+                if (handshake.process())
+                {
+                    return;
+                }
+
+                key.interestOps(SelectionKey.OP_READ);
+            }
+
+            if (key.isValid() && key.isReadable())
+            {
+                if (socket.read(handshake.in) < 0)
+                {
+                    close(key);
+                    return;
+                }
+
+                if (handshake.process())
+                {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                }
+            }
+        }
+        catch (IOException ex)
+        {
+            close(key);
+        }
+    }
+
+    /**
+     * Finds the connections which have sent nothing for the legacy timeout,
+     * and gives each to the waiting session if there is only one
+     */
+    private void checkSilent()
+    {
+        long now = System.currentTimeMillis();
+
+        for (SelectionKey key : selector.keys())
+        {
+            if (!key.isValid() || !(key.attachment() instanceof Handshake))
+            {
+                continue;
+            }
+            Handshake handshake = (Handshake) key.attachment();
+            if (handshake.greeted || handshake.in.position() > 0 || now - handshake.accepted < LEGACY_TIMEOUT)
+            {
+                continue;
+            }
+
+            synchronized (sessions)
+            {
+                if (sessions.size() == 1)
+                {
+                    handshake.session = sessions.remove(sessions.keySet().iterator().next());
+                }
+            }
+            if (handshake.session == null)
+            {
+                close(key);
+            }
+            else
+            {
+                System.out.println("Stream host: connection without a handshake, sending to the only waiting session");
+                key.interestOps(0);
+                completed.add(key);
+            }
+        }
+    }
+
+    /**
+     * Gives the connections which have completed their handshake to their
+     * sessions. The keys have to be cancelled and the selector updated before
+     * the channels can be made blocking again.
+     */
+    private void handOver() throws IOException
+    {
+        if (completed.isEmpty())
+        {
+            return;
+        }
+
+        for (SelectionKey key : completed)
+        {
+            key.cancel();
+        }
+        selector.selectNow();
+
+        for (SelectionKey key : completed)
+        {
+            final SocketChannel socket = (SocketChannel) key.channel();
+            final OutgoingSession session = ((Handshake) key.attachment()).session;
+
+            try
+            {
+                socket.configureBlocking(true);
+            }
+            catch (IOException ex)
+            {
+                socket.close();
+                continue;
+            }
+
+            senders.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    session.accepted(socket);
+                }
+            });
+        }
+
+        completed.clear();
+    }
+
+    private void close(SelectionKey key)
+    {
+        key.cancel();
+
+        try
+        {
+            key.channel().close();
+        }
+        catch (IOException ex)
+        {
+            Logger.getLogger(StreamHostListener.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * The state of the SOCKS5 handshake on one connection. The greeting and
+     * the connect request are read into a buffer until they are complete, and
+     * each reply is written from a second buffer.
+     */
+    private class Handshake
+    {
+        private final ByteBuffer in = ByteBuffer.allocate(512);
+        private final long accepted = System.currentTimeMillis();
+        private ByteBuffer out;
+        private boolean greeted = false;
+        private boolean failed = false;
+        private OutgoingSession session;
+
+        /**
+         * Processes whatever has been read so far
+         * @return True if a reply is ready to be written, false if more needs
+         * to be read first
+         * @throws java.io.IOException If the handshake is not valid SOCKS5
+         */
+        private boolean process() throws IOException
+        {
+            in.flip();
+
+            try
+            {
+                return greeted ? processRequest() : processGreeting();
+            }
+            finally
+            {
+                in.compact();
+            }
+        }
+
+        private boolean processGreeting() throws IOException
+        {
+            if (in.remaining() < 2 || in.remaining() < 2 + (in.get(1) & 0xff))
+            {
+                return false;
+            }
+            if (in.get() != SOCKS_VERSION)
+            {
+                throw new IOException("Not a SOCKS5 connection");
+            }
+
+            // only connections without authentication are supported
+            int methods = in.get() & 0xff;
+            in.position(in.position() + methods);
+            greeted = true;
+            out = ByteBuffer.wrap(new byte[]{SOCKS_VERSION, NO_AUTHENTICATION});
+            return true;
+        }
+
+        private boolean processRequest() throws IOException
+        {
+            if (in.remaining() < 5 || in.remaining() < 7 + (in.get(4) & 0xff))
+            {
+                return false;
+            }
+            if (in.get() != SOCKS_VERSION || in.get() != CONNECT || in.get() != 0 || in.get() != DOMAIN_NAME)
+            {
+                throw new IOException("Not a SOCKS5 connect request");
+            }
+
+            byte[] address = new byte[in.get() & 0xff];
+            in.get(address);
+            in.getShort();
+            String hash = new String(address, "US-ASCII");
+
+            synchronized (sessions)
+            {
+                session = sessions.remove(hash);
+            }
+
+            failed = session == null;
+
+            // the reply repeats the address, with the port set to 0
+            out = ByteBuffer.allocate(7 + address.length);
+            out.put(SOCKS_VERSION).put(failed ? HOST_UNREACHABLE : SUCCEEDED).put((byte) 0).put(DOMAIN_NAME);
+            out.put((byte) address.length).put(address).putShort((short) 0);
+            out.flip();
+            return true;
+        }
+    }
+}
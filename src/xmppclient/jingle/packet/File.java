@@ -26,6 +26,8 @@ public class File implements PacketExtension
     private String hash;
     private String date;
     private String desc;
+    private long rangeOffset = 0;
+    private long rangeLength = -1;
 
     /**
      * Creates a new file element with the given parameters
@@ -107,6 +109,46 @@ public class File implements PacketExtension
         this.size = size;
     }
 
+    /**
+     * Sets the range of bytes of the file which should be sent. The receiver
+     * sets this when accepting a session so that only the part of the file it
+     * does not already have is sent.
+     * @param offset The offset of the first byte to send
+     * @param length The number of bytes to send, or -1 for the rest of the file
+     */
+    public void setRange(long offset, long length)
+    {
+        this.rangeOffset = offset;
+        this.rangeLength = length;
+    }
+
+    /**
+     * Gets the offset of the first byte which should be sent
+     * @return The offset, which is 0 if no range has been set
+     */
+    public long getRangeOffset()
+    {
+        return rangeOffset;
+    }
+
+    /**
+     * Gets the number of bytes which should be sent
+     * @return The number of bytes, or -1 for the rest of the file
+     */
+    public long getRangeLength()
+    {
+        return rangeLength;
+    }
+
+    /**
+     * Used to determine if only part of the file should be sent
+     * @return True if a range has been set, false if the whole file should be sent
+     */
+    public boolean hasRange()
+    {
+        return rangeOffset > 0 || rangeLength >= 0;
+    }
+
     @Override
     public String getNamespace()
     {
@@ -179,6 +221,13 @@ public class File implements PacketExtension
         buf.append(">");
         if(desc != null)
             buf.append("<desc>").append(desc).append("</desc>");
+        if(hasRange())
+        {
+            buf.append("<range offset=\"").append(rangeOffset).append("\"");
+            if(rangeLength >= 0)
+                buf.append(" length=\"").append(rangeLength).append("\"");
+            buf.append("/>");
+        }
         buf.append("</").append(getElementName()).append(">");
         return buf.toString();
     }
@@ -45,6 +45,14 @@ public class FileProvider implements PacketExtensionProvider
             {
                 file.setDesc(parser.getText());
             }
+            if (eventType == XmlPullParser.START_TAG && elementName.equals("range"))
+            {
+                String offset = parser.getAttributeValue("", "offset");
+                String length = parser.getAttributeValue("", "length");
+                file.setRange(
+                        offset == null ? 0 : Long.parseLong(offset),
+                        length == null ? -1 : Long.parseLong(length));
+            }
             if (eventType == XmlPullParser.END_TAG)
             {
                 if (elementName.equals(File.ELEMENTNAME))